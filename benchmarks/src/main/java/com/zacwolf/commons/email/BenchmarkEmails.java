@@ -0,0 +1,165 @@
+/* com.zacwolf.commons.email.BenchmarkEmails.java
+ *
+ * Synthetic Emails, attachments and distributions shared by the benchmarks
+ *
+ * Copyright (C) 2021 Zac Morris
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.zacwolf.commons.email;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.lang.reflect.Constructor;
+
+import javax.imageio.ImageIO;
+import javax.mail.MessagingException;
+import javax.mail.internet.AddressException;
+import javax.mail.internet.InternetAddress;
+
+/**
+ * Everything is generated deterministically from the benchmark parameters, so runs are comparable.
+ * The benchmarks are in the com.zacwolf.commons.email package so they can reach package private
+ * methods (e.g. of EmailSendLog) the same way the factory does.
+ *
+ * @author Zac Morris <zac@zacwolf.com>
+ * @version 1.3
+ * @since Java1.8
+ */
+final class BenchmarkEmails {
+final	static	public		String			FROM		=	"sender@benchmark.example";
+final	static	private		String			PARAGRAPH	=	"<tr><td class=\"content\" style=\"padding:10px;\"><p>Lorem ipsum dolor sit amet, consectetur adipiscing elit, "
+															+"sed do eiusmod tempor incididunt ut labore et dolore magna aliqua. <a href=\"https://www.zacwolf.com\">Ut enim</a> "
+															+"ad minim veniam, quis nostrud exercitation ullamco laboris nisi ut aliquip ex ea commodo consequat.</p></td></tr>\n";
+
+	private BenchmarkEmails(){}
+
+	/**
+	 * @param refid
+	 * @param bodykb approximate size of the html body
+	 * @param images number of inline images referenced by the body
+	 * @return
+	 * @throws MessagingException
+	 * @throws IOException
+	 */
+	static Email email(final String refid, final int bodykb, final int images) throws MessagingException, IOException {
+final	Email	email	=	new BenchmarkEmail(refid);
+				email.setSubject("Benchmark "+refid);
+				email.setBody(body(bodykb, images));
+				email.setBodyPlainText("Benchmark "+refid);
+		for (int i=0; i<images; i++) {
+				email.addAttachment(image(i));
+		}
+		return email;
+	}
+
+	/**
+	 * @param bodykb
+	 * @param images
+	 * @return html of about <code>bodykb</code> KB, with <code>images</code> <code>cid:</code> images spread through it
+	 */
+	static String body(final int bodykb, final int images){
+final	StringBuilder	html		=	new StringBuilder(bodykb*1024+1024);
+						html.append("<html><head><title>Benchmark</title></head><body><table id=\"contenttable\">\n");
+final	int				paragraphs	=	Math.max(1, bodykb*1024/PARAGRAPH.length());
+final	int				every		=	Math.max(1, paragraphs/Math.max(1, images));
+	int					placed		=	0;
+		for (int i=0; i<paragraphs; i++){
+						html.append(PARAGRAPH);
+			if (placed<images && i%every==0) {
+						html.append("<tr><td><img src=\"cid:image").append(placed++).append("\" /></td></tr>\n");
+			}
+		}
+		while (placed<images) {//more images than paragraphs
+						html.append("<tr><td><img src=\"cid:image").append(placed++).append("\" /></td></tr>\n");
+		}
+						html.append("</table><p class=\"date\"></p></body></html>");
+		return html.toString();
+	}
+
+	/**
+	 * @param index
+	 * @return an inline 120x60 png, with the content-id <code>image{index}</code>
+	 * @throws MessagingException
+	 * @throws IOException
+	 */
+	static EmailAttachment image(final int index) throws MessagingException, IOException {
+final	BufferedImage			img		=	new BufferedImage(120, 60, BufferedImage.TYPE_INT_RGB);
+final	Graphics2D				g		=	img.createGraphics();
+								g.setColor(new Color(0x336699+index*0x111111&0xFFFFFF));
+								g.fillRect(0, 0, 120, 60);
+								g.setColor(Color.WHITE);
+								g.drawString("image"+index, 10, 35);
+								g.dispose();
+final	ByteArrayOutputStream	baos	=	new ByteArrayOutputStream();
+								ImageIO.write(img, "png", baos);
+		return new EmailAttachment("image"+index+".png", "image/png", baos.toByteArray(), "image"+index, "Benchmark image "+index);
+	}
+
+	/**
+	 * @param count
+	 * @param domains recipients are spread evenly across this many domains
+	 * @return
+	 * @throws AddressException
+	 */
+	static InternetAddress[] recipients(final int count, final int domains) throws AddressException {
+final	InternetAddress[]	recipients	=	new InternetAddress[count];
+		for (int i=0; i<count; i++) {
+							recipients[i]	=	new InternetAddress("user"+i+"@domain"+(i%domains)+".example");
+		}
+		return recipients;
+	}
+
+	/**
+	 * @param count
+	 * @return distribution with <code>count</code> TO recipients over at most 50 domains
+	 * @throws AddressException
+	 */
+	static EmailDistribution distribution(final int count) throws AddressException {
+		return new EmailDistribution(new InternetAddress(FROM), recipients(count, Math.min(50, Math.max(1, count/20))));
+	}
+
+	/**
+	 * EmailTemplates are only ever loaded (their constructor is private), so one is made reflectively.
+	 *
+	 * @param bodykb
+	 * @param images
+	 * @return template whose <code>#content</code> slot is filled by the EmailFromTemplate
+	 * @throws Exception
+	 */
+	static EmailTemplate template(final int bodykb, final int images) throws Exception {
+final	Constructor<EmailTemplate>	constructor	=	EmailTemplate.class.getDeclaredConstructor(int.class, String.class);
+									constructor.setAccessible(true);
+final	EmailTemplate				template	=	constructor.newInstance(1, "benchmark");
+									template.setSubject("Benchmark template");
+									template.setBody(body(bodykb, images).replace("<table id=\"contenttable\">",
+																				  "<table id=\"contenttable\"><tr><td id=\"content\"></td></tr>"));
+									template.setDistribution(distribution(1));
+		for (int i=0; i<images; i++) {
+									template.addAttachment(image(i));
+		}
+		return template;
+	}
+
+	final private static class BenchmarkEmail extends Email {
+final	static	private		long	serialVersionUID	=	1L;
+
+		BenchmarkEmail(final String refid){
+			super(refid, "benchmark");
+		}
+	}
+}
@@ -0,0 +1,108 @@
+/* com.zacwolf.commons.email.DistributionBenchmark.java
+ *
+ * Benchmarks of EmailDistribution, and of the EmailSendLog lookups made per recipient
+ *
+ * Copyright (C) 2021 Zac Morris
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.zacwolf.commons.email;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import javax.mail.internet.InternetAddress;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The distribution and send log are shared by every thread sending the Email, so these are
+ * also worth running with more than one thread (see {@link EmailBenchmarks}), to show contention
+ * on the distribution's table lock and the send log's sets.
+ *
+ * @author Zac Morris <zac@zacwolf.com>
+ * @version 1.3
+ * @since Java1.8
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations=3, time=2)
+@Measurement(iterations=5, time=2)
+@Fork(1)
+public class DistributionBenchmark {
+	/** number of TO recipients */
+	@Param({"100", "10000", "100000"})
+				int						recipients;
+
+				private		EmailDistribution	distribution;
+				private		String				json;
+				private		String[]			addresses;
+				private		EmailSendLog		sendlog;
+
+	@Setup
+	public void setup() throws Exception {
+		distribution	=	BenchmarkEmails.distribution(recipients);
+		json			=	distribution.toJSONWithGroups();
+final	InternetAddress[]	to	=	distribution.getTO();
+		addresses		=	new String[to.length];
+		sendlog			=	new EmailSendLog();
+		for (int i=0; i<to.length; i++){
+			addresses[i]	=	to[i].toString();
+			if (i%2==0) {//half have been sent to, so lookups are a mix of hits and misses
+				sendlog.logSentTo(addresses[i]);
+			}
+		}
+	}
+
+	@Benchmark
+	public InternetAddress[] getFlatDist(){
+		return distribution.getTO();
+	}
+
+	@Benchmark
+	public EmailDistribution fromJSON() throws Exception {
+		return EmailDistribution.fromJSON(json);
+	}
+
+	@Benchmark
+	public String toJSON() throws Exception {
+		return distribution.toJSONWithGroups();
+	}
+
+	@Benchmark
+	public int distributionHashCode(){
+		return distribution.hashCode();
+	}
+
+	@Benchmark
+	public boolean sendLogLookup(){
+		return sendlog.alreadySentTo(addresses[ThreadLocalRandom.current().nextInt(addresses.length)]);
+	}
+
+	@Benchmark
+	public void sendLogRecord(){
+		sendlog.logSentTo(addresses[ThreadLocalRandom.current().nextInt(addresses.length)]);
+	}
+}
@@ -0,0 +1,76 @@
+/* com.zacwolf.commons.email.EmailBenchmarks.java
+ *
+ * Runs the benchmarks at each thread count, writing the results as JSON
+ *
+ * Copyright (C) 2021 Zac Morris
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.zacwolf.commons.email;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import org.openjdk.jmh.results.RunResult;
+import org.openjdk.jmh.results.format.ResultFormatFactory;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Main class of <code>benchmarks.jar</code>.  Takes the usual JMH command line (e.g. a regex of the
+ * benchmarks to run, or <code>-p recipients=1000</code>), but unless <code>-t</code> is given runs
+ * everything once per thread count in the <code>benchmark.threads</code> system property (default 1,4,16),
+ * and writes every result to the JSON file in <code>benchmark.result</code> (default jmh-result.json)
+ * for regression tracking, e.g.:
+ * <pre>
+ * java -Dbenchmark.threads=1,8 -jar target/benchmarks.jar RenderBenchmark -p images=0,4
+ * </pre>
+ *
+ * @author Zac Morris <zac@zacwolf.com>
+ * @version 1.3
+ * @since Java1.8
+ */
+public final class EmailBenchmarks {
+final	static	public		String		DEFAULT_THREADS		=	"1,4,16";
+final	static	public		String		DEFAULT_RESULT		=	"jmh-result.json";
+
+	private EmailBenchmarks(){}
+
+	public static void main(final String[] args) throws Exception {
+final	CommandLineOptions	cmd			=	new CommandLineOptions(args);
+		if (cmd.shouldHelp() || cmd.shouldList() || cmd.shouldListProfilers() || cmd.shouldListResultFormats() || cmd.shouldListWithParams()) {
+			org.openjdk.jmh.Main.main(args);
+			return;
+		}
+final	String				result		=	System.getProperty("benchmark.result", DEFAULT_RESULT);
+final	List<RunResult>		results		=	new ArrayList<RunResult>();
+		if (cmd.getThreads().hasValue()){
+			results.addAll(run(new OptionsBuilder().parent(cmd).build()));
+		} else {
+			for (final String threads:System.getProperty("benchmark.threads", DEFAULT_THREADS).split(",")) {
+				results.addAll(run(new OptionsBuilder().parent(cmd).threads(Integer.parseInt(threads.trim())).build()));
+			}
+		}
+		ResultFormatFactory.getInstance(ResultFormatType.JSON, result).writeOut(results);
+		System.out.println("Results of "+results.size()+" benchmarks written to "+result);
+	}
+
+	private static Collection<RunResult> run(final Options options) throws Exception {
+		return new Runner(options).run();
+	}
+}
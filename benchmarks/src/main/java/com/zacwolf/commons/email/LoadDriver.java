@@ -0,0 +1,198 @@
+/* com.zacwolf.commons.email.LoadDriver.java
+ *
+ * Pushes synthetic campaigns through an _EMAILfactory to a FakeSMTPServer, reporting throughput, latency and heap
+ *
+ * Copyright (C) 2021 Zac Morris
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.zacwolf.commons.email;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.mail.internet.InternetAddress;
+
+/**
+ * Capacity test of the factory, with no real relay needed:
+ * <pre>
+ * java -cp target/benchmarks.jar com.zacwolf.commons.email.LoadDriver campaigns=200 recipients=5000 latency.RCPT=1 bounce=0.02
+ * </pre>
+ * Options (all <code>name=value</code>):
+ * <ul>
+ * <li>campaigns, recipients: number of Emails to send, and recipients of each (default 100 x 1000)</li>
+ * <li>inflight: campaigns being sent at once (default 4)</li>
+ * <li>senders: threads the factory sends on (default {@link _EMAILfactory#THREADPOOLSIZE})</li>
+ * <li>bodykb, images: size of each Email's html body, and number of inline images (default 16 and 2)</li>
+ * <li>bounce, defer: fraction of recipients given a 550, and a 451, by the server (default 0)</li>
+ * <li>retries: times a deferred recipient is retried, 100ms apart, before it is given up on (default 1)</li>
+ * <li>latency.CONNECT, latency.EHLO, latency.MAIL, latency.RCPT, latency.DATA, latency.DATAEND: server reply delays in ms</li>
+ * <li>maxconnections, maxrecipients: server limits (default none)</li>
+ * </ul>
+ *
+ * @author Zac Morris <zac@zacwolf.com>
+ * @version 1.3
+ * @since Java1.8
+ */
+public final class LoadDriver {
+final	static	private		String		BOUNCE		=	"bounce";
+final	static	private		String		DEFER		=	"defer";
+
+	private LoadDriver(){}
+
+	public static void main(final String[] args) throws Exception {
+final	Map<String,String>	options		=	new HashMap<String,String>();
+		for (final String arg:args){
+final	int					eq			=	arg.indexOf('=');
+			if (eq<1) {
+				throw new IllegalArgumentException("Options are name=value, not: "+arg);
+			}
+							options.put(arg.substring(0, eq), arg.substring(eq+1));
+		}
+final	int					campaigns	=	Integer.parseInt(options.getOrDefault("campaigns", "100"));
+final	int					recipients	=	Integer.parseInt(options.getOrDefault("recipients", "1000"));
+final	int					inflight	=	Integer.parseInt(options.getOrDefault("inflight", "4"));
+final	int					senders		=	Integer.parseInt(options.getOrDefault("senders", String.valueOf(_EMAILfactory.THREADPOOLSIZE)));
+final	int					bodykb		=	Integer.parseInt(options.getOrDefault("bodykb", "16"));
+final	int					images		=	Integer.parseInt(options.getOrDefault("images", "2"));
+final	double				bounce		=	Double.parseDouble(options.getOrDefault("bounce", "0"));
+final	double				defer		=	Double.parseDouble(options.getOrDefault("defer", "0"));
+final	int					retries		=	Integer.parseInt(options.getOrDefault("retries", "1"));
+
+		try (final FakeSMTPServer server=new FakeSMTPServer()){
+			for (final String command:new String[]{FakeSMTPServer.CONNECT, FakeSMTPServer.EHLO, FakeSMTPServer.MAIL, FakeSMTPServer.RCPT, FakeSMTPServer.DATA, FakeSMTPServer.DATAEND}) {
+				if (options.containsKey("latency."+command)) {
+					server.setLatency(command, Long.parseLong(options.get("latency."+command)));
+				}
+			}
+			server.setMaxConnections(Integer.parseInt(options.getOrDefault("maxconnections", "0")));
+			server.setMaxRecipients(Integer.parseInt(options.getOrDefault("maxrecipients", "0")));
+			server.addRecipientReply("^"+BOUNCE, "550 5.1.1 No such user");
+			server.addRecipientReply("^"+DEFER, "451 4.3.0 Try again later");
+
+final	ExecutorService				executor	=	Executors.newFixedThreadPool(senders);
+final	_EMAILfactory				factory		=	new _EMAILfactory(Collections.singletonList(new EmailRelay("localhost", server.getPort(), null, null, 1)));
+			factory.setExecutor(executor);
+			factory.setRetryPolicy(retries==0?EmailRetryPolicy.NONE:new EmailRetryPolicy(retries, 100, 100));
+final	EmailDistribution			distribution	=	new EmailDistribution(new InternetAddress(BenchmarkEmails.FROM), addresses(recipients, bounce, defer));
+final	HeapSampler					heap		=	new HeapSampler();
+final	EmailHistogram				latency		=	new EmailHistogram("campaign", "Sending a campaign until its delivery report is complete", "ns");
+final	Semaphore					permits		=	new Semaphore(inflight);
+final	LongAdder					sent		=	new LongAdder();
+final	LongAdder					failed		=	new LongAdder();
+final	LongAdder					errors		=	new LongAdder();
+final	long						start		=	System.nanoTime();
+			for (int i=0; i<campaigns; i++){
+final	Email						email		=	BenchmarkEmails.email("campaign"+i, bodykb, images);
+							email.setDistribution(distribution);
+				permits.acquire();
+final	long						started		=	System.nanoTime();
+				factory.sendEmailMessageAsync(email).whenComplete((report, t) -> {
+									latency.recordSince(started);
+									if (t!=null){
+										errors.increment();
+									} else {
+										sent.add(report.getSentCount());
+										failed.add(report.getFailedCount());
+									}
+									permits.release();
+								});
+			}
+			permits.acquire(inflight);//every campaign has completed
+final	double						seconds		=	(System.nanoTime()-start)/1e9;
+			heap.close();
+			factory.close();
+			executor.shutdownNow();
+
+			System.out.printf("campaigns:%d x %d recipients in %.2fs (%d in flight, %d senders)%n", campaigns, recipients, seconds, inflight, senders);
+			System.out.printf("recipients sent:%d failed:%d, campaigns failed to start:%d%n", sent.sum(), failed.sum(), errors.sum());
+			System.out.printf("throughput: %.0f recipients/s, %.0f messages/s, %.1f MB/s%n", sent.sum()/seconds, server.getMessages()/seconds, server.getBytes()/seconds/1024/1024);
+			System.out.println(summary("campaign latency", latency));
+			System.out.println(summary("smtp transaction (server)", server.getTransactions()));
+			System.out.println(summary("smtp rcpt (client)", EmailMetrics.SMTP_RCPT));
+			System.out.println(summary("smtp data (client)", EmailMetrics.SMTP_DATA));
+			System.out.println(summary("thread pool wait", EmailMetrics.QUEUE_WAIT));
+			System.out.printf("connections accepted:%d refused:%d, recipients rejected:%d%n", server.getAccepted(), server.getRefused(), server.getRejected());
+			System.out.println(heap);
+		}
+		System.exit(0);
+	}
+
+	/**
+	 * @return recipients over 50 domains, with the given fractions of them matching the bounce and defer patterns
+	 */
+	private static InternetAddress[] addresses(final int count, final double bounce, final double defer) throws Exception {
+final	InternetAddress[]	addresses	=	new InternetAddress[count];
+		for (int i=0; i<count; i++){
+final	double				slot		=	(i%1000)/1000d;
+final	String				local		=	slot<bounce?BOUNCE:slot<bounce+defer?DEFER:"user";
+							addresses[i]	=	new InternetAddress(local+i+"@domain"+(i%50)+".example");
+		}
+		return addresses;
+	}
+
+	private static String summary(final String name, final EmailHistogram histogram){
+		return String.format("%s: count:%d p50:%.2fms p99:%.2fms max:%.2fms", name, histogram.getCount(),
+							 histogram.get50thPercentile()/1e6, histogram.get99thPercentile()/1e6, histogram.getMax()/1e6);
+	}
+
+	/**
+	 * Samples the heap in use every 100ms, for the peak.
+	 */
+	final private static class HeapSampler implements AutoCloseable {
+final	MemoryMXBean				memory		=	ManagementFactory.getMemoryMXBean();
+final	ScheduledExecutorService	sampler		=	Executors.newSingleThreadScheduledExecutor();
+final	AtomicLong					peak		=	new AtomicLong();
+final	long						before		=	collections();
+		long						gcs;
+		long						after;
+
+		HeapSampler(){
+			sampler.scheduleAtFixedRate(() -> peak.accumulateAndGet(memory.getHeapMemoryUsage().getUsed(), Math::max), 0, 100, TimeUnit.MILLISECONDS);
+		}
+
+		@Override
+		public void close(){
+			sampler.shutdownNow();
+			gcs		=	collections()-before;
+			System.gc();
+			after	=	memory.getHeapMemoryUsage().getUsed();
+		}
+
+		private static long collections(){
+	long		count	=	0;
+			for (final GarbageCollectorMXBean gc:ManagementFactory.getGarbageCollectorMXBeans()) {
+				count	+=	Math.max(0, gc.getCollectionCount());
+			}
+			return count;
+		}
+
+		@Override
+		public String toString(){
+			return String.format("heap peak:%.1fMB after GC:%.1fMB, %d collections during the run",
+								 peak.get()/1024d/1024, after/1024d/1024, gcs);
+		}
+	}
+}
@@ -0,0 +1,121 @@
+/* com.zacwolf.commons.email.RenderBenchmark.java
+ *
+ * Benchmarks of turning an Email into the content of a MimeMessage
+ *
+ * Copyright (C) 2021 Zac Morris
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.zacwolf.commons.email;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+import javax.mail.MessagingException;
+import javax.mail.Multipart;
+import javax.mail.Session;
+import javax.mail.internet.MimeMessage;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * {@link Email#getAsMultipart()} re-parses, re-embeds and re-prepares the body on every call, and
+ * {@link EmailFromTemplate#getBody()} re-fills the template's slots, so both scale with the size of
+ * the body and the number of inline images.  {@link #writeMultipart(Blackhole)} adds the MIME encoding
+ * that the transport would do, to show what the render cache saves each chunk.
+ *
+ * @author Zac Morris <zac@zacwolf.com>
+ * @version 1.3
+ * @since Java1.8
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations=3, time=2)
+@Measurement(iterations=5, time=2)
+@Fork(1)
+public class RenderBenchmark {
+	/** approximate size of the html body in KB */
+	@Param({"4", "64", "512"})
+				int						bodykb;
+	/** number of inline images in the body */
+	@Param({"0", "4", "16"})
+				int						images;
+
+				private		Email				email;
+				private		EmailFromTemplate	fromtemplate;
+
+	@Setup
+	public void setup() throws Exception {
+		email			=	BenchmarkEmails.email("render", bodykb, images);
+		fromtemplate	=	new EmailFromTemplate(1, "render", BenchmarkEmails.template(4, images));
+		fromtemplate.setBody(BenchmarkEmails.body(bodykb, 0));
+	}
+
+	@Benchmark
+	public Multipart getAsMultipart() throws MessagingException {
+		return email.getAsMultipart();
+	}
+
+	@Benchmark
+	public void writeMultipart(final Blackhole bh) throws MessagingException, IOException {
+final	MimeMessage		msg		=	new MimeMessage((Session)null);
+						msg.setContent(email.getAsMultipart());
+						msg.saveChanges();
+						msg.writeTo(new BlackholeOutputStream(bh));
+	}
+
+	@Benchmark
+	public String getAsHTML(){
+		return email.getAsHTML();
+	}
+
+	@Benchmark
+	public String templateGetBody(){
+		return fromtemplate.getBody();
+	}
+
+	/**
+	 * Counts the bytes into the Blackhole, so the encoding can't be optimized away.
+	 */
+	final static class BlackholeOutputStream extends OutputStream {
+final	Blackhole	bh;
+
+		BlackholeOutputStream(final Blackhole bh){
+			this.bh	=	bh;
+		}
+
+		@Override
+		public void write(final int b){
+			bh.consume(b);
+		}
+
+		@Override
+		public void write(final byte[] b, final int off, final int len){
+			bh.consume(len);
+		}
+	}
+}
@@ -0,0 +1,124 @@
+/* com.zacwolf.commons.email.SendBenchmark.java
+ *
+ * End-to-end benchmark of sending an Email through an _EMAILfactory to an in-process SMTP sink
+ *
+ * Copyright (C) 2021 Zac Morris
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.zacwolf.commons.email;
+
+import java.util.Collections;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Times {@link _EMAILfactory#sendEmailMessageAsync(Email)} until the delivery report is complete,
+ * covering chunk planning, rendering, the pooled connections and the SMTP conversation itself.
+ * Every invocation sends a new Email (the send log would otherwise skip everyone already sent to).
+ *
+ * The factory is shared, so when run with more than one thread each thread is a concurrent campaign
+ * competing for the same <code>senders</code> threads and pooled connections.
+ *
+ * @author Zac Morris <zac@zacwolf.com>
+ * @version 1.3
+ * @since Java1.8
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations=3, time=5)
+@Measurement(iterations=5, time=5)
+@Fork(1)
+public class SendBenchmark {
+final	static	private		AtomicInteger		sent			=	new AtomicInteger();
+
+	/** number of recipients of each Email */
+	@Param({"200", "2000", "20000"})
+				int						recipients;
+	/** approximate size of the html body in KB */
+	@Param({"16"})
+				int						bodykb;
+	/** number of inline images in the body */
+	@Param({"2"})
+				int						images;
+
+				private		EmailDistribution	distribution;
+				private		Email				email;
+
+	@Setup(Level.Trial)
+	public void setup() throws Exception {
+		distribution	=	BenchmarkEmails.distribution(recipients);
+	}
+
+	@Setup(Level.Invocation)
+	public void nextEmail() throws Exception {
+		email			=	BenchmarkEmails.email("send"+sent.incrementAndGet(), bodykb, images);
+		email.setDistribution(distribution);
+	}
+
+	@Benchmark
+	public EmailDeliveryReport send(final Relay relay) throws Exception {
+final	EmailDeliveryReport	report	=	relay.factory.sendEmailMessageAsync(email).get(10, TimeUnit.MINUTES);
+		if (report.getSentCount()!=recipients) {
+			throw new IllegalStateException("Expected "+recipients+" recipients to be sent to: "+report+" "+report.getErrors());
+		}
+		return report;
+	}
+
+	/**
+	 * The sink and the factory sending to it, shared by every thread.
+	 */
+	@State(Scope.Benchmark)
+	public static class Relay {
+		/** number of threads the factory sends on */
+		@Param({"1", "4", "10"})
+					int						senders;
+
+					private		FakeSMTPServer		server;
+					private		ExecutorService		executor;
+					private		_EMAILfactory		factory;
+
+		@Setup(Level.Trial)
+		public void start() throws Exception {
+			server		=	new FakeSMTPServer();
+			executor	=	Executors.newFixedThreadPool(senders);
+			factory		=	new _EMAILfactory(Collections.singletonList(new EmailRelay("localhost", server.getPort(), null, null, 1)));
+			factory.setExecutor(executor);
+		}
+
+		@TearDown(Level.Trial)
+		public void stop() throws Exception {
+			factory.close();
+			executor.shutdownNow();
+			server.close();
+		}
+	}
+}
@@ -27,7 +27,6 @@ import java.awt.Rectangle;
 import java.awt.RenderingHints;
 import java.awt.geom.RoundRectangle2D;
 import java.awt.image.BufferedImage;
-import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
@@ -39,7 +38,6 @@ import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
 
-import javax.imageio.ImageIO;
 import javax.mail.BodyPart;
 import javax.mail.MessagingException;
 import javax.mail.Multipart;
@@ -62,7 +60,7 @@ final	static	private		long 						serialVersionUID 	=	7850486608888530706L;
 final			protected	String						refid;
 final			protected	String						name;
 final			protected	EmailSendLog				sendlog;
-				protected	long						last_changed;
+	volatile	protected	long						last_changed;
 				protected	String						subject				=	null;
 				protected	String						body				=	null;
 				protected	String						body_plaintext		=	null;
@@ -83,7 +81,7 @@ final			protected	EmailSendLog				sendlog;
 		}
 		if (this.body==null || !this.body.equals(body)){
 			this.body			=	body;
-			last_changed	=	TimeUtils.getGMTtime();
+			changed();
 		}
 	}
 
@@ -93,7 +91,7 @@ final			protected	EmailSendLog				sendlog;
 		}
 		if (this.body_plaintext==null || !this.body_plaintext.equals(body_plaintext)){
 			this.body_plaintext	=	body_plaintext;
-			last_changed	=	TimeUtils.getGMTtime();
+			changed();
 		}
 	}
 
@@ -103,7 +101,7 @@ final			protected	EmailSendLog				sendlog;
 		}
 		if (this.subject==null || !this.subject.equals(subject)){
 			this.subject		=	subject;
-			last_changed	=	TimeUtils.getGMTtime();
+			changed();
 		}
 	}
 
@@ -117,13 +115,23 @@ final			protected	EmailSendLog				sendlog;
 		if (attachments==null) {
 			attachments	=	new HashMap<String,EmailAttachment>();
 		}
-		attachments.put(attachment.contentid,attachment);
+		attachments.put(attachment.contentid,EmailAttachmentStore.intern(attachment));
+		changed();
 	}
 
 	public synchronized void bodyReplaceAll(final String regex, final String replacement){
 		synchronized(body){
 			body			=	body.replaceAll(regex, replacement);
 		}
+		changed();
+	}
+
+	/**
+	 * Bumps last_changed, which is also used to key the rendered content cache,
+	 * so it always moves forward even if two changes land in the same millisecond.
+	 */
+	protected synchronized void changed(){
+		last_changed		=	Math.max(TimeUtils.getGMTtime(), last_changed+1);
 	}
 
 	public String	getREFID(){
@@ -162,11 +170,22 @@ final			protected	EmailSendLog				sendlog;
 		return sendlog;
 	}
 
+	/**
+	 * @return key identifying this version of the rendered content
+	 */
+	String getRenderKey(){
+		return refid+"@"+getLastChanged();
+	}
+
+	/**
+	 * @return the attachments to render, which aren't modified, so subclasses can return a shared map
+	 */
+	Map<String,EmailAttachment> getRenderAttachments(){
+		return getAttachments();
+	}
+
 	public String getAsHTML(){
-final	org.jsoup.nodes.Document	doc			=	Jsoup.parse(getBody(), "UTF-8");
-		prepareImgs(doc,null);
-		prepare(doc);
-		return doc.toString();
+		return render(null).toString();
 	}
 
 	/*
@@ -195,14 +214,23 @@ final	org.jsoup.nodes.Document	doc			=	Jsoup.parse(getBody(), "UTF-8");
 final	Multipart					htmlmultipart 		=	new MimeMultipart("related");
 final	BodyPart					htmlmessageBodyPart	=	new MimeBodyPart();
 									htmlmultipart.addBodyPart(htmlmessageBodyPart);
-final	org.jsoup.nodes.Document	doc					=	Jsoup.parse(getBody(), "UTF-8");
-									prepareImgs(doc,htmlmultipart);
-									prepare(doc);
-									htmlmessageBodyPart.setContent(doc.toString(),"text/html; charset=utf-8");
+									htmlmessageBodyPart.setContent(render(htmlmultipart).toString(),"text/html; charset=utf-8");
+		return wrapMultipart(htmlmultipart, getBodyPlainText());
+	}
 
+	/**
+	 * Wraps the "related" html multipart with the plain text alternative and any
+	 * non-inline attachments to create the multipart used as the message content.
+	 *
+	 * @param htmlmultipart the "related" multipart holding the html and its inline images
+	 * @param plaintext may be null if there is no plain text alternative
+	 * @return the top level multipart
+	 * @throws MessagingException
+	 */
+	Multipart wrapMultipart(final Multipart htmlmultipart, final String plaintext) throws MessagingException{
 		// populate the top multipart
 		Multipart 					msgmultipart		=	htmlmultipart;
-		if (getBodyPlainText()!=null){// Now create a plain-text body part
+		if (plaintext!=null){// Now create a plain-text body part
 		/**
 		 * If there is a plain text attachment (and their should always be one),
 		 * then an "alternative" type MimeMultipart is added to the structure
@@ -230,7 +258,7 @@ final	org.jsoup.nodes.Document	doc					=	Jsoup.parse(getBody(), "UTF-8");
 		 * └─────────────────────────────────────────────────┘
 		 */							msgmultipart 			=	new MimeMultipart("alternative");
 final	BodyPart					plaintxtBodyPart		=	new MimeBodyPart();
-									plaintxtBodyPart.setText(getBodyPlainText());
+									plaintxtBodyPart.setText(plaintext);
 final	BodyPart					htmlBodyPart			=	new MimeBodyPart();
 									htmlBodyPart.setContent(htmlmultipart);
 									msgmultipart.addBodyPart(plaintxtBodyPart);
@@ -275,9 +303,12 @@ final	BodyPart					htmlBodyPart			=	new MimeBodyPart();
 		 */
 		Multipart					mixed					=	msgmultipart;
 final	Set<EmailAttachment>		noninlineattachments	=	new HashSet<EmailAttachment>();
-		for (final EmailAttachment attach:getAttachments().values()) {
-			if (attach.disposition!=null && !attach.disposition.equals(MimeBodyPart.INLINE)) {
-				noninlineattachments.add(attach);
+final	Map<String,EmailAttachment>	attachments				=	getRenderAttachments();//null until the first is added
+		if (attachments!=null){
+			for (final EmailAttachment attach:attachments.values()) {
+				if (attach.disposition!=null && !attach.disposition.equals(MimeBodyPart.INLINE)) {
+					noninlineattachments.add(attach);
+				}
 			}
 		}
 		// If there are non-IN-LINE attachments, we'll have to create another layer "mixed" MultiPart object
@@ -288,21 +319,57 @@ final	BodyPart					wrap					=	new MimeBodyPart();
 									wrap.setContent(msgmultipart);
 									mixed.addBodyPart(wrap);
 			for (final EmailAttachment attach:noninlineattachments) {
-				mixed.addBodyPart(attach);
+				mixed.addBodyPart(attach.clone());//the Email's (or template's) own may be in other multiparts at the same time
 			}
 		}
 		return mixed;
 	}
 
+	/**
+	 * Prepares the html exactly as {@link #getAsMultipart()} would, adding any inline
+	 * images to <code>htmlmultipart</code>, and returns the resulting html.
+	 *
+	 * @param htmlmultipart to collect the inline images in
+	 * @return prepared html
+	 */
+	String getPreparedHTML(final Multipart htmlmultipart){
+		return render(htmlmultipart).toString();
+	}
+
+	/**
+	 * Parses the body, embeds its images and prepares it, timing each step in {@link EmailMetrics}.
+	 *
+	 * @param htmlmultipart to collect the inline images in, may be null
+	 * @return prepared html document
+	 */
+	private org.jsoup.nodes.Document render(final Multipart htmlmultipart){
+	long							start		=	System.nanoTime();
+final	org.jsoup.nodes.Document	doc			=	Jsoup.parse(getBody(), "UTF-8");
+									start		=	record(EmailMetrics.RENDER_PARSE, start);
+		prepareImgs(doc,htmlmultipart);
+									start		=	record(EmailMetrics.RENDER_IMAGES, start);
+		prepare(doc);
+									record(EmailMetrics.RENDER_PREPARE, start);
+		return doc;
+	}
+
+	/**
+	 * @return now, to start timing the next step from
+	 */
+	private static long record(final EmailHistogram histogram, final long start){
+final	long						now			=	System.nanoTime();
+		histogram.record(now-start);
+		return now;
+	}
+
 	private void prepareImgs(final org.jsoup.nodes.Document doc, final Multipart htmlmultipart){
-final	Map<String,EmailAttachment>	attachments		=	getAttachments();
+final	Map<String,EmailAttachment>	attachments		=	getRenderAttachments();
 final	org.jsoup.select.Elements	imgs			=	doc.getElementsByTag("img");
 		for (final org.jsoup.nodes.Element img : imgs) {
 final	String						src				=	img.attr("src");
 final	String						cid				=	!src.startsWith("cid:")?null:src.substring(4);
 			try{
 		EmailAttachment				attachment;
-		ByteArrayOutputStream		baos;
 				if (cid!=null){
 									attachment			=	attachments.get(cid);
 									img.attr("alt",attachment.getDescription());
@@ -310,12 +377,10 @@ final	String						cid				=	!src.startsWith("cid:")?null:src.substring(4);
 						img.attr("style",img.attr("style")+(!img.attr("style").endsWith(";")?";":"")+"display:block;");
 					}
 					if (cid.toLowerCase().contains("_banner") && doc.select("#banner").attr("style").contains("-radius")){
-		final BufferedImage				image			=	makeRoundedBanner(ImageIO.read(new ByteArrayInputStream(attachment.data)), 20);
-									doc.select("#contenttable").attr("style", "width:"+image.getWidth()+"px;"+doc.select("#contenttable").attr("style"));
-									baos			=	new ByteArrayOutputStream();
-						try{		ImageIO.write(image, EmailAttachment.CONTENT_MIMETYPES.get(attachment.contenttype), baos);
-						} finally {	baos.flush();
-						}			attachment		=	new EmailAttachment(attachment.filename,attachment.contenttype,baos.toByteArray(), cid, "Rounded banner image");
+		final EmailImageCache.DerivedImage	banner		=	EmailImageCache.roundedBanner(attachment, 20);
+		byte[]						imgdata			=	banner.data;
+									doc.select("#contenttable").attr("style", "width:"+banner.width+"px;"+doc.select("#contenttable").attr("style"));
+									attachment		=	new EmailAttachment(attachment.filename,attachment.contenttype,banner.data, cid, "Rounded banner image");
 						if (htmlmultipart==null) {
 							dataurlEncode(img,attachment);
 						}
@@ -332,22 +397,19 @@ final	String						cid				=	!src.startsWith("cid:")?null:src.substring(4);
 								} else {
 									newstyle		+=	style+";";
 								}
-							}		baos			=	new ByteArrayOutputStream();
-							try{	ImageIO.write(makeRoundedFooter(image.getWidth(), 20, bgcolor, border), "png", baos);
-							} finally {
-									baos.flush();
-							}		doc.select("#footer").first().parent().html("<td style=\"margin:0px;padding:0px;\" valign=\"top\" style=\""+newstyle+"\"><img id=\"footer\" alt=\"rounded footer image\" src=\"cid:"+getREFID()+"_rounded_footer\" style=\"display:block;\" /></td>");
+							}		imgdata			=	EmailImageCache.roundedFooter(banner, 20, bgcolor, border).data;
+									doc.select("#footer").first().parent().html("<td style=\"margin:0px;padding:0px;\" valign=\"top\" style=\""+newstyle+"\"><img id=\"footer\" alt=\"rounded footer image\" src=\"cid:"+getREFID()+"_rounded_footer\" style=\"display:block;\" /></td>");
 						}
 						if (htmlmultipart==null) {
-							dataurlEncode(doc.select("#footer").first(),new EmailAttachment("footer.png", "image/png", baos.toByteArray(), getREFID()+"_rounded_footer", "Rounded footer image"));
+							dataurlEncode(doc.select("#footer").first(),new EmailAttachment("footer.png", "image/png", imgdata, getREFID()+"_rounded_footer", "Rounded footer image"));
 						} else {
-							htmlmultipart.addBodyPart(new EmailAttachment("footer.png", "image/png", baos.toByteArray(), getREFID()+"_rounded_footer", "Rounded footer image"));
+							htmlmultipart.addBodyPart(new EmailAttachment("footer.png", "image/png", imgdata, getREFID()+"_rounded_footer", "Rounded footer image"));
 						}
 					} else if (htmlmultipart==null) {
 						dataurlEncode(img,attachment);
 					}
 					if (htmlmultipart!=null) {
-						htmlmultipart.addBodyPart(attachment);
+						htmlmultipart.addBodyPart(attachment.clone());
 					}
 				}
 			} catch (final Exception e){
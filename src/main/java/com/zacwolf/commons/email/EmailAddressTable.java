@@ -0,0 +1,201 @@
+/* com.zacwolf.commons.email.EmailAddressTable.java
+ *
+ * Compact, de-duplicating table of email addresses used by EmailDistribution
+ *
+ * Copyright (C) 2021 Zac Morris
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.zacwolf.commons.email;
+
+import java.io.Serializable;
+import java.io.UnsupportedEncodingException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.mail.internet.InternetAddress;
+
+/**
+ * Every distinct address is stored exactly once, as UTF-8 bytes packed end to end in a single
+ * byte array, and is identified by its (dense, zero based) index in the table.  Lookups go
+ * through an open-addressing (linear probing) hash of those indexes.  The few addresses that
+ * carry a personal name keep it in a side map, rather than every entry paying for the field.
+ *
+ * Addresses are matched case-insensitively (as InternetAddress.equals() does) but are stored,
+ * and materialized again, exactly as first added.
+ *
+ * Entries are never removed from the table; list and group membership is held elsewhere as
+ * sets of indexes, so an address that is removed from every list simply goes unreferenced.
+ *
+ * @author Zac Morris <zac@zacwolf.com>
+ * @version 1.3
+ * @since Java1.8
+ */
+final class EmailAddressTable implements Serializable, Cloneable {
+final	static	private		long				serialVersionUID	=	-3169260440437185203L;
+final	static	private		int					INITIAL_CAPACITY	=	16;
+
+				private		byte[]				bytes				=	new byte[INITIAL_CAPACITY*24];
+				private		int					used				=	0;
+				private		int[]				offsets				=	new int[INITIAL_CAPACITY+1];
+				private		int[]				hashes				=	new int[INITIAL_CAPACITY];
+				private		int[]				slots				=	new int[INITIAL_CAPACITY*2];
+				private		int					size				=	0;
+				private		Map<Integer,String>	personals			=	new HashMap<Integer,String>();
+
+	/**
+	 * @return number of distinct addresses in the table
+	 */
+	int size(){
+		return size;
+	}
+
+	/**
+	 * Adds the address if it isn't already in the table.  If it is, and this copy has a personal
+	 * name where the existing entry does not, the personal name is added to the existing entry.
+	 *
+	 * @param address
+	 * @return the index of the address
+	 */
+	int intern(final InternetAddress address){
+final	byte[]	encoded	=	address.getAddress().getBytes(StandardCharsets.UTF_8);
+final	int		hash	=	hash(encoded, 0, encoded.length);
+	int			index	=	find(encoded, hash);
+		if (index<0){
+			if (size==hashes.length) {
+				grow();
+			}
+			if (used+encoded.length>bytes.length) {
+				bytes			=	Arrays.copyOf(bytes, Math.max(bytes.length*2, used+encoded.length));
+			}
+			System.arraycopy(encoded, 0, bytes, used, encoded.length);
+						index	=	size++;
+			used				+=	encoded.length;
+			offsets[index+1]	=	used;
+			hashes[index]		=	hash;
+			insert(index);
+		}
+		if (address.getPersonal()!=null && !personals.containsKey(index)) {
+			personals.put(index, address.getPersonal());
+		}
+		return index;
+	}
+
+	/**
+	 * @param address plain email address (no personal name)
+	 * @return index of the address, or -1 if it isn't in the table
+	 */
+	int indexOf(final String address){
+final	byte[]	encoded	=	address.getBytes(StandardCharsets.UTF_8);
+		return find(encoded, hash(encoded, 0, encoded.length));
+	}
+
+	/**
+	 * @param index
+	 * @return the plain email address at that index
+	 */
+	String getAddress(final int index){
+		return new String(bytes, offsets[index], offsets[index+1]-offsets[index], StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * @param index
+	 * @return an InternetAddress for the entry, created on demand for handing to JavaMail
+	 */
+	InternetAddress materialize(final int index){
+final	InternetAddress	address	=	new InternetAddress();
+						address.setAddress(getAddress(index));
+final	String			personal=	personals.get(index);
+		if (personal!=null) {
+			try {
+						address.setPersonal(personal, "UTF-8");
+			} catch (final UnsupportedEncodingException uee) {
+				//UTF-8 is always supported
+			}
+		}
+		return address;
+	}
+
+	@Override
+	public EmailAddressTable clone(){
+		try {
+final	EmailAddressTable	copy	=	(EmailAddressTable)super.clone();
+							copy.bytes		=	Arrays.copyOf(bytes, bytes.length);
+							copy.offsets	=	Arrays.copyOf(offsets, offsets.length);
+							copy.hashes		=	Arrays.copyOf(hashes, hashes.length);
+							copy.slots		=	Arrays.copyOf(slots, slots.length);
+							copy.personals	=	new HashMap<Integer,String>(personals);
+			return copy;
+		} catch (final CloneNotSupportedException cnse) {
+			throw new IllegalStateException(cnse);
+		}
+	}
+
+	private int find(final byte[] encoded, final int hash){
+final	int		mask	=	slots.length-1;
+		for (int slot=hash&mask; slots[slot]!=0; slot=(slot+1)&mask){
+final	int		index	=	slots[slot]-1;
+			if (hashes[index]==hash && equalsIgnoreCase(encoded, index)) {
+				return index;
+			}
+		}
+		return -1;
+	}
+
+	private void insert(final int index){
+final	int		mask	=	slots.length-1;
+	int			slot	=	hashes[index]&mask;
+		while (slots[slot]!=0) {
+				slot	=	(slot+1)&mask;
+		}
+		slots[slot]		=	index+1;//0 marks an empty slot
+	}
+
+	private void grow(){
+		offsets			=	Arrays.copyOf(offsets, offsets.length*2-1);
+		hashes			=	Arrays.copyOf(hashes, hashes.length*2);
+		slots			=	new int[slots.length*2];
+		for (int i=0; i<size; i++) {
+			insert(i);
+		}
+	}
+
+	private boolean equalsIgnoreCase(final byte[] encoded, final int index){
+final	int		start	=	offsets[index];
+		if (offsets[index+1]-start!=encoded.length) {
+			return false;
+		}
+		for (int i=0; i<encoded.length; i++){
+			if (lower(encoded[i])!=lower(bytes[start+i])) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static int hash(final byte[] encoded, final int start, final int end){
+	int		h	=	0;
+		for (int i=start; i<end; i++) {
+				h	=	31*h+lower(encoded[i]);
+		}
+		//spread the bits, as the table is indexed by the low order bits only
+		return h^(h>>>16);
+	}
+
+	private static int lower(final byte b){
+		return b>='A' && b<='Z'?b+32:b;
+	}
+}
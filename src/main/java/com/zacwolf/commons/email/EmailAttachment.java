@@ -19,9 +19,17 @@
  */
 package com.zacwolf.commons.email;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Enumeration;
 import java.util.HashMap;
+import java.util.Locale;
 import java.util.Map;
 
 import javax.activation.DataHandler;
@@ -33,6 +41,9 @@ import javax.mail.util.ByteArrayDataSource;
 import com.zacwolf.commons.utils.TimeUtils;
 
 /**
+ * The content is either a byte[], or an {@link EmailAttachmentSource} (a file or mapped buffer) that is
+ * only read as the attachment is written to the relay, and is shared, rather than copied, by clones.
+ *
  * @author Zac Morris <zac@zacwolf.com>
  * @version 1.3
  * @since Java1.8
@@ -47,6 +58,8 @@ public class EmailAttachment extends MimeBodyPart implements Serializable{
 							String					description;
 							String					disposition;
 							byte[]					data;
+							EmailAttachmentSource	source;
+				transient	volatile	String			contenthash;
 
 	static{
 		CONTENT_MIMETYPES.put("image/png","png");
@@ -59,6 +72,32 @@ public class EmailAttachment extends MimeBodyPart implements Serializable{
 	}
 
 	public EmailAttachment(final String filename, final String contenttype, final byte[] data, final String contentid, final String description, final String disposition) throws MessagingException, NullPointerException, IOException {
+		this.data			=	data;
+		init(filename, contenttype, contentid, description, disposition);
+	}
+
+	/**
+	 * @param filename
+	 * @param source the file or buffer the content is streamed from each time the attachment is sent
+	 * @param contentid
+	 * @param description
+	 * @throws MessagingException
+	 * @throws NullPointerException
+	 * @throws IOException
+	 */
+	public EmailAttachment(final String filename, final EmailAttachmentSource source, final String contentid, final String description) throws MessagingException, NullPointerException, IOException{
+		this(filename,source,contentid,description,MimeMessage.INLINE);
+	}
+
+	public EmailAttachment(final String filename, final EmailAttachmentSource source, final String contentid, final String description, final String disposition) throws MessagingException, NullPointerException, IOException {
+		if (source==null) {
+			throw new NullPointerException("Attachment's source may not be null.");
+		}
+		this.source			=	source;
+		init(filename, source.getContentType(), contentid, description, disposition);
+	}
+
+	private void init(final String filename, final String contenttype, final String contentid, final String description, final String disposition) throws MessagingException {
 		if (contentid==null) {
 			throw new NullPointerException("Attachment's contentid may not be null.");
 		}
@@ -67,13 +106,16 @@ public class EmailAttachment extends MimeBodyPart implements Serializable{
 		this.contenttype	=	contenttype;
 		this.description	=	description;
 		this.disposition	=	disposition;
-		this.data			=	data;
-		super.setDataHandler(new DataHandler(new ByteArrayDataSource(this.data,this.contenttype)));
+		setHeaders();
+	}
+
+	private void setHeaders() throws MessagingException {
+		super.setDataHandler(new DataHandler(source!=null?source:new ByteArrayDataSource(data,contenttype)));
 		super.setHeader("Content-Type", contenttype);
 		super.setDescription(description, "utf-8");
 		super.setFileName(filename);
-		if (this.contentid!=null && this.contentid.length()>0) {
-			super.setContentID((this.contentid.startsWith("<")?"":"<")+this.contentid+(this.contentid.endsWith(">")?"":">"));
+		if (contentid!=null && contentid.length()>0) {
+			super.setContentID((contentid.startsWith("<")?"":"<")+contentid+(contentid.endsWith(">")?"":">"));
 		}
 		if (disposition!=null && disposition.equals(MimeBodyPart.INLINE)) {
 			super.setDisposition(null);//correct issue with not showing inline attachments on iPad
@@ -82,14 +124,133 @@ public class EmailAttachment extends MimeBodyPart implements Serializable{
 		}
 	}
 
+	/**
+	 * @return the content; for an attachment with an {@link EmailAttachmentSource} this reads the whole
+	 * 			file/buffer into a new byte[] on every call, so prefer {@link #getSource()} or the DataHandler.
+	 * 			The array may be shared, so use {@link #setData(byte[])} rather than modifying it.
+	 */
 	public byte[] getData(){
-		return data;
+		if (data!=null) {
+			return data;
+		}
+		try (final InputStream in=source.getInputStream()){
+final	ByteArrayOutputStream	baos	=	new ByteArrayOutputStream((int)Math.min(Integer.MAX_VALUE-8, source.size()));
+final	byte[]					buf		=	new byte[8192];
+			for (int n; (n=in.read(buf))>0;) {
+								baos.write(buf, 0, n);
+			}
+			return baos.toByteArray();
+		} catch (final IOException ioe) {
+			throw new IllegalStateException("Unable to read attachment "+filename, ioe);
+		}
+	}
+
+	/**
+	 * Replaces the content, which (as the content hash changes with it) invalidates any cached encoding.
+	 *
+	 * @param data
+	 * @throws MessagingException
+	 */
+	public synchronized void setData(final byte[] data) throws MessagingException {
+		this.data			=	data;
+		this.source			=	null;
+		this.contenthash	=	null;
+		super.setDataHandler(new DataHandler(new ByteArrayDataSource(data,contenttype)));
+		super.setHeader("Content-Type", contenttype);//removed, along with the transfer encoding, by setDataHandler()
+		super.setFileName(filename);
+	}
+
+	/**
+	 * @return size of the content in bytes, without reading it
+	 */
+	long length(){
+		return data!=null?data.length:source.size();
 	}
 
+	/**
+	 * @return the file or buffer the content is streamed from, or null if the content is a byte[]
+	 */
+	public EmailAttachmentSource getSource(){
+		return source;
+	}
+
+	/**
+	 * @return hex encoded SHA-256 of the attachment's data, calculated on first use
+	 */
+	public String getContentHash(){
+		if (contenthash==null){
+			try {
+final	MessageDigest	sha		=	MessageDigest.getInstance("SHA-256");
+				if (data!=null) {
+							sha.update(data);
+				} else {
+					try (final InputStream in=source.getInputStream()){
+final	byte[]			buf		=	new byte[8192];
+						for (int n; (n=in.read(buf))>0;) {
+							sha.update(buf, 0, n);
+						}
+					}
+				}
+final	byte[]			digest	=	sha.digest();
+final	StringBuilder	hex		=	new StringBuilder(digest.length*2);
+				for (final byte b:digest) {
+						hex.append(Character.forDigit((b>>4)&0xF, 16)).append(Character.forDigit(b&0xF, 16));
+				}
+						contenthash	=	hex.toString();
+			} catch (final NoSuchAlgorithmException nsae) {
+				//every JRE is required to support SHA-256
+				throw new IllegalStateException(nsae);
+			} catch (final IOException ioe) {
+				throw new IllegalStateException("Unable to read attachment "+filename, ioe);
+			}
+		}
+		return contenthash;
+	}
+
+	/**
+	 * Writes the headers as MimeBodyPart would, followed by the content as already encoded by the
+	 * {@link EmailEncodingCache}, rather than encoding it again every time the attachment is written.
+	 * Headers are still written from the part each time, as they're small and can be changed
+	 * through the MimeBodyPart setters.  When rendered by the {@link EmailRenderCache} the content is
+	 * left out, and only referenced, so it isn't held there as well.
+	 */
+	@Override
+	public void writeTo(final OutputStream os) throws IOException, MessagingException {
+final	String		encoding	=	getEncoding();//assigned by saveChanges()
+		if (encoding==null || !(encoding.equalsIgnoreCase("base64") || encoding.equalsIgnoreCase("quoted-printable"))
+			|| contenttype.toLowerCase(Locale.ENGLISH).startsWith("multipart/") || contenttype.toLowerCase(Locale.ENGLISH).startsWith("message/")){
+			super.writeTo(os);
+			return;
+		}
+final	Enumeration<String>	lines	=	getAllHeaderLines();
+		while (lines.hasMoreElements()) {
+			os.write((lines.nextElement()+"\r\n").getBytes(StandardCharsets.UTF_8));
+		}
+		os.write('\r');
+		os.write('\n');
+		if (os instanceof EmailRenderCache.Recorder) {
+			((EmailRenderCache.Recorder)os).attachment(this, encoding.toLowerCase(Locale.ENGLISH));
+		} else {
+			EmailEncodingCache.writeTo(this, encoding.toLowerCase(Locale.ENGLISH), os);
+		}
+		os.flush();
+	}
+
+	/**
+	 * A part can only be in one multipart, and is changed by the saveChanges() of the message it's in,
+	 * so each multipart is given its own copy.  Copies share the content (and its hash), so are cheap.
+	 */
 	@Override
 	public EmailAttachment clone(){
 		try {
-			return new EmailAttachment(filename,contenttype,data,contentid,description,disposition);
+final	EmailAttachment	copy;
+			if (source!=null) {//shared, as it's read-only
+				copy	=	new EmailAttachment(filename,source,contentid,description,disposition);
+			} else {
+				copy	=	new EmailAttachment(filename,contenttype,data,contentid,description,disposition);
+			}
+				copy.contenthash	=	contenthash;
+			return copy;
 		} catch (final Exception e) {
 			//throw it away as these errors would have been thrown on the original
 		}
@@ -107,18 +268,7 @@ public class EmailAttachment extends MimeBodyPart implements Serializable{
 			in.defaultReadObject();
 			//manually deserialize superclass
 			try{
-				super.setDataHandler(new DataHandler(new ByteArrayDataSource(data,contenttype)));
-				super.setHeader("Content-Type", contenttype);
-				super.setDescription(description, "utf-8");
-				super.setFileName(filename);
-				if (contentid!=null && contentid.length()>0) {
-					super.setContentID((contentid.startsWith("<")?"":"<")+contentid+(contentid.endsWith(">")?"":">"));
-				}
-				if (disposition!=null && disposition.equals(MimeBodyPart.INLINE)) {
-					super.setDisposition(null);//correct issue with not showing inline attachments on iPad
-				} else {
-					super.setDisposition(disposition);
-				}
+				setHeaders();
 			} catch (final MessagingException me){
 				 me.printStackTrace();
 			}
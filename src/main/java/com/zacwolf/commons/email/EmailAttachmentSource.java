@@ -0,0 +1,210 @@
+/* com.zacwolf.commons.email.EmailAttachmentSource.java
+ *
+ * Lazily read, shared content of an EmailAttachment, backed by a file or a (memory-mapped) ByteBuffer
+ *
+ * Copyright (C) 2021 Zac Morris
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.zacwolf.commons.email;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+
+import javax.activation.DataSource;
+
+/**
+ * Content of an attachment that is never held in a byte[] of its own:
+ * <ul>
+ * <li>{@link #file(File, String)} reads the file each time the attachment is written, so nothing is held in heap</li>
+ * <li>{@link #mapped(File, String)} maps the file once, and every read is of the same (off heap) pages</li>
+ * <li>{@link #buffer(ByteBuffer, String)} reads an existing (e.g. direct) buffer</li>
+ * </ul>
+ * Every {@link #getInputStream()} is a new stream over the same content, so the transport streams it straight
+ * from the file or buffer, and clones of the attachment share the source rather than copying it.  File backed
+ * sources are serialized as just the path (mapped ones are re-mapped when read back), so the file has to
+ * still be there, unchanged, wherever the attachment is deserialized.
+ *
+ * @author Zac Morris <zac@zacwolf.com>
+ * @version 1.3
+ * @since Java1.8
+ */
+public final class EmailAttachmentSource implements DataSource, Serializable {
+final	static	private		long			serialVersionUID	=	4102758218915311302L;
+
+final			private		File			file;
+final			private		boolean			mapped;
+final			private		String			contenttype;
+	transient	private		ByteBuffer		buffer;
+
+	private EmailAttachmentSource(final File file, final boolean mapped, final ByteBuffer buffer, final String contenttype){
+		this.file			=	file;
+		this.mapped			=	mapped;
+		this.buffer			=	buffer;
+		this.contenttype	=	contenttype;
+	}
+
+	/**
+	 * @param file read each time the attachment is written
+	 * @param contenttype
+	 * @return
+	 * @throws IOException if the file can't be read
+	 */
+	public static EmailAttachmentSource file(final File file, final String contenttype) throws IOException {
+		if (!file.isFile() || !file.canRead()) {
+			throw new IOException("Unable to read attachment file:"+file);
+		}
+		return new EmailAttachmentSource(file.getAbsoluteFile(), false, null, contenttype);
+	}
+
+	/**
+	 * @param file mapped read-only into memory, shared by every attachment (and clone) using this source
+	 * @param contenttype
+	 * @return
+	 * @throws IOException if the file can't be mapped (e.g. it's over 2GB)
+	 */
+	public static EmailAttachmentSource mapped(final File file, final String contenttype) throws IOException {
+		return new EmailAttachmentSource(file.getAbsoluteFile(), true, map(file), contenttype);
+	}
+
+	/**
+	 * @param buffer whose remaining bytes are the content; it is not copied, so must not be changed afterwards
+	 * @param contenttype
+	 * @return
+	 */
+	public static EmailAttachmentSource buffer(final ByteBuffer buffer, final String contenttype){
+		return new EmailAttachmentSource(null, false, buffer.slice().asReadOnlyBuffer(), contenttype);
+	}
+
+	/**
+	 * @param contenttype
+	 * @return the same content (sharing the file/buffer), labelled with a different content type
+	 */
+	EmailAttachmentSource withContentType(final String contenttype){
+		return new EmailAttachmentSource(file, mapped, buffer, contenttype);
+	}
+
+	/**
+	 * @return the file backing the content, or null if it's only a buffer
+	 */
+	public File getFile(){
+		return file;
+	}
+
+	/**
+	 * @return size of the content in bytes
+	 */
+	public long size(){
+		return buffer!=null?buffer.remaining():file.length();
+	}
+
+	@Override
+	public String getContentType(){
+		return contenttype;
+	}
+
+	@Override
+	public InputStream getInputStream() throws IOException {
+		if (buffer!=null) {
+			return new BufferInputStream(buffer.duplicate());
+		}
+		return Files.newInputStream(file.toPath());
+	}
+
+	@Override
+	public String getName(){
+		return file!=null?file.getName():"buffer";
+	}
+
+	@Override
+	public OutputStream getOutputStream() throws IOException {
+		throw new IOException("EmailAttachmentSource is read-only");
+	}
+
+	private static ByteBuffer map(final File file) throws IOException {
+		try (final FileChannel channel=FileChannel.open(file.toPath(), StandardOpenOption.READ)){
+			//the mapping stays valid once the channel is closed
+			return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		}
+	}
+
+	private void writeObject(final java.io.ObjectOutputStream out) throws IOException{
+		out.defaultWriteObject();
+		if (file==null){//a buffer can only be serialized by copying it
+final	byte[]	bytes	=	new byte[buffer.remaining()];
+			buffer.duplicate().get(bytes);
+			out.writeInt(bytes.length);
+			out.write(bytes);
+		}
+	}
+
+	private void readObject(final java.io.ObjectInputStream in) throws IOException, ClassNotFoundException{
+		in.defaultReadObject();
+		if (file==null){
+final	byte[]	bytes	=	new byte[in.readInt()];
+			in.readFully(bytes);
+			buffer	=	ByteBuffer.wrap(bytes).asReadOnlyBuffer();
+		} else if (mapped) {
+			buffer	=	map(file);
+		}
+	}
+
+	/**
+	 * Reads a duplicate of the buffer, so each stream has its own position.
+	 */
+	final static class BufferInputStream extends InputStream {
+final	ByteBuffer		buf;
+
+		BufferInputStream(final ByteBuffer buf){
+			this.buf	=	buf;
+		}
+
+		@Override
+		public int read(){
+			return buf.hasRemaining()?buf.get()&0xFF:-1;
+		}
+
+		@Override
+		public int read(final byte[] b, final int off, final int len){
+			if (len==0) {
+				return 0;
+			}
+			if (!buf.hasRemaining()) {
+				return -1;
+			}
+final	int		n	=	Math.min(len, buf.remaining());
+			buf.get(b, off, n);
+			return n;
+		}
+
+		@Override
+		public long skip(final long n){
+final	int		skipped	=	(int)Math.max(0, Math.min(n, buf.remaining()));
+			buf.position(buf.position()+skipped);
+			return skipped;
+		}
+
+		@Override
+		public int available(){
+			return buf.remaining();
+		}
+	}
+}
@@ -0,0 +1,268 @@
+/* com.zacwolf.commons.email.EmailAttachmentStore.java
+ *
+ * Content-addressed store that de-duplicates attachment content across every Email
+ *
+ * Copyright (C) 2021 Zac Morris
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.zacwolf.commons.email;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import javax.mail.MessagingException;
+
+/**
+ * The same logos and brochures are attached to many templates and emails, so every attachment added to an
+ * Email is interned here: entries are keyed by the SHA-256 of the content ({@link EmailAttachment#getContentHash()}),
+ * and every attachment with that content is given the one shared {@link EmailAttachmentSource}, so the bytes
+ * are held once no matter how many emails reference them.  If a directory is set, new content is written
+ * there (named by its hash) and memory-mapped, rather than held in heap at all.
+ *
+ * Each entry counts the attachments using it; the count drops as they're garbage collected, so there's no
+ * need to release anything.  Entries nothing uses are kept for re-use, evicting the least recently used
+ * first once the total size of the store is over {@link #setMaxBytes(long)} (entries in use never are, as
+ * their content is still reachable anyway).
+ *
+ * @author Zac Morris <zac@zacwolf.com>
+ * @version 1.3
+ * @since Java1.8
+ */
+public final class EmailAttachmentStore {
+final	static	public		long						DEFAULT_MAXBYTES	=	64L*1024L*1024L;
+final	static	private		Map<String,Entry>			entries				=	new LinkedHashMap<String,Entry>(16, 0.75f, true);
+final	static	private		ReferenceQueue<EmailAttachment>	released		=	new ReferenceQueue<EmailAttachment>();
+		static	private		long						maxbytes			=	DEFAULT_MAXBYTES;
+		static	private		long						weight				=	0;
+		static	private		File						directory			=	null;
+
+	private EmailAttachmentStore(){}
+
+	/**
+	 * @param attachment
+	 * @return an attachment with the same headers, sharing the stored copy of the content
+	 * 			(the attachment itself if it already does)
+	 * @throws MessagingException
+	 */
+	public static EmailAttachment intern(final EmailAttachment attachment) throws MessagingException {
+		if (attachment==null) {
+			return null;
+		}
+		return intern(attachment, attachment.contentid);
+	}
+
+	/**
+	 * Creates an inline image (etc.) whose content-id is the hash of its content, so it is the same for
+	 * the same image in every template and email, and can be referenced in html as <code>cid:{contentid}</code>.
+	 *
+	 * @param filename
+	 * @param contenttype
+	 * @param data not copied, so must not be modified afterwards
+	 * @param description
+	 * @return
+	 * @throws MessagingException
+	 * @throws IOException
+	 */
+	public static EmailAttachment inline(final String filename, final String contenttype, final byte[] data, final String description) throws MessagingException, IOException {
+final	EmailAttachment	attachment	=	new EmailAttachment(filename, contenttype, data, "", description);
+		return intern(attachment, attachment.getContentHash());
+	}
+
+	/**
+	 * @param maxbytes upper bound on the total size of the stored content, beyond which unused entries are evicted
+	 */
+	public static void setMaxBytes(final long maxbytes){
+		synchronized(entries){
+			EmailAttachmentStore.maxbytes	=	maxbytes;
+			trim();
+		}
+	}
+
+	/**
+	 * @param directory where new content is written and mapped from, rather than held in heap; null to hold it in heap
+	 * @throws IOException if the directory can't be created
+	 */
+	public static void setDirectory(final File directory) throws IOException {
+		if (directory!=null) {
+			Files.createDirectories(directory.toPath());
+		}
+		synchronized(entries){
+			EmailAttachmentStore.directory	=	directory;
+		}
+	}
+
+	/**
+	 * @return total size of the stored content, in bytes
+	 */
+	public static long getBytes(){
+		synchronized(entries){
+			return weight;
+		}
+	}
+
+	private static EmailAttachment intern(final EmailAttachment attachment, final String contentid) throws MessagingException {
+final	String			hash	=	attachment.getContentHash();
+	File				dir;
+		synchronized(entries){
+			expunge();
+final	Entry			entry	=	entries.get(hash);
+			if (entry!=null) {
+				return share(attachment, contentid, entry);
+			}
+						dir		=	directory;
+		}
+final	Entry			created	=	new Entry(hash, store(hash, attachment, dir), dir!=null);//outside of the lock, as it may be written to disk
+		synchronized(entries){
+	Entry				entry	=	entries.get(hash);
+			if (entry==null){//unless another thread got there first
+						entry	=	created;
+				entries.put(hash, entry);
+				weight	+=	entry.size;
+			}
+			return share(attachment, contentid, entry);
+		}
+	}
+
+	/**
+	 * Called holding the lock, so the entry can't be evicted before it's counted as in use.
+	 *
+	 * @param attachment
+	 * @param contentid
+	 * @param entry
+	 * @return the attachment (or a copy of its headers) using the entry's content
+	 * @throws MessagingException
+	 */
+	private static EmailAttachment share(final EmailAttachment attachment, final String contentid, final Entry entry) throws MessagingException {
+	EmailAttachment		interned	=	attachment;
+		if (attachment.getSource()!=entry.source || !contentid.equals(attachment.contentid)){
+			try {
+						interned	=	new EmailAttachment(attachment.filename,
+															entry.source.getContentType().equals(attachment.contenttype)?entry.source:entry.source.withContentType(attachment.contenttype),
+															contentid, attachment.description, attachment.disposition);
+			} catch (final IOException ioe) {//not thrown, as the source is already open
+				throw new MessagingException("Unable to share attachment "+attachment.filename, ioe);
+			}
+						interned.contenthash	=	entry.hash;
+		}
+		entry.users.add(new User(interned, entry));
+		trim();
+		return interned;
+	}
+
+	/**
+	 * @param hash
+	 * @param attachment
+	 * @param dir
+	 * @return the source the content is shared from
+	 */
+	private static EmailAttachmentSource store(final String hash, final EmailAttachment attachment, final File dir){
+		if (dir==null){
+			if (attachment.getSource()!=null) {
+				return attachment.getSource();
+			}
+			return EmailAttachmentSource.buffer(ByteBuffer.wrap(attachment.data), attachment.contenttype);
+		}
+		try {
+final	File	file	=	new File(dir, hash);
+			if (!file.isFile()){
+final	File	tmp		=	File.createTempFile(hash, ".tmp", dir);
+				try {
+					if (attachment.getSource()!=null) {
+						try (final InputStream in=attachment.getSource().getInputStream()){
+							Files.copy(in, tmp.toPath(), StandardCopyOption.REPLACE_EXISTING);
+						}
+					} else {
+						Files.write(tmp.toPath(), attachment.data);
+					}
+					Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+				} finally {
+					Files.deleteIfExists(tmp.toPath());
+				}
+			}
+			return EmailAttachmentSource.mapped(file, attachment.contenttype);
+		} catch (final IOException ioe){
+			System.err.println("Unable to store attachment "+attachment.filename+" in "+dir+", holding it in heap [ERROR]:"+ioe+" [MSG]:"+ioe.getMessage());
+			return store(hash, attachment, null);
+		}
+	}
+
+	/**
+	 * Drops the count of attachments that have been garbage collected.
+	 */
+	private static void expunge(){
+		for (Reference<? extends EmailAttachment> ref; (ref=released.poll())!=null;){
+final	User	user	=	(User)ref;
+			user.entry.users.remove(user);
+		}
+	}
+
+	private static void trim(){
+		expunge();
+final	Iterator<Entry>	lru	=	entries.values().iterator();
+		while (weight>maxbytes && lru.hasNext()){
+final	Entry			entry	=	lru.next();
+			if (entry.users.isEmpty()){
+				weight		-=	entry.size;
+				lru.remove();
+				if (entry.stored) {
+					entry.source.getFile().delete();
+				}
+			}
+		}
+	}
+
+	final private static class Entry {
+final	String					hash;
+final	EmailAttachmentSource	source;
+final	long					size;
+/** true if the content was written to the store's directory */
+final	boolean					stored;
+/** the attachments using the entry */
+final	Set<User>				users	=	new HashSet<User>();
+
+		Entry(final String hash, final EmailAttachmentSource source, final boolean stored){
+			this.hash	=	hash;
+			this.source	=	source;
+			this.size	=	source.size();
+			this.stored	=	stored && source.getFile()!=null;
+		}
+
+		@Override
+		public String toString(){
+			return hash+" ("+size+" bytes, "+users.size()+" users)";
+		}
+	}
+
+	final private static class User extends WeakReference<EmailAttachment> {
+final	Entry	entry;
+
+		User(final EmailAttachment attachment, final Entry entry){
+			super(attachment, released);
+			this.entry	=	entry;
+		}
+	}
+}
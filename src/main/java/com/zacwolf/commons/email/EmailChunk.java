@@ -0,0 +1,230 @@
+/* com.zacwolf.commons.email.EmailChunk.java
+ *
+ * A single SMTP transaction's worth of an Email's distribution
+ *
+ * Copyright (C) 2021 Zac Morris
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.zacwolf.commons.email;
+
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+import javax.mail.Address;
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeMessage;
+
+/**
+ * Once an Email's distribution has been broken down into groups of no more than
+ * {@link _EMAILfactory#BREAKDOWNDISTRIBUTION} recipients of each type, each group
+ * is held as an EmailChunk until a THREADPOOL worker turns it into a MimeMessage.
+ *
+ * @author Zac Morris <zac@zacwolf.com>
+ * @version 1.3
+ * @since Java1.8
+ */
+final class EmailChunk implements EmailJob {
+final	Email				email;
+final	Address				from;
+final	Address[]			addressTO;
+final	Address[]			addressCC;
+final	Address[]			addressBCC;
+final	EmailMergeRenderer	merge;
+final	EmailMergeFields	mergefields;
+final	EmailDelivery		delivery;
+final	int					retries;
+
+	/**
+	 * @param email
+	 * @param from
+	 * @param addressTO
+	 * @param addressCC
+	 * @param addressBCC
+	 * @param delivery the send the chunk is part of, which waits for it to be completed, may be null
+	 */
+	EmailChunk(final Email email, final Address from, final Address[] addressTO, final Address[] addressCC, final Address[] addressBCC, final EmailDelivery delivery){
+		this(email, from, addressTO, addressCC, addressBCC, null, null, delivery, 0);
+	}
+
+	/**
+	 * A mail-merge chunk, which is always addressed to a single TO recipient
+	 *
+	 * @param email
+	 * @param from
+	 * @param to
+	 * @param merge
+	 * @param mergefields
+	 * @param delivery may be null
+	 */
+	EmailChunk(final Email email, final Address from, final InternetAddress to, final EmailMergeRenderer merge, final EmailMergeFields mergefields, final EmailDelivery delivery){
+		this(email, from, new InternetAddress[]{to}, null, null, merge, mergefields, delivery, 0);
+	}
+
+	private EmailChunk(final Email email, final Address from, final Address[] addressTO, final Address[] addressCC, final Address[] addressBCC,
+					   final EmailMergeRenderer merge, final EmailMergeFields mergefields, final EmailDelivery delivery, final int retries){
+		this.email			=	email;
+		this.from			=	from;
+		this.addressTO		=	addressTO;
+		this.addressCC		=	addressCC;
+		this.addressBCC		=	addressBCC;
+		this.merge			=	merge;
+		this.mergefields	=	mergefields;
+		this.delivery		=	delivery;
+		this.retries		=	retries;
+		if (delivery!=null) {
+			delivery.add();
+		}
+	}
+
+	/**
+	 * The body is the shared, already encoded, content from the {@link EmailRenderCache}
+	 * so every chunk of the same Email is rendered only once.  Mail-merge chunks are
+	 * instead personalized by their {@link EmailMergeRenderer} as they are sent.
+	 *
+	 * @param mailSession
+	 * @return MimeMessage addressed to this chunk's recipients, or null if they have all already been sent to
+	 * @throws MessagingException
+	 */
+	@Override
+	public MimeMessage toMimeMessage(final Session mailSession) throws MessagingException {
+		if (merge!=null){
+final	InternetAddress		to		=	(InternetAddress)addressTO[0];
+			return merge.toMimeMessage(mailSession, from, to, mergefields.getFields(to));
+		}
+		//Here we just double check that users don't receive duplicate emails,
+		//which also skips everyone already journaled when resuming an interrupted send
+final	Address[]			to		=	notAlreadySentTo(email.getSendLog(), addressTO);
+final	Address[]			cc		=	notAlreadySentTo(email.getSendLog(), addressCC);
+final	Address[]			bcc		=	notAlreadySentTo(email.getSendLog(), addressBCC);
+		if (to.length==0 && cc.length==0 && bcc.length==0) {
+			return null;
+		}
+final	MimeMessage			msg		=	new EmailRenderCache.RenderedMimeMessage(mailSession, EmailRenderCache.get(email));
+							msg.setFrom(from);
+		if (to.length>0) {
+							msg.setRecipients(Message.RecipientType.TO, to);
+		}
+		if (cc.length>0) {
+							msg.setRecipients(Message.RecipientType.CC, cc);
+		}
+		if (bcc.length>0) {
+							msg.setRecipients(Message.RecipientType.BCC, bcc);
+		}
+							msg.setDescription(email.getName(), "utf-8");
+							msg.setSubject(email.getSubject(), "utf-8");
+		return msg;
+	}
+
+	@Override
+	public EmailSendLog getSendLog(){
+		return email.getSendLog();
+	}
+
+	@Override
+	public EmailDelivery getDelivery(){
+		return delivery;
+	}
+
+	@Override
+	public Address[] getRecipients(){
+		return concat(addressTO, addressCC, addressBCC);
+	}
+
+	@Override
+	public String getAffinity(){
+		return EmailEnvelopePlanner.dominantDomain(getRecipients());
+	}
+
+	@Override
+	public EmailChunk subset(final Set<Address> recipients){
+		return new EmailChunk(email, from, only(addressTO, recipients), only(addressCC, recipients), only(addressBCC, recipients), merge, mergefields, delivery, retries);
+	}
+
+	@Override
+	public EmailChunk retry(final Set<Address> recipients){
+		return new EmailChunk(email, from, only(addressTO, recipients), only(addressCC, recipients), only(addressBCC, recipients), merge, mergefields, delivery, retries+1);
+	}
+
+	@Override
+	public int getRetries(){
+		return retries;
+	}
+
+	@Override
+	public void completed(){
+		if (delivery!=null) {
+			delivery.done();
+		}
+	}
+
+	/**
+	 * @param lists any of which may be null
+	 * @return all the addresses in the lists
+	 */
+	static Address[] concat(final Address[]... lists){
+	int				length		=	0;
+		for (final Address[] list:lists) {
+						length		+=	list==null?0:list.length;
+		}
+final	Address[]		all			=	new Address[length];
+	int				pos			=	0;
+		for (final Address[] list:lists) {
+			if (list!=null) {
+				System.arraycopy(list, 0, all, pos, list.length);
+						pos			+=	list.length;
+			}
+		}
+		return all;
+	}
+
+	/**
+	 * @param addresses may be null
+	 * @param keep
+	 * @return those of the addresses in keep, in their original order, or null if there are none
+	 */
+	static Address[] only(final Address[] addresses, final Set<Address> keep){
+		if (addresses==null) {
+			return null;
+		}
+final	Set<Address>		temp	=	new LinkedHashSet<Address>();
+		for (final Address addr:addresses) {
+			if (keep.contains(addr)) {
+				temp.add(addr);
+			}
+		}
+		return temp.isEmpty()?null:temp.toArray(new InternetAddress[0]);
+	}
+
+	/**
+	 * @param sendlog
+	 * @param addresses may be null
+	 * @return the addresses the log doesn't have as already sent to, in their original order
+	 */
+	static Address[] notAlreadySentTo(final EmailSendLog sendlog, final Address[] addresses){
+		if (addresses==null) {
+			return new InternetAddress[0];
+		}
+final	Set<Address>		temp	=	new LinkedHashSet<Address>();
+		for(final Address addr:addresses) {
+			if (!sendlog.alreadySentTo(addr.toString())) {
+				temp.add(addr);
+			}
+		}
+		return temp.toArray(new InternetAddress[0]);
+	}
+}
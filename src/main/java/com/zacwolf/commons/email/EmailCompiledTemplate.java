@@ -0,0 +1,157 @@
+/* com.zacwolf.commons.email.EmailCompiledTemplate.java
+ *
+ * Pre-parsed form of an EmailTemplate's html, split into static segments and named slots
+ *
+ * Copyright (C) 2021 Zac Morris
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.zacwolf.commons.email;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.jsoup.Jsoup;
+
+/**
+ * The template html is parsed with Jsoup exactly once.  The inner html of the
+ * <code>#content</code> element, and of any element with a <code>data-slot="name"</code>
+ * attribute, is cut out, leaving the static html in between as immutable segments.
+ * Producing a body is then a simple concatenation of the segments and the slot values,
+ * rather than a DOM parse and serialize per call.
+ *
+ * @author Zac Morris <zac@zacwolf.com>
+ * @version 1.3
+ * @since Java1.8
+ */
+final class EmailCompiledTemplate {
+final	static	public		String				CONTENT_SLOT	=	"content";
+final	static	public		String				SLOT_ATTRIBUTE	=	"data-slot";
+		//private-use unicode character, which Jsoup writes out as-is and can't occur in a sane template
+final	static	private		char				MARKER			=	'\uE000';
+
+final					long				version;
+final			private	String[]			segments;
+final			private	String[]			slots;
+final			private	Map<String,String>	defaults;
+final			private	int					length;
+
+	private EmailCompiledTemplate(final long version, final String[] segments, final String[] slots, final Map<String,String> defaults){
+		this.version	=	version;
+		this.segments	=	segments;
+		this.slots		=	slots;
+		this.defaults	=	defaults;
+	int		len			=	0;
+		for (final String segment:segments) {
+				len		+=	segment.length();
+		}
+		length			=	len;
+	}
+
+	/**
+	 * @param html the template's html
+	 * @param version the template's last_changed this was compiled from
+	 * @return compiled template
+	 */
+	static EmailCompiledTemplate compile(final String html, final long version){
+final	org.jsoup.nodes.Document		doc			=	Jsoup.parse(html==null?"":html, "UTF-8");
+final	List<org.jsoup.nodes.Element>	elements	=	new ArrayList<org.jsoup.nodes.Element>();
+final	List<String>					names		=	new ArrayList<String>();
+final	Map<String,String>				defaults	=	new HashMap<String,String>();
+		if (doc.select("#"+CONTENT_SLOT).size()>0){
+										elements.add(doc.select("#"+CONTENT_SLOT).first());
+										names.add(CONTENT_SLOT);
+		}
+		for (final org.jsoup.nodes.Element slot:doc.getElementsByAttribute(SLOT_ATTRIBUTE)){
+final	String							name		=	slot.attr(SLOT_ATTRIBUTE);
+			if (name.length()>0 && !names.contains(name) && !nested(slot, elements)){
+										elements.add(slot);
+										names.add(name);
+			}
+		}
+		for (int i=0; i<elements.size(); i++){
+										defaults.put(names.get(i), elements.get(i).html());
+										elements.get(i).html("");
+										elements.get(i).appendText(MARKER+Integer.toString(i)+MARKER);
+		}
+final	String							rendered	=	doc.toString();
+final	String[]						segments	=	new String[elements.size()+1];
+final	String[]						slots		=	new String[elements.size()];
+	int									pos			=	0;
+		//markers come out in document order, which need not be the order they were assigned in
+		for (int i=0; i<elements.size(); i++){
+final	int								start		=	rendered.indexOf(MARKER, pos);
+final	int								end			=	rendered.indexOf(MARKER, start+1);
+										segments[i]	=	rendered.substring(pos, start);
+										slots[i]	=	names.get(Integer.parseInt(rendered.substring(start+1, end)));
+										pos			=	end+1;
+		}
+										segments[elements.size()]	=	rendered.substring(pos);
+		return new EmailCompiledTemplate(version, segments, slots, defaults);
+	}
+
+	/**
+	 * Slots can't be nested, as filling the outer slot would throw away the inner one.
+	 */
+	private static boolean nested(final org.jsoup.nodes.Element slot, final List<org.jsoup.nodes.Element> elements){
+		for (final org.jsoup.nodes.Element element:elements){
+			if (slot.parents().contains(element) || element.parents().contains(slot)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * @param name of the slot
+	 * @return true if the template has a slot by that name
+	 */
+	boolean hasSlot(final String name){
+		return defaults.containsKey(name);
+	}
+
+	/**
+	 * @param name of the slot
+	 * @return the html the template itself had in the slot, or an empty string if there is no such slot
+	 */
+	String getSlotDefault(final String name){
+final	String	html	=	defaults.get(name);
+		return html==null?"":html;
+	}
+
+	/**
+	 * @param values html for each slot by name, any slot not supplied keeps the template's own html
+	 * @return the full html body
+	 */
+	String render(final Map<String,String> values){
+	int				len		=	length;
+final	String[]	fill	=	new String[slots.length];
+		for (int i=0; i<slots.length; i++){
+	String			value	=	values==null?null:values.get(slots[i]);
+			if (value==null) {
+							value	=	defaults.get(slots[i]);
+			}
+							fill[i]	=	value;
+							len		+=	value.length();
+		}
+final	StringBuilder	body	=	new StringBuilder(len);
+		for (int i=0; i<slots.length; i++){
+							body.append(segments[i]).append(fill[i]);
+		}
+							body.append(segments[slots.length]);
+		return body.toString();
+	}
+}
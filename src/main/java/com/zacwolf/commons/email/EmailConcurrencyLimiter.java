@@ -0,0 +1,193 @@
+/* com.zacwolf.commons.email.EmailConcurrencyLimiter.java
+ *
+ * Adaptive (AIMD) limit on the number of concurrent SMTP transactions to a relay
+ *
+ * Copyright (C) 2021 Zac Morris
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.zacwolf.commons.email;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Every SMTP transaction to the relay holds a permit from the limiter, and the number of permits
+ * is adjusted as transactions complete, the same way TCP adjusts its congestion window:
+ * <ul>
+ * <li>each healthy transaction adds 1/limit, so the limit grows by about one per "round"</li>
+ * <li>a throttling reply (421, 450, 451, 452) halves the limit</li>
+ * <li>a transaction taking more than {@link #DEFAULT_TOLERANCE} times the smoothed latency cuts the limit by 10%</li>
+ * </ul>
+ * The limit is cut at most once per smoothed latency, so a burst of failures from the same
+ * overload only counts once.  Permanent (5xx) failures say nothing about load, so are ignored.
+ *
+ * @author Zac Morris <zac@zacwolf.com>
+ * @version 1.3
+ * @since Java1.8
+ */
+public final class EmailConcurrencyLimiter {
+final	static	public		double			DEFAULT_TOLERANCE		=	2.0d;
+final	static	public		double			THROTTLE_BACKOFF		=	0.5d;
+final	static	public		double			LATENCY_BACKOFF			=	0.9d;
+final	static	private		double			SMOOTHING				=	0.05d;
+final	static	private		int				WARMUP					=	10;
+
+final			private		ReentrantLock	lock					=	new ReentrantLock();
+final			private		Condition		available				=	lock.newCondition();
+final			private		int				minlimit;
+final			private		int				maxlimit;
+				private		double			limit;
+				private		int				inflight				=	0;
+				private		double			smoothed				=	0;
+				private		long			samples					=	0;
+				private		long			lastdecrease;
+				private		long			throttled				=	0;
+
+	/**
+	 * @param maxlimit the most concurrent transactions ever allowed (and the starting limit)
+	 */
+	EmailConcurrencyLimiter(final int maxlimit){
+		this(1, maxlimit, maxlimit);
+	}
+
+	EmailConcurrencyLimiter(final int minlimit, final int maxlimit, final int initial){
+		if (minlimit<1 || maxlimit<minlimit) {
+			throw new IllegalArgumentException("1<=minlimit<=maxlimit");
+		}
+		this.minlimit	=	minlimit;
+		this.maxlimit	=	maxlimit;
+		this.limit		=	Math.max(minlimit, Math.min(maxlimit, initial));
+		lastdecrease	=	System.nanoTime()-TimeUnit.DAYS.toNanos(1);
+	}
+
+	/**
+	 * Waits for the number of transactions in flight to drop below the current limit.
+	 *
+	 * @throws InterruptedException
+	 */
+	void acquire() throws InterruptedException{
+		lock.lock();
+		try {
+			while (inflight>=(int)limit) {
+				available.await();
+			}
+			inflight++;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Hands back a permit that no transaction was attempted with (e.g. a connection couldn't be borrowed),
+	 * so there's nothing to adjust the limit by.
+	 */
+	void release(){
+		lock.lock();
+		try {
+			inflight--;
+			available.signalAll();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @param replycode of the transaction, see {@link EmailSMTPReply#code(Throwable, javax.mail.Transport)}
+	 * @param nanos how long the transaction took
+	 */
+	void release(final int replycode, final long nanos){
+		lock.lock();
+		try {
+			inflight--;
+final	long	now		=	System.nanoTime();
+			if (EmailSMTPReply.isThrottle(replycode)){
+				throttled++;
+				decrease(now, THROTTLE_BACKOFF);
+			} else if (replycode==EmailSMTPReply.OK){
+				if (samples>=WARMUP && nanos>smoothed*DEFAULT_TOLERANCE) {
+					decrease(now, LATENCY_BACKOFF);
+				} else {
+					limit	=	Math.min(maxlimit, limit+1d/limit);
+				}
+				smoothed	=	samples==0?nanos:smoothed*(1d-SMOOTHING)+nanos*SMOOTHING;
+				samples++;
+			}
+			available.signalAll();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return the number of concurrent transactions currently allowed
+	 */
+	public int getLimit(){
+		lock.lock();
+		try {
+			return (int)limit;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return the number of transactions currently in flight
+	 */
+	public int getInFlight(){
+		lock.lock();
+		try {
+			return inflight;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return smoothed transaction latency in ms
+	 */
+	public long getLatency(){
+		lock.lock();
+		try {
+			return TimeUnit.NANOSECONDS.toMillis((long)smoothed);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return number of throttling replies received
+	 */
+	public long getThrottledCount(){
+		lock.lock();
+		try {
+			return throttled;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private void decrease(final long now, final double backoff){
+		if (now-lastdecrease>=(long)smoothed){
+			limit			=	Math.max(minlimit, limit*backoff);
+			lastdecrease	=	now;
+		}
+	}
+
+	@Override
+	public String toString(){
+		return "limit:"+getLimit()+" inflight:"+getInFlight()+" latency:"+getLatency()+"ms throttled:"+getThrottledCount();
+	}
+}
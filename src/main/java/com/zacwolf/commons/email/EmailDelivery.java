@@ -0,0 +1,103 @@
+/* com.zacwolf.commons.email.EmailDelivery.java
+ *
+ * Tracks the chunks of one send of an Email, to complete its EmailDeliveryReport
+ *
+ * Copyright (C) 2021 Zac Morris
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.zacwolf.commons.email;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts the work outstanding for a send: it starts at one (for the factory, while it is still
+ * breaking the Email down), and each chunk (or deferred part of one) adds one until it is completed.
+ * The report is built by whichever thread brings the count back to zero.
+ *
+ * @author Zac Morris <zac@zacwolf.com>
+ * @version 1.3
+ * @since Java1.8
+ */
+final class EmailDelivery {
+final			private		String								refid;
+final			private		String								id			=	UUID.randomUUID().toString();
+final			private		long								started		=	System.currentTimeMillis();
+final			private		AtomicInteger						pending		=	new AtomicInteger(1);
+final			private		LongAdder							sent		=	new LongAdder();
+final			private		Set<String>							failed		=	ConcurrentHashMap.newKeySet();
+final			private		ConcurrentLinkedQueue<String>		errors		=	new ConcurrentLinkedQueue<String>();
+final			private		CompletableFuture<EmailDeliveryReport>	future	=	new CompletableFuture<EmailDeliveryReport>();
+
+	EmailDelivery(final String refid){
+		this.refid	=	refid;
+	}
+
+	/**
+	 * @return identifies this send, as distinct from any other send of an Email with the same REFID
+	 */
+	String getId(){
+		return id;
+	}
+
+	/**
+	 * One more chunk to wait for.
+	 */
+	void add(){
+		pending.incrementAndGet();
+	}
+
+	/**
+	 * A chunk (or the factory itself) has finished.
+	 */
+	void done(){
+		if (pending.decrementAndGet()==0) {
+			future.complete(new EmailDeliveryReport(refid, sent.intValue(), new HashSet<String>(failed),
+													new ArrayList<String>(errors), started, System.currentTimeMillis()));
+		}
+	}
+
+	/**
+	 * The send could not be started at all.
+	 *
+	 * @param t
+	 */
+	void fail(final Throwable t){
+		future.completeExceptionally(t);
+	}
+
+	void sentTo(final String emailaddress){
+		sent.increment();
+	}
+
+	void failedTo(final String emailaddress){
+		failed.add(emailaddress);
+	}
+
+	void error(final String error){
+		errors.add(error);
+	}
+
+	CompletableFuture<EmailDeliveryReport> getFuture(){
+		return future;
+	}
+}
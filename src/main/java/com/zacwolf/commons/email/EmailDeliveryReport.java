@@ -0,0 +1,109 @@
+/* com.zacwolf.commons.email.EmailDeliveryReport.java
+ *
+ * Outcome of one send of an Email, across all the chunks it was broken down into
+ *
+ * Copyright (C) 2021 Zac Morris
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.zacwolf.commons.email;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Completes the future returned by {@link _EMAILfactory#sendEmailMessageAsync(Email)} once every
+ * chunk of the Email has been sent or has failed.  Recipients that had already been sent to (by an
+ * earlier send of the same Email) are not sent to again, so are in neither count.
+ *
+ * @author Zac Morris <zac@zacwolf.com>
+ * @version 1.3
+ * @since Java1.8
+ */
+public final class EmailDeliveryReport {
+final			private		String			refid;
+final			private		int				sentcount;
+final			private		Set<String>		failed;
+final			private		List<String>	errors;
+final			private		long			started;
+final			private		long			finished;
+
+	EmailDeliveryReport(final String refid, final int sentcount, final Set<String> failed, final List<String> errors, final long started, final long finished){
+		this.refid		=	refid;
+		this.sentcount	=	sentcount;
+		this.failed		=	Collections.unmodifiableSet(failed);
+		this.errors		=	Collections.unmodifiableList(errors);
+		this.started	=	started;
+		this.finished	=	finished;
+	}
+
+	public String getREFID(){
+		return refid;
+	}
+
+	/**
+	 * @return number of recipients the relay accepted
+	 */
+	public int getSentCount(){
+		return sentcount;
+	}
+
+	/**
+	 * @return number of recipients that were rejected, or could not be sent to
+	 */
+	public int getFailedCount(){
+		return failed.size();
+	}
+
+	/**
+	 * @return the recipients that were rejected, or could not be sent to
+	 */
+	public Set<String> getFailed(){
+		return failed;
+	}
+
+	/**
+	 * @return errors logged while sending, in the order they happened
+	 */
+	public List<String> getErrors(){
+		return errors;
+	}
+
+	/**
+	 * @return when the send was started, in ms since the epoch
+	 */
+	public long getStarted(){
+		return started;
+	}
+
+	/**
+	 * @return when the last chunk completed, in ms since the epoch
+	 */
+	public long getFinished(){
+		return finished;
+	}
+
+	/**
+	 * @return true if nothing failed and no errors were logged
+	 */
+	public boolean isSuccess(){
+		return failed.isEmpty() && errors.isEmpty();
+	}
+
+	@Override
+	public String toString(){
+		return "REFID:"+refid+" sent:"+sentcount+" failed:"+failed.size()+" errors:"+errors.size()+" in "+(finished-started)+"ms";
+	}
+}
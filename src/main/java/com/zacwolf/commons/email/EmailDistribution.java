@@ -20,8 +20,11 @@
 package com.zacwolf.commons.email;
 
 import java.io.IOException;
+import java.io.ObjectInputStream;
 import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Map;
@@ -51,9 +54,11 @@ final	static	public	String								LISTTYPE_BCC	=	"BCC";
 final	static	public	String								GROUP_STATIC	=	"staticaddr";
 
 				private	InternetAddress						from;
-final			private	Map<String,Set<InternetAddress>>	toMap;
-final			private	Map<String,Set<InternetAddress>>	ccMap;
-final			private	Map<String,Set<InternetAddress>>	bccMap;
+		//every address is held once in the table, the lists/groups just hold indexes into it
+				private	EmailAddressTable					table;
+				private	Map<String,BitSet>					toMap;
+				private	Map<String,BitSet>					ccMap;
+				private	Map<String,BitSet>					bccMap;
 						long								last_changed;
 
 	/**
@@ -88,9 +93,28 @@ final			private	Map<String,Set<InternetAddress>>	bccMap;
 							  final Map<String,Set<InternetAddress>> bcc)
 	{
 		this.from			=	from;
-		toMap			=	new HashMap<String,Set<InternetAddress>>(to);
-		ccMap			=	new HashMap<String,Set<InternetAddress>>(cc);
-		bccMap			=	new HashMap<String,Set<InternetAddress>>(bcc);
+		table			=	new EmailAddressTable();
+		toMap			=	new HashMap<String,BitSet>();
+		ccMap			=	new HashMap<String,BitSet>();
+		bccMap			=	new HashMap<String,BitSet>();
+		intern(toMap, to);
+		intern(ccMap, cc);
+		intern(bccMap, bcc);
+		last_changed	=	TimeUtils.getGMTtime();
+	}
+
+	/**
+	 * Protected copy constructor, used by subclasses to implement clone.
+	 * @param original
+	 */
+	protected EmailDistribution(final EmailDistribution original){
+		synchronized(original.table){
+			from			=	original.from;
+			table			=	original.table.clone();
+			toMap			=	copy(original.toMap);
+			ccMap			=	copy(original.ccMap);
+			bccMap			=	copy(original.bccMap);
+		}
 		last_changed	=	TimeUtils.getGMTtime();
 	}
 
@@ -117,10 +141,11 @@ final			private	Map<String,Set<InternetAddress>>	bccMap;
 	 */
 	public EmailDistribution(final InternetAddress from,final String to) throws AddressException{
 		this.from			=	from;
-		toMap			=	new HashMap<String,Set<InternetAddress>>();
-		ccMap			=	new HashMap<String,Set<InternetAddress>>();
-		bccMap			=	new HashMap<String,Set<InternetAddress>>();
-		add2DistByAddress(toMap,InternetAddress.parseHeader(to,true));
+		table			=	new EmailAddressTable();
+		toMap			=	new HashMap<String,BitSet>();
+		ccMap			=	new HashMap<String,BitSet>();
+		bccMap			=	new HashMap<String,BitSet>();
+		add2DistByIndex(toMap,InternetAddress.parseHeader(to,true));
 		last_changed	=	TimeUtils.getGMTtime();
 	}
 
@@ -135,10 +160,11 @@ final			private	Map<String,Set<InternetAddress>>	bccMap;
 	 */
 	public EmailDistribution(final InternetAddress from,final InternetAddress[] to) throws AddressException{
 		this.from			=	from;
-		toMap			=	new HashMap<String,Set<InternetAddress>>();
-		ccMap			=	new HashMap<String,Set<InternetAddress>>();
-		bccMap			=	new HashMap<String,Set<InternetAddress>>();
-		add2DistByAddress(toMap,to);
+		table			=	new EmailAddressTable();
+		toMap			=	new HashMap<String,BitSet>();
+		ccMap			=	new HashMap<String,BitSet>();
+		bccMap			=	new HashMap<String,BitSet>();
+		add2DistByIndex(toMap,to);
 		last_changed	=	TimeUtils.getGMTtime();
 	}
 
@@ -150,7 +176,7 @@ final			private	Map<String,Set<InternetAddress>>	bccMap;
 	 */
 	@Override
 	public EmailDistribution clone(){
-		return new EmailDistribution(from,toMap,ccMap,bccMap);
+		return new EmailDistribution(this);
 	}
 
 	/**
@@ -174,7 +200,7 @@ final			private	Map<String,Set<InternetAddress>>	bccMap;
 	 * @throws NullPointerException
 	 */
 	public boolean remove(final String listtype, final String group, final String address) throws AddressException, NullPointerException{
-final	Map<String,Set<InternetAddress>>	map;
+final	Map<String,BitSet>	map;
 		if (listtype.equals(LISTTYPE_TO)) {
 			map	=	toMap;
 		} else if (listtype.equals(LISTTYPE_CC)) {
@@ -186,14 +212,13 @@ final	Map<String,Set<InternetAddress>>	map;
 		}
 
 final	InternetAddress	realaddress	=	new InternetAddress(address);
-		for (final InternetAddress addr:map.get(group)) {
-			if (addr.getAddress().equals(realaddress.getAddress())) {
-				if (map.get(group).remove(addr)){
-					last_changed	=	TimeUtils.getGMTtime();
-					return true;
-				} else {
-					break;
-				}
+		synchronized(table){
+final	int				index		=	table.indexOf(realaddress.getAddress());
+final	BitSet			members		=	map.get(group);
+			if (index>=0 && members!=null && members.get(index)){
+				members.clear(index);
+				last_changed	=	TimeUtils.getGMTtime();
+				return true;
 			}
 		}
 
@@ -220,7 +245,7 @@ final	InternetAddress	realaddress	=	new InternetAddress(address);
 	 * @throws AddressException if it was invalid email address string
 	 */
 	public boolean addTO(final String to) throws AddressException{
-		if (add2DistByAddress(toMap,InternetAddress.parseHeader(to,true))){
+		if (add2DistByIndex(toMap,InternetAddress.parseHeader(to,true))){
 			last_changed	=	TimeUtils.getGMTtime();
 			return true;
 		}
@@ -237,7 +262,7 @@ final	InternetAddress	realaddress	=	new InternetAddress(address);
 		if (cc==null || cc.length()==0) {
 			return false;
 		}
-		if (add2DistByAddress(ccMap,InternetAddress.parseHeader(cc,true))){
+		if (add2DistByIndex(ccMap,InternetAddress.parseHeader(cc,true))){
 			last_changed	=	TimeUtils.getGMTtime();
 			return true;
 		}
@@ -253,7 +278,7 @@ final	InternetAddress	realaddress	=	new InternetAddress(address);
 		if (bcc==null || bcc.length()==0) {
 			return false;
 		}
-		if (add2DistByAddress(bccMap,InternetAddress.parseHeader(bcc,true))){
+		if (add2DistByIndex(bccMap,InternetAddress.parseHeader(bcc,true))){
 			last_changed	=	TimeUtils.getGMTtime();
 			return true;
 		}
@@ -271,21 +296,21 @@ final	InternetAddress	realaddress	=	new InternetAddress(address);
 	 * @return TO addresses
 	 */
 	public InternetAddress[] getTO(){
-		return	getFlatDist(toMap);
+		return	getFlatDistByIndex(toMap);
 	}
 
 	/**
 	 * @return CC addresses
 	 */
 	public InternetAddress[] getCC(){
-		return getFlatDist(ccMap);
+		return getFlatDistByIndex(ccMap);
 	}
 
 	/**
 	 * @return BCC addresses
 	 */
 	public InternetAddress[] getBCC(){
-		return getFlatDist(bccMap);
+		return getFlatDistByIndex(bccMap);
 	}
 
 	/**
@@ -324,12 +349,12 @@ final	InternetAddress	realaddress	=	new InternetAddress(address);
 	public String toJSONWithGroups() throws JSONObjectException, IOException {
 final	StringBuilder						string	=	new StringBuilder();
 											string.append("{\""+LISTTYPE_FROM+"\":"+JSON.std.asString(from));
-											string.append(",\""+LISTTYPE_TO+"\":"+JSON.std.asString(toMap));
+											string.append(",\""+LISTTYPE_TO+"\":"+JSON.std.asString(materialize(toMap)));
 		if(ccMap.size()>0) {
-			string.append(",\""+LISTTYPE_CC+"\":"+JSON.std.asString(ccMap));
+			string.append(",\""+LISTTYPE_CC+"\":"+JSON.std.asString(materialize(ccMap)));
 		}
 		if (bccMap.size()>0) {
-			string.append(",\""+LISTTYPE_BCC+"\":"+JSON.std.asString(bccMap));
+			string.append(",\""+LISTTYPE_BCC+"\":"+JSON.std.asString(materialize(bccMap)));
 		}
 											string.append("}");
 		return string.toString();
@@ -352,11 +377,11 @@ final	Map<String,Object>					temp	=	new HashMap<String,Object>();
 	 */
 	public String toString_LISTTYPE(final String listtype) throws NullPointerException, IOException{
 		if (listtype.equals(LISTTYPE_TO)) {
-			return JSON.std.asString(toMap);
+			return JSON.std.asString(materialize(toMap));
 		} else if (listtype.equals(LISTTYPE_CC)) {
-			return JSON.std.asString(ccMap);
+			return JSON.std.asString(materialize(ccMap));
 		} else if (listtype.equals(LISTTYPE_BCC)) {
-			return JSON.std.asString(bccMap);
+			return JSON.std.asString(materialize(bccMap));
 		}
 
 		throw new NullPointerException("Not a valid listtype");
@@ -371,11 +396,11 @@ final	Map<String,Object>					temp	=	new HashMap<String,Object>();
 	 */
 	public String toString_LISTTYPE_GROUPTYPE(final String listtype, final String group) throws NullPointerException, IOException{
 		if (listtype.equals(LISTTYPE_TO)) {
-			return JSON.std.asString(toMap.get(group));
+			return JSON.std.asString(materialize(toMap).get(group));
 		} else if (listtype.equals(LISTTYPE_CC)) {
-			return JSON.std.asString(ccMap.get(group));
+			return JSON.std.asString(materialize(ccMap).get(group));
 		} else if (listtype.equals(LISTTYPE_BCC)) {
-			return JSON.std.asString(bccMap.get(group));
+			return JSON.std.asString(materialize(bccMap).get(group));
 		}
 
 		throw new NullPointerException("Not a valid listtype");
@@ -403,24 +428,12 @@ final	Map<String,Object>					temp	=	new HashMap<String,Object>();
 	@Override
 	public int hashCode(){
 int		hash	=	from.getAddress().hashCode();
-		if (toMap.size()>0) {
-			for (final Set<InternetAddress> set:toMap.values()) {
-				for (final InternetAddress addr:set) {
-					hash+=addr.getAddress().hashCode();
-				}
-			}
-		}
-		if (ccMap.size()>0) {
-			for (final Set<InternetAddress> set:ccMap.values()) {
-				for (final InternetAddress addr:set) {
-					hash+=addr.getAddress().hashCode();
-				}
-			}
-		}
-		if (bccMap.size()>0) {
-			for (final Set<InternetAddress> set:bccMap.values()) {
-				for (final InternetAddress addr:set) {
-					hash+=addr.getAddress().hashCode();
+		synchronized(table){
+			for (final Map<String,BitSet> map:Arrays.asList(toMap, ccMap, bccMap)) {
+				for (final BitSet set:map.values()) {
+					for (int i=set.nextSetBit(0); i>=0; i=set.nextSetBit(i+1)) {
+						hash+=table.getAddress(i).hashCode();
+					}
 				}
 			}
 		}
@@ -438,6 +451,48 @@ int		hash	=	from.getAddress().hashCode();
 		return obj.hashCode()==this.hashCode();
 	}
 
+	/**
+	 * @param map of group to address indexes in the table
+	 * @param addresses
+	 * @return true if any address was added
+	 * @throws AddressException
+	 */
+	private boolean add2DistByIndex(final Map<String,BitSet> map, final InternetAddress[] addresses) throws AddressException{
+		boolean					changed		=	false;
+		synchronized(table){
+			for (final InternetAddress addr:addresses){
+		String					group		=	GROUP_STATIC;
+				if (addr.isGroup()){
+								group		=	addr.toUnicodeString();
+								group		=	group.substring(0,group.indexOf(":"));
+				}
+		BitSet					members		=	map.get(group);
+				if (members==null){
+								members		=	new BitSet();
+								map.put(group,members);
+								changed		=	true;
+				}
+				for (final InternetAddress member:groupToSet(group,addr)){
+		final int				index		=	table.intern(member);
+					if (!members.get(index)){
+								members.set(index);
+								changed		=	true;
+					}
+				}
+			}
+		}
+		return changed;
+	}
+
+	/**
+	 * Adds the addresses to a map of group to addresses, as the distribution held its lists before
+	 * they were interned into its {@link EmailAddressTable}.  Kept for subclasses.
+	 *
+	 * @param map
+	 * @param addresses
+	 * @return true if any address was added
+	 * @throws AddressException
+	 */
 	protected static boolean add2DistByAddress(final Map<String,Set<InternetAddress>> map, final InternetAddress[] addresses) throws AddressException{
 		boolean					changed		=	false;
 		synchronized(map){
@@ -481,6 +536,34 @@ final	Set<InternetAddress>	set	=	new HashSet<InternetAddress>();
 	}
 
 	/**
+	 * The union of every group is a single OR of their index sets, and InternetAddress
+	 * objects are only created for the resulting (already de-duplicated) addresses.
+	 *
+	 * @param map
+	 * @return
+	 */
+	private InternetAddress[] getFlatDistByIndex(final Map<String,BitSet> map){
+		synchronized(table){
+			if (map.size()==0) {
+				return null;
+			}
+final	BitSet					union		=	new BitSet(table.size());
+			for (final BitSet members:map.values()){
+				union.or(members);
+			}
+final	InternetAddress[]		addresses	=	new InternetAddress[union.cardinality()];
+	int							pos			=	0;
+			for (int i=union.nextSetBit(0); i>=0; i=union.nextSetBit(i+1)) {
+				addresses[pos++]	=	table.materialize(i);
+			}
+			return addresses;
+		}
+	}
+
+	/**
+	 * Flattens a map of group to addresses, as the distribution held its lists before they were
+	 * interned into its {@link EmailAddressTable}.  Kept for subclasses.
+	 *
 	 * @param map
 	 * @return
 	 */
@@ -500,8 +583,82 @@ final	Set<InternetAddress>	addresses	=	new HashSet<InternetAddress>();
 		return addresses.toArray(new InternetAddress[0]);
 	}
 
+	/**
+	 * @param map of group to address indexes
+	 * @return map of group to InternetAddresses, as used for the JSON representation
+	 */
+	protected Map<String,Set<InternetAddress>> materialize(final Map<String,BitSet> map){
+final	Map<String,Set<InternetAddress>>	n	=	new HashMap<String,Set<InternetAddress>>();
+		synchronized(table){
+			for (final Map.Entry<String,BitSet> entry:map.entrySet()){
+final	Set<InternetAddress>				set	=	new HashSet<InternetAddress>();
+				for (int i=entry.getValue().nextSetBit(0); i>=0; i=entry.getValue().nextSetBit(i+1)) {
+					set.add(table.materialize(i));
+				}
+				n.put(entry.getKey(), set);
+			}
+		}
+		return n;
+	}
+
+	private void intern(final Map<String,BitSet> map, final Map<String,Set<InternetAddress>> groups){
+		if (groups==null) {
+			return;
+		}
+		for (final Map.Entry<String,Set<InternetAddress>> entry:groups.entrySet()){
+final	BitSet		members	=	new BitSet();
+			if (entry.getValue()!=null) {
+				for (final InternetAddress addr:entry.getValue()) {
+					members.set(table.intern(addr));
+				}
+			}
+			map.put(entry.getKey(), members);
+		}
+	}
+
+	/**
+	 * Distributions serialized before the addresses were interned into a table held each list as a
+	 * map of group to a Set of InternetAddresses (in the same toMap/ccMap/bccMap fields), so those
+	 * are interned as they're read.
+	 *
+	 * @param in
+	 * @throws IOException
+	 * @throws ClassNotFoundException
+	 */
+	@SuppressWarnings("unchecked")
+	private void readObject(final ObjectInputStream in) throws IOException, ClassNotFoundException{
+final	ObjectInputStream.GetField	fields	=	in.readFields();
+							from			=	(InternetAddress)fields.get("from", null);
+							last_changed	=	fields.get("last_changed", 0L);
+		if (!fields.defaulted("table")){
+							table			=	(EmailAddressTable)fields.get("table", null);
+							toMap			=	(Map<String,BitSet>)fields.get("toMap", null);
+							ccMap			=	(Map<String,BitSet>)fields.get("ccMap", null);
+							bccMap			=	(Map<String,BitSet>)fields.get("bccMap", null);
+			return;
+		}
+							table			=	new EmailAddressTable();
+							toMap			=	new HashMap<String,BitSet>();
+							ccMap			=	new HashMap<String,BitSet>();
+							bccMap			=	new HashMap<String,BitSet>();
+		intern(toMap, (Map<String,Set<InternetAddress>>)fields.get("toMap", null));
+		intern(ccMap, (Map<String,Set<InternetAddress>>)fields.get("ccMap", null));
+		intern(bccMap, (Map<String,Set<InternetAddress>>)fields.get("bccMap", null));
+	}
+
+	private static Map<String,BitSet> copy(final Map<String,BitSet> map){
+final	Map<String,BitSet>	n	=	new HashMap<String,BitSet>();
+		for (final Map.Entry<String,BitSet> entry:map.entrySet()) {
+			n.put(entry.getKey(), (BitSet)entry.getValue().clone());
+		}
+		return n;
+	}
+
 	protected static Map<String,Set<InternetAddress>> convert2InternetAddressSet(final Map<String,ArrayList<Object>> map) throws JSONObjectException, IOException{
 final	Map<String,Set<InternetAddress>>	n	=	new HashMap<String,Set<InternetAddress>>();
+		if (map==null) {//empty CC/BCC lists are left out of the JSON
+			return n;
+		}
 		for (final String key:map.keySet()){
 final	ArrayList<Object>	set	=	map.get(key);
 			for (final Object o:set){
@@ -0,0 +1,203 @@
+/* com.zacwolf.commons.email.EmailDomainRateLimiter.java
+ *
+ * Token bucket rate limits keyed by recipient domain
+ *
+ * Copyright (C) 2021 Zac Morris
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.zacwolf.commons.email;
+
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.mail.Address;
+import javax.mail.internet.InternetAddress;
+
+/**
+ * Limits how fast recipients at each domain are sent to.  A rate set for a domain also applies to
+ * its sub-domains (a rate for "example.com" covers "mail.example.com") unless they have their own.
+ * Recipients at any domain without a rate share the default bucket, which is unlimited unless set.
+ *
+ * Each bucket is a single AtomicLong (the "theoretical arrival time" of the generic cell rate
+ * algorithm, which is equivalent to a token bucket), so taking tokens is one CAS with no lock,
+ * and the domain to bucket lookup is cached in a ConcurrentHashMap.  Only domains covered by a rate
+ * are cached, so the cache can't grow with every domain sent to.
+ *
+ * @author Zac Morris <zac@zacwolf.com>
+ * @version 1.3
+ * @since Java1.8
+ */
+public final class EmailDomainRateLimiter {
+final			private		ConcurrentMap<String,Bucket>	configured	=	new ConcurrentHashMap<String,Bucket>();
+final			private		ConcurrentMap<String,Bucket>	resolved	=	new ConcurrentHashMap<String,Bucket>();
+final			private		AtomicLong						generation	=	new AtomicLong();
+	volatile	private		Bucket							defaultbucket	=	Bucket.UNLIMITED;
+	volatile	private		boolean							enabled		=	false;
+
+	/**
+	 * @param domain
+	 * @param persecond recipients per second
+	 */
+	public void setRate(final String domain, final double persecond){
+		setRate(domain, persecond, Math.max(1, (int)Math.ceil(persecond)));
+	}
+
+	/**
+	 * @param domain
+	 * @param persecond recipients per second
+	 * @param burst recipients that can be sent at once after the domain has been idle
+	 */
+	public void setRate(final String domain, final double persecond, final int burst){
+		configured.put(domain.toLowerCase(Locale.ROOT), new Bucket(persecond, burst));
+		changed();
+	}
+
+	/**
+	 * @param domain no longer rate limited (other than by the default bucket)
+	 */
+	public void removeRate(final String domain){
+		configured.remove(domain.toLowerCase(Locale.ROOT));
+		changed();
+	}
+
+	/**
+	 * @param persecond recipients per second, shared by every domain without a rate of its own
+	 * @param burst recipients that can be sent at once after being idle
+	 */
+	public void setDefaultRate(final double persecond, final int burst){
+		defaultbucket	=	new Bucket(persecond, burst);
+		changed();
+	}
+
+	/**
+	 * @return true if any rate (including the default) has been set
+	 */
+	public boolean isEnabled(){
+		return enabled;
+	}
+
+	/**
+	 * Takes up to <code>count</code> tokens from the domain's bucket.
+	 *
+	 * @param domain
+	 * @param count
+	 * @return the number of tokens taken, between 0 and count
+	 */
+	int tryAcquire(final String domain, final int count){
+		return bucket(domain).tryAcquire(count);
+	}
+
+	/**
+	 * @param domain
+	 * @param count
+	 * @return nanoseconds until <code>count</code> tokens (or a full burst, if smaller) will be available
+	 */
+	long nanosUntil(final String domain, final int count){
+		return bucket(domain).nanosUntil(count);
+	}
+
+	/**
+	 * @param address
+	 * @return the (lower case) domain of the address
+	 */
+	static String domainOf(final Address address){
+final	String	addr	=	address instanceof InternetAddress?((InternetAddress)address).getAddress():address.toString();
+final	int		at		=	addr==null?-1:addr.lastIndexOf('@');
+		return at<0?"":addr.substring(at+1).toLowerCase(Locale.ROOT);
+	}
+
+	private Bucket bucket(final String domain){
+final	Bucket	cached	=	resolved.get(domain);
+		if (cached!=null) {
+			return cached;
+		}
+	String		d		=	domain;
+final	long		gen		=	generation.get();
+	Bucket		bucket	=	configured.get(d);
+	int			dot;
+		while (bucket==null && (dot=d.indexOf('.'))>=0){
+					d		=	d.substring(dot+1);
+					bucket	=	configured.get(d);
+		}
+		if (bucket==null) {
+			return defaultbucket;
+		}
+		resolved.put(domain, bucket);
+		if (generation.get()!=gen) {
+			//the rates changed while it was being looked up, so it may be stale, and the clear may have already run
+			resolved.remove(domain, bucket);
+		}
+		return bucket;
+	}
+
+	private void changed(){
+		generation.incrementAndGet();
+		resolved.clear();
+		enabled	=	!configured.isEmpty() || defaultbucket!=Bucket.UNLIMITED;
+	}
+
+	/**
+	 * GCRA bucket: <code>tat</code> is when the bucket would next be full if nothing more were taken.
+	 */
+	final static class Bucket {
+final	static				Bucket		UNLIMITED	=	new Bucket(0, 0);
+
+final			private		long		interval;
+final			private		long		burstinterval;
+final			private		int			burst;
+final			private		AtomicLong	tat			=	new AtomicLong(System.nanoTime());
+
+		/**
+		 * @param persecond tokens per second, 0 (or less) for unlimited
+		 * @param burst
+		 */
+		Bucket(final double persecond, final int burst){
+			this.interval		=	persecond<=0?0:(long)(TimeUnit.SECONDS.toNanos(1)/persecond);
+			this.burst			=	Math.max(1, burst);
+			this.burstinterval	=	interval*this.burst;
+		}
+
+		int tryAcquire(final int count){
+			if (interval==0) {
+				return count;
+			}
+			while (true){
+final	long	now		=	System.nanoTime();
+final	long	current	=	tat.get();
+final	long	base	=	Math.max(current, now);
+final	long	avail	=	(now+burstinterval-base)/interval;
+final	int		taken	=	(int)Math.min(count, Math.max(0, avail));
+				if (taken==0) {
+					return 0;
+				}
+				if (tat.compareAndSet(current, base+taken*interval)) {
+					return taken;
+				}
+			}
+		}
+
+		long nanosUntil(final int count){
+			if (interval==0) {
+				return 0;
+			}
+final	long	now		=	System.nanoTime();
+final	long	base	=	Math.max(tat.get(), now);
+			return Math.max(0, base+Math.min(count, burst)*interval-now-burstinterval);
+		}
+	}
+}
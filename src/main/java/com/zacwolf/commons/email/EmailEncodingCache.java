@@ -0,0 +1,275 @@
+/* com.zacwolf.commons.email.EmailEncodingCache.java
+ *
+ * Cache of the transfer encoded (base64/quoted-printable) content of attachments
+ *
+ * Copyright (C) 2021 Zac Morris
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.zacwolf.commons.email;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.mail.MessagingException;
+import javax.mail.internet.MimeUtility;
+
+/**
+ * JavaMail encodes the content of a body part every time it's written, so the same attachment is
+ * base64 encoded again for every email (and, when merge rendering, every recipient) that carries it.
+ * The first time, the content is encoded straight from its source to the wire, and a copy of the encoded,
+ * line-wrapped, bytes is cached here, which are then written to the wire as they are after.
+ *
+ * Entries are keyed by the SHA-256 of the attachment's content plus the transfer encoding, so any
+ * change to the content is a different key (and the old bytes age out), and attachments interned
+ * by the {@link EmailAttachmentStore} share the one encoding.  The cache is bounded by the total
+ * number of encoded bytes it holds, evicting the least recently used first.
+ *
+ * @author Zac Morris <zac@zacwolf.com>
+ * @version 1.3
+ * @since Java1.8
+ */
+final class EmailEncodingCache {
+final	static	public		long						DEFAULT_MAXBYTES	=	32L*1024L*1024L;
+final	static	private		Map<String,byte[]>			cache				=	new LinkedHashMap<String,byte[]>(16, 0.75f, true);
+		static	private		long						maxbytes			=	DEFAULT_MAXBYTES;
+		static	private		long						weight				=	0;
+
+	private EmailEncodingCache(){}
+
+	/**
+	 * Writes the encoded content, from the cached copy if there is one.  Otherwise the content is
+	 * encoded straight from the attachment's DataSource to <code>os</code>, and the encoding kept
+	 * for next time.
+	 *
+	 * @param attachment
+	 * @param encoding base64 or quoted-printable
+	 * @param os
+	 * @throws IOException
+	 * @throws MessagingException
+	 */
+	static void writeTo(final EmailAttachment attachment, final String encoding, final OutputStream os) throws IOException, MessagingException {
+final	String					key		=	attachment.getContentHash()+":"+encoding;
+final	byte[]					cached	=	lookup(key);
+		if (cached!=null){
+			os.write(cached);
+			return;
+		}
+		if (!cacheable(attachment)){//so there's no point holding a copy
+final	OutputStream			eos		=	MimeUtility.encode(os, encoding);
+			attachment.getDataHandler().writeTo(eos);
+			eos.flush();//needed to complete the encoding, as with MimeBodyPart.writeTo()
+			return;
+		}
+final	ByteArrayOutputStream	copy	=	new ByteArrayOutputStream((int)Math.min(Integer.MAX_VALUE-8, attachment.length()*137/100+64));//base64 + CRLFs
+final	OutputStream			eos		=	MimeUtility.encode(new Tee(os, copy), encoding);
+		attachment.getDataHandler().writeTo(eos);
+		eos.flush();
+		put(key, copy.toByteArray());
+	}
+
+	/**
+	 * @param attachment
+	 * @return false if the encoding would be bigger than the whole cache (as even base64 is
+	 * 			a third bigger than the content), so it's never worth buffering
+	 */
+	private static boolean cacheable(final EmailAttachment attachment){
+		synchronized(cache){
+			return attachment.length()*4/3<=maxbytes;
+		}
+	}
+
+	/**
+	 * @param attachment
+	 * @param encoding base64 or quoted-printable
+	 * @return the encoded content, read from the cached copy if there is one, otherwise encoded
+	 * 			from the attachment's DataSource as it is read
+	 * @throws IOException
+	 * @throws MessagingException
+	 */
+	static InputStream getInputStream(final EmailAttachment attachment, final String encoding) throws IOException, MessagingException {
+final	byte[]					cached	=	lookup(attachment.getContentHash()+":"+encoding);
+		if (cached!=null) {
+			return new ByteArrayInputStream(cached);
+		}
+		return new EncodingInputStream(attachment.getDataHandler().getInputStream(), encoding);
+	}
+
+	private static byte[] lookup(final String key){
+final	byte[]	encoded;
+		synchronized(cache){
+				encoded	=	cache.get(key);
+		}
+		if (encoded!=null){
+			EmailMetrics.ENCODING_HITS.increment();
+		} else {
+			EmailMetrics.ENCODING_MISSES.increment();
+		}
+		return encoded;
+	}
+
+	private static void put(final String key, final byte[] encoded){
+		synchronized(cache){
+			if (encoded.length<=maxbytes){//a single oversized entry would otherwise evict everything else
+final	byte[]	previous	=	cache.put(key, encoded);
+				if (previous!=null) {
+					weight	-=	previous.length;
+				}
+					weight	+=	encoded.length;
+				trim();
+			}
+		}
+	}
+
+	/**
+	 * @param maxbytes upper bound on the total size of the cached encoded content
+	 */
+	static void setMaxBytes(final long maxbytes){
+		synchronized(cache){
+			EmailEncodingCache.maxbytes	=	maxbytes;
+			trim();
+		}
+	}
+
+	/**
+	 * @return total size of the cached encodings, in bytes
+	 */
+	static long getBytes(){
+		synchronized(cache){
+			return weight;
+		}
+	}
+
+	/**
+	 * @return number of cached encodings
+	 */
+	static int size(){
+		synchronized(cache){
+			return cache.size();
+		}
+	}
+
+	static void clear(){
+		synchronized(cache){
+			cache.clear();
+			weight						=	0;
+		}
+	}
+
+	private static void trim(){
+final	Iterator<byte[]>	lru	=	cache.values().iterator();
+		while (weight>maxbytes && lru.hasNext()){
+				weight		-=	lru.next().length;
+			lru.remove();
+		}
+	}
+
+	/**
+	 * Writes to the transport, and to the copy that's cached.  Only the transport is flushed.
+	 */
+	final private static class Tee extends OutputStream {
+final	OutputStream	os;
+final	OutputStream	copy;
+
+		Tee(final OutputStream os, final OutputStream copy){
+			this.os		=	os;
+			this.copy	=	copy;
+		}
+
+		@Override
+		public void write(final int b) throws IOException {
+			os.write(b);
+			copy.write(b);
+		}
+
+		@Override
+		public void write(final byte[] b, final int off, final int len) throws IOException {
+			os.write(b, off, len);
+			copy.write(b, off, len);
+		}
+
+		@Override
+		public void flush() throws IOException {
+			os.flush();
+		}
+	}
+
+	/**
+	 * Encodes the content as it is read, a buffer at a time, so it is never held whole.
+	 */
+	final private static class EncodingInputStream extends InputStream {
+final	InputStream				in;
+final	Pending					pending		=	new Pending();
+final	OutputStream			encoder;
+final	byte[]					chunk		=	new byte[8192];
+		int						pos			=	0;
+		boolean					eof			=	false;
+
+		EncodingInputStream(final InputStream in, final String encoding) throws MessagingException {
+			this.in			=	in;
+			this.encoder	=	MimeUtility.encode(pending, encoding);
+		}
+
+		@Override
+		public int read() throws IOException {
+final	byte[]	b	=	new byte[1];
+			return read(b, 0, 1)<0?-1:b[0]&0xff;
+		}
+
+		@Override
+		public int read(final byte[] b, final int off, final int len) throws IOException {
+			if (len==0) {
+				return 0;
+			}
+			while (pos>=pending.size()){
+				if (eof) {
+					return -1;
+				}
+				pending.reset();
+				pos			=	0;
+final	int		n			=	in.read(chunk);
+				if (n<0){
+					encoder.flush();//completes the encoding
+					eof		=	true;
+				} else {
+					encoder.write(chunk, 0, n);
+				}
+			}
+final	int		n			=	Math.min(len, pending.size()-pos);
+			System.arraycopy(pending.buffer(), pos, b, off, n);
+			pos				+=	n;
+			return n;
+		}
+
+		@Override
+		public void close() throws IOException {
+			in.close();
+		}
+	}
+
+	/**
+	 * The encoded bytes not yet read, read straight from the buffer rather than copied out.
+	 */
+	final private static class Pending extends ByteArrayOutputStream {
+		byte[] buffer(){
+			return buf;
+		}
+	}
+}
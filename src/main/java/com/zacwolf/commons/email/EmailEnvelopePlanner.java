@@ -0,0 +1,203 @@
+/* com.zacwolf.commons.email.EmailEnvelopePlanner.java
+ *
+ * Breaks an Email's distribution down into domain-grouped EmailChunks
+ *
+ * Copyright (C) 2021 Zac Morris
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.zacwolf.commons.email;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+import javax.mail.Address;
+import javax.mail.internet.InternetAddress;
+
+/**
+ * A relay hands each SMTP transaction to the MX of every recipient domain in it, so a chunk
+ * addressed to 200 recipients at 150 domains costs far more downstream than one addressed to
+ * 200 recipients at one.  The planner therefore groups the recipients by domain, cuts each
+ * domain into pieces of no more than {@link _EMAILfactory#BREAKDOWNDISTRIBUTION} recipients of
+ * each type, and packs the pieces into chunks largest first (first-fit decreasing), so a big
+ * domain gets chunks of its own and the small domains are packed together into as few as possible.
+ *
+ * A recipient in more than one of TO, CC, and BCC is only addressed once, as the first of those.
+ *
+ * @author Zac Morris <zac@zacwolf.com>
+ * @version 1.3
+ * @since Java1.8
+ */
+final class EmailEnvelopePlanner {
+final	static	private		int			TO			=	0;
+final	static	private		int			CC			=	1;
+final	static	private		int			BCC			=	2;
+/** How many of the most recently opened chunks a piece is tried against before opening a new one */
+final	static	private		int			LOOKBACK	=	16;
+
+	private EmailEnvelopePlanner(){
+	}
+
+	/**
+	 * @param email
+	 * @param from
+	 * @param addressTO may be null
+	 * @param addressCC may be null
+	 * @param addressBCC may be null
+	 * @param max recipients of each type per chunk
+	 * @param delivery the send the chunks are part of, may be null
+	 * @return the chunks, each with no more than <code>max</code> recipients of each type
+	 */
+	static List<EmailChunk> plan(final Email email, final Address from, final Address[] addressTO, final Address[] addressCC, final Address[] addressBCC, final int max, final EmailDelivery delivery){
+final	Map<String,Piece>	bydomain	=	new LinkedHashMap<String,Piece>();
+final	Set<String>			seen		=	new HashSet<String>();
+		group(addressTO, TO, bydomain, seen);
+		group(addressCC, CC, bydomain, seen);
+		group(addressBCC, BCC, bydomain, seen);
+
+final	List<Piece>			pieces		=	new ArrayList<Piece>();
+		for (final Piece domain:bydomain.values()) {
+			domain.split(max, pieces);
+		}
+		pieces.sort((a, b) -> b.size()-a.size());//stable, so equal sized domains keep their order
+
+final	List<Piece>			chunks		=	new ArrayList<Piece>();
+final	LinkedList<Piece>	open		=	new LinkedList<Piece>();
+		for (final Piece piece:pieces){
+	Piece					target		=	null;
+			for (final Piece candidate:open) {
+				if (candidate.fits(piece, max)) {
+							target		=	candidate;
+					break;
+				}
+			}
+			if (target==null){
+							target		=	new Piece();
+				chunks.add(target);
+				open.addLast(target);
+				if (open.size()>LOOKBACK) {
+					open.removeFirst();
+				}
+			}
+			target.addAll(piece);
+		}
+
+final	List<EmailChunk>	planned		=	new ArrayList<EmailChunk>(chunks.size());
+		for (final Piece chunk:chunks) {
+			planned.add(new EmailChunk(email, from, chunk.toArray(TO), chunk.toArray(CC), chunk.toArray(BCC), delivery));
+		}
+		return planned;
+	}
+
+	/**
+	 * @param addresses
+	 * @return the (lower case) domain most of the addresses are at, or null if there are none
+	 */
+	static String dominantDomain(final Address[] addresses){
+		if (addresses==null || addresses.length==0) {
+			return null;
+		}
+final	Map<String,int[]>	counts		=	new HashMap<String,int[]>();
+	String					dominant	=	null;
+	int						most		=	0;
+		for (final Address addr:addresses){
+final	String				domain		=	EmailDomainRateLimiter.domainOf(addr);
+	int[]					count		=	counts.get(domain);
+			if (count==null) {
+				counts.put(domain, count=new int[1]);
+			}
+			if (++count[0]>most){
+							most		=	count[0];
+							dominant	=	domain;
+			}
+		}
+		return dominant;
+	}
+
+	private static void group(final Address[] addresses, final int type, final Map<String,Piece> bydomain, final Set<String> seen){
+		if (addresses==null) {
+			return;
+		}
+		for (final Address addr:addresses){
+final	String	key		=	addr instanceof InternetAddress?((InternetAddress)addr).getAddress():addr.toString();
+			if (!seen.add(key==null?addr.toString():key.toLowerCase(Locale.ROOT))) {
+				continue;
+			}
+final	String	domain	=	EmailDomainRateLimiter.domainOf(addr);
+	Piece		piece	=	bydomain.get(domain);
+			if (piece==null) {
+				bydomain.put(domain, piece=new Piece());
+			}
+			piece.lists.get(type).add(addr);
+		}
+	}
+
+	/**
+	 * Recipients of each type, either of a single domain, or of a planned chunk.
+	 */
+	private static final class Piece {
+final	List<List<Address>>	lists	=	new ArrayList<List<Address>>(BCC+1);
+
+		Piece(){
+			for (int type=TO; type<=BCC; type++) {
+				lists.add(new ArrayList<Address>());
+			}
+		}
+
+		int size(){
+			return lists.get(TO).size()+lists.get(CC).size()+lists.get(BCC).size();
+		}
+
+		boolean fits(final Piece piece, final int max){
+			for (int type=TO; type<=BCC; type++) {
+				if (lists.get(type).size()+piece.lists.get(type).size()>max) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		void addAll(final Piece piece){
+			for (int type=TO; type<=BCC; type++) {
+				lists.get(type).addAll(piece.lists.get(type));
+			}
+		}
+
+		/**
+		 * Cuts this domain into pieces of no more than max recipients of each type.
+		 */
+		void split(final int max, final List<Piece> pieces){
+			for (int index=0; index<Math.max(lists.get(TO).size(), Math.max(lists.get(CC).size(), lists.get(BCC).size())); index+=max){
+final	Piece	piece	=	new Piece();
+				for (int type=TO; type<=BCC; type++) {
+					if (index<lists.get(type).size()) {
+						piece.lists.get(type).addAll(lists.get(type).subList(index, Math.min(index+max, lists.get(type).size())));
+					}
+				}
+				pieces.add(piece);
+			}
+		}
+
+		Address[] toArray(final int type){
+			return lists.get(type).isEmpty()?null:lists.get(type).toArray(new InternetAddress[0]);
+		}
+	}
+}
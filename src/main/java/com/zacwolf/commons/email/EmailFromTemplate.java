@@ -19,11 +19,10 @@
  */
 package com.zacwolf.commons.email;
 
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
 
-import org.jsoup.Jsoup;
-
 /**
  * @author Zac Morris <zac@zacwolf.com>
  * @version 1.3
@@ -33,15 +32,34 @@ public class EmailFromTemplate extends Email {
 
 	private	static		final 	long 			serialVersionUID	=	5143409985159356855L;
 
-	public	transient	final	EmailTemplate	emailTemplate;
+	public	transient	final	EmailTemplate		emailTemplate;
+				private	final	Map<String,String>	slots				=	new HashMap<String,String>();
+	transient	private	volatile	Combined			combined;
 
 	public EmailFromTemplate(final int sid, final String name, final EmailTemplate template){
 		super("sid_"+sid,name);
 		emailTemplate	=	template;
-		super.body			=	Jsoup.parse(template.body, "UTF-8").select("#content").html();
+		super.body			=	template.getCompiled().getSlotDefault(EmailCompiledTemplate.CONTENT_SLOT);
 		setDistribution(template.getDistribution().clone());
 	}
 
+	/**
+	 * Fill one of the template's other named (<code>data-slot="name"</code>) slots.
+	 * The <code>#content</code> slot is always filled from the body.
+	 *
+	 * @param name of the slot
+	 * @param html to put in the slot
+	 */
+	public synchronized void setSlot(final String name, final String html){
+		if (html==null) {
+			throw new NullPointerException("NULL is not a valid value for a slot");
+		}
+		if (!html.equals(slots.get(name))){
+			slots.put(name, html);
+			changed();
+		}
+	}
+
 	@Override
 	public final String getSubject(){
 		if (super.subject==null && emailTemplate.subject!=null) {
@@ -52,11 +70,12 @@ public class EmailFromTemplate extends Email {
 
 	@Override
 	public final String getBody(){
-	final org.jsoup.nodes.Document	doc=	Jsoup.parse(emailTemplate.body, "UTF-8");
-		if (doc.select("#content").size()>0) {
-			doc.select("#content").html(super.body);
+	final Map<String,String>	values;
+		synchronized(this){
+								values	=	new HashMap<String,String>(slots);
 		}
-		return doc.toString();
+								values.put(EmailCompiledTemplate.CONTENT_SLOT, super.body);
+		return emailTemplate.getCompiled().render(values);
 	}
 
 	public final String getBody(final boolean selfOnly){
@@ -71,16 +90,64 @@ public class EmailFromTemplate extends Email {
 		return super.getBodyPlainText();
 	}
 
+	/**
+	 * The rendered content also depends on the template, so a change to either invalidates it.
+	 */
+	@Override
+	String getRenderKey(){
+		return super.getRenderKey()+"/"+emailTemplate.getLastChanged();
+	}
+
+	/**
+	 * @return a copy of the email's attachments combined with the template's
+	 */
 	@Override
 	public final Map<String,EmailAttachment> getAttachments(){
-	final Map<String,EmailAttachment>	combined	=	new HashMap<String,EmailAttachment>();
-		if (attachments!=null && attachments.size()>0) {
-			combined.putAll(attachments);
+		return new HashMap<String,EmailAttachment>(getRenderAttachments());
+	}
+
+	/**
+	 * The merge of the email's and the template's attachments is only rebuilt when either changes,
+	 * so (as it's called for every render) this doesn't allocate.
+	 *
+	 * @return the combined attachments, which can't be modified
+	 */
+	@Override
+	final Map<String,EmailAttachment> getRenderAttachments(){
+	final long							changed		=	getLastChanged();
+	final long							tchanged	=	emailTemplate==null?0:emailTemplate.getLastChanged();
+	Combined							current		=	combined;
+		if (current==null || current.changed!=changed || current.tchanged!=tchanged){
+	final Map<String,EmailAttachment>	merged		=	new HashMap<String,EmailAttachment>();
+			synchronized(this){
+				if (attachments!=null && attachments.size()>0) {
+					merged.putAll(attachments);
+				}
+			}
+			if (emailTemplate!=null && emailTemplate.attachments!=null && emailTemplate.attachments.size()>0) {
+				synchronized(emailTemplate){
+					merged.putAll(emailTemplate.attachments);
+				}
+			}
+											current		=	new Combined(changed, tchanged, Collections.unmodifiableMap(merged));
+											combined	=	current;
 		}
-		if (emailTemplate!=null && emailTemplate.attachments!=null && emailTemplate.attachments.size()>0) {
-			combined.putAll(emailTemplate.attachments);
+		return current.attachments;
+	}
+
+	/**
+	 * The combined attachments, along with the last_changed of the email and template they were merged at.
+	 */
+	final private static class Combined {
+	final long							changed;
+	final long							tchanged;
+	final Map<String,EmailAttachment>	attachments;
+
+		Combined(final long changed, final long tchanged, final Map<String,EmailAttachment> attachments){
+			this.changed		=	changed;
+			this.tchanged		=	tchanged;
+			this.attachments	=	attachments;
 		}
-		return combined;
 	}
 
 }
@@ -0,0 +1,187 @@
+/* com.zacwolf.commons.email.EmailHistogram.java
+ *
+ * Lock free histogram of latencies (or sizes) recorded by EmailMetrics
+ *
+ * Copyright (C) 2021 Zac Morris
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.zacwolf.commons.email;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Values are counted in log-linear buckets: each power of two is split into {@link #SUBBUCKETS}
+ * equal buckets, so any value is placed within about 6% of its true value, from 0 to Long.MAX_VALUE,
+ * in a fixed array of fewer than a thousand counters.  Recording is a few atomic increments,
+ * with no lock and no allocation, so it can be left on in the send path.
+ *
+ * Reads are not a consistent snapshot while values are being recorded, which for monitoring doesn't matter.
+ *
+ * @author Zac Morris <zac@zacwolf.com>
+ * @version 1.3
+ * @since Java1.8
+ */
+public final class EmailHistogram implements EmailMetrics.HistogramMXBean {
+final	static	private		int					SUBBITS		=	4;
+final	static	public		int					SUBBUCKETS	=	1<<SUBBITS;
+final	static	private		int					BUCKETS		=	(64-SUBBITS)*SUBBUCKETS;
+
+final			private		String				name;
+final			private		String				description;
+final			private		String				unit;
+final			private		AtomicLongArray		buckets		=	new AtomicLongArray(BUCKETS);
+final			private		LongAdder			count		=	new LongAdder();
+final			private		LongAdder			sum			=	new LongAdder();
+final			private		AtomicLong			max			=	new AtomicLong();
+
+	/**
+	 * @param name
+	 * @param description
+	 * @param unit of the recorded values, e.g. "ns" or "bytes"
+	 */
+	EmailHistogram(final String name, final String description, final String unit){
+		this.name			=	name;
+		this.description	=	description;
+		this.unit			=	unit;
+	}
+
+	/**
+	 * @param value negative values are counted as 0
+	 */
+	public void record(final long value){
+final	long	v	=	Math.max(0, value);
+		buckets.incrementAndGet(bucket(v));
+		count.increment();
+		sum.add(v);
+	long		m;
+		while (v>(m=max.get()) && !max.compareAndSet(m, v)) {
+			//another thread raised the max, so check again
+		}
+	}
+
+	/**
+	 * Records the time since <code>start</code>.
+	 *
+	 * @param start from System.nanoTime()
+	 */
+	public void recordSince(final long start){
+		record(System.nanoTime()-start);
+	}
+
+	@Override
+	public String getName(){
+		return name;
+	}
+
+	@Override
+	public String getDescription(){
+		return description;
+	}
+
+	@Override
+	public String getUnit(){
+		return unit;
+	}
+
+	@Override
+	public long getCount(){
+		return count.sum();
+	}
+
+	@Override
+	public long getSum(){
+		return sum.sum();
+	}
+
+	@Override
+	public long getMax(){
+		return max.get();
+	}
+
+	@Override
+	public double getMean(){
+final	long	n	=	count.sum();
+		return n==0?0:(double)sum.sum()/n;
+	}
+
+	@Override
+	public long get50thPercentile(){
+		return getPercentile(50);
+	}
+
+	@Override
+	public long get90thPercentile(){
+		return getPercentile(90);
+	}
+
+	@Override
+	public long get99thPercentile(){
+		return getPercentile(99);
+	}
+
+	@Override
+	public long get999thPercentile(){
+		return getPercentile(99.9);
+	}
+
+	/**
+	 * @param percentile between 0 and 100
+	 * @return the highest value of the bucket holding the percentile (at most the max), or 0 if nothing was recorded
+	 */
+	public long getPercentile(final double percentile){
+final	long	counted	=	count.sum();
+		if (counted==0) {
+			return 0;
+		}
+final	long	rank	=	Math.max(1, (long)Math.ceil(counted*Math.min(100, Math.max(0, percentile))/100));
+	long		seen	=	0;
+		for (int i=0; i<BUCKETS; i++){
+			if ((seen+=buckets.get(i))>=rank) {
+				return Math.min(highest(i), max.get());
+			}
+		}
+		return max.get();
+	}
+
+	@Override
+	public String toString(){
+		return name+" count:"+getCount()+" mean:"+(long)getMean()+" p50:"+get50thPercentile()+" p99:"+get99thPercentile()+" max:"+getMax()+" "+unit;
+	}
+
+	/**
+	 * Values below {@link #SUBBUCKETS} have a bucket each, above that each power of two has SUBBUCKETS buckets.
+	 */
+	static int bucket(final long value){
+		if (value<SUBBUCKETS) {
+			return (int)value;
+		}
+final	int		exponent	=	63-Long.numberOfLeadingZeros(value);
+		return ((exponent-SUBBITS+1)<<SUBBITS)+(int)((value>>>(exponent-SUBBITS))&(SUBBUCKETS-1));
+	}
+
+	/**
+	 * @return the highest value that falls in the bucket
+	 */
+	static long highest(final int bucket){
+		if (bucket<SUBBUCKETS) {
+			return bucket;
+		}
+final	int		exponent	=	(bucket>>>SUBBITS)+SUBBITS-1;
+final	long	lowest		=	(1L<<exponent)+((long)(bucket&(SUBBUCKETS-1))<<(exponent-SUBBITS));
+		return lowest+(1L<<(exponent-SUBBITS))-1;
+	}
+}
@@ -0,0 +1,158 @@
+/* com.zacwolf.commons.email.EmailImageCache.java
+ *
+ * Bounded cache of the rounded banner and footer images generated while rendering
+ *
+ * Copyright (C) 2021 Zac Morris
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.zacwolf.commons.email;
+
+import java.awt.Color;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.imageio.ImageIO;
+
+/**
+ * Decoding, drawing, and re-encoding the rounded banner/footer images with ImageIO
+ * is the most expensive step of rendering a templated email, and the result only
+ * depends on the source image bytes and the styling, so the PNG/JPG encoded results
+ * are cached here.
+ *
+ * Entries are keyed by the SHA-256 of the source attachment plus the corner radius and
+ * (for footers) the background and border colours.  The cache is bounded by the total
+ * number of encoded bytes it holds, evicting the least recently used images first.
+ *
+ * @author Zac Morris <zac@zacwolf.com>
+ * @version 1.3
+ * @since Java1.8
+ */
+final class EmailImageCache {
+final	static	public		long						DEFAULT_MAXBYTES	=	16L*1024L*1024L;
+final	static	private		Map<String,DerivedImage>	cache				=	new LinkedHashMap<String,DerivedImage>(16, 0.75f, true);
+		static	private		long						maxbytes			=	DEFAULT_MAXBYTES;
+		static	private		long						weight				=	0;
+
+	private EmailImageCache(){}
+
+	/**
+	 * @param source banner attachment
+	 * @param cornerRadius
+	 * @return the encoded rounded banner, re-using the cached copy if there is one
+	 * @throws IOException
+	 */
+	static DerivedImage roundedBanner(final EmailAttachment source, final int cornerRadius) throws IOException {
+final	String			format	=	EmailAttachment.CONTENT_MIMETYPES.get(source.contenttype);
+final	String			key		=	"banner:"+source.getContentHash()+":"+cornerRadius+":"+format;
+	DerivedImage		derived	=	get(key);
+		if (derived==null){
+final	BufferedImage	image	=	Email.makeRoundedBanner(ImageIO.read(new ByteArrayInputStream(source.getData())), cornerRadius);
+						derived	=	new DerivedImage(key, encode(image, format), image.getWidth());
+						put(derived);
+		}
+		return derived;
+	}
+
+	/**
+	 * @param banner the rounded banner the footer is being matched to
+	 * @param cornerRadius
+	 * @param bgcolor
+	 * @param border may be null for no border
+	 * @return the encoded (png) rounded footer, re-using the cached copy if there is one
+	 * @throws Exception
+	 */
+	static DerivedImage roundedFooter(final DerivedImage banner, final int cornerRadius, final Color bgcolor, final Color border) throws Exception {
+final	String			key		=	"footer:"+banner.key+":"+cornerRadius+":"+bgcolor.getRGB()+":"+(border==null?"none":Integer.toString(border.getRGB()));
+	DerivedImage		derived	=	get(key);
+		if (derived==null){
+final	BufferedImage	image	=	Email.makeRoundedFooter(banner.width, cornerRadius, bgcolor, border);
+						derived	=	new DerivedImage(key, encode(image, "png"), image.getWidth());
+						put(derived);
+		}
+		return derived;
+	}
+
+	/**
+	 * @param maxbytes upper bound on the total size of the cached encoded images
+	 */
+	static void setMaxBytes(final long maxbytes){
+		synchronized(cache){
+			EmailImageCache.maxbytes	=	maxbytes;
+			trim();
+		}
+	}
+
+	static void clear(){
+		synchronized(cache){
+			cache.clear();
+			weight						=	0;
+		}
+	}
+
+	private static DerivedImage get(final String key){
+		synchronized(cache){
+			return cache.get(key);
+		}
+	}
+
+	private static void put(final DerivedImage derived){
+		synchronized(cache){
+final	DerivedImage	previous	=	cache.put(derived.key, derived);
+			if (previous!=null) {
+				weight		-=	previous.data.length;
+			}
+				weight		+=	derived.data.length;
+			trim();
+		}
+	}
+
+	private static void trim(){
+final	Iterator<DerivedImage>	lru	=	cache.values().iterator();
+		while (weight>maxbytes && lru.hasNext()){
+				weight		-=	lru.next().data.length;
+			lru.remove();
+		}
+	}
+
+	private static byte[] encode(final BufferedImage image, final String format) throws IOException {
+final	ByteArrayOutputStream	baos	=	new ByteArrayOutputStream();
+		try{	ImageIO.write(image, format, baos);
+		} finally {
+				baos.flush();
+		}
+		return baos.toByteArray();
+	}
+
+	/**
+	 * An encoded image along with the pixel width the html needs to be sized to.
+	 * The data is shared, so must never be modified.
+	 */
+	final static class DerivedImage {
+final	String	key;
+final	byte[]	data;
+final	int		width;
+
+		DerivedImage(final String key, final byte[] data, final int width){
+			this.key	=	key;
+			this.data	=	data;
+			this.width	=	width;
+		}
+	}
+}
@@ -0,0 +1,88 @@
+/* com.zacwolf.commons.email.EmailJob.java
+ *
+ * A unit of work for the _EMAILfactory SMTP workers
+ *
+ * Copyright (C) 2021 Zac Morris
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.zacwolf.commons.email;
+
+import java.util.Set;
+
+import javax.mail.Address;
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.internet.MimeMessage;
+
+/**
+ * Anything a THREADPOOL worker can send as a single SMTP transaction: either an
+ * {@link EmailChunk} held in memory, or a job read back from the {@link EmailSpool}.
+ *
+ * @author Zac Morris <zac@zacwolf.com>
+ * @version 1.3
+ * @since Java1.8
+ */
+interface EmailJob {
+
+	/**
+	 * @param mailSession
+	 * @return MimeMessage addressed to the job's recipients, or null if they have all already been sent to
+	 * @throws MessagingException
+	 */
+	MimeMessage toMimeMessage(Session mailSession) throws MessagingException;
+
+	/**
+	 * @return the log the outcome of the job is recorded in
+	 */
+	EmailSendLog getSendLog();
+
+	/**
+	 * @return the send the job is part of, which the outcome is also reported to, or null if there is none
+	 */
+	EmailDelivery getDelivery();
+
+	/**
+	 * @return every recipient of the job (TO, CC, and BCC)
+	 */
+	Address[] getRecipients();
+
+	/**
+	 * @param recipients to keep
+	 * @return a copy of the job addressed to only those of its recipients
+	 */
+	EmailJob subset(Set<Address> recipients);
+
+	/**
+	 * @param recipients to retry
+	 * @return a copy of the job addressed to only those of its recipients, counting one more retry
+	 */
+	EmailJob retry(Set<Address> recipients);
+
+	/**
+	 * @return number of times the job's recipients have been retried
+	 */
+	int getRetries();
+
+	/**
+	 * @return the domain most of the job's recipients are at, so the job can be sent over a connection
+	 * that was last used for the same domain, see {@link EmailTransportPool#borrow(long, String)}
+	 */
+	String getAffinity();
+
+	/**
+	 * Called once the job (or a {@link #subset(Set)} of it) has been sent, or has failed.
+	 */
+	void completed();
+}
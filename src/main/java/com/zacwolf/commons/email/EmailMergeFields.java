@@ -0,0 +1,62 @@
+/* com.zacwolf.commons.email.EmailMergeFields.java
+ *
+ * Supplies the per-recipient mail-merge variables for an Email's distribution
+ *
+ * Copyright (C) 2021 Zac Morris
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.zacwolf.commons.email;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.mail.internet.InternetAddress;
+
+/**
+ * Supplied alongside an Email's {@link EmailDistribution} when sending in mail-merge mode.
+ * The fields are only asked for as each recipient's message is about to be sent, so
+ * an implementation can stream them from wherever they live rather than holding them all.
+ *
+ * @author Zac Morris <zac@zacwolf.com>
+ * @version 1.3
+ * @since Java1.8
+ */
+public interface EmailMergeFields {
+
+	/**
+	 * @param recipient
+	 * @return the placeholder values for that recipient, or null if there are none
+	 */
+	Map<String,String> getFields(InternetAddress recipient);
+
+	/**
+	 * @param fields placeholder values keyed by (case insensitive) email address
+	 * @return EmailMergeFields backed by the supplied map
+	 */
+	static EmailMergeFields fromMap(final Map<String,Map<String,String>> fields){
+final	Map<String,Map<String,String>>	byaddress	=	new HashMap<String,Map<String,String>>();
+		for (final Map.Entry<String,Map<String,String>> entry:fields.entrySet()) {
+			byaddress.put(entry.getKey().toLowerCase(), entry.getValue());
+		}
+		return new EmailMergeFields(){
+			@Override
+			public Map<String,String> getFields(final InternetAddress recipient) {
+final	Map<String,String>	values	=	byaddress.get(recipient.getAddress().toLowerCase());
+				return values==null?Collections.<String,String>emptyMap():values;
+			}
+		};
+	}
+}
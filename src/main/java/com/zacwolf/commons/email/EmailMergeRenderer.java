@@ -0,0 +1,96 @@
+/* com.zacwolf.commons.email.EmailMergeRenderer.java
+ *
+ * Renders personalized (mail-merge) copies of an Email for each recipient
+ *
+ * Copyright (C) 2021 Zac Morris
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.zacwolf.commons.email;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import javax.mail.Address;
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeBodyPart;
+import javax.mail.internet.MimeMessage;
+import javax.mail.internet.MimeMultipart;
+
+/**
+ * The Email's html is prepared (Jsoup parse, inline images, etc.) exactly once, and the
+ * resulting html, plain text, and subject are tokenized into {@link EmailMergeTemplate}s.
+ * Each recipient's message is then produced by splicing their {@link EmailMergeFields}
+ * into those shared segments, with its own copies of the already prepared inline image parts.
+ *
+ * Messages are only rendered as each one is about to be sent, never all up front.
+ *
+ * @author Zac Morris <zac@zacwolf.com>
+ * @version 1.3
+ * @since Java1.8
+ */
+final class EmailMergeRenderer {
+final	private	Email					email;
+final	private	EmailMergeTemplate		html;
+final	private	EmailMergeTemplate		plaintext;
+final	private	EmailMergeTemplate		subject;
+final	private	List<EmailAttachment>	inline;
+
+	EmailMergeRenderer(final Email email) throws MessagingException {
+final	MimeMultipart		related		=	new MimeMultipart("related");
+		this.email						=	email;
+		html							=	EmailMergeTemplate.compile(email.getPreparedHTML(related));
+		plaintext						=	EmailMergeTemplate.compile(email.getBodyPlainText());
+		subject							=	EmailMergeTemplate.compile(email.getSubject());
+final	List<EmailAttachment>	parts	=	new ArrayList<EmailAttachment>(related.getCount());
+		for (int i=0; i<related.getCount(); i++) {
+							parts.add((EmailAttachment)related.getBodyPart(i));
+		}
+		inline							=	Collections.unmodifiableList(parts);
+	}
+
+	/**
+	 * @param mailSession
+	 * @param from
+	 * @param to the single recipient of this personalized copy
+	 * @param fields the recipient's placeholder values
+	 * @return MimeMessage for just that recipient
+	 * @throws MessagingException
+	 */
+	MimeMessage toMimeMessage(final Session mailSession, final Address from, final InternetAddress to, final Map<String,String> fields) throws MessagingException {
+final	MimeMultipart		related		=	new MimeMultipart("related");
+final	MimeBodyPart		htmlpart	=	new MimeBodyPart();
+							htmlpart.setContent(html.render(fields, true), "text/html; charset=utf-8");
+							related.addBodyPart(htmlpart);
+		//copies, as a part can only be in one multipart, and is changed by the saveChanges() of each message;
+		//they share the content, and its cached encoding
+		for (final EmailAttachment part:inline) {
+							related.addBodyPart(part.clone());
+		}
+final	MimeMessage			msg			=	new EmailMimeMessage(mailSession);
+							msg.setFrom(from);
+							msg.setRecipient(Message.RecipientType.TO, to);
+							msg.setDescription(email.getName(), "utf-8");
+		if (subject!=null) {
+							msg.setSubject(subject.render(fields), "utf-8");
+		}
+							msg.setContent(email.wrapMultipart(related, plaintext==null?null:plaintext.render(fields)));
+		return msg;
+	}
+}
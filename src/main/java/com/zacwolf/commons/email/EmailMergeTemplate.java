@@ -0,0 +1,130 @@
+/* com.zacwolf.commons.email.EmailMergeTemplate.java
+ *
+ * Pre-tokenized text containing {{placeholder}} mail-merge fields
+ *
+ * Copyright (C) 2021 Zac Morris
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.zacwolf.commons.email;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The text is scanned for <code>{{name}}</code> placeholders once, leaving an array of
+ * immutable static segments and an array of field names.  Rendering for a recipient is
+ * then a single linear pass appending segments and values, with no regex involved.
+ *
+ * @author Zac Morris <zac@zacwolf.com>
+ * @version 1.3
+ * @since Java1.8
+ */
+final class EmailMergeTemplate {
+final	static	public		String		OPEN		=	"{{";
+final	static	public		String		CLOSE		=	"}}";
+
+final			private		String[]	segments;
+final			private		String[]	fields;
+final			private		int			length;
+
+	private EmailMergeTemplate(final String[] segments, final String[] fields){
+		this.segments	=	segments;
+		this.fields		=	fields;
+	int		len			=	0;
+		for (final String segment:segments) {
+				len		+=	segment.length();
+		}
+		length			=	len;
+	}
+
+	/**
+	 * @param text containing zero or more {{name}} placeholders, may be null
+	 * @return tokenized template
+	 */
+	static EmailMergeTemplate compile(final String text){
+		if (text==null) {
+			return null;
+		}
+final	List<String>	segments	=	new ArrayList<String>();
+final	List<String>	fields		=	new ArrayList<String>();
+	int					pos			=	0;
+	int					open;
+		while ((open=text.indexOf(OPEN, pos))!=-1){
+final	int				close		=	text.indexOf(CLOSE, open+OPEN.length());
+			if (close==-1) {
+				break;
+			}
+						segments.add(text.substring(pos, open));
+						fields.add(text.substring(open+OPEN.length(), close).trim());
+						pos			=	close+CLOSE.length();
+		}
+						segments.add(text.substring(pos));
+		return new EmailMergeTemplate(segments.toArray(new String[0]), fields.toArray(new String[0]));
+	}
+
+	/**
+	 * @return true if there is at least one placeholder
+	 */
+	boolean hasFields(){
+		return fields.length>0;
+	}
+
+	/**
+	 * @param values field values by name, any missing field renders as an empty string
+	 * @return the text with every placeholder replaced
+	 */
+	String render(final Map<String,String> values){
+		return render(values, false);
+	}
+
+	/**
+	 * @param values field values by name, any missing field renders as an empty string
+	 * @param html true to escape the values for use in html
+	 * @return the text with every placeholder replaced
+	 */
+	String render(final Map<String,String> values, final boolean html){
+		if (fields.length==0) {
+			return segments[0];
+		}
+final	StringBuilder	out		=	new StringBuilder(length+fields.length*16);
+		for (int i=0; i<fields.length; i++){
+						out.append(segments[i]);
+final	String			value	=	values==null?null:values.get(fields[i]);
+			if (value!=null) {
+				if (html) {
+						escape(value, out);
+				} else {
+						out.append(value);
+				}
+			}
+		}
+						out.append(segments[fields.length]);
+		return out.toString();
+	}
+
+	private static void escape(final String value, final StringBuilder out){
+		for (int i=0; i<value.length(); i++){
+final	char	c	=	value.charAt(i);
+			switch (c){
+				case '&':	out.append("&amp;");	break;
+				case '<':	out.append("&lt;");		break;
+				case '>':	out.append("&gt;");		break;
+				case '"':	out.append("&quot;");	break;
+				default:	out.append(c);
+			}
+		}
+	}
+}
@@ -0,0 +1,229 @@
+/* com.zacwolf.commons.email.EmailMetrics.java
+ *
+ * Counters and latency histograms for the send pipeline, exposed through JMX
+ *
+ * Copyright (C) 2021 Zac Morris
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.zacwolf.commons.email;
+
+import java.lang.management.ManagementFactory;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.ServiceConfigurationError;
+import java.util.ServiceLoader;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * JVM wide metrics of every _EMAILfactory.  Times are in nanoseconds, and every histogram and counter
+ * is registered with the platform MBeanServer as <code>com.zacwolf.commons.email:type=EmailMetrics,name=...</code>
+ * when the class is loaded, along with any {@link EmailMetricsRegistry} the ServiceLoader finds.
+ *
+ * Recording only touches LongAdders and AtomicLongArrays, so never blocks or allocates.
+ *
+ * @author Zac Morris <zac@zacwolf.com>
+ * @version 1.3
+ * @since Java1.8
+ */
+public final class EmailMetrics {
+final	static	public		String							DOMAIN				=	"com.zacwolf.commons.email";
+final	static	private		Map<String,EmailHistogram>		histograms			=	new LinkedHashMap<String,EmailHistogram>();
+final	static	private		Map<String,Counter>				counters			=	new LinkedHashMap<String,Counter>();
+/** Reply codes counted individually, any other code is counted as "other" */
+final	static	private		int[]							REPLYCODES			=	{211,214,220,221,250,251,252,354,421,450,451,452,455,500,501,502,503,504,521,530,534,535,550,551,552,553,554,555};
+final	static	private		int[]							replyslot			=	new int[600];
+final	static	private		AtomicLongArray					replies				=	new AtomicLongArray(REPLYCODES.length+2);
+
+final	static				EmailHistogram					RENDER_PARSE		=	histogram("render.parse", "Parsing the html body of an Email", "ns");
+final	static				EmailHistogram					RENDER_IMAGES		=	histogram("render.images", "Embedding the images of an Email", "ns");
+final	static				EmailHistogram					RENDER_PREPARE		=	histogram("render.prepare", "Preparing the parsed html of an Email for sending", "ns");
+final	static				EmailHistogram					QUEUE_WAIT			=	histogram("threadpool.wait", "Time a send waited in the queue for a thread", "ns");
+final	static				EmailHistogram					SMTP_PERMIT			=	histogram("smtp.permit", "Waiting for a permit from the relay's concurrency limiter", "ns");
+final	static				EmailHistogram					SMTP_ACQUIRE		=	histogram("smtp.acquire", "Borrowing (or opening) a pooled SMTP connection", "ns");
+final	static				EmailHistogram					SMTP_RCPT			=	histogram("smtp.rcpt", "MAIL FROM, RCPT TO and DATA commands of a transaction", "ns");
+final	static				EmailHistogram					SMTP_DATA			=	histogram("smtp.data", "Writing the message content until the relay replies", "ns");
+final	static				EmailHistogram					MESSAGE_BYTES		=	histogram("message.bytes", "Size of each message written to the relay", "bytes");
+final	static				LongAdder						RECIPIENTS_SENT		=	counter("recipients.sent", "Recipients the relay accepted");
+final	static				LongAdder						RECIPIENTS_FAILED	=	counter("recipients.failed", "Recipients rejected, or given up on");
+final	static				LongAdder						RECIPIENTS_RETRIED	=	counter("recipients.retried", "Recipients queued to be retried later");
+final	static				LongAdder						ENCODING_HITS		=	counter("attachment.encoding.hits", "Attachments written from their cached transfer encoding");
+final	static				LongAdder						ENCODING_MISSES		=	counter("attachment.encoding.misses", "Attachments that had to be transfer encoded");
+
+	static {
+		for (int i=0; i<REPLYCODES.length; i++) {
+			replyslot[REPLYCODES[i]]	=	i+1;
+		}
+		for (int i=0; i<REPLYCODES.length; i++){
+final	int		slot	=	i+1;
+			counter("smtp.reply."+REPLYCODES[i], "Transactions ending with reply "+REPLYCODES[i], () -> replies.get(slot));
+		}
+		counter("smtp.reply.other", "Transactions ending with any other reply", () -> replies.get(REPLYCODES.length+1));
+		counter("smtp.reply.unknown", "Transactions ending with no reply, as the connection was lost", () -> replies.get(0));
+		bind(new JMX());
+		try {
+			for (final EmailMetricsRegistry registry:ServiceLoader.load(EmailMetricsRegistry.class)) {
+				bind(registry);
+			}
+		} catch (final ServiceConfigurationError sce){
+			sce.printStackTrace();//metrics are never worth failing to send over
+		}
+	}
+
+	private EmailMetrics(){}
+
+	/**
+	 * Tells the registry about every metric.
+	 *
+	 * @param registry
+	 */
+	public static void bind(final EmailMetricsRegistry registry){
+		for (final Counter counter:counters.values()) {
+			registry.counter(counter.name, counter.description, counter.count);
+		}
+		for (final EmailHistogram histogram:histograms.values()) {
+			registry.histogram(histogram);
+		}
+	}
+
+	/**
+	 * @return every histogram, by name
+	 */
+	public static Map<String,EmailHistogram> getHistograms(){
+		return Collections.unmodifiableMap(histograms);
+	}
+
+	/**
+	 * @return the current value of every counter, by name
+	 */
+	public static Map<String,Long> getCounters(){
+final	Map<String,Long>	values	=	new LinkedHashMap<String,Long>();
+		for (final Counter counter:counters.values()) {
+			values.put(counter.name, counter.count.getAsLong());
+		}
+		return values;
+	}
+
+	/**
+	 * Counts the outcome of a transaction.
+	 *
+	 * @param code the SMTP reply, or {@link EmailSMTPReply#UNKNOWN}
+	 */
+	static void reply(final int code){
+		replies.incrementAndGet(code<0?0:code<replyslot.length && replyslot[code]>0?replyslot[code]:REPLYCODES.length+1);
+	}
+
+	private static EmailHistogram histogram(final String name, final String description, final String unit){
+final	EmailHistogram	histogram	=	new EmailHistogram(name, description, unit);
+		histograms.put(name, histogram);
+		return histogram;
+	}
+
+	private static LongAdder counter(final String name, final String description){
+final	LongAdder		adder		=	new LongAdder();
+		counter(name, description, adder::sum);
+		return adder;
+	}
+
+	private static void counter(final String name, final String description, final LongSupplier count){
+		counters.put(name, new Counter(name, description, count));
+	}
+
+	/**
+	 * The JMX view of a histogram.
+	 */
+	public interface HistogramMXBean {
+		String getName();
+		String getDescription();
+		String getUnit();
+		long getCount();
+		long getSum();
+		long getMax();
+		double getMean();
+		long get50thPercentile();
+		long get90thPercentile();
+		long get99thPercentile();
+		long get999thPercentile();
+	}
+
+	/**
+	 * The JMX view of a counter.
+	 */
+	public interface CounterMXBean {
+		String getName();
+		String getDescription();
+		long getCount();
+	}
+
+	final private static class Counter implements CounterMXBean {
+final	String			name;
+final	String			description;
+final	LongSupplier	count;
+
+		Counter(final String name, final String description, final LongSupplier count){
+			this.name			=	name;
+			this.description	=	description;
+			this.count			=	count;
+		}
+
+		@Override
+		public String getName(){
+			return name;
+		}
+
+		@Override
+		public String getDescription(){
+			return description;
+		}
+
+		@Override
+		public long getCount(){
+			return count.getAsLong();
+		}
+	}
+
+	/**
+	 * Registers each metric as an MXBean of its own, so JConsole etc. can chart any attribute.
+	 */
+	final private static class JMX implements EmailMetricsRegistry {
+
+		@Override
+		public void counter(final String name, final String description, final LongSupplier count){
+			register(name, new Counter(name, description, count));
+		}
+
+		@Override
+		public void histogram(final EmailHistogram histogram){
+			register(histogram.getName(), histogram);
+		}
+
+		private void register(final String name, final Object mbean){
+			try {
+final	MBeanServer		server		=	ManagementFactory.getPlatformMBeanServer();
+final	ObjectName		objectname	=	new ObjectName(DOMAIN+":type=EmailMetrics,name="+name);
+				if (!server.isRegistered(objectname)) {//e.g. already registered by another classloader
+					server.registerMBean(mbean, objectname);
+				}
+			} catch (final Exception e){
+				System.err.println("Unable to register "+name+" with JMX [ERROR]:"+e+" [MSG]:"+e.getMessage());
+			}
+		}
+	}
+}
@@ -0,0 +1,46 @@
+/* com.zacwolf.commons.email.EmailMetricsRegistry.java
+ *
+ * SPI for bridging EmailMetrics to a monitoring system
+ *
+ * Copyright (C) 2021 Zac Morris
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.zacwolf.commons.email;
+
+import java.util.function.LongSupplier;
+
+/**
+ * Is told about every metric once, when it is bound with {@link EmailMetrics#bind(EmailMetricsRegistry)}
+ * or found by the ServiceLoader (listed in <code>META-INF/services/com.zacwolf.commons.email.EmailMetricsRegistry</code>).
+ * The metrics are then read by the monitoring system whenever it likes, so nothing is pushed from the send path.
+ *
+ * @author Zac Morris <zac@zacwolf.com>
+ * @version 1.3
+ * @since Java1.8
+ */
+public interface EmailMetricsRegistry {
+
+	/**
+	 * @param name dot separated, e.g. "recipients.sent" or "smtp.reply.250"
+	 * @param description
+	 * @param count reads the current (monotonically increasing) count
+	 */
+	void counter(String name, String description, LongSupplier count);
+
+	/**
+	 * @param histogram read its count, sum, max and percentiles from
+	 */
+	void histogram(EmailHistogram histogram);
+}
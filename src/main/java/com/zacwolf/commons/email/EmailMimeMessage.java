@@ -0,0 +1,74 @@
+/* com.zacwolf.commons.email.EmailMimeMessage.java
+ *
+ * MimeMessage that notes when, and how much of, it is written to the relay
+ *
+ * Copyright (C) 2021 Zac Morris
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.zacwolf.commons.email;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.internet.MimeMessage;
+
+/**
+ * The Transport only writes the message once the relay has accepted the DATA command, so the time
+ * writeTo() is called splits a transaction into its envelope (MAIL FROM/RCPT TO/DATA) and content phases,
+ * which the SMTP implementation otherwise gives no way of telling apart.
+ *
+ * @author Zac Morris <zac@zacwolf.com>
+ * @version 1.3
+ * @since Java1.8
+ */
+class EmailMimeMessage extends MimeMessage {
+	/** System.nanoTime() when the content started being written, 0 if it hasn't been */
+				long		datastarted;//only touched by the sending thread
+	/** bytes of the message written */
+				long		written;
+
+	EmailMimeMessage(final Session session){
+		super(session);
+	}
+
+	/**
+	 * Forgets any earlier write, before the message is (re)sent.
+	 */
+	void resetWritten(){
+		datastarted	=	0;
+		written		=	0;
+	}
+
+	@Override
+	public void writeTo(final OutputStream os, final String[] ignoreList) throws IOException, MessagingException {
+		datastarted	=	System.nanoTime();
+		super.writeTo(new FilterOutputStream(os){
+			@Override
+			public void write(final int b) throws IOException {
+				out.write(b);
+				written++;
+			}
+
+			@Override
+			public void write(final byte[] b, final int off, final int len) throws IOException {
+				out.write(b, off, len);
+				written+=len;
+			}
+		}, ignoreList);
+	}
+}
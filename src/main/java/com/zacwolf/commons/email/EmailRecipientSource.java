@@ -0,0 +1,148 @@
+/* com.zacwolf.commons.email.EmailRecipientSource.java
+ *
+ * Pull-based source of recipient addresses for very large distributions
+ *
+ * Copyright (C) 2021 Zac Morris
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.zacwolf.commons.email;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Iterator;
+import java.util.function.Supplier;
+
+/**
+ * Rather than holding every recipient in memory, an {@link EmailStreamingDistribution}
+ * pulls them from an EmailRecipientSource one at a time as the _EMAILfactory breaks the
+ * distribution down into chunks.  Each call to {@link #open()} starts again from the
+ * beginning, so the same source can be re-used for another send.
+ *
+ * @author Zac Morris <zac@zacwolf.com>
+ * @version 1.3
+ * @since Java1.8
+ */
+public interface EmailRecipientSource {
+
+	/**
+	 * @return a new cursor positioned before the first recipient
+	 * @throws IOException
+	 */
+	Cursor open() throws IOException;
+
+	/**
+	 * Forward only cursor over the recipients.
+	 */
+	interface Cursor extends Closeable {
+		/**
+		 * @return the next recipient address (RFC822 format, i.e. may include a personal name), or null when there are no more
+		 * @throws IOException
+		 */
+		String next() throws IOException;
+	}
+
+	/**
+	 * A UTF-8 text file with one address per line.  Blank lines and lines starting with # are skipped.
+	 *
+	 * @param file
+	 * @return EmailRecipientSource reading the file
+	 */
+	static EmailRecipientSource fromFile(final File file){
+		return new FileSource(file);
+	}
+
+	/**
+	 * @param supplier called on every {@link #open()} for a fresh iterator over the addresses
+	 * @return EmailRecipientSource backed by the iterator
+	 */
+	static EmailRecipientSource fromIterator(final Supplier<Iterator<String>> supplier){
+		return new EmailRecipientSource(){
+			@Override
+			public Cursor open() throws IOException {
+final	Iterator<String>	iterator	=	supplier.get();
+				return new Cursor(){
+					@Override
+					public String next() throws IOException {
+						return iterator.hasNext()?iterator.next():null;
+					}
+
+					@Override
+					public void close() throws IOException {
+						//nothing to release
+					}
+				};
+			}
+		};
+	}
+
+	final static class FileSource implements EmailRecipientSource, Serializable {
+final	static	private		long	serialVersionUID	=	-1385011462734513329L;
+final			private		File	file;
+
+		FileSource(final File file){
+			this.file	=	file;
+		}
+
+		@Override
+		public Cursor open() throws IOException {
+final	BufferedReader	reader	=	new BufferedReader(new InputStreamReader(Files.newInputStream(file.toPath()), StandardCharsets.UTF_8));
+			return new Cursor(){
+				@Override
+				public String next() throws IOException {
+		String			line;
+					while ((line=reader.readLine())!=null){
+								line	=	line.trim();
+						if (line.length()>0 && !line.startsWith("#")) {
+							return line;
+						}
+					}
+					return null;
+				}
+
+				@Override
+				public void close() throws IOException {
+					reader.close();
+				}
+			};
+		}
+
+		/**
+		 * Sources reading the same file are equal, so that streaming distributions of it are too.
+		 */
+		@Override
+		public boolean equals(final Object obj){
+			if (!(obj instanceof FileSource)) {
+				return false;
+			}
+			return ((FileSource)obj).file.getAbsoluteFile().equals(file.getAbsoluteFile());
+		}
+
+		@Override
+		public int hashCode(){
+			return file.getAbsoluteFile().hashCode();
+		}
+
+		@Override
+		public String toString(){
+			return file.getAbsolutePath();
+		}
+	}
+}
@@ -0,0 +1,204 @@
+/* com.zacwolf.commons.email.EmailRelay.java
+ *
+ * One of the SMTP relays an _EMAILfactory sends through, with its own connection pool and circuit breaker
+ *
+ * Copyright (C) 2021 Zac Morris
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.zacwolf.commons.email;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.mail.MessagingException;
+import javax.mail.Session;
+
+/**
+ * A relay's circuit breaker opens after {@link #DEFAULT_FAILURETHRESHOLD} consecutive failures
+ * (a connection that can't be made, or that drops mid transaction), after which nothing is sent
+ * through it.  Once it has been open for {@link #DEFAULT_OPENINTERVAL} ms the next health check
+ * half-opens it and tries to connect: if that works the breaker closes and the relay is used again,
+ * otherwise it re-opens.  Health checks also try to connect to closed relays, so a relay that has
+ * gone away is noticed before a send has to find out.
+ *
+ * @author Zac Morris <zac@zacwolf.com>
+ * @version 1.3
+ * @since Java1.8
+ */
+public final class EmailRelay {
+final	static	public		int						DEFAULT_FAILURETHRESHOLD	=	5;
+final	static	public		long					DEFAULT_OPENINTERVAL		=	30000L;
+final	static	public		long					DEFAULT_HEALTHINTERVAL		=	10000L;
+
+	public enum State {
+		/** healthy, and being sent through */
+		CLOSED,
+		/** failing, so not being sent through */
+		OPEN,
+		/** being checked, to see if it should be closed again */
+		HALF_OPEN
+	}
+
+final			private		String					host;
+final			private		int						port;
+final			private		String					username;
+final			private		String					password;
+final			private		int						weight;
+final			private		AtomicReference<State>	state				=	new AtomicReference<State>(State.CLOSED);
+final			private		AtomicInteger			failures			=	new AtomicInteger();
+	volatile	private		long					openedat;
+	volatile	private		EmailTransportPool		transportpool;
+
+	/**
+	 * @param host
+	 * @param username may be null if the relay does not require AUTH
+	 * @param password may be null if the relay does not require AUTH
+	 */
+	public EmailRelay(final String host, final String username, final String password){
+		this(host, -1, username, password, 1);
+	}
+
+	/**
+	 * @param host
+	 * @param port or -1 for the default SMTP port
+	 * @param username may be null if the relay does not require AUTH
+	 * @param password may be null if the relay does not require AUTH
+	 * @param weight share of the sends this relay takes relative to the others, at least 1
+	 */
+	public EmailRelay(final String host, final int port, final String username, final String password, final int weight){
+		if (weight<1) {
+			throw new IllegalArgumentException("weight must be at least 1");
+		}
+		this.host		=	host;
+		this.port		=	port;
+		this.username	=	username;
+		this.password	=	password;
+		this.weight		=	weight;
+	}
+
+	/**
+	 * Creates the relay's connection pool, once it has been added to a factory.
+	 *
+	 * @param mailSession
+	 * @param maxsize
+	 */
+	synchronized void open(final Session mailSession, final int maxsize){
+		if (transportpool!=null) {
+			throw new IllegalStateException("Relay "+this+" is already in use by a factory");
+		}
+		transportpool	=	new EmailTransportPool(mailSession, host, port, username, password, maxsize,
+												EmailTransportPool.DEFAULT_MAXIDLE,
+												EmailTransportPool.DEFAULT_KEEPALIVE,
+												EmailTransportPool.DEFAULT_VALIDATEAFTER);
+	}
+
+	/**
+	 * Replaces the connection pool with one of the given size.  Transports borrowed from the
+	 * old pool are closed as they are returned to it.
+	 *
+	 * @param maxsize
+	 */
+	synchronized void resize(final int maxsize){
+final	EmailTransportPool	old		=	transportpool;
+		if (old.getMaxSize()!=maxsize){
+			transportpool	=	old.withMaxSize(maxsize);
+			old.close();
+		}
+	}
+
+	synchronized void close(){
+		if (transportpool!=null) {
+			transportpool.close();
+		}
+	}
+
+	/**
+	 * @return the relay's current connection pool
+	 */
+	EmailTransportPool getTransportPool(){
+		return transportpool;
+	}
+
+	/**
+	 * @return true if the relay can be sent through
+	 */
+	boolean isAvailable(){
+		return state.get()==State.CLOSED;
+	}
+
+	void succeeded(){
+		failures.set(0);
+		state.set(State.CLOSED);
+	}
+
+	void failed(){
+		if (failures.incrementAndGet()>=DEFAULT_FAILURETHRESHOLD || state.get()==State.HALF_OPEN){
+			openedat	=	System.currentTimeMillis();
+			state.set(State.OPEN);
+		}
+	}
+
+	/**
+	 * Tries to connect to a closed relay, or to one whose breaker has been open long enough to be half-opened.
+	 */
+	void check(){
+final	State	current	=	state.get();
+		if (current==State.HALF_OPEN
+			|| current==State.OPEN && (System.currentTimeMillis()-openedat<DEFAULT_OPENINTERVAL || !state.compareAndSet(State.OPEN, State.HALF_OPEN))) {
+			return;
+		}
+		try {
+			transportpool.probe();
+			succeeded();
+		} catch (final MessagingException me){
+			failed();
+		}
+	}
+
+	public String getHost(){
+		return host;
+	}
+
+	public int getPort(){
+		return port;
+	}
+
+	public int getWeight(){
+		return weight;
+	}
+
+	public State getState(){
+		return state.get();
+	}
+
+	/**
+	 * @return number of failures since the relay last succeeded
+	 */
+	public int getConsecutiveFailures(){
+		return failures.get();
+	}
+
+	/**
+	 * @return the adaptive limit on concurrent transactions to this relay, which also counts those in flight
+	 */
+	public EmailConcurrencyLimiter getLimiter(){
+		return transportpool.getLimiter();
+	}
+
+	@Override
+	public String toString(){
+		return host+(port<0?"":":"+port)+" weight:"+weight+" state:"+state.get();
+	}
+}
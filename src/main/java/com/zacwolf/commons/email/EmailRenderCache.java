@@ -0,0 +1,330 @@
+/* com.zacwolf.commons.email.EmailRenderCache.java
+ *
+ * Render-once cache of the fully encoded MIME content of an Email
+ *
+ * Copyright (C) 2021 Zac Morris
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.zacwolf.commons.email;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.Enumeration;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+import javax.activation.DataHandler;
+import javax.activation.DataSource;
+import javax.mail.MessagingException;
+import javax.mail.Multipart;
+import javax.mail.Session;
+import javax.mail.internet.MimeMessage;
+
+/**
+ * When a distribution is broken down into chunks, every chunk carries the exact same
+ * content.  Rather than each chunk calling {@link Email#getAsMultipart()} (which re-parses
+ * the body, re-renders any images, and re-encodes every attachment), the content is
+ * rendered and encoded once, and the resulting bytes are shared read-only by every chunk.
+ *
+ * Entries are held per REFID and keyed by {@link Email#getRenderKey()}, so once a setter
+ * bumps <code>last_changed</code> the next lookup re-renders and replaces the old bytes.
+ *
+ * The content of attachments is not copied into the rendered bytes: only a reference to each
+ * attachment is kept, and its encoded content is streamed from the (byte bounded)
+ * {@link EmailEncodingCache} as the message is written, so a large (e.g. file backed)
+ * attachment is never held here, and the same attachment on many Emails is encoded once.
+ *
+ * @author Zac Morris <zac@zacwolf.com>
+ * @version 1.3
+ * @since Java1.8
+ */
+final class EmailRenderCache {
+final	static	public		int							MAXENTRIES	=	64;
+final	static	private		Map<String,Holder>			cache		=	new LinkedHashMap<String,Holder>(16, 0.75f, true){
+																		private static final long serialVersionUID = 1L;
+																		@Override
+																		protected boolean removeEldestEntry(final Map.Entry<String,Holder> eldest) {
+																			return size()>MAXENTRIES;
+																		}
+																	};
+
+	private EmailRenderCache(){}
+
+	/**
+	 * @param email
+	 * @return the rendered content for the current version of the email
+	 * @throws MessagingException
+	 */
+	static RenderedContent get(final Email email) throws MessagingException {
+	Holder			holder;
+		synchronized(cache){
+						holder		=	cache.get(email.getREFID());
+			if (holder==null){
+						holder		=	new Holder();
+						cache.put(email.getREFID(), holder);
+			}
+		}
+final	String		key			=	email.getRenderKey();
+	RenderedContent	rendered	=	holder.rendered;
+		if (rendered!=null && rendered.key.equals(key)) {
+			return rendered;
+		}
+		//only one chunk renders, the others wait for and share its result
+		synchronized(holder){
+						rendered	=	holder.rendered;
+			if (rendered==null || !rendered.key.equals(key)){
+						rendered	=	render(email, key);
+						holder.rendered	=	rendered;
+			}
+		}
+		return rendered;
+	}
+
+	/**
+	 * @param refid of the Email to drop from the cache
+	 */
+	static void invalidate(final String refid){
+		synchronized(cache){
+			cache.remove(refid);
+		}
+	}
+
+	static void clear(){
+		synchronized(cache){
+			cache.clear();
+		}
+	}
+
+	private static RenderedContent render(final Email email, final String key) throws MessagingException {
+final	Multipart				multipart	=	email.getAsMultipart();
+		//saveChanges() on a throwaway message assigns the transfer encoding of every nested part
+final	MimeMessage				tmp			=	new MimeMessage((Session)null);
+								tmp.setContent(multipart);
+								tmp.saveChanges();
+final	Recorder				recorder	=	new Recorder();
+		try {
+								multipart.writeTo(recorder);
+		} catch (final IOException ioe) {
+			throw new MessagingException("EmailRenderCache.render("+email.getREFID()+") ERR: "+ioe+" MSG:"+ioe.getMessage(), ioe);
+		}
+		return new RenderedContent(key, multipart.getContentType(), recorder);
+	}
+
+	/**
+	 * What the multipart is rendered into.  {@link EmailAttachment#writeTo(OutputStream)} writes just its
+	 * headers to it, and calls {@link #attachment(EmailAttachment, String)} in place of its content.
+	 */
+	final static class Recorder extends ByteArrayOutputStream {
+final	List<Integer>			at			=	new ArrayList<Integer>();
+final	List<EmailAttachment>	attachments	=	new ArrayList<EmailAttachment>();
+final	List<String>			encodings	=	new ArrayList<String>();
+
+		/**
+		 * @param attachment whose content is written here
+		 * @param encoding the content is written in
+		 */
+		synchronized void attachment(final EmailAttachment attachment, final String encoding){
+			at.add(count);
+			attachments.add(attachment);
+			encodings.add(encoding);
+		}
+	}
+
+	final private static class Holder {
+		volatile	RenderedContent		rendered;
+	}
+
+	/**
+	 * Immutable, fully encoded multipart body.  Every write reads the same shared byte array,
+	 * so no copy is made per chunk, with the encoded content of each attachment streamed from
+	 * the {@link EmailEncodingCache} at its offset.
+	 */
+	final static class RenderedContent implements DataSource {
+final	String				key;
+final	String				contenttype;
+/** everything but the content of the attachments; a heap array when rendered, a mapped file when read back from the spool */
+final	ByteBuffer			data;
+/** the offset in data at which each attachment's content goes, in ascending order */
+final	int[]				at;
+final	EmailAttachment[]	attachments;
+final	String[]			encodings;
+
+		/**
+		 * @param key
+		 * @param contenttype
+		 * @param data the whole of the content, attachments included; not copied, so must not be changed afterwards
+		 */
+		RenderedContent(final String key, final String contenttype, final ByteBuffer data){
+			this.key			=	key;
+			this.contenttype	=	contenttype;
+			this.data			=	data.slice();
+			this.at				=	new int[0];
+			this.attachments	=	new EmailAttachment[0];
+			this.encodings		=	new String[0];
+		}
+
+		private RenderedContent(final String key, final String contenttype, final Recorder recorder){
+			this.key			=	key;
+			this.contenttype	=	contenttype;
+			this.data			=	ByteBuffer.wrap(recorder.toByteArray());
+			this.at				=	new int[recorder.at.size()];
+			for (int i=0; i<at.length; i++) {
+				at[i]			=	recorder.at.get(i);
+			}
+			this.attachments	=	recorder.attachments.toArray(new EmailAttachment[0]);
+			this.encodings		=	recorder.encodings.toArray(new String[0]);
+		}
+
+		@Override
+		public String getContentType() {
+			return contenttype;
+		}
+
+		/**
+		 * Writes the content, with the content of each attachment streamed from the {@link EmailEncodingCache}
+		 * (or encoded from its source, if it isn't cached) at its offset.
+		 *
+		 * @param os
+		 * @throws IOException
+		 */
+		void writeTo(final OutputStream os) throws IOException {
+	int						from	=	0;
+			for (int i=0; i<attachments.length; i++){
+				write(os, from, at[i]);
+				try {
+					EmailEncodingCache.writeTo(attachments[i], encodings[i], os);
+				} catch (final MessagingException me) {
+					throw new IOException("Unable to encode attachment "+attachments[i].filename, me);
+				}
+							from	=	at[i];
+			}
+			write(os, from, data.limit());
+		}
+
+		private void write(final OutputStream os, final int from, final int to) throws IOException {
+			if (data.hasArray()){
+				os.write(data.array(), data.arrayOffset()+from, to-from);
+				return;
+			}
+final	ByteBuffer		slice	=	slice(from, to);
+final	byte[]			buf		=	new byte[Math.min(65536, to-from)];
+			while (slice.hasRemaining()){
+final	int				n		=	Math.min(buf.length, slice.remaining());
+				slice.get(buf, 0, n);
+				os.write(buf, 0, n);
+			}
+		}
+
+		/**
+		 * @return a view of data from..to, with its own position
+		 */
+		private ByteBuffer slice(final int from, final int to){
+final	ByteBuffer		slice	=	data.duplicate();
+			slice.limit(to);
+			slice.position(from);
+			return slice;
+		}
+
+		/**
+		 * Each attachment's stream is only opened once the content before it has been read.
+		 */
+		@Override
+		public InputStream getInputStream() throws IOException {
+			if (attachments.length==0) {
+				return new EmailAttachmentSource.BufferInputStream(data.duplicate());
+			}
+			return new SequenceInputStream(new Enumeration<InputStream>(){
+		int				next	=	0;//even for the data before attachment next/2, odd for the attachment
+
+				@Override
+				public boolean hasMoreElements() {
+					return next<=attachments.length*2;
+				}
+
+				@Override
+				public InputStream nextElement() {
+					if (!hasMoreElements()) {
+						throw new NoSuchElementException();
+					}
+final	int				i		=	next/2;
+					if (next++%2==0) {
+						return new EmailAttachmentSource.BufferInputStream(slice(i==0?0:at[i-1], i<at.length?at[i]:data.limit()));
+					}
+					try {
+						return EmailEncodingCache.getInputStream(attachments[i], encodings[i]);
+					} catch (final IOException | MessagingException e) {
+						//Enumeration can't throw, so fail the read instead
+						return new InputStream(){
+							@Override
+							public int read() throws IOException {
+								throw new IOException("Unable to encode attachment "+attachments[i].filename, e);
+							}
+						};
+					}
+				}
+			});
+		}
+
+		@Override
+		public String getName() {
+			return key;
+		}
+
+		@Override
+		public OutputStream getOutputStream() throws IOException {
+			throw new IOException("RenderedContent is read-only");
+		}
+	}
+
+	/**
+	 * MimeMessage whose body is the pre-rendered content.  The default updateHeaders()
+	 * would parse the multipart back apart to update the nested headers, which were
+	 * already finalized when the content was rendered, so only the top level is updated.
+	 */
+	final static class RenderedMimeMessage extends EmailMimeMessage {
+final	RenderedContent		rendered;
+
+		RenderedMimeMessage(final Session session, final RenderedContent rendered) throws MessagingException {
+			super(session);
+			this.rendered	=	rendered;
+			setDataHandler(new DataHandler(rendered){
+				//written straight to the transport, rather than copied through getInputStream()
+				@Override
+				public void writeTo(final OutputStream os) throws IOException {
+					rendered.writeTo(os);
+				}
+			});
+		}
+
+		@Override
+		protected void updateHeaders() throws MessagingException {
+			setHeader("MIME-Version", "1.0");
+			setHeader("Content-Type", rendered.getContentType());
+			removeHeader("Content-Transfer-Encoding");
+			if (getHeader("Date")==null) {
+				setSentDate(new Date());
+			}
+			updateMessageID();
+		}
+	}
+}
@@ -0,0 +1,72 @@
+/* com.zacwolf.commons.email.EmailRetryPolicy.java
+ *
+ * How recipients that failed with a transient (4xx) SMTP reply are retried
+ *
+ * Copyright (C) 2021 Zac Morris
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.zacwolf.commons.email;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Exponential backoff with jitter: the nth retry waits between half and all of
+ * <code>initialdelay*2^(n-1)</code> (capped at <code>maxdelay</code>), so recipients that
+ * failed together (e.g. when the relay was briefly unavailable) don't all come back together.
+ *
+ * @author Zac Morris <zac@zacwolf.com>
+ * @version 1.3
+ * @since Java1.8
+ */
+public final class EmailRetryPolicy {
+final	static	public		int					DEFAULT_MAXRETRIES		=	5;
+final	static	public		long				DEFAULT_INITIALDELAY	=	10000L;
+final	static	public		long				DEFAULT_MAXDELAY		=	600000L;
+final	static	public		EmailRetryPolicy	DEFAULT					=	new EmailRetryPolicy(DEFAULT_MAXRETRIES, DEFAULT_INITIALDELAY, DEFAULT_MAXDELAY);
+final	static	public		EmailRetryPolicy	NONE					=	new EmailRetryPolicy(0, DEFAULT_INITIALDELAY, DEFAULT_MAXDELAY);
+
+final			private		int					maxretries;
+final			private		long				initialdelay;
+final			private		long				maxdelay;
+
+	/**
+	 * @param maxretries times a recipient is retried before it is logged as failed, 0 to never retry
+	 * @param initialdelay milliseconds before the first retry
+	 * @param maxdelay most milliseconds between retries
+	 */
+	public EmailRetryPolicy(final int maxretries, final long initialdelay, final long maxdelay){
+		if (maxretries<0 || initialdelay<1 || maxdelay<initialdelay) {
+			throw new IllegalArgumentException("0<=maxretries and 1<=initialdelay<=maxdelay");
+		}
+		this.maxretries		=	maxretries;
+		this.initialdelay	=	initialdelay;
+		this.maxdelay		=	maxdelay;
+	}
+
+	public int getMaxRetries(){
+		return maxretries;
+	}
+
+	/**
+	 * @param retry 1 for the first retry
+	 * @return nanoseconds to wait before the retry
+	 */
+	long delay(final int retry){
+final	long	ceiling	=	Math.min(maxdelay, initialdelay<<Math.min(retry-1, 20));
+final	long	ms		=	ceiling/2+ThreadLocalRandom.current().nextLong(ceiling/2+1);
+		return TimeUnit.MILLISECONDS.toNanos(ms);
+	}
+}
@@ -0,0 +1,146 @@
+/* com.zacwolf.commons.email.EmailSMTPReply.java
+ *
+ * Helpers for classifying SMTP reply codes
+ *
+ * Copyright (C) 2021 Zac Morris
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.zacwolf.commons.email;
+
+import java.lang.reflect.Method;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.mail.Address;
+import javax.mail.MessagingException;
+import javax.mail.Transport;
+
+/**
+ * JavaMail reports SMTP failures as exceptions, with the reply code only available from the
+ * com.sun.mail.smtp implementation classes (which this project only depends on at runtime),
+ * so the code is read reflectively, falling back to the code at the start of the message.
+ *
+ * @author Zac Morris <zac@zacwolf.com>
+ * @version 1.3
+ * @since Java1.8
+ */
+final class EmailSMTPReply {
+final	static	public		int		OK			=	250;
+final	static	public		int		UNKNOWN		=	-1;
+
+	private EmailSMTPReply(){}
+
+	/**
+	 * @param t the exception, or any exception it wraps, may be null
+	 * @param transport the transport the exception came from, may be null
+	 * @return the SMTP reply code, OK if t is null, or UNKNOWN if no code could be found
+	 */
+	static int code(final Throwable t, final Transport transport){
+		if (t==null) {
+			return OK;
+		}
+		for (Throwable cause=t; cause!=null; cause=next(cause)){
+	int		code	=	invoke(cause, "getReturnCode");
+			if (code>0) {
+				return code;
+			}
+					code	=	parse(cause.getMessage());
+			if (code>0) {
+				return code;
+			}
+		}
+		return transport==null?UNKNOWN:invoke(transport, "getLastReturnCode");
+	}
+
+	/**
+	 * @param t the exception (typically a SendFailedException), or any exception it wraps
+	 * @return the reply code the relay gave to each recipient it rejected individually (to RCPT TO)
+	 */
+	static Map<Address,Integer> recipientCodes(final Throwable t){
+final	Map<Address,Integer>	codes	=	new HashMap<Address,Integer>();
+		for (Throwable cause=t; cause!=null; cause=next(cause)){
+final	Object	address	=	get(cause, "getAddress");
+final	int		code	=	invoke(cause, "getReturnCode");
+			if (address instanceof Address && code>0) {
+				codes.put((Address)address, code);
+			}
+		}
+		return codes;
+	}
+
+	/**
+	 * @param code
+	 * @return true for a 4xx (temporary) failure
+	 */
+	static boolean isTransient(final int code){
+		return code>=400 && code<500;
+	}
+
+	/**
+	 * @param code
+	 * @return true for a 5xx (permanent) failure
+	 */
+	static boolean isPermanent(final int code){
+		return code>=500 && code<600;
+	}
+
+	/**
+	 * @param code
+	 * @return true if the relay is telling us to slow down (service not available, local error in processing, or insufficient storage)
+	 */
+	static boolean isThrottle(final int code){
+		return code==421 || code==450 || code==451 || code==452;
+	}
+
+	private static Throwable next(final Throwable t){
+		if (t instanceof MessagingException && ((MessagingException)t).getNextException()!=null) {
+			return ((MessagingException)t).getNextException();
+		}
+		return t.getCause()==t?null:t.getCause();
+	}
+
+	private static Object get(final Object o, final String method){
+		try {
+			return o.getClass().getMethod(method).invoke(o);
+		} catch (final Exception e) {
+			return null;//not an SMTP implementation class
+		}
+	}
+
+	private static int invoke(final Object o, final String method){
+		try {
+final	Method	m	=	o.getClass().getMethod(method);
+			if (m.getReturnType()==int.class) {
+				return (Integer)m.invoke(o);
+			}
+		} catch (final Exception e) {
+			//not an SMTP implementation class
+		}
+		return UNKNOWN;
+	}
+
+	private static int parse(final String message){
+		if (message==null) {
+			return UNKNOWN;
+		}
+final	String	msg		=	message.trim();
+		if (msg.length()>=3 && Character.isDigit(msg.charAt(0)) && Character.isDigit(msg.charAt(1)) && Character.isDigit(msg.charAt(2))
+			&& (msg.length()==3 || !Character.isDigit(msg.charAt(3)))) {
+final	int		code	=	Integer.parseInt(msg.substring(0, 3));
+			return code>=200 && code<600?code:UNKNOWN;
+		}
+		return UNKNOWN;
+	}
+}
@@ -0,0 +1,231 @@
+/* com.zacwolf.commons.email.EmailSendJournal.java
+ *
+ * Crash-safe, append-only journal of the per-recipient send state of an Email
+ *
+ * Copyright (C) 2021 Zac Morris
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.zacwolf.commons.email;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One journal per Email REFID, held in its own directory as a numbered series of fixed size,
+ * memory-mapped segment files.  Each record is:
+ * <pre>
+ *   short	length of the address (written last, so a record is only visible once complete)
+ *   byte	state (SENT or FAILED)
+ *   byte[]	UTF-8 address
+ * </pre>
+ * A zero length marks the end of the written part of a segment (new segments are zero filled).
+ *
+ * Appending is just a copy into mapped memory, which the OS keeps even if the JVM dies; the
+ * segment is only forced to disk (to survive an OS crash or power loss) every
+ * {@link #DEFAULT_FORCEINTERVAL} ms, on a housekeeping thread, so it never holds up sending.
+ *
+ * @author Zac Morris <zac@zacwolf.com>
+ * @version 1.3
+ * @since Java1.8
+ */
+final class EmailSendJournal implements Closeable {
+final	static	public		byte				SENT					=	1;
+final	static	public		byte				FAILED					=	2;
+final	static	public		int					DEFAULT_SEGMENTSIZE		=	4*1024*1024;
+final	static	public		long				DEFAULT_FORCEINTERVAL	=	200;
+final	static	private		String				SUFFIX					=	".journal";
+final	static	private		int					HEADER					=	3;
+
+final			private		File				dir;
+final			private		int					segmentsize;
+final			private		ScheduledFuture<?>	forcer;
+				private		MappedByteBuffer	segment;
+				private		int					segmentnum;
+	volatile	private		boolean				dirty					=	false;
+				private		boolean				closed					=	false;
+
+	/**
+	 * Receives the replayed records, in the order they were written.
+	 */
+	interface Replay {
+		void record(String address, byte state);
+	}
+
+	/**
+	 * Opens (creating if need be) the journal for the refid, replaying any existing records.
+	 *
+	 * @param basedir directory holding the journals of all Emails
+	 * @param refid of the Email
+	 * @param replay receives the existing records, may be null
+	 * @throws IOException
+	 */
+	EmailSendJournal(final File basedir, final String refid, final Replay replay) throws IOException{
+		this(basedir, refid, replay, DEFAULT_SEGMENTSIZE, DEFAULT_FORCEINTERVAL);
+	}
+
+	EmailSendJournal(final File basedir, final String refid, final Replay replay, final int segmentsize, final long forceinterval) throws IOException{
+		this.dir			=	new File(basedir, toDirName(refid));
+		this.segmentsize	=	segmentsize;
+		if (!dir.isDirectory() && !dir.mkdirs()) {
+			throw new IOException("Unable to create journal directory:"+dir.getAbsolutePath());
+		}
+final	File[]	existing	=	segments(dir);
+		if (existing.length==0) {
+			segmentnum		=	0;
+			segment			=	map(segmentnum);
+		} else {
+			for (final File file:existing) {
+				segmentnum	=	Integer.parseInt(file.getName().substring(0, file.getName().length()-SUFFIX.length()));
+final	long	length		=	file.length();//before map() zero fills it back out to the segment size
+				segment		=	map(segmentnum);
+				replay(segment, replay, (int)Math.min(length, segment.limit()));
+			}
+		}
+		forcer				=	_THREADfactory.getScheduledThreadPool("EMAILjournal", 1).scheduleWithFixedDelay(new Runnable(){
+									@Override
+									public void run() {
+										force();
+									}
+								}, forceinterval, forceinterval, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * @param address
+	 * @param state SENT or FAILED
+	 * @throws IOException
+	 */
+	void append(final String address, final byte state) throws IOException{
+	byte[]	encoded	=	address.getBytes(StandardCharsets.UTF_8);
+		if (encoded.length>Short.MAX_VALUE) {
+				encoded	=	Arrays.copyOf(encoded, Short.MAX_VALUE);
+		}
+		synchronized(this){
+			if (closed) {
+				throw new IOException("Journal is closed:"+dir.getAbsolutePath());
+			}
+			if (segment.remaining()<HEADER+encoded.length+2) {//always leave room for the end marker
+				segment.force();
+				segment		=	map(++segmentnum);
+			}
+final	int		pos		=	segment.position();
+			segment.put(pos+2, state);
+			for (int i=0; i<encoded.length; i++) {
+				segment.put(pos+HEADER+i, encoded[i]);
+			}
+			segment.putShort(pos, (short)encoded.length);
+			segment.position(pos+HEADER+encoded.length);
+		}
+		dirty	=	true;
+	}
+
+	/**
+	 * Forces any records written since the last force to the storage device.
+	 */
+	void force(){
+		if (dirty){
+			dirty	=	false;
+			synchronized(this){
+				if (!closed) {
+					segment.force();
+				}
+			}
+		}
+	}
+
+	@Override
+	public synchronized void close(){
+		if (!closed){
+			forcer.cancel(false);
+			segment.force();
+			closed	=	true;
+		}
+	}
+
+	/**
+	 * Closes the journal and deletes its files, for when the Email will not be re-sent.
+	 */
+	void delete(){
+		close();
+		for (final File file:segments(dir)) {
+			file.delete();
+		}
+		dir.delete();
+	}
+
+	private MappedByteBuffer map(final int num) throws IOException{
+		try (final FileChannel channel = FileChannel.open(new File(dir, String.format("%08d", num)+SUFFIX).toPath(),
+															StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)){
+			//the mapping stays valid after the channel is closed
+			return channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(segmentsize, channel.size()));
+		}
+	}
+
+	/**
+	 * Replays the segment's records, leaving its position at the end of them.  A segment that was
+	 * truncated (e.g. by a copy or a full disk) can end part way through a record, so only records
+	 * wholly within <code>length</code> are replayed, and the header of any partial record after them
+	 * is cleared so it can't be mistaken for a complete one once the next append lands on top of it.
+	 *
+	 * @param segment
+	 * @param replay may be null
+	 * @param length of the segment's file as found
+	 */
+	private static void replay(final MappedByteBuffer segment, final Replay replay, final int length){
+	int		pos		=	0;
+		while (pos+HEADER<=length){
+final	int		size	=	segment.getShort(pos);
+			if (size<=0 || pos+HEADER+size>length) {
+				break;
+			}
+			if (replay!=null){
+final	byte[]	encoded	=	new byte[size];
+				for (int i=0; i<size; i++) {
+						encoded[i]	=	segment.get(pos+HEADER+i);
+				}
+				replay.record(new String(encoded, StandardCharsets.UTF_8), segment.get(pos+2));
+			}
+				pos		+=	HEADER+size;
+		}
+		if (pos+2<=segment.limit()) {
+			segment.putShort(pos, (short)0);
+		}
+		segment.position(pos);
+	}
+
+	private static File[] segments(final File dir){
+final	File[]	files	=	dir.listFiles((d, name) -> name.endsWith(SUFFIX));
+		if (files==null) {
+			return new File[0];
+		}
+		Arrays.sort(files);//names are zero padded, so this is numeric order
+		return files;
+	}
+
+	private static String toDirName(final String refid){
+final	StringBuilder	name	=	new StringBuilder(refid.length());
+		for (final char c:refid.toCharArray()) {
+			name.append(Character.isLetterOrDigit(c) || c=='-' || c=='_' || c=='.'?c:'_');
+		}
+		return name.toString()+"_"+Integer.toHexString(refid.hashCode());
+	}
+}
@@ -19,28 +19,177 @@
  */
 package com.zacwolf.commons.email;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.ObjectInputStream;
 import java.io.Serializable;
-import java.util.HashSet;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
 
 /**
+ * Every sending thread checks the log once per CC/BCC recipient and records every recipient
+ * it sends to, so neither operation takes a lock: recipients go into a concurrent set, and
+ * lookups never block.
+ *
+ * Once a send has completed the log can be {@link #compact() compacted}, which moves the
+ * recipients into a single sorted, packed UTF-8 array that is searched with a binary search.
+ * An optional bloom filter ({@link #enableFilter(int, double)}) answers most lookups for
+ * recipients that have NOT been sent to without touching either structure.
+ *
  * @author Zac Morris <zac@zacwolf.com>
  * @version 1.3
  * @since Java1.8
  */
 public class EmailSendLog implements Serializable {
 final	static	private		long 			serialVersionUID	=	-4795866199500575188L;
-final			private		Set<String>		emailSentTo			=	new HashSet<String>();
-final			private		StringBuilder	errors				=	new StringBuilder();
+final	static	public		double			DEFAULT_FPP			=	0.01d;
+
+				private		Set<String>		emailSentTo			=	ConcurrentHashMap.newKeySet();
+				private		Set<String>		emailFailedTo		=	ConcurrentHashMap.newKeySet();
+	volatile	private		Compacted		compacted			=	Compacted.EMPTY;
+	volatile	private		Filter			filter				=	null;
+	volatile	private		boolean			filterready			=	false;
+				private		StringBuilder	errors				=	new StringBuilder();
+	transient volatile	private		EmailSendJournal	journal;
+
+	void logSentTo(final String emailaddress){
+		remember(emailaddress);
+		journal(emailaddress, EmailSendJournal.SENT);
+	}
+
+	/**
+	 * Records a recipient that was rejected (e.g. an invalid address), so it is not reported as sent.
+	 *
+	 * @param emailaddress
+	 */
+	void logFailedTo(final String emailaddress){
+		emailFailedTo.add(emailaddress);
+		journal(emailaddress, EmailSendJournal.FAILED);
+	}
 
-	synchronized void logSentTo(final String emailaddress){
+	/**
+	 * Attaches the journal, first replaying its existing records into this log.
+	 *
+	 * @param basedir
+	 * @param refid
+	 * @throws IOException
+	 */
+	synchronized void openJournal(final File basedir, final String refid) throws IOException{
+		if (journal==null){
+			journal	=	new EmailSendJournal(basedir, refid, new EmailSendJournal.Replay(){
+							@Override
+							public void record(final String address, final byte state) {
+								if (state==EmailSendJournal.SENT) {
+									emailFailedTo.remove(address);
+									remember(address);
+								} else {
+									emailFailedTo.add(address);
+								}
+							}
+						});
+		}
+	}
+
+	/**
+	 * Detaches and closes the journal, if there is one.
+	 *
+	 * @param delete true to also delete the journal's files
+	 */
+	synchronized void closeJournal(final boolean delete){
+		if (journal!=null){
+			if (delete) {
+				journal.delete();
+			} else {
+				journal.close();
+			}
+			journal	=	null;
+		}
+	}
+
+	private void remember(final String emailaddress){
 		emailSentTo.add(emailaddress);
+		//added to the set before the filter, see enableFilter()
+final	Filter	f	=	filter;
+		if (f!=null) {
+			f.add(emailaddress);
+		}
+	}
+
+	private void journal(final String emailaddress, final byte state){
+final	EmailSendJournal	j	=	journal;
+		if (j!=null){
+			try {
+				j.append(emailaddress, state);
+			} catch (final IOException ioe){
+				logError(ioe);
+			}
+		}
 	}
 
 	boolean alreadySentTo(final String emailaddress){
-		synchronized(emailSentTo){
-			return emailSentTo.contains(emailaddress);
+final	Filter	f	=	filter;
+		if (f!=null && filterready && !f.mightContain(emailaddress)) {
+			return false;
+		}
+		//the live set has to be checked before the compacted array, as compact() only
+		//removes entries from the live set after the new array has been published
+		return emailSentTo.contains(emailaddress) || compacted.contains(emailaddress);
+	}
+
+	/**
+	 * @return number of recipients logged as sent to
+	 */
+	public int getSentCount(){
+		return emailSentTo.size()+compacted.size();
+	}
+
+	/**
+	 * @return number of recipients logged as failed
+	 */
+	public int getFailedCount(){
+		return emailFailedTo.size();
+	}
+
+	/**
+	 * Adds a bloom filter in front of the lookups, sized for the expected number of recipients.
+	 * The filter is first used once it has been populated with any recipients already logged.
+	 *
+	 * @param expected number of recipients
+	 * @param fpp false positive probability, between 0 and 1 (exclusive)
+	 */
+	public synchronized void enableFilter(final int expected, final double fpp){
+		if (fpp<=0d || fpp>=1d) {
+			throw new IllegalArgumentException("fpp must be between 0 and 1");
 		}
+final	Filter	f	=	new Filter(Math.max(expected, getSentCount()), fpp);
+		filterready	=	false;
+		//publish first, so anything logged from here on adds itself to the filter, and
+		//anything logged before is picked up below
+		filter		=	f;
+		for (final String address:emailSentTo) {
+			f.add(address);
+		}
+		compacted.addTo(f);
+		filterready	=	true;
+	}
+
+	/**
+	 * Freezes the recipients logged so far into a sorted, memory compact array.  Recipients
+	 * can still be logged afterwards, and are added to the array on the next compaction.
+	 */
+	public synchronized void compact(){
+		if (emailSentTo.isEmpty()) {
+			return;
+		}
+final	List<String>	snapshot	=	new ArrayList<String>(emailSentTo);
+		compacted					=	compacted.merge(snapshot);
+		emailSentTo.removeAll(snapshot);
 	}
 
 	void logError(final String error){
@@ -60,4 +209,177 @@ final			private		StringBuilder	errors				=	new StringBuilder();
 			return errors.toString();
 		}
 	}
+
+	/**
+	 * Logs serialized before the log was made lock-free hold emailSentTo as a HashSet, and have none
+	 * of the other fields, so (as field initializers aren't run) every field is restored here, and
+	 * the recipients copied into a concurrent set.
+	 *
+	 * @param in
+	 * @throws IOException
+	 * @throws ClassNotFoundException
+	 */
+	@SuppressWarnings("unchecked")
+	private void readObject(final ObjectInputStream in) throws IOException, ClassNotFoundException{
+final	ObjectInputStream.GetField	fields	=	in.readFields();
+final	Set<String>					sent	=	(Set<String>)fields.get("emailSentTo", null);
+final	Set<String>					failed	=	(Set<String>)fields.get("emailFailedTo", null);
+final	Compacted					c		=	(Compacted)fields.get("compacted", null);
+final	StringBuilder				e		=	(StringBuilder)fields.get("errors", null);
+						emailSentTo		=	ConcurrentHashMap.newKeySet();
+						emailFailedTo	=	ConcurrentHashMap.newKeySet();
+		if (sent!=null) {
+						emailSentTo.addAll(sent);
+		}
+		if (failed!=null) {
+						emailFailedTo.addAll(failed);
+		}
+						compacted		=	c==null?Compacted.EMPTY:c;
+						filter			=	(Filter)fields.get("filter", null);
+						filterready		=	filter!=null && fields.get("filterready", false);
+						errors			=	e==null?new StringBuilder():e;
+	}
+
+	/**
+	 * Sorted addresses packed end to end as UTF-8, with the start of each in offsets.
+	 */
+	final static class Compacted implements Serializable {
+final	static	private		long		serialVersionUID	=	6139950263516208814L;
+final	static				Compacted	EMPTY				=	new Compacted(new byte[0], new int[1]);
+
+final			private		byte[]		bytes;
+final			private		int[]		offsets;
+
+		private Compacted(final byte[] bytes, final int[] offsets){
+			this.bytes		=	bytes;
+			this.offsets	=	offsets;
+		}
+
+		int size(){
+			return offsets.length-1;
+		}
+
+		boolean contains(final String address){
+			if (size()==0) {
+				return false;
+			}
+final	byte[]	key		=	address.getBytes(StandardCharsets.UTF_8);
+		int		low		=	0;
+		int		high	=	size()-1;
+			while (low<=high){
+final	int		mid		=	(low+high)>>>1;
+final	int		cmp		=	compare(bytes, offsets[mid], offsets[mid+1], key, 0, key.length);
+				if (cmp<0) {
+						low		=	mid+1;
+				} else if (cmp>0) {
+						high	=	mid-1;
+				} else {
+					return true;
+				}
+			}
+			return false;
+		}
+
+		void addTo(final Filter f){
+			for (int i=0; i<size(); i++) {
+				f.add(new String(bytes, offsets[i], offsets[i+1]-offsets[i], StandardCharsets.UTF_8));
+			}
+		}
+
+		Compacted merge(final List<String> addresses){
+final	List<byte[]>	all		=	new ArrayList<byte[]>(size()+addresses.size());
+			for (int i=0; i<size(); i++) {
+						all.add(Arrays.copyOfRange(bytes, offsets[i], offsets[i+1]));
+			}
+			for (final String address:addresses) {
+						all.add(address.getBytes(StandardCharsets.UTF_8));
+			}
+			Collections.sort(all, (a, b) -> compare(a, 0, a.length, b, 0, b.length));
+	int					length	=	0;
+			for (final byte[] entry:all) {
+						length	+=	entry.length;
+			}
+final	byte[]			packed	=	new byte[length];
+final	int[]			starts	=	new int[all.size()+1];
+	int					count	=	0;
+	int					pos		=	0;
+			for (final byte[] entry:all){
+				if (count>0 && compare(packed, starts[count-1], pos, entry, 0, entry.length)==0) {
+					continue;//already in the array
+				}
+				System.arraycopy(entry, 0, packed, pos, entry.length);
+						starts[count++]	=	pos;
+						pos		+=	entry.length;
+			}
+						starts[count]	=	pos;
+			return new Compacted(Arrays.copyOf(packed, pos), Arrays.copyOf(starts, count+1));
+		}
+
+		private static int compare(final byte[] a, final int astart, final int aend, final byte[] b, final int bstart, final int bend){
+final	int		alen	=	aend-astart;
+final	int		blen	=	bend-bstart;
+final	int		len		=	Math.min(alen, blen);
+			for (int i=0; i<len; i++){
+final	int		cmp		=	(a[astart+i]&0xff)-(b[bstart+i]&0xff);
+				if (cmp!=0) {
+					return cmp;
+				}
+			}
+			return alen-blen;
+		}
+	}
+
+	/**
+	 * Lock free bloom filter, using double hashing to derive the k bit positions.
+	 */
+	final static class Filter implements Serializable {
+final	static	private		long			serialVersionUID	=	-702195263604051577L;
+
+final			private		AtomicLongArray	bits;
+final			private		long			nbits;
+final			private		int				k;
+
+		Filter(final int expected, final double fpp){
+final	long	n		=	Math.max(expected, 64);
+final	long	m		=	(long)Math.ceil(-n*Math.log(fpp)/(Math.log(2)*Math.log(2)));
+			bits		=	new AtomicLongArray((int)Math.min((m+63)>>>6, Integer.MAX_VALUE));
+			nbits		=	bits.length()*64L;
+			k			=	Math.max(1, (int)Math.round((double)m/n*Math.log(2)));
+		}
+
+		void add(final String address){
+final	long	h1		=	address.hashCode();
+final	long	h2		=	mix(h1);
+			for (int i=0; i<k; i++){
+final	long	bit		=	((h1+i*h2)&Long.MAX_VALUE)%nbits;
+final	int		word	=	(int)(bit>>>6);
+final	long	mask	=	1L<<bit;
+		long	current;
+				while (((current=bits.get(word))&mask)==0 && !bits.compareAndSet(word, current, current|mask)) {
+					//retry
+				}
+			}
+		}
+
+		boolean mightContain(final String address){
+final	long	h1		=	address.hashCode();
+final	long	h2		=	mix(h1);
+			for (int i=0; i<k; i++){
+final	long	bit		=	((h1+i*h2)&Long.MAX_VALUE)%nbits;
+				if ((bits.get((int)(bit>>>6))&(1L<<bit))==0) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		private static long mix(long h){
+			h	^=	h>>>33;
+			h	*=	0xff51afd7ed558ccdL;
+			h	^=	h>>>33;
+			h	*=	0xc4ceb9fe1a85ec53L;
+			h	^=	h>>>33;
+			return h|1;//odd, so successive probes never repeat
+		}
+	}
 }
@@ -0,0 +1,687 @@
+/* com.zacwolf.commons.email.EmailSpool.java
+ *
+ * Persistent, disk-backed queue of outbound send jobs
+ *
+ * Copyright (C) 2021 Zac Morris
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.zacwolf.commons.email;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.mail.Address;
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.internet.AddressException;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeMessage;
+
+/**
+ * Sits between the API and the SMTP workers, so that neither queued chunks nor the Emails
+ * (and attachments) they reference have to be held in heap until a worker gets to them.
+ *
+ * Jobs are appended sequentially to numbered segment files, each record being an int length
+ * followed by the serialized job.  The rendered content of each Email version is written just
+ * once, to the <code>content</code> sub-directory, and jobs only reference it by name; it is
+ * memory-mapped when the jobs are sent, so it doesn't take up heap however large it is.
+ * Workers read the segments back with positional reads, and the position of the oldest job that
+ * has not yet been {@link #ack(SpooledJob) acknowledged} is checkpointed, so after a restart
+ * any job that was queued, or taken but not finished, is delivered again (the send journal,
+ * if enabled, then skips any recipients that had already been sent to).
+ *
+ * @author Zac Morris <zac@zacwolf.com>
+ * @version 1.3
+ * @since Java1.8
+ */
+final class EmailSpool implements Closeable {
+final	static	public		int							DEFAULT_SEGMENTSIZE		=	64*1024*1024;
+final	static	public		long						DEFAULT_FORCEINTERVAL	=	200;
+final	static	private		String						SUFFIX					=	".spool";
+final	static	private		String						CHECKPOINT				=	"spool.checkpoint";
+/** total size of the content files kept mapped */
+final	static	private		long						CONTENTCACHE			=	256L*1024L*1024L;
+
+final			private		File						dir;
+final			private		File						contentdir;
+final			private		int							segmentsize;
+final			private		ReentrantLock				lock					=	new ReentrantLock();
+final			private		Condition					notEmpty				=	lock.newCondition();
+final			private		TreeSet<Long>				inflight				=	new TreeSet<Long>();
+final			private		Set<String>					written					=	new HashSet<String>();
+final			private		Map<String,EmailRenderCache.RenderedContent>	contents	=	new LinkedHashMap<String,EmailRenderCache.RenderedContent>(16, 0.75f, true);
+				private		long						contentbytes			=	0;
+final			private		RandomAccessFile			checkpoint;
+final			private		ScheduledFuture<?>			forcer;
+				private		FileChannel					writer;
+				private		int							writeseg;
+				private		int							writeoff;
+				private		FileChannel					reader;
+				private		int							readseg;
+				private		int							readoff;
+	volatile	private		boolean						dirty					=	false;
+				private		boolean						closed					=	false;
+
+	/**
+	 * Opens (creating if need be) the spool, carrying on from its last checkpoint.
+	 *
+	 * @param dir
+	 * @throws IOException
+	 */
+	EmailSpool(final File dir) throws IOException{
+		this(dir, DEFAULT_SEGMENTSIZE, DEFAULT_FORCEINTERVAL);
+	}
+
+	EmailSpool(final File dir, final int segmentsize, final long forceinterval) throws IOException{
+		this.dir			=	dir;
+		this.contentdir		=	new File(dir, "content");
+		this.segmentsize	=	segmentsize;
+		if (!contentdir.isDirectory() && !contentdir.mkdirs()) {
+			throw new IOException("Unable to create spool directory:"+contentdir.getAbsolutePath());
+		}
+		checkpoint			=	new RandomAccessFile(new File(dir, CHECKPOINT), "rw");
+		if (checkpoint.length()>=12){
+			readseg			=	checkpoint.readInt();
+			readoff			=	(int)checkpoint.readLong();
+		}
+final	File[]	existing	=	segments();
+		if (existing.length==0) {
+			writeseg		=	readseg;
+		} else {
+			writeseg		=	number(existing[existing.length-1]);
+			if (readseg<number(existing[0])) {//checkpoint predates the oldest remaining segment
+				readseg		=	number(existing[0]);
+				readoff		=	0;
+			}
+		}
+		writer				=	openWriter(writeseg);
+		writeoff			=	recover(writer);
+		if (readseg>writeseg || (readseg==writeseg && readoff>writeoff)) {//the tail was lost before it reached the disk
+			readseg			=	writeseg;
+			readoff			=	writeoff;
+		}
+		for (final File file:contentdir.listFiles()) {
+			written.add(file.getName());
+		}
+		forcer				=	_THREADfactory.getScheduledThreadPool("EMAILjournal", 1).scheduleWithFixedDelay(new Runnable(){
+									@Override
+									public void run() {
+										force();
+									}
+								}, forceinterval, forceinterval, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Appends the chunk to the spool.  The chunk's Email is not referenced once this returns.
+	 *
+	 * @param chunk (not a mail-merge chunk, those are personalized per recipient so are not spooled)
+	 * @param sendid identifies the send the chunk is part of, so the job read back can be matched to it
+	 * @throws IOException
+	 * @throws MessagingException
+	 */
+	void offer(final EmailChunk chunk, final String sendid) throws IOException, MessagingException{
+final	EmailRenderCache.RenderedContent	content	=	EmailRenderCache.get(chunk.email);
+final	String					name		=	contentName(content.key);
+final	ByteArrayOutputStream	baos		=	new ByteArrayOutputStream(1024);
+final	DataOutputStream		out			=	new DataOutputStream(baos);
+								out.writeUTF(chunk.email.getREFID());
+								out.writeUTF(name);
+								writeString(out, chunk.email.getName());
+								writeString(out, chunk.email.getSubject());
+								writeString(out, chunk.from.toString());
+								writeAddresses(out, chunk.addressTO);
+								writeAddresses(out, chunk.addressCC);
+								writeAddresses(out, chunk.addressBCC);
+								writeString(out, sendid);//last, so records spooled before it was added still read
+								out.flush();
+		lock.lock();
+		try {
+			if (closed) {
+				throw new IOException("Spool is closed:"+dir.getAbsolutePath());
+			}
+			if (!written.contains(name)){
+				writeContent(name, content);
+				written.add(name);
+			}
+			if (writeoff>0 && writeoff+4+baos.size()>segmentsize){
+				writer.force(false);
+				writer.close();
+				writer		=	openWriter(++writeseg);
+				writeoff	=	0;
+			}
+final	ByteBuffer				record		=	ByteBuffer.allocate(4+baos.size());
+								record.putInt(baos.size());
+								record.put(baos.toByteArray());
+								record.flip();
+			while (record.hasRemaining()) {
+				writeoff	+=	writer.write(record, writeoff);
+			}
+			dirty			=	true;
+			notEmpty.signal();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Blocks until a job is available.  The job must be {@link #ack(SpooledJob) acknowledged}
+	 * once it has been sent, or it will be delivered again after a restart.
+	 *
+	 * @return the oldest job not yet taken
+	 * @throws InterruptedException
+	 * @throws IOException
+	 */
+	SpooledJob take() throws InterruptedException, IOException{
+		lock.lock();
+		try {
+	SpooledJob	job;
+			while ((job=next())==null) {
+				notEmpty.await();
+			}
+			return job;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return the oldest job not yet taken, or null if there isn't one
+	 * @throws IOException
+	 */
+	SpooledJob poll() throws IOException{
+		lock.lock();
+		try {
+			return next();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Called as each part of a job is completed, acknowledging the job once every part of it has been.
+	 *
+	 * @param job
+	 */
+	void done(final SpooledJob job){
+		if (job.parts.decrementAndGet()==0){
+			try {
+				ack(job);
+			} catch (final IOException ioe){
+				ioe.printStackTrace();//the job is delivered again after a restart
+			}
+			if (job.delivery!=null) {
+				job.delivery.done();
+			}
+			if (job.whenDone!=null) {
+				job.whenDone.run();
+			}
+		}
+	}
+
+	/**
+	 * Marks the job as done, advancing the checkpoint past it if it was the oldest outstanding job.
+	 *
+	 * @param job
+	 * @throws IOException
+	 */
+	void ack(final SpooledJob job) throws IOException{
+		lock.lock();
+		try {
+			inflight.remove(job.position);
+			if (closed) {
+				return;
+			}
+final	long	oldest	=	inflight.isEmpty()?position(readseg, readoff):inflight.first();
+final	int		seg		=	(int)(oldest>>>32);
+			checkpoint.seek(0);
+			checkpoint.writeInt(seg);
+			checkpoint.writeLong(oldest&0xffffffffL);
+			for (final File file:segments()) {
+				if (number(file)<seg) {
+					file.delete();
+				}
+			}
+			if (inflight.isEmpty() && readseg==writeseg && readoff>=writeoff){
+				//drained, so no remaining job references any of the content
+				for (final File file:contentdir.listFiles()) {
+					file.delete();
+				}
+				written.clear();
+				contents.clear();
+				contentbytes	=	0;
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return true if there are jobs that have not yet been taken
+	 */
+	boolean hasPending(){
+		lock.lock();
+		try {
+			return readseg<writeseg || readoff<writeoff;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Forces anything written since the last force to the storage device.
+	 */
+	void force(){
+		if (dirty){
+			dirty	=	false;
+			lock.lock();
+			try {
+				if (!closed) {
+					writer.force(false);
+				}
+			} catch (final IOException ioe){
+				//retried on the next interval
+				dirty	=	true;
+			} finally {
+				lock.unlock();
+			}
+		}
+	}
+
+	@Override
+	public void close() throws IOException{
+		lock.lock();
+		try {
+			if (!closed){
+				closed	=	true;
+				forcer.cancel(false);
+				writer.force(false);
+				writer.close();
+				if (reader!=null) {
+					reader.close();
+				}
+				checkpoint.close();
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Must be called holding the lock.
+	 */
+	private SpooledJob next() throws IOException{
+		if (closed) {
+			throw new IOException("Spool is closed:"+dir.getAbsolutePath());
+		}
+		while (true){
+final	int		end		=	readseg==writeseg?writeoff:(int)segmentFile(readseg).length();
+			if (readoff>=end){
+				if (readseg==writeseg) {
+					return null;
+				}
+				readseg++;
+				readoff		=	0;
+				if (reader!=null){
+					reader.close();
+					reader	=	null;
+				}
+				continue;
+			}
+			//read rather than mapped, as the segment being written keeps growing, and a mapping
+			//can't be unmapped (so re-mapping as it grew would hold every mapping until GC)
+			if (reader==null) {
+				reader		=	FileChannel.open(segmentFile(readseg).toPath(), StandardOpenOption.READ);
+			}
+final	ByteBuffer	header	=	ByteBuffer.allocate(4);
+			readFully(reader, header, readoff);
+final	byte[]	record	=	new byte[header.getInt(0)];
+			readFully(reader, ByteBuffer.wrap(record), readoff+4);
+final	long	position	=	position(readseg, readoff);
+			readoff			+=	4+record.length;
+			inflight.add(position);
+			return new SpooledJob(this, position, record);
+		}
+	}
+
+	private static void readFully(final FileChannel channel, final ByteBuffer buf, final long position) throws IOException{
+		while (buf.hasRemaining()){
+			if (channel.read(buf, position+buf.position())<0) {
+				throw new EOFException("Spool segment ended part way through a record");
+			}
+		}
+	}
+
+	/**
+	 * Truncates any partially written record left at the end of the segment by a crash.
+	 *
+	 * @return offset of the end of the last complete record
+	 */
+	private static int recover(final FileChannel channel) throws IOException{
+final	long		size	=	channel.size();
+	int				pos		=	0;
+final	ByteBuffer	header	=	ByteBuffer.allocate(4);
+		while (pos+4<=size){
+			header.clear();
+			channel.read(header, pos);
+final	int			length	=	header.getInt(0);
+			if (length<=0 || pos+4L+length>size) {
+				break;
+			}
+			pos		+=	4+length;
+		}
+		if (pos<size) {
+			channel.truncate(pos);
+		}
+		return pos;
+	}
+
+	/**
+	 * The content file is mapped rather than read, so it's never copied onto the heap, and the
+	 * most recently used mappings are kept (up to {@link #CONTENTCACHE} bytes) for the jobs after.
+	 *
+	 * @param name
+	 * @return
+	 * @throws IOException
+	 */
+	EmailRenderCache.RenderedContent content(final String name) throws IOException{
+		lock.lock();
+		try {
+	EmailRenderCache.RenderedContent	content	=	contents.get(name);
+			if (content==null){
+				try (final RandomAccessFile in = new RandomAccessFile(new File(contentdir, name), "r")){
+final	String		contenttype	=	in.readUTF();
+final	long		length		=	in.readLong();
+					content		=	new EmailRenderCache.RenderedContent(name, contenttype, in.getChannel().map(FileChannel.MapMode.READ_ONLY, in.getFilePointer(), length));
+				}
+				contents.put(name, content);
+				contentbytes	+=	content.data.limit();
+final	Iterator<EmailRenderCache.RenderedContent>	lru	=	contents.values().iterator();
+				while (contentbytes>CONTENTCACHE && contents.size()>1){//the mapping is released once its jobs are done with it
+				contentbytes	-=	lru.next().data.limit();
+					lru.remove();
+				}
+			}
+			return content;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @param name
+	 * @param content
+	 * @throws IOException if the content can't be written, or is over 2GB (so couldn't be mapped back)
+	 */
+	private void writeContent(final String name, final EmailRenderCache.RenderedContent content) throws IOException{
+final	File	tmp		=	new File(contentdir, name+".tmp");
+		try {
+			try (final RandomAccessFile out = new RandomAccessFile(tmp, "rw")){
+				out.setLength(0);
+				out.writeUTF(content.getContentType());
+final	long	lengthat	=	out.getFilePointer();
+				out.writeLong(0);
+final	OutputStream	os	=	new BufferedOutputStream(Channels.newOutputStream(out.getChannel()), 65536);
+				content.writeTo(os);//streams the attachments from the EmailEncodingCache
+				os.flush();
+final	long	length		=	out.getFilePointer()-lengthat-8;
+				if (length>Integer.MAX_VALUE) {
+					throw new IOException("Content "+name+" is over 2GB, so can't be spooled");
+				}
+				out.seek(lengthat);
+				out.writeLong(length);
+			}
+			Files.move(tmp.toPath(), new File(contentdir, name).toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} finally {
+			Files.deleteIfExists(tmp.toPath());
+		}
+	}
+
+	private FileChannel openWriter(final int num) throws IOException{
+		return FileChannel.open(segmentFile(num).toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+	}
+
+	private File segmentFile(final int num){
+		return new File(dir, String.format("%08d", num)+SUFFIX);
+	}
+
+	private File[] segments(){
+final	File[]	files	=	dir.listFiles((d, name) -> name.endsWith(SUFFIX));
+		if (files==null) {
+			return new File[0];
+		}
+		Arrays.sort(files);//names are zero padded, so this is numeric order
+		return files;
+	}
+
+	private static int number(final File segment){
+		return Integer.parseInt(segment.getName().substring(0, segment.getName().length()-SUFFIX.length()));
+	}
+
+	private static long position(final int segment, final int offset){
+		return ((long)segment<<32)|(offset&0xffffffffL);
+	}
+
+	private static String contentName(final String key){
+		try {
+final	byte[]			digest	=	MessageDigest.getInstance("SHA-256").digest(key.getBytes(StandardCharsets.UTF_8));
+final	StringBuilder	hex		=	new StringBuilder(digest.length*2);
+			for (final byte b:digest) {
+				hex.append(String.format("%02x", b));
+			}
+			return hex.toString();
+		} catch (final NoSuchAlgorithmException nsae) {
+			throw new IllegalStateException(nsae);//SHA-256 is always available
+		}
+	}
+
+	private static void writeString(final DataOutputStream out, final String value) throws IOException{
+		out.writeBoolean(value!=null);
+		if (value!=null) {
+			out.writeUTF(value);
+		}
+	}
+
+	private static String readString(final DataInputStream in) throws IOException{
+		return in.readBoolean()?in.readUTF():null;
+	}
+
+	private static void writeAddresses(final DataOutputStream out, final Address[] addresses) throws IOException{
+		out.writeInt(addresses==null?0:addresses.length);
+		if (addresses!=null) {
+			for (final Address addr:addresses) {
+				out.writeUTF(addr.toString());
+			}
+		}
+	}
+
+	private static Address[] readAddresses(final DataInputStream in) throws IOException{
+final	Address[]	addresses	=	new InternetAddress[in.readInt()];
+		for (int i=0; i<addresses.length; i++){
+			try {
+				addresses[i]	=	new InternetAddress(in.readUTF(), false);
+			} catch (final AddressException ae){
+				throw new IOException(ae);
+			}
+		}
+		return addresses;
+	}
+
+	/**
+	 * A job read back from the spool.  Its send log is supplied by the factory, from the Email of
+	 * the send it is part of (identified by its sendid) if that is still in progress, or a (journal
+	 * backed) log of its own after a restart, as is its delivery.  The factory's whenDone is run once
+	 * every part of the job is completed, so it can release what it holds for the send.
+	 */
+	final static class SpooledJob implements EmailJob {
+final			EmailSpool		spool;
+final			long			position;
+final			String			refid;
+final			String			sendid;
+final			String			contentname;
+final			String			name;
+final			String			subject;
+final			String			from;
+final			Address[]		addressTO;
+final			Address[]		addressCC;
+final			Address[]		addressBCC;
+final			AtomicInteger	parts;
+	volatile	EmailSendLog	sendlog;
+	volatile	EmailDelivery	delivery;
+	volatile	Runnable		whenDone;
+final			int				retries;
+
+		private SpooledJob(final EmailSpool spool, final long position, final byte[] record) throws IOException{
+final	DataInputStream	in	=	new DataInputStream(new ByteArrayInputStream(record));
+			this.spool		=	spool;
+			this.position	=	position;
+			parts			=	new AtomicInteger(1);
+			retries			=	0;
+			refid			=	in.readUTF();
+			contentname		=	in.readUTF();
+			name			=	readString(in);
+			subject			=	readString(in);
+			from			=	readString(in);
+			addressTO		=	readAddresses(in);
+			addressCC		=	readAddresses(in);
+			addressBCC		=	readAddresses(in);
+			sendid			=	in.available()>0?readString(in):null;
+		}
+
+		private SpooledJob(final SpooledJob original, final Set<Address> recipients, final int retries){
+			spool			=	original.spool;
+			position		=	original.position;
+			refid			=	original.refid;
+			sendid			=	original.sendid;
+			contentname		=	original.contentname;
+			name			=	original.name;
+			subject			=	original.subject;
+			from			=	original.from;
+			addressTO		=	EmailChunk.only(original.addressTO, recipients);
+			addressCC		=	EmailChunk.only(original.addressCC, recipients);
+			addressBCC		=	EmailChunk.only(original.addressBCC, recipients);
+			sendlog			=	original.sendlog;
+			delivery		=	original.delivery;
+			whenDone		=	original.whenDone;
+			this.retries	=	retries;
+			//the job is only acknowledged once every part of it is completed
+			parts			=	original.parts;
+			parts.incrementAndGet();
+		}
+
+		@Override
+		public MimeMessage toMimeMessage(final Session mailSession) throws MessagingException {
+final	Address[]			to		=	EmailChunk.notAlreadySentTo(sendlog, addressTO);
+final	Address[]			cc		=	EmailChunk.notAlreadySentTo(sendlog, addressCC);
+final	Address[]			bcc		=	EmailChunk.notAlreadySentTo(sendlog, addressBCC);
+			if (to.length==0 && cc.length==0 && bcc.length==0) {
+				return null;
+			}
+final	MimeMessage			msg;
+			try {
+							msg		=	new EmailRenderCache.RenderedMimeMessage(mailSession, spool.content(contentname));
+			} catch (final IOException ioe){
+				throw new MessagingException("EmailSpool content:"+contentname+" ERR: "+ioe+" MSG:"+ioe.getMessage(), ioe);
+			}
+							msg.setFrom(new InternetAddress(from, false));
+			if (to.length>0) {
+							msg.setRecipients(Message.RecipientType.TO, to);
+			}
+			if (cc.length>0) {
+							msg.setRecipients(Message.RecipientType.CC, cc);
+			}
+			if (bcc.length>0) {
+							msg.setRecipients(Message.RecipientType.BCC, bcc);
+			}
+			if (name!=null) {
+							msg.setDescription(name, "utf-8");
+			}
+			if (subject!=null) {
+							msg.setSubject(subject, "utf-8");
+			}
+			return msg;
+		}
+
+		@Override
+		public EmailSendLog getSendLog(){
+			return sendlog;
+		}
+
+		@Override
+		public EmailDelivery getDelivery(){
+			return delivery;
+		}
+
+		@Override
+		public Address[] getRecipients(){
+			return EmailChunk.concat(addressTO, addressCC, addressBCC);
+		}
+
+		@Override
+		public String getAffinity(){
+			return EmailEnvelopePlanner.dominantDomain(getRecipients());
+		}
+
+		@Override
+		public SpooledJob subset(final Set<Address> recipients){
+			return new SpooledJob(this, recipients, retries);
+		}
+
+		@Override
+		public SpooledJob retry(final Set<Address> recipients){
+			return new SpooledJob(this, recipients, retries+1);
+		}
+
+		@Override
+		public int getRetries(){
+			return retries;
+		}
+
+		@Override
+		public void completed(){
+			spool.done(this);
+		}
+	}
+}
@@ -0,0 +1,113 @@
+/* com.zacwolf.commons.email.EmailStreamingDistribution.java
+ *
+ * EmailDistribution whose recipients are streamed from an EmailRecipientSource
+ *
+ * Copyright (C) 2021 Zac Morris
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.zacwolf.commons.email;
+
+import java.io.IOException;
+import java.io.NotSerializableException;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.HashMap;
+import java.util.Set;
+
+import javax.mail.internet.InternetAddress;
+
+/**
+ * For newsletters with millions of recipients, holding every address as an InternetAddress
+ * costs hundreds of MB of heap.  This distribution instead holds only an {@link EmailRecipientSource},
+ * which the _EMAILfactory reads {@link _EMAILfactory#BREAKDOWNDISTRIBUTION} addresses at a time,
+ * so memory use depends on the chunk size rather than on the length of the list.
+ *
+ * Streamed recipients are all placed in the same list type (BCC by default), and are in addition
+ * to any TO/CC/BCC addresses added directly to the distribution, which are sent as usual.
+ *
+ * The distribution (and so the Email it belongs to) can only be serialized if the source can be,
+ * as a file source ({@link EmailRecipientSource#fromFile(java.io.File)}) can but an iterator
+ * source ({@link EmailRecipientSource#fromIterator(java.util.function.Supplier)}) can't.
+ *
+ * @author Zac Morris <zac@zacwolf.com>
+ * @version 1.3
+ * @since Java1.8
+ */
+public class EmailStreamingDistribution extends EmailDistribution {
+final	static	private		long					serialVersionUID	=	2941737795385240658L;
+
+final			private		EmailRecipientSource	source;
+final			private		String					listtype;
+
+	/**
+	 * @param from
+	 * @param source of the streamed recipients
+	 */
+	public EmailStreamingDistribution(final InternetAddress from, final EmailRecipientSource source){
+		this(from, source, LISTTYPE_BCC);
+	}
+
+	/**
+	 * @param from
+	 * @param source of the streamed recipients
+	 * @param listtype TO, CC, or BCC
+	 * @throws NullPointerException if listtype is not valid
+	 */
+	public EmailStreamingDistribution(final InternetAddress from, final EmailRecipientSource source, final String listtype) throws NullPointerException{
+		super(from, new HashMap<String,Set<InternetAddress>>(), new HashMap<String,Set<InternetAddress>>(), new HashMap<String,Set<InternetAddress>>());
+		if (!LISTTYPE_TO.equals(listtype) && !LISTTYPE_CC.equals(listtype) && !LISTTYPE_BCC.equals(listtype)) {
+			throw new NullPointerException("Not a valid listtype");
+		}
+		this.source		=	source;
+		this.listtype	=	listtype;
+	}
+
+	private EmailStreamingDistribution(final EmailStreamingDistribution original){
+		super(original);
+		source			=	original.source;
+		listtype		=	original.listtype;
+	}
+
+	/**
+	 * @return the source of the streamed recipients
+	 */
+	public EmailRecipientSource getRecipientSource(){
+		return source;
+	}
+
+	/**
+	 * @return the list type (TO, CC, or BCC) the streamed recipients are sent as
+	 */
+	public String getRecipientListType(){
+		return listtype;
+	}
+
+	@Override
+	public EmailStreamingDistribution clone(){
+		return new EmailStreamingDistribution(this);
+	}
+
+	@Override
+	public int hashCode(){
+		return super.hashCode()+source.hashCode()+listtype.hashCode();
+	}
+
+	private void writeObject(final ObjectOutputStream out) throws IOException{
+		if (!(source instanceof Serializable)) {
+			throw new NotSerializableException("EmailStreamingDistribution's recipient source "+source.getClass().getName()+" is not Serializable");
+		}
+		out.defaultWriteObject();
+	}
+}
@@ -28,7 +28,26 @@ public class EmailTemplate extends Email {
 
 	private	static 		final 	long 			serialVersionUID 	=	3648408883689940780L;
 
+	private	transient	volatile	EmailCompiledTemplate	compiled;
+
 	private EmailTemplate(final int eid, final String name) {
 		super("eid_"+eid,name);
 	}
+
+	/**
+	 * @return the compiled form of this template's html, re-compiled only if the template has changed since
+	 */
+	EmailCompiledTemplate getCompiled(){
+	EmailCompiledTemplate	current	=	compiled;
+		if (current==null || current.version!=getLastChanged()){
+			synchronized(this){
+								current	=	compiled;
+				if (current==null || current.version!=getLastChanged()){
+					current			=	EmailCompiledTemplate.compile(getBody(), getLastChanged());
+					compiled		=	current;
+				}
+			}
+		}
+		return current;
+	}
 }
@@ -0,0 +1,146 @@
+/* com.zacwolf.commons.email.EmailTimingWheel.java
+ *
+ * Hashed timing wheel for the delayed (retried and deferred) sends of an _EMAILfactory
+ *
+ * Copyright (C) 2021 Zac Morris
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.zacwolf.commons.email;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A ScheduledThreadPoolExecutor keeps its tasks in a heap, so every schedule costs O(log n) under a
+ * lock, which adds up with millions of recipients waiting to be retried.  The wheel instead drops
+ * each task into the bucket for the tick it is due on (wrapping around, with a count of the whole
+ * turns still to go), so scheduling is a lock free queue offer, and each tick only visits one bucket.
+ *
+ * Tasks are run on the wheel's thread, so should do no more than hand the real work to an executor.
+ * They run up to one tick late.
+ *
+ * @author Zac Morris <zac@zacwolf.com>
+ * @version 1.3
+ * @since Java1.8
+ */
+final class EmailTimingWheel {
+final	static	public		long								DEFAULT_TICK		=	10;
+final	static	public		int									DEFAULT_WHEELSIZE	=	1024;
+
+final			private		long								tick;
+final			private		int									mask;
+final			private		ArrayList<ArrayDeque<Timeout>>		buckets;
+final			private		ConcurrentLinkedQueue<Timeout>		added				=	new ConcurrentLinkedQueue<Timeout>();
+final			private		AtomicInteger						pending				=	new AtomicInteger();
+final			private		long								start				=	System.nanoTime();
+final			private		ScheduledFuture<?>					ticker;
+				private		long								ticks				=	0;//only touched by the wheel's thread
+
+	/**
+	 * @param name of the thread that turns the wheel
+	 * @param tick milliseconds per tick
+	 * @param wheelsize number of buckets, rounded up to a power of two
+	 */
+	EmailTimingWheel(final String name, final long tick, final int wheelsize){
+final	int		size	=	Integer.highestOneBit(Math.max(2, wheelsize)-1)<<1;
+		this.tick		=	TimeUnit.MILLISECONDS.toNanos(tick);
+		this.mask		=	size-1;
+		this.buckets	=	new ArrayList<ArrayDeque<Timeout>>(size);
+		for (int i=0; i<size; i++) {
+			buckets.add(new ArrayDeque<Timeout>());
+		}
+		ticker			=	_THREADfactory.getScheduledThreadPool(name, 1).scheduleAtFixedRate(new Runnable(){
+								@Override
+								public void run() {
+									advance();
+								}
+							}, tick, tick, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * @param task to run once the delay has passed
+	 * @param delay
+	 * @param unit
+	 */
+	void schedule(final Runnable task, final long delay, final TimeUnit unit){
+		pending.incrementAndGet();
+		added.offer(new Timeout(System.nanoTime()+unit.toNanos(Math.max(0, delay)), task));
+	}
+
+	/**
+	 * @return number of tasks waiting to be run
+	 */
+	int getPending(){
+		return pending.get();
+	}
+
+	void close(){
+		ticker.cancel(false);
+	}
+
+	/**
+	 * Processes every tick that has passed since the last call, so a late run catches up.
+	 */
+	private void advance(){
+final	long	target	=	(System.nanoTime()-start)/tick;
+		while (ticks<=target){
+			transfer();
+			expire(buckets.get((int)(ticks&mask)));
+			ticks++;
+		}
+	}
+
+	private void transfer(){
+	Timeout		timeout;
+		while ((timeout=added.poll())!=null){
+final	long	due		=	Math.max(ticks, (timeout.deadline-start+tick-1)/tick);
+				timeout.rounds	=	(due-ticks)>>>Integer.numberOfTrailingZeros(buckets.size());
+			buckets.get((int)(due&mask)).add(timeout);
+		}
+	}
+
+	private void expire(final ArrayDeque<Timeout> bucket){
+		for (final Iterator<Timeout> it=bucket.iterator(); it.hasNext();){
+final	Timeout		timeout	=	it.next();
+			if (timeout.rounds>0){
+				timeout.rounds--;
+				continue;
+			}
+			it.remove();
+			pending.decrementAndGet();
+			try {
+				timeout.task.run();
+			} catch (final Throwable t){
+				t.printStackTrace();//don't let one task stop the wheel
+			}
+		}
+	}
+
+	final private static class Timeout {
+final	long		deadline;
+final	Runnable	task;
+		long		rounds;
+
+		Timeout(final long deadline, final Runnable task){
+			this.deadline	=	deadline;
+			this.task		=	task;
+		}
+	}
+}
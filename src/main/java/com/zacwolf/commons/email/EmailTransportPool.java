@@ -0,0 +1,354 @@
+/* com.zacwolf.commons.email.EmailTransportPool.java
+ *
+ * Bounded pool of connected and authenticated SMTP Transport objects
+ *
+ * Copyright (C) 2021 Zac Morris
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.zacwolf.commons.email;
+
+import java.util.ArrayList;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.Transport;
+
+/**
+ * The static <code>Transport.send()</code> opens a new connection, performs the
+ * EHLO/AUTH handshake, sends a single message, and then disconnects.  This pool
+ * instead keeps up to <code>maxsize</code> connected Transports open so that the
+ * THREADPOOL workers can borrow an already authenticated connection for each send.
+ *
+ * Idle connections are kept alive with a NOOP every <code>keepalive</code> milliseconds,
+ * closed once they have been idle longer than <code>maxidle</code> milliseconds, and
+ * validated (NOOP) on borrow if they have been idle longer than <code>validateafter</code>.
+ *
+ * @author Zac Morris <zac@zacwolf.com>
+ * @version 1.3
+ * @since Java1.8
+ */
+public final class EmailTransportPool {
+final	static	public		int									DEFAULT_MAXSIZE			=	10;
+final	static	public		long								DEFAULT_MAXIDLE			=	60000L;
+final	static	public		long								DEFAULT_KEEPALIVE		=	15000L;
+final	static	public		long								DEFAULT_VALIDATEAFTER	=	1000L;
+final	static	public		long								DEFAULT_BORROWTIMEOUT	=	60000L;
+
+final			private		Session								mailSession;
+final			private		String								host;
+final			private		int									port;
+final			private		String								username;
+final			private		String								password;
+final			private		int									maxsize;
+final			private		long								maxidle;
+final			private		long								keepalive;
+final			private		long								validateafter;
+final			private		Semaphore							permits;
+final			private		LinkedBlockingDeque<PooledTransport>	idle				=	new LinkedBlockingDeque<PooledTransport>();
+final			private		AtomicInteger						open				=	new AtomicInteger();
+final			private		ScheduledFuture<?>					evictor;
+final			private		EmailConcurrencyLimiter				limiter;
+	volatile	private		boolean								closed				=	false;
+
+	public EmailTransportPool(final Session mailSession, final String host, final String username, final String password){
+		this(mailSession, host, username, password, DEFAULT_MAXSIZE, DEFAULT_MAXIDLE, DEFAULT_KEEPALIVE, DEFAULT_VALIDATEAFTER);
+	}
+
+	/**
+	 * @param mailSession session used to create the Transport objects
+	 * @param host smtp host to connect to
+	 * @param username may be null if the relay does not require AUTH
+	 * @param password may be null if the relay does not require AUTH
+	 * @param maxsize maximum number of open connections
+	 * @param maxidle milliseconds an idle connection is kept before it is closed
+	 * @param keepalive milliseconds between NOOPs sent on idle connections
+	 * @param validateafter milliseconds a connection may sit idle before it is validated on borrow
+	 */
+	public EmailTransportPool(final Session mailSession, final String host, final String username, final String password,
+							  final int maxsize, final long maxidle, final long keepalive, final long validateafter){
+		this(mailSession, host, -1, username, password, maxsize, maxidle, keepalive, validateafter);
+	}
+
+	/**
+	 * @param mailSession session used to create the Transport objects
+	 * @param host smtp host to connect to
+	 * @param port smtp port to connect to, or -1 for the session's default
+	 * @param username may be null if the relay does not require AUTH
+	 * @param password may be null if the relay does not require AUTH
+	 * @param maxsize maximum number of open connections
+	 * @param maxidle milliseconds an idle connection is kept before it is closed
+	 * @param keepalive milliseconds between NOOPs sent on idle connections
+	 * @param validateafter milliseconds a connection may sit idle before it is validated on borrow
+	 */
+	public EmailTransportPool(final Session mailSession, final String host, final int port, final String username, final String password,
+							  final int maxsize, final long maxidle, final long keepalive, final long validateafter){
+		if (maxsize<1) {
+			throw new IllegalArgumentException("maxsize must be at least 1");
+		}
+		this.mailSession	=	mailSession;
+		this.host			=	host;
+		this.port			=	port;
+		this.username		=	username;
+		this.password		=	password;
+		this.maxsize		=	maxsize;
+		this.maxidle		=	maxidle;
+		this.keepalive		=	keepalive;
+		this.validateafter	=	validateafter;
+		permits				=	new Semaphore(maxsize, true);
+		limiter				=	new EmailConcurrencyLimiter(maxsize);
+		evictor				=	_THREADfactory.getScheduledThreadPool("EMAILtransportpool", 1)
+										.scheduleWithFixedDelay(new Runnable(){
+											@Override
+											public void run() {
+												evict();
+											}
+										}, keepalive, keepalive, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * @param maxsize
+	 * @return a new (empty) pool to the same relay with the same settings, other than its size
+	 */
+	public EmailTransportPool withMaxSize(final int maxsize){
+		return new EmailTransportPool(mailSession, host, port, username, password, maxsize, maxidle, keepalive, validateafter);
+	}
+
+	/**
+	 * @return the adaptive limit on concurrent transactions to this relay
+	 */
+	public EmailConcurrencyLimiter getLimiter(){
+		return limiter;
+	}
+
+	/**
+	 * @return maximum number of open connections
+	 */
+	public int getMaxSize(){
+		return maxsize;
+	}
+
+	/**
+	 * Borrow a connected Transport, waiting up to {@link #DEFAULT_BORROWTIMEOUT} milliseconds
+	 * for one to become available.  Every borrowed Transport must be handed back with
+	 * either {@link #release(Transport)} or {@link #invalidate(Transport)}.
+	 *
+	 * @return a connected Transport
+	 * @throws MessagingException if a new connection could not be established or the pool is exhausted
+	 */
+	public Transport borrow() throws MessagingException {
+		return borrow(DEFAULT_BORROWTIMEOUT);
+	}
+
+	/**
+	 * @param timeout milliseconds to wait for a free connection
+	 * @return a connected Transport
+	 * @throws MessagingException if a new connection could not be established or the pool is exhausted
+	 */
+	public Transport borrow(final long timeout) throws MessagingException {
+		return borrow(timeout, null);
+	}
+
+	/**
+	 * Prefers the idle connection that was last used to send to <code>affinity</code> (typically a
+	 * recipient domain), so sends to the same domain keep going over the same connection.
+	 *
+	 * @param timeout milliseconds to wait for a free connection
+	 * @param affinity may be null
+	 * @return a connected Transport
+	 * @throws MessagingException if a new connection could not be established or the pool is exhausted
+	 */
+	public Transport borrow(final long timeout, final String affinity) throws MessagingException {
+		if (closed) {
+			throw new MessagingException("EmailTransportPool ERR: pool for "+host+" has been closed");
+		}
+		try {
+			if (!permits.tryAcquire(timeout, TimeUnit.MILLISECONDS)) {
+				throw new MessagingException("EmailTransportPool ERR: timed out waiting for a connection to "+host);
+			}
+		} catch (final InterruptedException ie) {
+			Thread.currentThread().interrupt();
+			throw new MessagingException("EmailTransportPool ERR: interrupted waiting for a connection to "+host, ie);
+		}
+		try {
+	PooledTransport		pooled;
+			if (affinity!=null){
+				for (final PooledTransport candidate:idle){
+					//if a borrower got to it first then just carry on looking
+					if (affinity.equals(candidate.affinity) && idle.removeFirstOccurrence(candidate)){
+						if (System.currentTimeMillis()-candidate.lastused<validateafter || candidate.transport.isConnected()) {
+							return candidate.transport;
+						}
+						close(candidate.transport);
+						break;
+					}
+				}
+			}
+			while ((pooled=idle.pollFirst())!=null){
+				if (System.currentTimeMillis()-pooled.lastused<validateafter || pooled.transport.isConnected()) {
+					return pooled.transport;
+				}
+				close(pooled.transport);
+			}
+			return connect();
+		} catch (final MessagingException | RuntimeException e) {
+			permits.release();
+			throw e;
+		}
+	}
+
+	/**
+	 * Return a healthy Transport to the pool so it may be reused.  No NOOP is issued here,
+	 * as that would cost a round trip per message; stale connections are caught on borrow.
+	 *
+	 * @param transport that was obtained via {@link #borrow()}
+	 */
+	public void release(final Transport transport){
+		release(transport, null);
+	}
+
+	/**
+	 * @param transport that was obtained via {@link #borrow()}
+	 * @param affinity what the transport was last used for, see {@link #borrow(long, String)}
+	 */
+	public void release(final Transport transport, final String affinity){
+		try {
+			if (closed) {
+				close(transport);
+			} else {
+				idle.offerFirst(new PooledTransport(transport, affinity));
+			}
+		} finally {
+			permits.release();
+		}
+	}
+
+	/**
+	 * Return a Transport that experienced a connection level failure.
+	 * The connection is closed rather than being returned to the pool.
+	 *
+	 * @param transport that was obtained via {@link #borrow()}
+	 */
+	public void invalidate(final Transport transport){
+		try {
+			close(transport);
+		} finally {
+			permits.release();
+		}
+	}
+
+	/**
+	 * @return number of connections currently open (idle or borrowed)
+	 */
+	public int getOpenCount(){
+		return open.get();
+	}
+
+	/**
+	 * @return number of connections currently sitting idle in the pool
+	 */
+	public int getIdleCount(){
+		return idle.size();
+	}
+
+	/**
+	 * @return true once the pool has been closed (e.g. replaced when the relay's pool was resized)
+	 */
+	public boolean isClosed(){
+		return closed;
+	}
+
+	/**
+	 * Closes all idle connections and stops the keepalive task.
+	 * Connections that are currently borrowed are closed when they are returned.
+	 */
+	public void close(){
+		closed					=	true;
+		evictor.cancel(false);
+	PooledTransport		pooled;
+		while ((pooled=idle.pollFirst())!=null){
+			close(pooled.transport);
+		}
+	}
+
+	/**
+	 * Opens (and closes again) a connection of its own, outside of the pool, to check the relay is reachable.
+	 *
+	 * @throws MessagingException if the connection could not be established
+	 */
+	void probe() throws MessagingException {
+final	Transport	transport	=	mailSession.getTransport();
+					transport.connect(host, port, username, password);
+		try {
+			transport.close();
+		} catch (final MessagingException me){
+			//the connection was made, which is all that was being checked
+		}
+	}
+
+	private Transport connect() throws MessagingException {
+final	Transport	transport	=	mailSession.getTransport();
+					transport.connect(host, port, username, password);
+					open.incrementAndGet();
+		return transport;
+	}
+
+	private void close(final Transport transport){
+		try {
+			transport.close();
+		} catch (final Exception e){
+			//throw it away, we're discarding the connection anyway
+		} finally {
+			open.decrementAndGet();
+		}
+	}
+
+	/**
+	 * Walks the idle connections from the most recently used, closing any that have exceeded
+	 * <code>maxidle</code> and sending a NOOP (via <code>isConnected()</code>) to the rest.
+	 * Each one kept is put back at the least recently used end, so once every connection has
+	 * been walked they're back in the order they started in.
+	 */
+	private void evict(){
+final	long					now		=	System.currentTimeMillis();
+		for (final PooledTransport pooled:new ArrayList<PooledTransport>(idle)){
+			//if a borrower got to it first then just skip it
+			if (!idle.removeLastOccurrence(pooled)) {
+				continue;
+			}
+			if (closed || now-pooled.lastused>maxidle || open.get()>maxsize || !pooled.transport.isConnected()) {
+				close(pooled.transport);
+			} else {
+				idle.offerLast(pooled);
+			}
+		}
+	}
+
+	final private static class PooledTransport {
+final	Transport	transport;
+final	String		affinity;
+final	long		lastused;
+
+		PooledTransport(final Transport transport, final String affinity){
+			this.transport	=	transport;
+			this.affinity	=	affinity;
+			lastused		=	System.currentTimeMillis();
+		}
+	}
+}
@@ -19,23 +19,42 @@
  */
 package com.zacwolf.commons.email;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Properties;
 import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.activation.CommandMap;
 import javax.activation.MailcapCommandMap;
 import javax.mail.Address;
-import javax.mail.Authenticator;
 import javax.mail.Message;
 import javax.mail.MessagingException;
-import javax.mail.PasswordAuthentication;
 import javax.mail.SendFailedException;
 import javax.mail.Session;
 import javax.mail.Transport;
+import javax.mail.internet.AddressException;
 import javax.mail.internet.InternetAddress;
 import javax.mail.internet.MimeMessage;
 
@@ -46,9 +65,35 @@ import javax.mail.internet.MimeMessage;
  * @since Java1.8
  */
 public final class _EMAILfactory {
-final	static	public		int				BREAKDOWNDISTRIBUTION	=	200;
-final	static	public		ExecutorService	THREADPOOL				=	_THREADfactory.getThreadPool("EMAILfactory", 10);
-final			private		Session			mailSession;
+final	static	public		int							BREAKDOWNDISTRIBUTION	=	200;
+final	static	public		int							THREADPOOLSIZE			=	10;
+/** Number of chunks' worth of streamed recipients that are grouped by domain together */
+final	static	public		int							STREAMWINDOW			=	10;
+final	static	public		ExecutorService				THREADPOOL				=	_THREADfactory.getThreadPool("EMAILfactory", THREADPOOLSIZE);
+final	static	private		ExecutorService				FEEDERPOOL				=	_THREADfactory.getThreadPool("EMAILfactory_feeder", 2);
+/** Milliseconds before a deferred job is handed to the executor again, if it was full */
+final	static	public		long						BUSYDELAY				=	100;
+final	static	private		EmailTimingWheel			DEFERRED				=	new EmailTimingWheel("EMAILfactory_deferred", EmailTimingWheel.DEFAULT_TICK, EmailTimingWheel.DEFAULT_WHEELSIZE);
+final	static	private		ScheduledExecutorService	HEALTHCHECK				=	_THREADfactory.getScheduledThreadPool("EMAILrelay_health", 1);
+final			private		Session						mailSession;
+final			private		List<EmailRelay>			relays;
+final			private		AtomicInteger				nextrelay				=	new AtomicInteger();
+final			private		ScheduledFuture<?>			healthcheck;
+final			private		BlockingQueue<EmailChunk>	outbound				=	new LinkedBlockingQueue<EmailChunk>();
+	volatile	private		int							batchsize				=	1;
+	volatile	private		ExecutorService				executor				=	THREADPOOL;
+final			private		EmailDomainRateLimiter		ratelimiter				=	new EmailDomainRateLimiter();
+	volatile	private		File						journaldir				=	null;
+final			private		Set<EmailSendLog>			journaled				=	ConcurrentHashMap.newKeySet();
+/** sends with jobs in the spool, by their sendid */
+final			private		ConcurrentMap<String,SpooledSend>	spoolSends		=	new ConcurrentHashMap<String,SpooledSend>();
+/** jobs spooled before a restart, by their REFID, which share a (journal backed) log of their own */
+final			private		ConcurrentMap<String,SpooledSend>	recovered		=	new ConcurrentHashMap<String,SpooledSend>();
+	volatile	private		EmailSpool					spool					=	null;
+	volatile	private		ExecutorService				spoolreader				=	null;
+/** the pool created by useObservableThreadPool or useVirtualThreads, which is shut down on close */
+			private		ExecutorService				ownpool					=	null;
+	volatile	private		EmailRetryPolicy			retrypolicy				=	EmailRetryPolicy.DEFAULT;
 	static {
 	// add handlers for main MIME types
 	final MailcapCommandMap	mcap = new MailcapCommandMap();
@@ -61,199 +106,1201 @@ final			private		Session			mailSession;
 	}
 
 	public _EMAILfactory(final String smtphost, final String username, final String password){
+		this(Collections.singletonList(new EmailRelay(smtphost, username, password)));
+	}
+
+	/**
+	 * Sends through several relays, each with its own pool of connections.  Each SMTP session goes to the
+	 * available relay with the fewest transactions in flight for its weight, and a relay whose circuit
+	 * breaker opens (see {@link EmailRelay}) is skipped until a health check finds it has recovered.
+	 * Nothing is queued per relay, so chunks waiting to be sent simply go to the relays that remain.
+	 *
+	 * @param relays
+	 */
+	public _EMAILfactory(final List<EmailRelay> relays){
+		if (relays==null || relays.isEmpty()) {
+			throw new IllegalArgumentException("At least one relay is required");
+		}
 final	Properties 		eprops				=	new java.util.Properties();
 						eprops.put("mail.transport.protocol", "smtp");
-						eprops.put("mail.smtp.host", smtphost);
-final	Authenticator	auth;
-		if(username==null || password==null) {
-			auth				=	null;
-		} else {
-			auth				=	new Authenticator(){
+						eprops.put("mail.smtp.host", relays.get(0).getHost());
+						//a Session of its own, as with getDefaultInstance() the first factory's properties would win JVM wide;
+						//the credentials are passed to each connect() by the relay's pool, so no Authenticator is needed
+						mailSession	=	Session.getInstance(eprops);
+						mailSession.setDebug(false);
+		for (final EmailRelay relay:relays) {
+						relay.open(mailSession, THREADPOOLSIZE);
+		}
+						this.relays	=	Collections.unmodifiableList(new ArrayList<EmailRelay>(relays));
+						healthcheck	=	HEALTHCHECK.scheduleWithFixedDelay(new Runnable(){
 												@Override
-												public PasswordAuthentication getPasswordAuthentication() {
-													return new PasswordAuthentication(username, password);
+												public void run() {
+													for (final EmailRelay relay:_EMAILfactory.this.relays) {
+														relay.check();
+													}
 												}
-											};
+											}, EmailRelay.DEFAULT_HEALTHINTERVAL, EmailRelay.DEFAULT_HEALTHINTERVAL, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Closes the pooled SMTP connections held by this factory, and shuts down its own thread pool (if it has one).
+	 */
+	public void close(){
+		own(null);
+		if (spool!=null){
+			_THREADfactory.shutdownNowAndRemove(spoolreader);
+			try {
+				spool.close();
+			} catch (final IOException ioe){
+				ioe.printStackTrace();
+			}
+			spool		=	null;
 		}
-						mailSession	=	Session.getDefaultInstance(eprops, auth);
-						mailSession.setDebug(false);
+		healthcheck.cancel(false);
+		for (final EmailRelay relay:relays) {
+			relay.close();
+		}
+		for (final EmailSendLog sendlog:journaled) {
+			sendlog.closeJournal(false);
+		}
+		journaled.clear();
+	}
+
+	/**
+	 * Enables the per-Email send journal.  Every recipient's sent/failed state is appended to
+	 * a journal under <code>dir</code> named for the Email's REFID, so if the JVM dies part way
+	 * through a send, sending the same Email again from a new factory (with the same journal
+	 * directory) skips everyone that was already sent to.
+	 *
+	 * @param dir journal directory, or null to disable journaling for subsequent sends
+	 */
+	public void setJournalDirectory(final File dir){
+		journaldir	=	dir;
+	}
+
+	/**
+	 * Enables the outbound spool.  Rather than queuing each chunk (and so the Email it references)
+	 * in heap until a THREADPOOL worker is free, chunks are appended to a segmented file queue under
+	 * <code>dir</code>, which is read back at the pace the workers can send.  Anything still spooled
+	 * when the JVM stops is sent once a factory is next started with the same spool directory.
+	 *
+	 * Mail-merge messages are personalized per recipient, so are not spooled.  Nor are the recipients of an
+	 * {@link EmailStreamingDistribution}, whose chunks go straight to the executor, as the stream already
+	 * bounds how many are held in heap (so they aren't resent after a restart, other than by the journal).
+	 *
+	 * @param dir spool directory
+	 * @throws IOException
+	 */
+	public synchronized void setSpoolDirectory(final File dir) throws IOException{
+		if (spool!=null) {
+			throw new IllegalStateException("Spool is already enabled");
+		}
+		spool		=	new EmailSpool(dir);
+		spoolreader	=	_THREADfactory.getThreadPool("EMAILspool_"+dir.getAbsolutePath(), 1);
+		spoolreader.submit(new Runnable(){
+			@Override
+			public void run() {
+				drainSpool(spool);
+			}
+		});
+	}
+
+	/**
+	 * Reads jobs from the spool for as long as it is open, handing them to the THREADPOOL with no more
+	 * than one job (or batch) per THREADPOOL thread outstanding, so the THREADPOOL queue stays short.
+	 *
+	 * @param spool
+	 */
+	private void drainSpool(final EmailSpool spool){
+final	Semaphore				inflight	=	new Semaphore(parallelism());
+		try {
+			while (!Thread.currentThread().isInterrupted()){
+final	List<EmailSpool.SpooledJob>	batch	=	new ArrayList<EmailSpool.SpooledJob>(batchsize);
+	EmailSpool.SpooledJob		job			=	spool.take();
+				do {
+							attach(job);
+							batch.add(job);
+				} while (batch.size()<batchsize && (job=spool.poll())!=null);
+				inflight.acquire();
+				executor.submit(new QueuedSend(){
+					@Override
+					void send() {
+						try {
+							sendChunks(batch);//each job is acknowledged once completed
+						} finally {
+							inflight.release();
+						}
+					}
+				});
+			}
+		} catch (final InterruptedException ie){
+			Thread.currentThread().interrupt();
+		} catch (final IOException ioe){
+			//the spool has been closed
+		}
+	}
+
+	/**
+	 * Gives the job the send log and delivery of the send it is part of, or if that was spooled before a
+	 * restart, a log (replaying the journal, if enabled) shared by every recovered job of the same REFID.
+	 * Either way the send is held until the job is completed.
+	 *
+	 * @param job
+	 */
+	private void attach(final EmailSpool.SpooledJob job){
+final	SpooledSend		send	=	job.sendid==null?null:spoolSends.get(job.sendid);//held by dispatch() until the job is completed
+		if (send!=null){
+							job.sendlog		=	send.sendlog;
+							job.delivery	=	send.delivery;
+							job.whenDone	=	() -> release(spoolSends, job.sendid);
+			return;
+		}
+final	SpooledSend		orphan	=	recovered.compute(job.refid, (refid, held) -> (held!=null?held:new SpooledSend(recoveredLog(refid), null)).hold());
+							job.sendlog		=	orphan.sendlog;
+							job.whenDone	=	() -> recovered.computeIfPresent(job.refid, (refid, held) -> {
+													if (--held.jobs>0) {
+														return held;
+													}
+													held.sendlog.closeJournal(false);//kept, in case the Email is sent again
+													journaled.remove(held.sendlog);
+													return null;
+												});
+	}
+
+	/**
+	 * @param refid
+	 * @return a log of its own for jobs spooled before a restart, replaying the journal, if enabled
+	 */
+	private EmailSendLog recoveredLog(final String refid){
+final	EmailSendLog	sendlog	=	new EmailSendLog();
+final	File			dir		=	journaldir;
+		if (dir!=null){
+			try {
+				sendlog.openJournal(dir, refid);
+				journaled.add(sendlog);
+			} catch (final IOException ioe){
+				sendlog.logError(ioe);
+			}
+		}
+		return sendlog;
+	}
+
+	/**
+	 * @param sends
+	 * @param key
+	 */
+	private static void release(final ConcurrentMap<String,SpooledSend> sends, final String key){
+		sends.computeIfPresent(key, (k, held) -> --held.jobs>0?held:null);
+	}
+
+	/**
+	 * @return the most sends the executor runs at once
+	 */
+	private int parallelism(){
+final	ExecutorService	current	=	executor;
+		if (current instanceof ThreadPoolExecutor) {
+			return ((ThreadPoolExecutor)current).getMaximumPoolSize();
+		}
+		if (current instanceof _THREADfactory.PermitLimitedExecutor) {
+			return ((_THREADfactory.PermitLimitedExecutor)current).getPermits();
+		}
+		return THREADPOOLSIZE;
+	}
+
+	/**
+	 * Closes the Email's journal and deletes its files, once the Email will not be sent again.
+	 *
+	 * @param email
+	 */
+	public void discardJournal(final Email email){
+		email.getSendLog().closeJournal(true);
+		journaled.remove(email.getSendLog());
+	}
+
+	private void openJournal(final Email email) throws MessagingException {
+final	File	dir	=	journaldir;
+		if (dir!=null){
+			try {
+				email.getSendLog().openJournal(dir, email.getREFID());
+				journaled.add(email.getSendLog());
+			} catch (final IOException ioe){
+				throw new MessagingException("Unable to open the send journal for REFID:"+email.getREFID(), ioe);
+			}
+		}
+	}
+
+	/**
+	 * Sends on the given executor rather than the shared, fixed size, THREADPOOL.
+	 *
+	 * @param executor
+	 */
+	public void setExecutor(final ExecutorService executor){
+		if (executor==null) {
+			throw new NullPointerException("executor cannot be null");
+		}
+		this.executor	=	executor;
+	}
+
+	/**
+	 * Sends on a bounded, elastic, {@link _THREADfactory.ObservablePool} rather than the THREADPOOL,
+	 * so that a burst of sends can't grow the queue without limit, and so its statistics can be used
+	 * to size it.  Threads beyond the number of pooled SMTP connections ({@link #THREADPOOLSIZE}) wait
+	 * for a connection to be released.
+	 *
+	 * The pool is this factory's own, so other factories' sends don't share (or resize) it, and it's shut
+	 * down by {@link #close()}.  Calling this again returns the same pool, ignoring the parameters.
+	 *
+	 * @param core initial (and minimum) number of threads
+	 * @param max maximum number of threads
+	 * @param capacity maximum number of queued tasks
+	 * @param saturation what happens to a send when the queue is full
+	 * @return the pool, for reading its {@link _THREADfactory.ObservablePool#getStats() statistics}
+	 */
+	public _THREADfactory.ObservablePool useObservableThreadPool(final int core, final int max, final int capacity, final _THREADfactory.Saturation saturation){
+final	_THREADfactory.ObservablePool	pool	=	_THREADfactory.getObservableThreadPool(poolName("EMAILfactory_observable"), core, max, capacity, saturation);
+		setExecutor(pool);
+		own(pool);
+		return pool;
+	}
+
+	/**
+	 * Runs every send on its own virtual thread (on Java 21+, see {@link _THREADfactory#getVirtualThreadPool(String, int)}),
+	 * so the number of concurrent SMTP transactions is set by <code>permits</code> rather than by a number of OS threads.
+	 * The pool of SMTP connections is resized to match.  As with {@link #useObservableThreadPool(int, int, int, _THREADfactory.Saturation)},
+	 * the executor is this factory's own.
+	 *
+	 * @param permits maximum number of concurrent SMTP transactions
+	 * @return the executor
+	 */
+	public _THREADfactory.PermitLimitedExecutor useVirtualThreads(final int permits){
+final	_THREADfactory.PermitLimitedExecutor	pool	=	_THREADfactory.getVirtualThreadPool(poolName("EMAILfactory_virtual"), permits);
+		resizeTransportPool(pool.getPermits());
+		setExecutor(pool);
+		own(pool);
+		return pool;
+	}
+
+	/**
+	 * @param pool now sent on (null once closed), any other pool this factory created is shut down once its sends have finished
+	 */
+	private synchronized void own(final ExecutorService pool){
+		if (ownpool!=null && ownpool!=pool) {
+			_THREADfactory.shutdownAndRemove(ownpool);
+		}
+		ownpool	=	pool;
+	}
+
+	/**
+	 * @param prefix
+	 * @return the name of this factory's pool, as pools are shared by name across the JVM
+	 */
+	private String poolName(final String prefix){
+		return prefix+"@"+Integer.toHexString(System.identityHashCode(this));
+	}
+
+	/**
+	 * Replaces each relay's pool of SMTP connections with one of the given size.
+	 *
+	 * @param maxsize
+	 */
+	private synchronized void resizeTransportPool(final int maxsize){
+		for (final EmailRelay relay:relays) {
+			relay.resize(maxsize);
+		}
+	}
+
+	/**
+	 * @return the relays sent through
+	 */
+	public List<EmailRelay> getRelays(){
+		return relays;
+	}
+
+	/**
+	 * Weighted least-outstanding selection: the available relay with the fewest transactions in flight
+	 * per unit of weight, starting the scan at a rotating position so ties are spread round robin.
+	 *
+	 * @param tried relays not to pick, may be null
+	 * @return the relay, or null if none is available
+	 */
+	private EmailRelay selectRelay(final Set<EmailRelay> tried){
+final	int			start		=	Math.floorMod(nextrelay.getAndIncrement(), relays.size());
+	EmailRelay		best		=	null;
+	long			bestload	=	0;
+		for (int i=0; i<relays.size(); i++){
+final	EmailRelay	relay		=	relays.get((start+i)%relays.size());
+			if (!relay.isAvailable() || tried!=null && tried.contains(relay)) {
+				continue;
+			}
+final	long		load		=	relay.getLimiter().getInFlight()+1;
+			if (best==null || load*best.getWeight()<bestload*relay.getWeight()){
+							best		=	relay;
+							bestload	=	load;
+			}
+		}
+		return best;
+	}
+
+	/**
+	 * Sets how recipients that are temporarily (4xx) rejected, or that couldn't be sent to because no relay
+	 * could be reached, are retried.  Recipients still failing after the last retry are logged as failed.
+	 *
+	 * @param retrypolicy {@link EmailRetryPolicy#NONE} to log them as failed straight away
+	 */
+	public void setRetryPolicy(final EmailRetryPolicy retrypolicy){
+		if (retrypolicy==null) {
+			throw new NullPointerException("retrypolicy cannot be null");
+		}
+		this.retrypolicy	=	retrypolicy;
+	}
+
+	/**
+	 * @return number of retried or deferred sends waiting for their time to come
+	 */
+	public static int getDeferredCount(){
+		return DEFERRED.getPending();
+	}
+
+	/**
+	 * @return the per recipient domain rate limits, which are unlimited until a rate is set
+	 */
+	public EmailDomainRateLimiter getDomainRateLimiter(){
+		return ratelimiter;
+	}
+
+	/**
+	 * @return the executor sends are run on
+	 */
+	public ExecutorService getExecutor(){
+		return executor;
+	}
+
+	/**
+	 * Enables batched sending, where each THREADPOOL worker drains up to <code>batchsize</code>
+	 * queued chunks and sends them back-to-back over one SMTP session.  A value of 1 (the default)
+	 * sends each chunk on its own borrowed connection.
+	 *
+	 * @param batchsize
+	 */
+	public void setBatchSize(final int batchsize){
+		if (batchsize<1) {
+			throw new IllegalArgumentException("batchsize must be at least 1");
+		}
+		this.batchsize	=	batchsize;
 	}
 
 	void sendEmailMessage(final Email email) throws MessagingException {
-		sendEmailMessage(email,
-						 email.getDistribution().getFROM(),
-						 email.getDistribution().getTO(),
-						 email.getDistribution().getCC(),
-						 email.getDistribution().getBCC()
-						);
+		sendEmailMessage(email, new EmailDelivery(email.getREFID()));
+	}
+
+	/**
+	 * Sends the Email the same as {@link #sendEmailMessage(Email)}, returning a future that is completed
+	 * with the outcome once every chunk the Email was broken down into has been sent or has failed.
+	 * Callbacks can be chained on the future as usual; those that aren't <code>...Async</code> run on the
+	 * THREADPOOL worker that completed the last chunk, so should hand off anything slow.
+	 *
+	 * @param email
+	 * @return the future, completed exceptionally if the send could not be started
+	 */
+	public CompletableFuture<EmailDeliveryReport> sendEmailMessageAsync(final Email email){
+final	EmailDelivery		delivery		=	new EmailDelivery(email.getREFID());
+		try {
+			sendEmailMessage(email, delivery);
+		} catch (final MessagingException | RuntimeException e){
+			delivery.fail(e);
+		}
+		return delivery.getFuture();
+	}
+
+	/**
+	 * Mail-merge mode of {@link #sendEmailMessageAsync(Email)}, see {@link #sendEmailMessage(Email, EmailMergeFields)}.
+	 *
+	 * @param email
+	 * @param mergefields
+	 * @return the future, completed exceptionally if the send could not be started
+	 */
+	public CompletableFuture<EmailDeliveryReport> sendEmailMessageAsync(final Email email, final EmailMergeFields mergefields){
+final	EmailDelivery		delivery		=	new EmailDelivery(email.getREFID());
+		try {
+			sendEmailMessage(email, mergefields, delivery);
+		} catch (final MessagingException | RuntimeException e){
+			delivery.fail(e);
+		}
+		return delivery.getFuture();
+	}
+
+	private void sendEmailMessage(final Email email, final EmailDelivery delivery) throws MessagingException {
+		openJournal(email);
+final	EmailDistribution	distribution	=	email.getDistribution();
+final	InternetAddress[]	addressTO		=	distribution.getTO();
+final	InternetAddress[]	addressCC		=	distribution.getCC();
+final	InternetAddress[]	addressBCC		=	distribution.getBCC();
+		if (addressTO!=null || addressCC!=null || addressBCC!=null) {
+			sendEmailMessage(email, distribution.getFROM(), addressTO, addressCC, addressBCC, delivery);
+		}
+		if (distribution instanceof EmailStreamingDistribution) {
+			stream(email, (EmailStreamingDistribution)distribution, null, null, delivery);
+		}
+		delivery.done();//everything has been handed off
+	}
+
+	/**
+	 * Mail-merge mode: every recipient in the Email's distribution (TO, CC, and BCC) is sent
+	 * their own copy addressed to them alone, with any {{name}} placeholders in the subject,
+	 * html, and plain text replaced by the values <code>mergefields</code> supplies for them.
+	 *
+	 * The content is prepared once up front, but each personalized message is only rendered
+	 * by the THREADPOOL worker as it is about to send it.
+	 *
+	 * @param email
+	 * @param mergefields
+	 * @throws MessagingException
+	 */
+	void sendEmailMessage(final Email email, final EmailMergeFields mergefields) throws MessagingException {
+		sendEmailMessage(email, mergefields, new EmailDelivery(email.getREFID()));
+	}
+
+	private void sendEmailMessage(final Email email, final EmailMergeFields mergefields, final EmailDelivery delivery) throws MessagingException {
+		openJournal(email);
+final	EmailMergeRenderer			renderer	=	new EmailMergeRenderer(email);
+final	Address						from		=	email.getDistribution().getFROM();
+final	Set<InternetAddress>		unique		=	new LinkedHashSet<InternetAddress>();
+		for (final InternetAddress[] addresses:new InternetAddress[][]{email.getDistribution().getTO(),
+																		email.getDistribution().getCC(),
+																		email.getDistribution().getBCC()}) {
+			if (addresses!=null) {
+				unique.addAll(Arrays.asList(addresses));
+			}
+		}
+final	InternetAddress[]			recipients	=	unique.toArray(new InternetAddress[0]);
+		//so each slice (sent over a single connection) is addressed to as few domains as possible
+		Arrays.sort(recipients, (a, b) -> EmailDomainRateLimiter.domainOf(a).compareTo(EmailDomainRateLimiter.domainOf(b)));
+		for (int index=0; index<recipients.length; index+=BREAKDOWNDISTRIBUTION){
+final	InternetAddress[]			slice		=	Arrays.copyOfRange(recipients, index, Math.min(index+BREAKDOWNDISTRIBUTION, recipients.length));
+			delivery.add();
+			executor.submit(new QueuedSend(){
+				@Override
+				void send() {
+					try {
+						sendMergeSlice(email, from, slice, renderer, mergefields, delivery);
+					} finally {
+						delivery.done();
+					}
+				}
+			});
+		}
+		if (email.getDistribution() instanceof EmailStreamingDistribution) {
+			stream(email, (EmailStreamingDistribution)email.getDistribution(), renderer, mergefields, delivery);
+		}
+		delivery.done();//everything has been handed off
 	}
 
+	private void sendMergeSlice(final Email email, final Address from, final InternetAddress[] slice, final EmailMergeRenderer renderer, final EmailMergeFields mergefields,
+								final EmailDelivery delivery){
+final	List<EmailChunk>	chunks	=	new ArrayList<EmailChunk>(slice.length);
+		for (final InternetAddress to:slice) {
+			if (!email.getSendLog().alreadySentTo(to.toString())) {
+				chunks.add(new EmailChunk(email, from, to, renderer, mergefields, delivery));
+			}
+		}
+		sendChunks(chunks);
+	}
+
+	/**
+	 * Reads the streamed recipients of the distribution on the FEEDERPOOL, handing each chunk to the THREADPOOL.
+	 * Recipients are read {@link #STREAMWINDOW} chunks' worth at a time, so each window can be grouped by domain
+	 * (see {@link EmailEnvelopePlanner}).  No more than two chunks per THREADPOOL thread are ever outstanding,
+	 * so memory use is bounded by the window size no matter how long the list is.
+	 *
+	 * @param email
+	 * @param distribution
+	 * @param renderer null unless sending in mail-merge mode
+	 * @param mergefields null unless sending in mail-merge mode
+	 * @param delivery which waits for the whole list to have been read
+	 */
+	private void stream(final Email email, final EmailStreamingDistribution distribution, final EmailMergeRenderer renderer, final EmailMergeFields mergefields,
+						final EmailDelivery delivery){
+		delivery.add();
+		FEEDERPOOL.submit(new Runnable(){
+			@Override
+			public void run() {
+final	Semaphore				inflight	=	new Semaphore(parallelism()*2);
+final	Address					from		=	distribution.getFROM();
+final	String					listtype	=	distribution.getRecipientListType();
+				try (final EmailRecipientSource.Cursor cursor = distribution.getRecipientSource().open()){
+	InternetAddress[]			slice;
+					while ((slice=nextSlice(cursor, email.getSendLog(), delivery, renderer!=null?BREAKDOWNDISTRIBUTION:BREAKDOWNDISTRIBUTION*STREAMWINDOW)).length>0){
+						if (renderer!=null){
+final	InternetAddress[]		chunk		=	slice;
+							inflight.acquire();
+							delivery.add();
+							executor.submit(new QueuedSend(){
+								@Override
+								void send() {
+									try {
+										sendMergeSlice(email, from, chunk, renderer, mergefields, delivery);
+									} finally {
+										inflight.release();
+										delivery.done();
+									}
+								}
+							});
+							continue;
+						}
+						for (final EmailChunk chunk:EmailEnvelopePlanner.plan(email, from,
+																		EmailDistribution.LISTTYPE_TO.equals(listtype)?slice:null,
+																		EmailDistribution.LISTTYPE_CC.equals(listtype)?slice:null,
+																		EmailDistribution.LISTTYPE_BCC.equals(listtype)?slice:null,
+																		BREAKDOWNDISTRIBUTION, delivery)){
+							inflight.acquire();
+							executor.submit(new QueuedSend(){
+								@Override
+								void send() {
+									try {
+										sendChunks(Collections.singletonList(chunk));
+									} finally {
+										inflight.release();
+									}
+								}
+							});
+						}
+					}
+				} catch (final InterruptedException ie){
+					Thread.currentThread().interrupt();
+					email.getSendLog().logError(ie);
+					delivery.error(ie.toString());
+				} catch (final Exception e){
+					email.getSendLog().logError(e);
+					delivery.error(e.toString());
+				} finally {
+					delivery.done();
+				}
+			}
+		});
+	}
+
+	/**
+	 * @param cursor
+	 * @param sendlog to record any invalid addresses in
+	 * @param delivery to also report any invalid addresses to
+	 * @param count
+	 * @return up to <code>count</code> addresses, an empty array once the cursor is exhausted
+	 * @throws IOException
+	 */
+	private static InternetAddress[] nextSlice(final EmailRecipientSource.Cursor cursor, final EmailSendLog sendlog, final EmailDelivery delivery, final int count) throws IOException {
+final	List<InternetAddress>	slice		=	new ArrayList<InternetAddress>(count);
+	String						address;
+		while (slice.size()<count && (address=cursor.next())!=null){
+			try {
+				slice.add(new InternetAddress(address));
+			} catch (final AddressException ae){
+				sendlog.logError("Invalid email address for address:" + address + "\n");
+				delivery.error("Invalid email address for address:" + address);
+			}
+		}
+		return slice.toArray(new InternetAddress[0]);
+	}
+
+	/**
+	 * Plans the distribution into domain-grouped chunks of no more than {@link #BREAKDOWNDISTRIBUTION}
+	 * recipients of each type, see {@link EmailEnvelopePlanner}, and dispatches each of them.
+	 */
 	private void sendEmailMessage(final Email email,
 								  final Address from,
 								  final Address[] addressTO,
 								  final Address[] addressCC,
-								  final Address[] addressBCC
+								  final Address[] addressBCC,
+								  final EmailDelivery delivery
 								 ) throws MessagingException {
+		for (final EmailChunk chunk:EmailEnvelopePlanner.plan(email, from, addressTO, addressCC, addressBCC, BREAKDOWNDISTRIBUTION, delivery)) {
+			dispatch(chunk);
+		}
+	}
 
-		if (addressTO.length>BREAKDOWNDISTRIBUTION){
-	int		index						=	0;
-	int		num							=	BREAKDOWNDISTRIBUTION;
-			while (num==BREAKDOWNDISTRIBUTION){
-				if(addressTO.length-index<BREAKDOWNDISTRIBUTION) {
-					num					=	addressTO.length-index;
-				}
-	final Address[]		newTO				=	new InternetAddress[num];
-					System.arraycopy(addressTO,index,newTO,0,num);
-					sendEmailMessage(email, from, newTO, addressCC, addressBCC);
-					index				+=	BREAKDOWNDISTRIBUTION;
+	/**
+	 * Hands a chunk to the THREADPOOL, or to the spool if there is one.  When batching is enabled the chunk is queued
+	 * and the submitted worker drains up to <code>batchsize</code> queued chunks
+	 * (from any Email) to send back-to-back over a single pooled connection.
+	 *
+	 * @param chunk
+	 */
+	private void dispatch(final EmailChunk chunk){
+final	EmailSpool	spool	=	this.spool;
+		if (spool!=null){
+final	String		sendid	=	chunk.delivery!=null?chunk.delivery.getId():UUID.randomUUID().toString();
+			//held from before the job can be read back until it is completed, so the job gets this send's log
+			//and delivery, not those of another send of an Email with the same REFID
+			spoolSends.compute(sendid, (id, held) -> (held!=null?held:new SpooledSend(chunk.email.getSendLog(), chunk.delivery)).hold());
+			try {
+				spool.offer(chunk, sendid);//the spooled job completes the chunk's part of the delivery
+				return;
+			} catch (final Exception e){
+				//fall back to queuing it in memory
+				release(spoolSends, sendid);
+				chunk.email.getSendLog().logError(e);
 			}
 		}
-		if (addressCC!=null && addressCC.length>BREAKDOWNDISTRIBUTION){
-	int				index				=	0;
-	int				num					=	BREAKDOWNDISTRIBUTION;
-			while (num==BREAKDOWNDISTRIBUTION){
-				if(addressCC.length-index<BREAKDOWNDISTRIBUTION) {
-					num					=	addressCC.length-index;
+		if (batchsize<=1) {
+			executor.submit(new QueuedSend(){
+				@Override
+				void send() {
+					sendChunks(Collections.singletonList(chunk));
 				}
-	final Address[]		newCC				=	new InternetAddress[num];
-					System.arraycopy(addressCC,index,newCC,0,num);
-					sendEmailMessage(email,from, addressTO, newCC, addressBCC);
-					index				+=	BREAKDOWNDISTRIBUTION;
-			}
-		}
-		if (addressBCC!=null && addressBCC.length>BREAKDOWNDISTRIBUTION){
-	int		index						=	0;
-	int		num							=	BREAKDOWNDISTRIBUTION;
-			while (num==BREAKDOWNDISTRIBUTION){
-				if(addressBCC.length-index<BREAKDOWNDISTRIBUTION) {
-					num					=	addressBCC.length-index;
+			});
+		} else {
+			outbound.offer(chunk);
+			executor.submit(new QueuedSend(){
+				@Override
+				void send() {
+final	List<EmailChunk>	batch	=	new ArrayList<EmailChunk>(batchsize);
+							outbound.drainTo(batch, batchsize);
+					if (!batch.isEmpty()) {
+						sendChunks(batch);
+					}
 				}
-	final Address[]		newBCC				=	new InternetAddress[num];
-					System.arraycopy(addressBCC,index,newBCC,0,num);
-					sendEmailMessage(email,from, addressTO, addressCC, newBCC);
-					index				+=	BREAKDOWNDISTRIBUTION;
-			}
+			});
 		}
-		// Here we're only dealing with an object with less
-		// than {BREAKDOWNDISTRIBUTION} of each type of recipient
-		if (addressTO!=null && addressTO.length<=BREAKDOWNDISTRIBUTION
-			&& (addressCC==null || addressCC.length<=BREAKDOWNDISTRIBUTION)
-			&& (addressBCC==null || addressBCC.length<=BREAKDOWNDISTRIBUTION)){
-			THREADPOOL.submit(new Runnable(){
-				@Override
-				public void run() {
+	}
+
+	/**
+	 * A send handed to the executor, which records how long it waited for a thread.
+	 */
+	private abstract static class QueuedSend implements Runnable {
+final	long	queued	=	System.nanoTime();
+
+		@Override
+		public final void run() {
+			EmailMetrics.QUEUE_WAIT.recordSince(queued);
+			send();
+		}
+
+		abstract void send();
+	}
+
+	/**
+	 * What spooled jobs need from the send they are part of, held for as long as any of its jobs are
+	 * in the spool.  <code>jobs</code> is only changed within compute() on the map holding it.
+	 */
+	final private static class SpooledSend {
+final	EmailSendLog	sendlog;
+final	EmailDelivery	delivery;
+		int				jobs;
+
+		/**
+		 * @param sendlog
+		 * @param delivery may be null
+		 */
+		SpooledSend(final EmailSendLog sendlog, final EmailDelivery delivery){
+			this.sendlog	=	sendlog;
+			this.delivery	=	delivery;
+		}
+
+		SpooledSend hold(){
+			jobs++;
+			return this;
+		}
+	}
+
+	/**
+	 * Sends each chunk as its own SMTP transaction within a single SMTP session.
+	 * If the connection fails part way through, it is replaced before carrying on.
+	 *
+	 * The session is opened to the relay picked by {@link #selectRelay(Set)}, moving on to the next
+	 * relay if it can't be connected to.  Recipients rejected temporarily (4xx), or that couldn't be sent to
+	 * because no relay could be reached, are {@link #retry(EmailJob, Set, long) retried} later; if every
+	 * relay's circuit breaker is open, no sooner than the next health check.
+	 *
+	 * Every transaction holds a permit from the relay's {@link EmailConcurrencyLimiter},
+	 * which is told the reply code and latency of the transaction as it is released.
+	 * The connection is borrowed by preference from those last used for the same domain.
+	 *
+	 * Every chunk is completed, even once the thread has been interrupted, so no delivery is left
+	 * waiting on them: whoever in the remaining chunks hasn't been sent to is retried instead.
+	 *
+	 * @param chunks
+	 */
+	private void sendChunks(final List<? extends EmailJob> chunks){
+	EmailRelay			relay		=	null;
+	EmailTransportPool	pool		=	null;//the transport goes back to the pool it came from
+	Transport			transport	=	null;
+	String				affinity	=	null;
+		try{
+			jobs:
+			for (final EmailJob job:chunks){
+	EmailJob				chunk		=	job;
+				try{
+					if (Thread.currentThread().isInterrupted()) {//so none of the rest are sent now, but they're still completed
+						retryUnsent(job);
+						continue;
+					}
+					if (ratelimiter.isEnabled()) {
+							chunk		=	throttle(job);
+						if (chunk==null) {//every recipient has been deferred
+							continue;
+						}
+					}
+	MimeMessage				msg;
 					try{
-final	MimeMessage			msg		=	new MimeMessage(mailSession);
-							msg.setFrom(from);
-							msg.setRecipients(Message.RecipientType.TO, addressTO);
-							//Here we just double check that users don't receive duplicate emails
-final	Set<Address>		temp	=	new HashSet<Address>();
-						for(final Address addr:addressCC) {
-							if (!email.getSendLog().alreadySentTo(addr.toString())) {
-								temp.add(addr);
+							msg			=	chunk.toMimeMessage(mailSession);
+					} catch (final Exception e){
+						//the message can't be built, so no one in the chunk can be sent to
+						giveUp(chunk, unsent(chunk), "[ERROR]:"+e+" [MSG]:"+e.getMessage());
+						continue;
+					}
+					if (msg==null) {//everyone in the chunk has already been sent to
+						continue;
+					}
+	final Set<Address>		retry		=	new HashSet<Address>();
+							affinity	=	chunk.getAffinity();//the connection is released with that of the last chunk sent
+	Set<EmailRelay>			tried		=	null;
+	boolean					sent		=	false;
+					while (!sent){
+						if (transport==null){
+							relay		=	selectRelay(tried);
+							if (relay==null) {
+								break;
 							}
+							pool		=	relay.getTransportPool();
 						}
-						if (temp.size()>0) {
-							msg.setRecipients(Message.RecipientType.CC, temp.toArray(new InternetAddress[0]));
+	final EmailConcurrencyLimiter	limiter	=	pool.getLimiter();
+	final long				waited		=	System.nanoTime();
+						try{
+							limiter.acquire();
+						} catch (final InterruptedException ie){
+							Thread.currentThread().interrupt();
+							logError(chunk, ie);
+							retryUnsent(chunk);
+							continue jobs;
 						}
-							temp.clear();
-						for(final Address addr:addressBCC) {
-							if (!email.getSendLog().alreadySentTo(addr.toString())) {
-								temp.add(addr);
+						EmailMetrics.SMTP_PERMIT.recordSince(waited);
+						if (transport==null){
+	final long				borrowed	=	System.nanoTime();
+							try{
+								transport	=	pool.borrow(EmailTransportPool.DEFAULT_BORROWTIMEOUT, affinity);
+							} catch (final MessagingException me){
+								//nothing was sent, so the limiter isn't told a reply or latency
+								limiter.release();
+								logError(chunk, me);
+								if (Thread.currentThread().isInterrupted()) {
+									retryUnsent(chunk);
+									continue jobs;
+								}
+								//couldn't connect, so fail over to the next relay; a pool closed by a resize says nothing of the relay
+								if (!pool.isClosed()) {
+									relay.failed();
+								}
+								if (tried==null) {
+									tried	=	new HashSet<EmailRelay>();
+								}
+								tried.add(relay);
+								continue;
 							}
+							EmailMetrics.SMTP_ACQUIRE.recordSince(borrowed);
 						}
-						if (temp.size()>0) {
-							msg.setRecipients(Message.RecipientType.BCC, temp.toArray(new InternetAddress[0]));
+	final long				start		=	System.nanoTime();//only the transaction is timed, not connecting/TLS/AUTH
+	int						reply		=	EmailSMTPReply.UNKNOWN;
+						try{
+							reply		=	send(msg, chunk.getSendLog(), chunk.getDelivery(), transport, retry);
+						} finally {
+							limiter.release(reply, System.nanoTime()-start);
+							EmailMetrics.reply(reply);
 						}
-							temp.clear();
+						if (reply!=EmailSMTPReply.OK && !transport.isConnected()){
+							relay.failed();
+							pool.invalidate(transport);
+							transport	=	null;
+							if (reply==EmailSMTPReply.UNKNOWN){//the connection was lost mid transaction, so fail over too
+								if (tried==null) {
+									tried	=	new HashSet<EmailRelay>();
+								}
+								tried.add(relay);
+								retry.clear();
+								try{
+									msg		=	chunk.toMimeMessage(mailSession);//without anyone the relay did accept
+								} catch (final MessagingException me){
+									logError(chunk, me);
+									break;
+								}
+								if (msg==null) {
+									break;
+								}
+								continue;
+							}
+						} else {
+							relay.succeeded();
+						}
+							sent		=	true;
+					}
+					if (!sent && msg!=null) {//no relay was available, or none could be connected to
+						retry.addAll(unsent(chunk));
+					}
+					if (!retry.isEmpty()) {
+						//if every circuit was open, there's no point trying again before the next health check
+						retry(chunk, retry, sent || tried!=null?0:TimeUnit.MILLISECONDS.toNanos(EmailRelay.DEFAULT_HEALTHINTERVAL));
+					}
+				} finally {
+					if (chunk!=null && chunk!=job) {
+							chunk.completed();
+					}
+							job.completed();
+				}
+			}
+		} finally {
+			if (transport!=null) {
+				pool.release(transport, affinity);
+			}
+		}
+	}
 
-							msg.setDescription(email.getName(), "utf-8");
-							msg.setSubject(email.getSubject(), "utf-8");
-							msg.setContent(email.getAsMultipart());
+	/**
+	 * @param job
+	 * @param e logged to the job's send log, and reported to its delivery
+	 */
+	private static void logError(final EmailJob job, final Exception e){
+		job.getSendLog().logError(e);
+		if (job.getDelivery()!=null) {
+			job.getDelivery().error("[ERROR]:"+e+" [MSG]:"+e.getMessage());
+		}
+	}
 
-						send(msg,email.getSendLog());
-					} catch (final Exception e){
-						email.getSendLog().logError(e);
+	/**
+	 * Takes a token per recipient from the bucket of the recipient's domain.  Recipients at domains
+	 * without enough tokens are split off into a job of their own (per domain), which is sent once the
+	 * bucket will have refilled, so they are deferred rather than dropped, and don't hold up the rest.
+	 *
+	 * @param job
+	 * @return the job, a subset of it with just the recipients that can be sent to now, or null if there are none
+	 */
+	private EmailJob throttle(final EmailJob job){
+final	Map<String,List<Address>>	bydomain	=	new HashMap<String,List<Address>>();
+		for (final Address addr:job.getRecipients()) {
+			if (!job.getSendLog().alreadySentTo(addr.toString())) {
+				bydomain.computeIfAbsent(EmailDomainRateLimiter.domainOf(addr), d -> new ArrayList<Address>()).add(addr);
+			}
+		}
+final	Set<Address>				admitted	=	new HashSet<Address>();
+	boolean							deferred	=	false;
+		for (final Map.Entry<String,List<Address>> entry:bydomain.entrySet()){
+final	List<Address>				recipients	=	entry.getValue();
+final	int							taken		=	ratelimiter.tryAcquire(entry.getKey(), recipients.size());
+									admitted.addAll(recipients.subList(0, taken));
+			if (taken<recipients.size()){
+									deferred	=	true;
+				defer(job.subset(new HashSet<Address>(recipients.subList(taken, recipients.size()))),
+					  ratelimiter.nanosUntil(entry.getKey(), recipients.size()-taken));
+			}
+		}
+		if (!deferred) {
+			return job;
+		}
+		return admitted.isEmpty()?null:job.subset(admitted);
+	}
+
+	/**
+	 * Retries the recipients after the backoff the {@link EmailRetryPolicy} gives for the job's next retry,
+	 * or once the job has been retried as many times as the policy allows, logs them as failed.
+	 *
+	 * @param job
+	 * @param recipients
+	 * @param atleast minimum delay, in nanoseconds, should the policy's backoff be shorter
+	 */
+	private void retry(final EmailJob job, final Set<Address> recipients, final long atleast){
+final	EmailRetryPolicy	policy	=	retrypolicy;
+		if (job.getRetries()<policy.getMaxRetries()) {
+			EmailMetrics.RECIPIENTS_RETRIED.add(recipients.size());
+			defer(job.retry(recipients), Math.max(atleast, policy.delay(job.getRetries()+1)));
+			return;
+		}
+		giveUp(job, recipients, "Gave up on "+recipients.size()+" recipient(s) after "+job.getRetries()+" retries\n");
+	}
+
+	/**
+	 * Retries whoever in the job hasn't been sent to, e.g. when the sending thread is interrupted
+	 * (if the executor is being shut down, they are then logged as failed rather than sent).
+	 *
+	 * @param job
+	 */
+	private void retryUnsent(final EmailJob job){
+final	Set<Address>	recipients	=	unsent(job);
+		if (!recipients.isEmpty()) {
+			retry(job, recipients, 0);
+		}
+	}
+
+	/**
+	 * @param job
+	 * @return the job's recipients that haven't been sent to yet
+	 */
+	private static Set<Address> unsent(final EmailJob job){
+final	Set<Address>	unsent	=	new HashSet<Address>();
+		for (final Address addr:job.getRecipients()) {
+			if (!job.getSendLog().alreadySentTo(addr.toString())) {
+				unsent.add(addr);
+			}
+		}
+		return unsent;
+	}
+
+	/**
+	 * Logs the recipients as failed.
+	 *
+	 * @param job
+	 * @param recipients
+	 * @param error logged to the job's send log, and reported to its delivery
+	 */
+	private static void giveUp(final EmailJob job, final Set<Address> recipients, final String error){
+		job.getSendLog().logError(error);
+		if (job.getDelivery()!=null) {
+			job.getDelivery().error(error);
+		}
+		EmailMetrics.RECIPIENTS_FAILED.add(recipients.size());
+		for (final Address addr:recipients){
+			job.getSendLog().logFailedTo(addr.toString());
+			if (job.getDelivery()!=null) {
+				job.getDelivery().failedTo(addr.toString());
+			}
+		}
+	}
+
+	/**
+	 * Puts the job on the timing wheel, so nothing (thread or heap entry) is tied up while it waits.
+	 *
+	 * The wheel's one thread turns it for every factory, so the job is handed to the executor without
+	 * blocking: if the executor is full it is deferred again for {@link #BUSYDELAY} ms, and if it has been
+	 * shut down, the job's recipients are logged as failed.
+	 *
+	 * @param job to send once the delay has passed
+	 * @param nanos delay
+	 */
+	private void defer(final EmailJob job, final long nanos){
+		DEFERRED.schedule(new Runnable(){
+			@Override
+			public void run() {
+final	ExecutorService	current	=	executor;
+				if (tryExecute(current, new QueuedSend(){
+						@Override
+						void send() {
+							sendChunks(Collections.singletonList(job));
+						}
+					})) {
+					return;
+				}
+				if (!current.isShutdown()) {
+					defer(job, TimeUnit.MILLISECONDS.toNanos(BUSYDELAY));
+					return;
+				}
+final	Set<Address>	unsent	=	new HashSet<Address>();
+				for (final Address addr:job.getRecipients()) {
+					if (!job.getSendLog().alreadySentTo(addr.toString())) {
+						unsent.add(addr);
 					}
 				}
+				if (!unsent.isEmpty()) {
+					giveUp(job, unsent, "Gave up on "+unsent.size()+" recipient(s) as the executor has been shut down\n");
+				}
+				job.completed();
+			}
+		}, nanos, TimeUnit.NANOSECONDS);
+	}
 
-			});
+	/**
+	 * Executes the task without ever blocking the calling thread, or running the task on it, whatever
+	 * the executor does when it is full.  For a ThreadPoolExecutor other than an ObservablePool that is
+	 * only a best effort, as there's no way of bypassing its RejectedExecutionHandler.
+	 *
+	 * @param executor
+	 * @param task
+	 * @return false if the executor is full or shutdown
+	 */
+	private static boolean tryExecute(final ExecutorService executor, final Runnable task){
+		if (executor instanceof _THREADfactory.ObservablePool) {
+			return ((_THREADfactory.ObservablePool)executor).tryExecute(task);
+		}
+		if (executor instanceof ThreadPoolExecutor){
+final	ThreadPoolExecutor	pool	=	(ThreadPoolExecutor)executor;
+			if (pool.getQueue().remainingCapacity()==0 && pool.getActiveCount()>=pool.getMaximumPoolSize()) {
+				return false;
+			}
+		}
+		try {
+			executor.execute(task);
+			return true;
+		} catch (final RejectedExecutionException ree){
+			return false;
 		}
 	}
 
-	private void send(final MimeMessage mymsg, final EmailSendLog sendlog){
+	/**
+	 * Sends the message, sorting its recipients by outcome: those the relay accepted are logged as sent,
+	 * those it permanently (5xx) rejected are logged as failed, and those it temporarily (4xx) rejected,
+	 * or that weren't sent to because the connection was lost, are added to <code>retry</code> and not logged.
+	 * Recipients that were only unsent because the transaction was aborted over another recipient
+	 * are resent straight away, as before.
+	 *
+	 * @param mymsg
+	 * @param sendlog
+	 * @param delivery to also report the outcome to, may be null
+	 * @param transport a connected transport borrowed from the pool
+	 * @param retry receives the recipients to retry later
+	 * @return the SMTP reply code, {@link EmailSMTPReply#OK} if every recipient was accepted first time,
+	 * or {@link EmailSMTPReply#UNKNOWN} if the connection was lost
+	 */
+	private int send(final MimeMessage mymsg, final EmailSendLog sendlog, final EmailDelivery delivery, final Transport transport, final Set<Address> retry){
 	String					error					=	"";
+	int						reply					=	EmailSMTPReply.OK;
+final	Set<Address>		failed					=	new HashSet<Address>();
+final	Set<Address>		delivered				=	new HashSet<Address>();
+	boolean					dropped					=	false;
+	Address[]				all						=	new Address[0];
 		try{
-//			System.out.println(mymsg.getRecipients(Message.RecipientType.BCC));
+							all						=	mymsg.getAllRecipients();
 			try {
-				Transport.send(mymsg);
+				transportSend(mymsg, transport);
 			} catch (final SendFailedException sfex) {
-final Address[] 				invalid 					=	sfex.getInvalidAddresses();
-final Address[]				validUnsent 				=	sfex.getValidUnsentAddresses();
-final Address[]				validSent					=	sfex.getValidSentAddresses();
-				if (validUnsent != null) {
-ArrayList<Address>		toAddresses					=	new ArrayList<Address>();
-ArrayList<Address>		ccAddresses					=	new ArrayList<Address>();
-ArrayList<Address>		bccAddresses				=	new ArrayList<Address>();
-					try {
-						if (mymsg.getRecipients(Message.RecipientType.TO) != null) {
-							toAddresses 			=	new ArrayList<Address>(Arrays.asList(mymsg.getRecipients(Message.RecipientType.TO)));
-						}
-						if (mymsg.getRecipients(Message.RecipientType.CC) != null) {
-							ccAddresses 			=	new ArrayList<Address>(Arrays.asList(mymsg.getRecipients(Message.RecipientType.CC)));
-						}
-						if (mymsg.getRecipients(Message.RecipientType.BCC) != null) {
-							bccAddresses 			=	new ArrayList<Address>(Arrays.asList(mymsg.getRecipients(Message.RecipientType.BCC)));
-						}
-					} catch (final Exception ex2) {
-						throw new MessagingException("_EMAILfactory.sendEmailMessage() ERR: "+ex2+" MSG:"+ex2.getMessage());
-					}
-					// remove the invalid addresses
-					if (invalid != null) {
-						for (final Address element : invalid) {
+				reply										=	EmailSMTPReply.code(sfex, transport);
+final Set<Address>			resend						=	classify(sfex, reply, delivered, failed, retry);
+				for (final Address element:failed) {
 							error					+=	"Invalid email address for address:" + element + "\n";
-							ccAddresses.remove(element);
-							bccAddresses.remove(element);
+				}
+				if (!resend.isEmpty()) {
+					try {
+						// set the message recipients to those that can be resent to now
+						for (final Message.RecipientType type:new Message.RecipientType[]{Message.RecipientType.TO, Message.RecipientType.CC, Message.RecipientType.BCC}){
+final Address[]				current						=	mymsg.getRecipients(type);
+							mymsg.setRecipients(type, current==null?null:EmailChunk.only(current, resend));
 						}
-					}
-					// remove the addresses the EMAIL *WAS* sent to
-					if (validSent != null) {
-						for (final Address element : validSent) {
-							ccAddresses.remove(element);
-							bccAddresses.remove(element);
+						transportSend(mymsg, transport);
+					} catch (final SendFailedException sfex2) {
+						reply									=	EmailSMTPReply.code(sfex2, transport);
+						for (final Address element:classify(sfex2, reply, delivered, failed, retry)) {
+							(EmailSMTPReply.isPermanent(reply)?failed:retry).add(element);
 						}
 					}
-					try {
-						// set the message recipients
-						mymsg.setRecipients(Message.RecipientType.TO, toAddresses.toArray(new InternetAddress[0]));
-						mymsg.setRecipients(Message.RecipientType.CC, ccAddresses.toArray(new InternetAddress[0]));
-						mymsg.setRecipients(Message.RecipientType.BCC, bccAddresses.toArray(new InternetAddress[0]));
-						Transport.send(mymsg);
-					} catch (final MessagingException ex3) {
-						throw new MessagingException("_EMAILfactory.send(subject="+mymsg.getSubject()+") ERR: "+ex3+" MSG:"+ex3.getMessage());
-					}
 				}
 			}
 		} catch (final Exception e){
-				e.printStackTrace();
+			if (transport.isConnected()) {
+				reply								=	EmailSMTPReply.code(e, transport);
+			} else {
+				reply								=	EmailSMTPReply.UNKNOWN;
+				dropped								=	true;
+			}
+			//nothing more was sent, so whatever hasn't been accounted for failed with the transaction
+			for (final Address addr:all) {
+				if (!delivered.contains(addr) && !failed.contains(addr) && !retry.contains(addr)) {
+					(EmailSMTPReply.isPermanent(reply)?failed:retry).add(addr);
+				}
+			}
+			if (!dropped) {
+				error								+=	"[ERROR]:"+e+" [MSG]:"+e.getMessage()+"\n";
+			} else if (sendlog!=null) {
+				//the recipients are retried, so it's only kept in the send log rather than reported to the delivery
+				sendlog.logError("[ERROR]:"+e+" [MSG]:"+e.getMessage()+"\n");
+			}
 		} finally {
 			try{
 				if (sendlog!=null){
 					if (error.length()>0) {
 						sendlog.logError(error);
+						if (delivery!=null) {
+							delivery.error(error);
+						}
 					}
-					for (final Address addr:mymsg.getAllRecipients()) {
-						sendlog.logSentTo(addr.toString());
+					EmailMetrics.RECIPIENTS_FAILED.add(failed.size());
+					for (final Address addr:failed) {
+						sendlog.logFailedTo(addr.toString());
+						if (delivery!=null) {
+							delivery.failedTo(addr.toString());
+						}
+					}
+					for (final Address addr:all) {
+						if (!failed.contains(addr) && !retry.contains(addr)) {
+							EmailMetrics.RECIPIENTS_SENT.increment();
+							sendlog.logSentTo(addr.toString());
+							if (delivery!=null) {
+								delivery.sentTo(addr.toString());
+							}
+						}
 					}
 				}
 			} catch (final Exception e){
-				e.printStackTrace();
-				//If there was a problem generating the log, then dump stack and move on
+				//If there was a problem generating the log, then keep why (if the log can still take it) and move on
+				if (sendlog!=null) {
+					sendlog.logError(e);
+				}
 			}
 		}
+		return reply;
 	}
 
+	/**
+	 * Sorts the recipients of a SendFailedException, using the reply code the relay gave each recipient where there is one.
+	 *
+	 * @param sfex
+	 * @param reply the reply code of the transaction as a whole
+	 * @param delivered receives the recipients that were sent to
+	 * @param failed receives the recipients that were rejected permanently (5xx)
+	 * @param retry receives the recipients that were rejected temporarily (4xx)
+	 * @return recipients that were accepted, but not sent to because the transaction was aborted over another recipient
+	 */
+	private static Set<Address> classify(final SendFailedException sfex, final int reply, final Set<Address> delivered, final Set<Address> failed, final Set<Address> retry){
+final	Map<Address,Integer>	codes		=	EmailSMTPReply.recipientCodes(sfex);
+final	Set<Address>			resend		=	new LinkedHashSet<Address>();
+		if (sfex.getValidSentAddresses()!=null) {
+			delivered.addAll(Arrays.asList(sfex.getValidSentAddresses()));
+		}
+		if (sfex.getInvalidAddresses()!=null) {
+			for (final Address addr:sfex.getInvalidAddresses()) {
+				(EmailSMTPReply.isTransient(codes.getOrDefault(addr, EmailSMTPReply.UNKNOWN))?retry:failed).add(addr);
+			}
+		}
+		if (sfex.getValidUnsentAddresses()!=null) {
+			//if other recipients were refused, those without a code of their own were accepted, but the transaction aborted
+final	boolean					aborted		=	!codes.isEmpty() || sfex.getInvalidAddresses()!=null && sfex.getInvalidAddresses().length>0;
+			for (final Address addr:sfex.getValidUnsentAddresses()) {
+final	Integer					code		=	codes.get(addr);
+				if (code!=null) {
+					(EmailSMTPReply.isPermanent(code)?failed:retry).add(addr);
+				} else if (aborted) {
+					resend.add(addr);
+				} else {//the transaction itself failed (e.g. at DATA)
+					(EmailSMTPReply.isPermanent(reply)?failed:retry).add(addr);
+				}
+			}
+		}
+		return resend;
+	}
 
+	/**
+	 * Sends the message as a single transaction over an already connected (pooled)
+	 * transport, rather than the static Transport.send() which would open (and AUTH)
+	 * a brand new connection for every message.  The recipients are passed explicitly
+	 * so that MAIL FROM/RCPT TO/DATA can follow on directly from the previous transaction.
+	 * Both phases, and the size of the message, are recorded in {@link EmailMetrics}.
+	 *
+	 * @param mymsg
+	 * @param transport
+	 * @throws MessagingException
+	 */
+	private static void transportSend(final MimeMessage mymsg, final Transport transport) throws MessagingException {
+		mymsg.saveChanges();
+final	EmailMimeMessage	metered		=	mymsg instanceof EmailMimeMessage?(EmailMimeMessage)mymsg:null;
+		if (metered!=null) {
+			metered.resetWritten();
+		}
+final	long				start		=	System.nanoTime();
+		try {
+			transport.sendMessage(mymsg, mymsg.getAllRecipients());
+		} finally {
+			if (metered==null || metered.datastarted==0) {//never got as far as the content
+				EmailMetrics.SMTP_RCPT.recordSince(start);
+			} else {
+				EmailMetrics.SMTP_RCPT.record(metered.datastarted-start);
+				EmailMetrics.SMTP_DATA.recordSince(metered.datastarted);
+				EmailMetrics.MESSAGE_BYTES.record(metered.written);
+			}
+		}
+	}
 
 }
 
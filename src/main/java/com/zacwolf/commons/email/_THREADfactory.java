@@ -27,10 +27,21 @@
 package com.zacwolf.commons.email;
 
 import java.util.List;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
  * @author Zac Morris <a href="mailto:zac@zacwolf.com">zac@zacwolf.com</a>
@@ -69,6 +80,107 @@ final	ExecutorService		pool		=	Executors.newFixedThreadPool(size, new ThreadFact
 		return pools.get(name);
 	}
 
+	/**
+	 * Looks for a ScheduledExecutorService thread pool specified by name.
+	 * If no thread pool by that name exists, a new one is created
+	 * with <code>size</code> number of daemon threads, as scheduled pools
+	 * are used for housekeeping tasks that should never hold the JVM open.
+	 *
+	 * If a thread already exists, then <code>size</code> is ignored.
+	 *
+	 * @param name thread name
+	 * @param size number of threads
+	 * @return ScheduledExecutorService
+	 * @throws ClassCastException if a non-scheduled pool already exists with that name
+	 */
+	public static ScheduledExecutorService getScheduledThreadPool(final String name, final int size) throws ClassCastException {
+		if (!pools.containsKey(name) || pools.get(name).isShutdown()){
+final	ScheduledExecutorService	pool		=	Executors.newScheduledThreadPool(size, new ThreadFactory(name, true));
+									pools.put(name, pool);
+		}
+		return (ScheduledExecutorService)pools.get(name);
+	}
+
+	/**
+	 * Looks for an ObservablePool thread pool specified by name.
+	 * If no thread pool by that name exists, a new one is created
+	 * with between <code>core</code> and <code>max</code> threads,
+	 * and a queue that holds at most <code>capacity</code> tasks.
+	 *
+	 * If a thread already exists, then the other parameters are ignored.
+	 *
+	 * @param name thread name
+	 * @param core initial (and minimum) number of threads
+	 * @param max maximum number of threads
+	 * @param capacity maximum number of queued tasks
+	 * @param saturation what to do with a task when the queue is full
+	 * @return ObservablePool
+	 * @throws ClassCastException if a different type of pool already exists with that name
+	 */
+	public static ObservablePool getObservableThreadPool(final String name, final int core, final int max, final int capacity, final Saturation saturation) throws ClassCastException {
+		if (!pools.containsKey(name) || pools.get(name).isShutdown()){
+final	ObservablePool		pool		=	new ObservablePool(name, core, max, capacity, saturation);
+							pools.put(name, pool);
+		}
+		return (ObservablePool)pools.get(name);
+	}
+
+	/**
+	 * Looks for a PermitLimitedExecutor specified by name.
+	 * If no executor by that name exists, a new one is created that runs
+	 * every task on its own virtual thread (when running on Java 21+),
+	 * with no more than <code>permits</code> tasks running at once.
+	 *
+	 * On earlier JVMs there are no virtual threads, so it instead falls back
+	 * to a fixed pool of <code>permits</code> platform threads.
+	 *
+	 * If an executor already exists, then <code>permits</code> is ignored.
+	 *
+	 * @param name thread name prefix
+	 * @param permits maximum number of tasks running at once
+	 * @return PermitLimitedExecutor
+	 * @throws ClassCastException if a different type of pool already exists with that name
+	 */
+	public static PermitLimitedExecutor getVirtualThreadPool(final String name, final int permits) throws ClassCastException {
+		if (!pools.containsKey(name) || pools.get(name).isShutdown()){
+final	ExecutorService			virtual		=	newVirtualThreadPerTaskExecutor(name);
+final	PermitLimitedExecutor	pool		=	new PermitLimitedExecutor(virtual!=null?virtual:Executors.newFixedThreadPool(permits, new ThreadFactory(name)), permits, virtual!=null);
+								pools.put(name, pool);
+		}
+		return (PermitLimitedExecutor)pools.get(name);
+	}
+
+	/**
+	 * @return true if the JVM supports virtual threads
+	 */
+	public static boolean isVirtualThreadsSupported(){
+		try {
+			Thread.class.getMethod("ofVirtual");
+			return true;
+		} catch (final NoSuchMethodException nsme) {
+			return false;
+		}
+	}
+
+	/**
+	 * Virtual threads are only in Java 21+, so they have to be looked up reflectively to keep
+	 * compiling against the 1.8 baseline.
+	 *
+	 * @param name thread name prefix
+	 * @return executor starting a new virtual thread per task, or null if virtual threads aren't available
+	 */
+	private static ExecutorService newVirtualThreadPerTaskExecutor(final String name){
+		try {
+	Object										builder	=	Thread.class.getMethod("ofVirtual").invoke(null);
+												builder	=	Class.forName("java.lang.Thread$Builder$OfVirtual").getMethod("name", String.class, long.class).invoke(builder, name, 0L);
+final	java.util.concurrent.ThreadFactory		factory	=	(java.util.concurrent.ThreadFactory)Class.forName("java.lang.Thread$Builder").getMethod("factory").invoke(builder);
+			return (ExecutorService)Executors.class.getMethod("newThreadPerTaskExecutor", java.util.concurrent.ThreadFactory.class).invoke(null, factory);
+		} catch (final Exception e) {
+			//pre Java 21 (or a preview release with previews disabled)
+			return null;
+		}
+	}
+
 	@Override
 	public void finalize(){
 		shutdownNow();
@@ -98,6 +210,17 @@ final	ExecutorService		pool	=	pools.remove(name);
 		return pool.shutdownNow();
 	}
 
+	/**
+	 * Shuts down a single pool, letting the tasks already submitted finish.
+	 *
+	 * @param pool
+	 * @throws NullPointerException
+	 */
+	public static void shutdownAndRemove(final ExecutorService pool) throws NullPointerException {
+		pools.values().remove(pool);
+		pool.shutdown();
+	}
+
 	/**
 	 * Shutdown a single pool by name.
 	 *
@@ -110,13 +233,375 @@ final	ExecutorService		pool	=	pools.remove(name);
 		return pool.shutdownNow();
 	}
 
+	/**
+	 * What an ObservablePool does with a task submitted while its queue is full.
+	 */
+	public enum Saturation {
+		/** the submitting thread waits for space in the queue */
+		BLOCK,
+		/** the submitting thread runs the task itself */
+		CALLER_RUNS,
+		/** a RejectedExecutionException is thrown (and counted in the Stats) */
+		REJECT
+	}
+
+	/**
+	 * A ThreadPoolExecutor with a bounded queue, a {@link Saturation} policy for when it is full,
+	 * and statistics on how long tasks wait in the queue and take to run.
+	 *
+	 * The pool is elastic: every {@link #DEFAULT_ADJUSTINTERVAL} ms the average queue wait over the
+	 * interval is compared to the target wait.  If tasks waited longer, a core thread is added (up to
+	 * max), and if the queue was empty and fewer than half the threads were busy, one is removed
+	 * (down to the initial core size).
+	 */
+	final public static class ObservablePool extends ThreadPoolExecutor {
+final	static	public		long				DEFAULT_TARGETWAIT		=	50;
+final	static	public		long				DEFAULT_ADJUSTINTERVAL	=	1000;
+
+final			private		String				name;
+final			private		int					mincore;
+final			private		LongAdder			submitted				=	new LongAdder();
+final			private		LongAdder			started					=	new LongAdder();
+final			private		LongAdder			completed				=	new LongAdder();
+final			private		LongAdder			rejected				=	new LongAdder();
+final			private		LongAdder			waitnanos				=	new LongAdder();
+final			private		LongAdder			runnanos				=	new LongAdder();
+final			private		AtomicLong			maxwaitnanos			=	new AtomicLong();
+final			private		ScheduledFuture<?>	adjuster;
+	volatile	private		long				targetwaitnanos			=	TimeUnit.MILLISECONDS.toNanos(DEFAULT_TARGETWAIT);
+				private		long				lastwaitnanos			=	0;
+				private		long				laststarted				=	0;
+
+		ObservablePool(final String name, final int core, final int max, final int capacity, final Saturation saturation){
+			super(core, max, 60L, TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(capacity), new ThreadFactory(name), handler(saturation));
+			this.name		=	name;
+			this.mincore	=	core;
+			adjuster		=	getScheduledThreadPool("THREADfactory_elastic", 1).scheduleWithFixedDelay(new Runnable(){
+									@Override
+									public void run() {
+										adjust();
+									}
+								}, DEFAULT_ADJUSTINTERVAL, DEFAULT_ADJUSTINTERVAL, TimeUnit.MILLISECONDS);
+		}
+
+		/**
+		 * @param targetwait average queue wait (in ms) above which another core thread is added
+		 */
+		public void setTargetWait(final long targetwait){
+			targetwaitnanos	=	TimeUnit.MILLISECONDS.toNanos(targetwait);
+		}
+
+		/**
+		 * @return snapshot of the pool's statistics
+		 */
+		public Stats getStats(){
+final	long	done	=	completed.sum();
+final	long	begun	=	started.sum();
+			return new Stats(name, getQueue().size(), getQueue().remainingCapacity(), getActiveCount(), getPoolSize(), getCorePoolSize(), getMaximumPoolSize(),
+							 submitted.sum(), done, rejected.sum(),
+							 begun==0?0:TimeUnit.NANOSECONDS.toMicros(waitnanos.sum()/begun),
+							 TimeUnit.NANOSECONDS.toMicros(maxwaitnanos.get()),
+							 done==0?0:TimeUnit.NANOSECONDS.toMicros(runnanos.sum()/done));
+		}
+
+		@Override
+		public void execute(final Runnable command){
+			submitted.increment();
+			super.execute(command instanceof Timed?command:new Timed(command, false));
+		}
+
+		/**
+		 * Executes the task if there's a thread or room in the queue for it, but unlike {@link #execute(Runnable)}
+		 * never applies the {@link Saturation} policy, so never blocks, or runs the task on the calling thread.
+		 *
+		 * @param command
+		 * @return false if the pool is full (counted in the Stats as rejected) or shutdown
+		 */
+		public boolean tryExecute(final Runnable command){
+			try {
+				execute(new Timed(command, true));
+				return true;
+			} catch (final RejectedExecutionException ree){
+				return false;
+			}
+		}
+
+		@Override
+		protected void beforeExecute(final Thread t, final Runnable r){
+			super.beforeExecute(t, r);
+			if (r instanceof Timed){
+final	Timed	timed	=	(Timed)r;
+final	long	now		=	System.nanoTime();
+final	long	wait	=	now-timed.queued;
+				timed.started	=	now;
+				waitnanos.add(wait);
+				started.increment();
+				maxwaitnanos.accumulateAndGet(wait, Math::max);
+			}
+		}
+
+		@Override
+		protected void afterExecute(final Runnable r, final Throwable t){
+			super.afterExecute(r, t);
+			if (r instanceof Timed) {
+				runnanos.add(System.nanoTime()-((Timed)r).started);
+			}
+			completed.increment();
+		}
+
+		@Override
+		protected void terminated(){
+			adjuster.cancel(false);
+			super.terminated();
+		}
+
+		private synchronized void adjust(){
+final	long	wait		=	waitnanos.sum();
+final	long	begun		=	started.sum();
+final	long	count		=	begun-laststarted;
+final	long	avgwait		=	count==0?0:(wait-lastwaitnanos)/count;
+			lastwaitnanos	=	wait;
+			laststarted		=	begun;
+final	int		core		=	getCorePoolSize();
+			if ((avgwait>targetwaitnanos || (count==0 && !getQueue().isEmpty())) && core<getMaximumPoolSize()) {
+				setCorePoolSize(core+1);
+			} else if (core>mincore && getQueue().isEmpty() && getActiveCount()<core/2) {
+				setCorePoolSize(core-1);
+			}
+		}
+
+		private static RejectedExecutionHandler handler(final Saturation saturation){
+			switch (saturation){
+				case BLOCK:
+					return new RejectedExecutionHandler(){
+						@Override
+						public void rejectedExecution(final Runnable r, final ThreadPoolExecutor executor) {
+							if (((Timed)r).tried) {
+								reject(r, executor);
+							}
+							if (executor.isShutdown()) {
+								throw new RejectedExecutionException("Pool is shutdown");
+							}
+							try {
+								executor.getQueue().put(r);
+							} catch (final InterruptedException ie){
+								Thread.currentThread().interrupt();
+								throw new RejectedExecutionException(ie);
+							}
+							//the pool may have been shut down while waiting for room, in which case nothing may ever run it
+							if (executor.isShutdown() && executor.getQueue().remove(r)) {
+								throw new RejectedExecutionException("Pool is shutdown");
+							}
+						}
+					};
+				case CALLER_RUNS:
+					return new RejectedExecutionHandler(){
+						@Override
+						public void rejectedExecution(final Runnable r, final ThreadPoolExecutor executor) {
+							if (((Timed)r).tried) {
+								reject(r, executor);
+							}
+							if (!executor.isShutdown()) {
+								//the queue wait of a task the caller runs is zero
+								((Timed)r).queued	=	System.nanoTime();
+								((ObservablePool)executor).beforeExecute(Thread.currentThread(), r);
+	Throwable				thrown	=	null;
+								try {
+									r.run();
+								} catch (final RuntimeException | Error e){
+									thrown	=	e;
+									throw e;
+								} finally {
+									((ObservablePool)executor).afterExecute(r, thrown);
+								}
+							}
+						}
+					};
+				default:
+					return new RejectedExecutionHandler(){
+						@Override
+						public void rejectedExecution(final Runnable r, final ThreadPoolExecutor executor) {
+							reject(r, executor);
+						}
+					};
+			}
+		}
+
+		private static void reject(final Runnable r, final ThreadPoolExecutor executor){
+			((ObservablePool)executor).rejected.increment();
+			throw new RejectedExecutionException("Queue of pool "+((ObservablePool)executor).name+" is full");
+		}
+
+		/**
+		 * Records when the task was queued.
+		 */
+		final private static class Timed implements Runnable {
+final				Runnable	task;
+/** submitted by {@link ObservablePool#tryExecute(Runnable)}, so rejected rather than the Saturation applied */
+final				boolean		tried;
+	volatile		long		queued		=	System.nanoTime();
+	volatile		long		started;
+
+			Timed(final Runnable task, final boolean tried){
+				this.task	=	task;
+				this.tried	=	tried;
+			}
+
+			@Override
+			public void run() {
+				task.run();
+			}
+		}
+	}
+
+	/**
+	 * Runs tasks on the underlying executor, but with no more than <code>permits</code> running at once.
+	 * The permit is acquired by the task itself once it has started, so submitting never blocks, and
+	 * with virtual threads a task waiting for a permit doesn't hold on to an OS thread.
+	 *
+	 * Note that before Java 24 a virtual thread blocked on I/O while holding a monitor is pinned to
+	 * its carrier thread, and JavaMail's SMTPTransport synchronizes sendMessage(), so it is on Java 24+
+	 * that the number of concurrent SMTP transactions is truly limited only by the permits.
+	 */
+	final public static class PermitLimitedExecutor extends AbstractExecutorService {
+final			private		ExecutorService		delegate;
+final			private		Semaphore			permits;
+final			private		int					size;
+final			private		boolean				virtual;
+
+		PermitLimitedExecutor(final ExecutorService delegate, final int permits, final boolean virtual){
+			if (permits<1) {
+				throw new IllegalArgumentException("permits must be at least 1");
+			}
+			this.delegate	=	delegate;
+			this.permits	=	new Semaphore(permits);
+			this.size		=	permits;
+			this.virtual	=	virtual;
+		}
+
+		/**
+		 * @return the maximum number of tasks running at once
+		 */
+		public int getPermits(){
+			return size;
+		}
+
+		/**
+		 * @return the number of tasks currently running
+		 */
+		public int getActiveCount(){
+			return size-permits.availablePermits();
+		}
+
+		/**
+		 * @return true if tasks run on virtual threads, false if on the platform thread fallback
+		 */
+		public boolean isVirtual(){
+			return virtual;
+		}
+
+		@Override
+		public void execute(final Runnable command){
+			delegate.execute(new Runnable(){
+				@Override
+				public void run() {
+					try {
+						permits.acquire();
+					} catch (final InterruptedException ie){
+						Thread.currentThread().interrupt();
+						return;
+					}
+					try {
+						command.run();
+					} finally {
+						permits.release();
+					}
+				}
+			});
+		}
+
+		@Override
+		public void shutdown(){
+			delegate.shutdown();
+		}
+
+		@Override
+		public List<Runnable> shutdownNow(){
+			return delegate.shutdownNow();
+		}
+
+		@Override
+		public boolean isShutdown(){
+			return delegate.isShutdown();
+		}
+
+		@Override
+		public boolean isTerminated(){
+			return delegate.isTerminated();
+		}
+
+		@Override
+		public boolean awaitTermination(final long timeout, final TimeUnit unit) throws InterruptedException {
+			return delegate.awaitTermination(timeout, unit);
+		}
+	}
+
+	/**
+	 * Point in time statistics of an ObservablePool.  Times are in microseconds.
+	 */
+	final public static class Stats {
+final	public	String	name;
+final	public	int		queueDepth;
+final	public	int		queueRemaining;
+final	public	int		activeThreads;
+final	public	int		poolSize;
+final	public	int		coreSize;
+final	public	int		maxSize;
+final	public	long	submitted;
+final	public	long	completed;
+final	public	long	rejected;
+final	public	long	avgWait;
+final	public	long	maxWait;
+final	public	long	avgRun;
+
+		Stats(final String name, final int queueDepth, final int queueRemaining, final int activeThreads, final int poolSize, final int coreSize, final int maxSize,
+			  final long submitted, final long completed, final long rejected, final long avgWait, final long maxWait, final long avgRun){
+			this.name			=	name;
+			this.queueDepth		=	queueDepth;
+			this.queueRemaining	=	queueRemaining;
+			this.activeThreads	=	activeThreads;
+			this.poolSize		=	poolSize;
+			this.coreSize		=	coreSize;
+			this.maxSize		=	maxSize;
+			this.submitted		=	submitted;
+			this.completed		=	completed;
+			this.rejected		=	rejected;
+			this.avgWait		=	avgWait;
+			this.maxWait		=	maxWait;
+			this.avgRun			=	avgRun;
+		}
+
+		@Override
+		public String toString(){
+			return name+" [queue:"+queueDepth+"/"+(queueDepth+queueRemaining)+" active:"+activeThreads+" threads:"+poolSize+" ("+coreSize+"-"+maxSize+")"
+					+" submitted:"+submitted+" completed:"+completed+" rejected:"+rejected
+					+" wait(avg/max):"+avgWait+"/"+maxWait+"us run(avg):"+avgRun+"us]";
+		}
+	}
+
 	final public static class ThreadFactory implements java.util.concurrent.ThreadFactory {
 
 final	String		name;
 final	ThreadGroup	group;
+final	boolean		daemon;
 
 		ThreadFactory(final String name){
+			this(name, false);
+		}
+
+		ThreadFactory(final String name, final boolean daemon){
 			this.name	=	name;
+			this.daemon	=	daemon;
 			group		=	new ThreadGroup(name);
 		}
 
@@ -127,7 +612,7 @@ final	ThreadGroup	group;
 		public Thread newThread(final Runnable r) {
 final	Thread	t = new Thread(group,r);
 				t.setName(name + t.getName());
-				t.setDaemon(false);
+				t.setDaemon(daemon);
 				return t;
 		}
 
@@ -0,0 +1,113 @@
+/* com.zacwolf.commons.email.EmailAddressTableTest.java
+ *
+ * Growth, lookup, cloning and serialization of the interned address table
+ *
+ * Copyright (C) 2021 Zac Morris
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.zacwolf.commons.email;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+
+import javax.mail.internet.InternetAddress;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * @author Zac Morris <zac@zacwolf.com>
+ * @version 1.3
+ * @since Java1.8
+ */
+public class EmailAddressTableTest {
+
+	@Test
+	void growsAndFindsEveryAddress() throws Exception {
+final	EmailAddressTable	table	=	new EmailAddressTable();
+final	InternetAddress[]	added	=	TestEmails.recipients("User", 10000);
+		for (int i=0; i<added.length; i++) {
+			assertEquals(i, table.intern(added[i]));
+		}
+		assertEquals(added.length, table.size());
+		for (int i=0; i<added.length; i++){
+			assertEquals(i, table.indexOf(added[i].getAddress()));
+			assertEquals(added[i].getAddress(), table.getAddress(i));
+		}
+		assertEquals(-1, table.indexOf("missing@domain0.example"));
+	}
+
+	@Test
+	void matchesCaseInsensitivelyButKeepsTheOriginalCase() throws Exception {
+final	EmailAddressTable	table	=	new EmailAddressTable();
+final	int					index	=	table.intern(new InternetAddress("Jane.Doe@Example.COM"));
+		assertEquals(index, table.intern(new InternetAddress("jane.doe@example.com")));
+		assertEquals(1, table.size());
+		assertEquals(index, table.indexOf("JANE.DOE@EXAMPLE.COM"));
+		assertEquals("Jane.Doe@Example.COM", table.getAddress(index));
+	}
+
+	@Test
+	void keepsPersonalNames() throws Exception {
+final	EmailAddressTable	table	=	new EmailAddressTable();
+final	int					plain	=	table.intern(new InternetAddress("plain@example.com"));
+final	int					named	=	table.intern(new InternetAddress("named@example.com"));
+		table.intern(new InternetAddress("named@example.com", "Named Person"));
+		assertNull(table.materialize(plain).getPersonal());
+		assertEquals("Named Person", table.materialize(named).getPersonal());
+		assertEquals(new InternetAddress("named@example.com"), table.materialize(named));
+	}
+
+	@Test
+	void cloneIsIndependent() throws Exception {
+final	EmailAddressTable	table	=	new EmailAddressTable();
+		table.intern(new InternetAddress("first@example.com"));
+final	EmailAddressTable	clone	=	table.clone();
+		clone.intern(new InternetAddress("second@example.com", "Second"));
+		assertEquals(1, table.size());
+		assertEquals(-1, table.indexOf("second@example.com"));
+		assertEquals(2, clone.size());
+		assertEquals("Second", clone.materialize(clone.indexOf("second@example.com")).getPersonal());
+	}
+
+	@Test
+	void survivesSerialization() throws Exception {
+final	EmailAddressTable	table	=	new EmailAddressTable();
+final	InternetAddress[]	added	=	TestEmails.recipients("user", 100);
+		for (final InternetAddress address:added) {
+			table.intern(address);
+		}
+		table.intern(new InternetAddress("user7@domain7.example", "Seven"));
+final	ByteArrayOutputStream	baos	=	new ByteArrayOutputStream();
+		try (final ObjectOutputStream out=new ObjectOutputStream(baos)){
+			out.writeObject(table);
+		}
+final	EmailAddressTable	copy;
+		try (final ObjectInputStream in=new ObjectInputStream(new ByteArrayInputStream(baos.toByteArray()))){
+							copy	=	(EmailAddressTable)in.readObject();
+		}
+		assertEquals(table.size(), copy.size());
+		for (int i=0; i<added.length; i++) {
+			assertEquals(i, copy.indexOf(added[i].getAddress()));
+		}
+		assertEquals("Seven", copy.materialize(7).getPersonal());
+		copy.intern(new InternetAddress("another@example.com"));
+		assertEquals(added.length, copy.indexOf("another@example.com"));
+	}
+}
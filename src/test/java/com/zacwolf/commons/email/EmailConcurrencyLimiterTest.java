@@ -0,0 +1,119 @@
+/* com.zacwolf.commons.email.EmailConcurrencyLimiterTest.java
+ *
+ * AIMD growth and throttle/latency backoff of the adaptive SMTP concurrency limit
+ *
+ * Copyright (C) 2021 Zac Morris
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.zacwolf.commons.email;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * @author Zac Morris <zac@zacwolf.com>
+ * @version 1.3
+ * @since Java1.8
+ */
+public class EmailConcurrencyLimiterTest {
+final	static	private		long	FAST	=	TimeUnit.MILLISECONDS.toNanos(1);
+final	static	private		long	SLOW	=	TimeUnit.SECONDS.toNanos(30);
+
+	@Test
+	void growsByOneOverTheLimitPerSuccess() throws Exception {
+final	EmailConcurrencyLimiter	limiter	=	new EmailConcurrencyLimiter(1, 10, 1);
+		transact(limiter, EmailSMTPReply.OK, FAST);//1+1/1
+		assertEquals(2, limiter.getLimit());
+		transact(limiter, EmailSMTPReply.OK, FAST);//2+1/2
+		transact(limiter, EmailSMTPReply.OK, FAST);//2.5+1/2.5
+		assertEquals(2, limiter.getLimit());
+		transact(limiter, EmailSMTPReply.OK, FAST);//2.9+1/2.9
+		assertEquals(3, limiter.getLimit());
+		for (int i=0; i<1000; i++) {
+			transact(limiter, EmailSMTPReply.OK, FAST);
+		}
+		assertEquals(10, limiter.getLimit());
+	}
+
+	@Test
+	void halvesOnEveryThrottlingReply() throws Exception {
+		for (final int code:new int[]{421, 450, 451, 452}){
+final	EmailConcurrencyLimiter	limiter	=	new EmailConcurrencyLimiter(1, 16, 16);
+			transact(limiter, code, FAST);
+			assertEquals(8, limiter.getLimit(), "reply "+code);
+			assertEquals(1, limiter.getThrottledCount(), "reply "+code);
+		}
+	}
+
+	@Test
+	void ignoresFailuresThatArentThrottling() throws Exception {
+final	EmailConcurrencyLimiter	limiter	=	new EmailConcurrencyLimiter(1, 16, 16);
+		for (final int code:new int[]{454, 550, 554, EmailSMTPReply.UNKNOWN}){
+			transact(limiter, code, FAST);
+		}
+		assertEquals(16, limiter.getLimit());
+		assertEquals(0, limiter.getThrottledCount());
+		assertEquals(0, limiter.getInFlight());
+	}
+
+	@Test
+	void neverDropsBelowTheMinimum() throws Exception {
+final	EmailConcurrencyLimiter	limiter	=	new EmailConcurrencyLimiter(3, 16, 4);
+		transact(limiter, 421, 0);
+		assertEquals(3, limiter.getLimit());
+	}
+
+	@Test
+	void decreasesAtMostOncePerSmoothedLatency() throws Exception {
+final	EmailConcurrencyLimiter	limiter	=	new EmailConcurrencyLimiter(1, 64, 64);
+		transact(limiter, EmailSMTPReply.OK, SLOW);//smoothed latency is now 30s
+		transact(limiter, 421, SLOW);
+		assertEquals(32, limiter.getLimit());
+		transact(limiter, 421, SLOW);
+		transact(limiter, 452, SLOW);
+		assertEquals(32, limiter.getLimit());//the rest of the burst of throttles was ignored
+		assertEquals(3, limiter.getThrottledCount());
+	}
+
+	@Test
+	void decreasesAgainOnceASmoothedLatencyHasPassed() throws Exception {
+final	EmailConcurrencyLimiter	limiter	=	new EmailConcurrencyLimiter(1, 64, 64);
+		transact(limiter, EmailSMTPReply.OK, FAST);
+		transact(limiter, 421, FAST);
+		assertEquals(32, limiter.getLimit());
+		Thread.sleep(10);
+		transact(limiter, 421, FAST);
+		assertEquals(16, limiter.getLimit());
+	}
+
+	@Test
+	void backsOffWhenLatencyClimbsAfterWarmup() throws Exception {
+final	EmailConcurrencyLimiter	limiter	=	new EmailConcurrencyLimiter(1, 100, 100);
+		for (int i=0; i<10; i++) {
+			transact(limiter, EmailSMTPReply.OK, FAST);
+		}
+		assertEquals(100, limiter.getLimit());
+		transact(limiter, EmailSMTPReply.OK, FAST*3);//more than twice the smoothed latency
+		assertEquals(90, limiter.getLimit());
+	}
+
+	private static void transact(final EmailConcurrencyLimiter limiter, final int replycode, final long nanos) throws InterruptedException {
+		limiter.acquire();
+		limiter.release(replycode, nanos);
+	}
+}
@@ -0,0 +1,88 @@
+/* com.zacwolf.commons.email.EmailDistributionTest.java
+ *
+ * Serialization of distributions, including those written before the address table
+ *
+ * Copyright (C) 2021 Zac Morris
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.zacwolf.commons.email;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import javax.mail.internet.InternetAddress;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * @author Zac Morris <zac@zacwolf.com>
+ * @version 1.3
+ * @since Java1.8
+ */
+public class EmailDistributionTest {
+
+	@Test
+	void survivesSerialization() throws Exception {
+final	EmailDistribution	dist	=	new EmailDistribution(new InternetAddress(TestEmails.FROM), TestEmails.recipients("To", 50));
+		dist.addCC("cc@domain0.example");
+		dist.addBCC("bcc@domain0.example");
+final	EmailDistribution	copy	=	TestStreams.read(TestStreams.write(dist), EmailDistribution.class);
+		assertEquals(dist.getFROM(), copy.getFROM());
+		assertArrayEquals(sorted(dist.getTO()), sorted(copy.getTO()));
+		assertArrayEquals(sorted(dist.getCC()), sorted(copy.getCC()));
+		assertArrayEquals(sorted(dist.getBCC()), sorted(copy.getBCC()));
+		assertTrue(copy.addTO("new@domain0.example"));
+	}
+
+	@Test
+	void readsDistributionsSerializedBeforeTheAddressTable() throws Exception {
+final	InternetAddress[]					to		=	TestEmails.recipients("To", 50);
+final	Map<String,Set<InternetAddress>>	toMap	=	new HashMap<String,Set<InternetAddress>>();
+final	Map<String,Set<InternetAddress>>	ccMap	=	new HashMap<String,Set<InternetAddress>>();
+		toMap.put(EmailDistribution.GROUP_STATIC, new HashSet<InternetAddress>(Arrays.asList(to)));
+		toMap.put("team", new HashSet<InternetAddress>(Arrays.asList(to[0], to[1])));
+		ccMap.put(EmailDistribution.GROUP_STATIC, new HashSet<InternetAddress>(Arrays.asList(new InternetAddress("cc@domain0.example"))));
+final	EmailDistribution					dist	=	TestStreams.read(TestStreams.write(new com.zacwolf.commons.email.legacy.EmailDistribution(new InternetAddress(TestEmails.FROM), toMap, ccMap, new HashMap<String,Set<InternetAddress>>())), EmailDistribution.class);
+		assertEquals(new InternetAddress(TestEmails.FROM), dist.getFROM());
+		assertArrayEquals(sorted(to), sorted(dist.getTO()));
+		assertTrue(dist.toJSONWithGroups().contains("\"team\""));
+		assertEquals("cc@domain0.example", dist.getCC()[0].getAddress());
+		assertEquals(null, dist.getBCC());
+		assertTrue(dist.addBCC("bcc@domain0.example"));
+		assertEquals(1, dist.getBCC().length);
+	}
+
+	@Test
+	void keepsTheStaticHelpersForSubclasses() throws Exception {
+final	Map<String,Set<InternetAddress>>	map		=	new HashMap<String,Set<InternetAddress>>();
+final	InternetAddress[]					to		=	TestEmails.recipients("To", 5);
+		assertTrue(EmailDistribution.add2DistByAddress(map, to));
+		assertArrayEquals(sorted(to), sorted(EmailDistribution.getFlatDist(map)));
+	}
+
+	private static InternetAddress[] sorted(final InternetAddress[] addresses){
+final	InternetAddress[]	copy	=	addresses.clone();
+		Arrays.sort(copy, Comparator.comparing(InternetAddress::getAddress));
+		return copy;
+	}
+}
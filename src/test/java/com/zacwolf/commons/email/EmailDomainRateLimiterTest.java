@@ -0,0 +1,114 @@
+/* com.zacwolf.commons.email.EmailDomainRateLimiterTest.java
+ *
+ * GCRA burst and refill, and the sub-domain fallback of per-domain send rates
+ *
+ * Copyright (C) 2021 Zac Morris
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.zacwolf.commons.email;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+
+import javax.mail.internet.InternetAddress;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * @author Zac Morris <zac@zacwolf.com>
+ * @version 1.3
+ * @since Java1.8
+ */
+public class EmailDomainRateLimiterTest {
+
+	@Test
+	void bucketAllowsABurstThenRefillsAtTheRate() throws Exception {
+final	EmailDomainRateLimiter.Bucket	bucket	=	new EmailDomainRateLimiter.Bucket(10, 5);
+		assertEquals(5, bucket.tryAcquire(8));
+		assertEquals(0, bucket.tryAcquire(1));
+final	long	wait	=	bucket.nanosUntil(1);
+		assertTrue(wait>TimeUnit.MILLISECONDS.toNanos(50) && wait<=TimeUnit.MILLISECONDS.toNanos(100), "waited "+wait);
+		assertTrue(bucket.nanosUntil(50)<=TimeUnit.MILLISECONDS.toNanos(500));//never more than a full burst away
+		TimeUnit.NANOSECONDS.sleep(wait);
+		assertEquals(1, bucket.tryAcquire(1));
+	}
+
+	@Test
+	void bucketTakesPartOfARequestAndNeverOverfills() throws Exception {
+final	EmailDomainRateLimiter.Bucket	bucket	=	new EmailDomainRateLimiter.Bucket(1000, 20);
+		Thread.sleep(100);//idle for a lot longer than it takes to refill
+		assertEquals(20, bucket.tryAcquire(100));
+		assertEquals(0, bucket.tryAcquire(100));
+	}
+
+	@Test
+	void unlimitedBucketTakesEverything(){
+		assertEquals(1000, EmailDomainRateLimiter.Bucket.UNLIMITED.tryAcquire(1000));
+		assertEquals(0, EmailDomainRateLimiter.Bucket.UNLIMITED.nanosUntil(1000));
+	}
+
+	@Test
+	void subDomainsShareTheirParentsRate(){
+final	EmailDomainRateLimiter	limiter	=	new EmailDomainRateLimiter();
+		assertFalse(limiter.isEnabled());
+		limiter.setRate("Example.com", 1, 2);
+		assertTrue(limiter.isEnabled());
+		assertEquals(1, limiter.tryAcquire("mail.example.com", 1));
+		assertEquals(1, limiter.tryAcquire("a.b.example.com", 1));
+		assertEquals(0, limiter.tryAcquire("example.com", 1));
+		assertEquals(50, limiter.tryAcquire("notexample.com", 50));//not a sub-domain, so unlimited
+	}
+
+	@Test
+	void aSubDomainsOwnRateTakesPrecedence(){
+final	EmailDomainRateLimiter	limiter	=	new EmailDomainRateLimiter();
+		limiter.setRate("example.com", 1, 1);
+		limiter.setRate("mail.example.com", 1, 3);
+		assertEquals(1, limiter.tryAcquire("example.com", 5));
+		assertEquals(3, limiter.tryAcquire("mail.example.com", 5));
+		assertEquals(0, limiter.tryAcquire("x.mail.example.com", 5));
+	}
+
+	@Test
+	void domainsWithoutARateShareTheDefault(){
+final	EmailDomainRateLimiter	limiter	=	new EmailDomainRateLimiter();
+		assertEquals(100, limiter.tryAcquire("one.example", 100));
+		limiter.setDefaultRate(1, 3);
+		assertTrue(limiter.isEnabled());
+		assertEquals(2, limiter.tryAcquire("one.example", 2));
+		assertEquals(1, limiter.tryAcquire("two.example", 2));
+		assertEquals(0, limiter.tryAcquire("three.example", 2));
+	}
+
+	@Test
+	void removingARateFallsBackToTheParentDomain(){
+final	EmailDomainRateLimiter	limiter	=	new EmailDomainRateLimiter();
+		limiter.setRate("example.com", 1, 1);
+		limiter.setRate("mail.example.com", 1000, 100);
+		assertEquals(100, limiter.tryAcquire("mail.example.com", 100));
+		limiter.removeRate("MAIL.example.com");
+		assertEquals(1, limiter.tryAcquire("mail.example.com", 100));
+		assertEquals(0, limiter.tryAcquire("example.com", 1));
+	}
+
+	@Test
+	void domainOfAnAddressIsLowerCased() throws Exception {
+		assertEquals("mail.example.com", EmailDomainRateLimiter.domainOf(new InternetAddress("Someone@Mail.EXAMPLE.com")));
+		assertEquals("", EmailDomainRateLimiter.domainOf(new InternetAddress("local")));
+	}
+}
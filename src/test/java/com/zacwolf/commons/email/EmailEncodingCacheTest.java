@@ -0,0 +1,152 @@
+/* com.zacwolf.commons.email.EmailEncodingCacheTest.java
+ *
+ * Hits, misses, eviction and invalidation of the attachment transfer encoding cache
+ *
+ * Copyright (C) 2021 Zac Morris
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.zacwolf.commons.email;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.util.Random;
+
+import javax.mail.internet.MimeBodyPart;
+import javax.mail.internet.MimeUtility;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * @author Zac Morris <zac@zacwolf.com>
+ * @version 1.3
+ * @since Java1.8
+ */
+public class EmailEncodingCacheTest {
+
+	@BeforeEach
+	void setUp(){
+		EmailEncodingCache.clear();
+	}
+
+	@AfterEach
+	void tearDown(){
+		EmailEncodingCache.setMaxBytes(EmailEncodingCache.DEFAULT_MAXBYTES);
+		EmailEncodingCache.clear();
+	}
+
+	@Test
+	void encodesOnceThenWritesTheCachedCopy() throws Exception {
+final	byte[]				data		=	random(10*1024, 1);
+final	EmailAttachment		attachment	=	attachment("a.bin", data);
+final	long				hits		=	EmailMetrics.ENCODING_HITS.sum();
+final	long				misses		=	EmailMetrics.ENCODING_MISSES.sum();
+final	byte[]				first		=	write(attachment);
+		assertEquals(misses+1, EmailMetrics.ENCODING_MISSES.sum());
+		assertEquals(1, EmailEncodingCache.size());
+		assertEquals(first.length, EmailEncodingCache.getBytes());
+final	byte[]				second		=	write(attachment);
+		assertEquals(hits+1, EmailMetrics.ENCODING_HITS.sum());
+		assertEquals(misses+1, EmailMetrics.ENCODING_MISSES.sum());
+		assertArrayEquals(first, second);
+		assertArrayEquals(data, decode(second));
+		//a copy (e.g. on another Email) shares the encoding
+		write(attachment.clone());
+		assertEquals(hits+2, EmailMetrics.ENCODING_HITS.sum());
+	}
+
+	@Test
+	void evictsTheLeastRecentlyUsedByWeight() throws Exception {
+final	EmailAttachment		a			=	attachment("a.bin", random(10*1024, 1));
+final	EmailAttachment		b			=	attachment("b.bin", random(10*1024, 2));
+final	EmailAttachment		c			=	attachment("c.bin", random(10*1024, 3));
+final	int					encoded		=	write(a).length;
+		EmailEncodingCache.setMaxBytes(encoded*2+encoded/2);
+		write(b);
+		write(a);//so b is the least recently used
+		assertEquals(2, EmailEncodingCache.size());
+		write(c);
+		assertEquals(2, EmailEncodingCache.size());
+		assertTrue(EmailEncodingCache.getBytes()<=encoded*2+encoded/2);
+final	long				misses		=	EmailMetrics.ENCODING_MISSES.sum();
+		write(a);
+		write(c);
+		assertEquals(misses, EmailMetrics.ENCODING_MISSES.sum());
+		write(b);
+		assertEquals(misses+1, EmailMetrics.ENCODING_MISSES.sum());
+	}
+
+	@Test
+	void newContentIsEncodedAgain() throws Exception {
+final	EmailAttachment		attachment	=	attachment("a.bin", random(4*1024, 1));
+		write(attachment);
+final	byte[]				replaced	=	random(4*1024, 2);
+		attachment.setData(replaced);
+final	long				misses		=	EmailMetrics.ENCODING_MISSES.sum();
+		assertArrayEquals(replaced, decode(write(attachment)));
+		assertEquals(misses+1, EmailMetrics.ENCODING_MISSES.sum());
+	}
+
+	@Test
+	void contentBiggerThanTheCacheIsStreamedAndNotKept() throws Exception {
+		EmailEncodingCache.setMaxBytes(1024);
+final	byte[]				data		=	random(10*1024, 1);
+final	EmailAttachment		attachment	=	attachment("big.bin", data);
+		assertArrayEquals(data, decode(write(attachment)));
+		assertEquals(0, EmailEncodingCache.size());
+		assertEquals(0, EmailEncodingCache.getBytes());
+final	ByteArrayOutputStream	read	=	new ByteArrayOutputStream();
+		try (final InputStream in=EmailEncodingCache.getInputStream(attachment, "base64")){
+final	byte[]				buf			=	new byte[100];
+			for (int n; (n=in.read(buf))>0;) {
+				read.write(buf, 0, n);
+			}
+		}
+		assertArrayEquals(data, decode(read.toByteArray()));
+	}
+
+	private static EmailAttachment attachment(final String filename, final byte[] data) throws Exception {
+		return new EmailAttachment(filename, "application/octet-stream", data, filename, filename, MimeBodyPart.ATTACHMENT);
+	}
+
+	private static byte[] write(final EmailAttachment attachment) throws Exception {
+final	ByteArrayOutputStream	baos	=	new ByteArrayOutputStream();
+		EmailEncodingCache.writeTo(attachment, "base64", baos);
+		return baos.toByteArray();
+	}
+
+	private static byte[] decode(final byte[] encoded) throws Exception {
+final	ByteArrayOutputStream	baos	=	new ByteArrayOutputStream();
+		try (final InputStream in=MimeUtility.decode(new ByteArrayInputStream(encoded), "base64")){
+final	byte[]				buf		=	new byte[8192];
+			for (int n; (n=in.read(buf))>0;) {
+				baos.write(buf, 0, n);
+			}
+		}
+		return baos.toByteArray();
+	}
+
+	private static byte[] random(final int size, final long seed){
+final	byte[]				data	=	new byte[size];
+		new Random(seed).nextBytes(data);
+		return data;
+	}
+}
@@ -0,0 +1,140 @@
+/* com.zacwolf.commons.email.EmailEnvelopePlannerTest.java
+ *
+ * Per-type limits, domain packing and de-duplication of planned envelopes
+ *
+ * Copyright (C) 2021 Zac Morris
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.zacwolf.commons.email;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import javax.mail.Address;
+import javax.mail.internet.InternetAddress;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * @author Zac Morris <zac@zacwolf.com>
+ * @version 1.3
+ * @since Java1.8
+ */
+public class EmailEnvelopePlannerTest {
+final	static	private		int		MAX		=	100;
+
+	@Test
+	void noChunkHasMoreThanTheMaxOfAnyType() throws Exception {
+final	InternetAddress[]	to		=	TestEmails.recipients("to", 250);
+final	InternetAddress[]	cc		=	TestEmails.recipients("cc", 130);
+final	InternetAddress[]	bcc		=	at("bcc", "one.example", 210);
+final	List<EmailChunk>	chunks	=	EmailEnvelopePlanner.plan(null, null, to, cc, bcc, MAX, null);
+final	Set<Address>		planned	=	new HashSet<Address>();
+		for (final EmailChunk chunk:chunks){
+			assertTrue(count(chunk.addressTO)<=MAX);
+			assertTrue(count(chunk.addressCC)<=MAX);
+			assertTrue(count(chunk.addressBCC)<=MAX);
+			for (final Address addr:chunk.getRecipients()) {
+				assertTrue(planned.add(addr), addr+" planned twice");
+			}
+		}
+		assertEquals(to.length+cc.length+bcc.length, planned.size());
+	}
+
+	@Test
+	void smallDomainsArePackedIntoOneChunk() throws Exception {
+final	List<InternetAddress>	to		=	new ArrayList<InternetAddress>();
+		for (int d=0; d<10; d++) {
+			for (final InternetAddress addr:at("user", "domain"+d+".example", 10)) {
+				to.add(addr);
+			}
+		}
+final	List<EmailChunk>		chunks	=	EmailEnvelopePlanner.plan(null, null, to.toArray(new InternetAddress[0]), null, null, MAX, null);
+		assertEquals(1, chunks.size());
+		assertEquals(100, chunks.get(0).addressTO.length);
+		assertNull(chunks.get(0).addressCC);
+		assertNull(chunks.get(0).addressBCC);
+	}
+
+	@Test
+	void aBigDomainGetsAChunkOfItsOwn() throws Exception {
+final	List<InternetAddress>	to		=	new ArrayList<InternetAddress>();
+		for (int d=0; d<10; d++) {
+			for (final InternetAddress addr:at("user", "small"+d+".example", 5)) {
+				to.add(addr);
+			}
+		}
+		for (final InternetAddress addr:at("user", "big.example", 150)) {
+			to.add(addr);
+		}
+final	List<EmailChunk>		chunks	=	EmailEnvelopePlanner.plan(null, null, to.toArray(new InternetAddress[0]), null, null, MAX, null);
+		assertEquals(2, chunks.size());//100 of big, then the other 50 of big with the 50 small
+		assertEquals(100, chunks.get(0).addressTO.length);
+		assertEquals("big.example", EmailEnvelopePlanner.dominantDomain(chunks.get(0).addressTO));
+		for (final Address addr:chunks.get(0).addressTO) {
+			assertEquals("big.example", EmailDomainRateLimiter.domainOf(addr));
+		}
+		assertEquals(100, chunks.get(1).addressTO.length);
+	}
+
+	@Test
+	void recipientsInSeveralTypesAreOnlyAddressedAsTheFirst() throws Exception {
+final	InternetAddress		both	=	new InternetAddress("both@one.example");
+final	InternetAddress		all		=	new InternetAddress("all@two.example");
+final	InternetAddress		cconly	=	new InternetAddress("cc@one.example");
+final	List<EmailChunk>	chunks	=	EmailEnvelopePlanner.plan(null, null,
+											new Address[]{both, all},
+											new Address[]{new InternetAddress("BOTH@One.Example"), cconly, all},
+											new Address[]{all, new InternetAddress("All@two.example")},
+											MAX, null);
+		assertEquals(1, chunks.size());
+		assertArrayEquals(new Address[]{both, all}, chunks.get(0).addressTO);
+		assertArrayEquals(new Address[]{cconly}, chunks.get(0).addressCC);
+		assertNull(chunks.get(0).addressBCC);
+	}
+
+	@Test
+	void dominantDomainIsTheMostCommon() throws Exception {
+		assertNull(EmailEnvelopePlanner.dominantDomain(null));
+		assertNull(EmailEnvelopePlanner.dominantDomain(new Address[0]));
+final	List<InternetAddress>	mixed	=	new ArrayList<InternetAddress>();
+		for (final InternetAddress addr:at("a", "one.example", 2)) {
+			mixed.add(addr);
+		}
+		for (final InternetAddress addr:at("b", "Two.Example", 3)) {
+			mixed.add(addr);
+		}
+		assertEquals("two.example", EmailEnvelopePlanner.dominantDomain(mixed.toArray(new Address[0])));
+	}
+
+	private static InternetAddress[] at(final String prefix, final String domain, final int count) throws Exception {
+final	InternetAddress[]	addresses	=	new InternetAddress[count];
+		for (int i=0; i<count; i++) {
+							addresses[i]	=	new InternetAddress(prefix+i+"@"+domain);
+		}
+		return addresses;
+	}
+
+	private static int count(final Address[] addresses){
+		return addresses==null?0:addresses.length;
+	}
+}
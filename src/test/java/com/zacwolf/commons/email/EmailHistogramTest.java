@@ -0,0 +1,102 @@
+/* com.zacwolf.commons.email.EmailHistogramTest.java
+ *
+ * Bucket boundaries and percentiles of the log-linear latency histogram
+ *
+ * Copyright (C) 2021 Zac Morris
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.zacwolf.commons.email;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * @author Zac Morris <zac@zacwolf.com>
+ * @version 1.3
+ * @since Java1.8
+ */
+public class EmailHistogramTest {
+
+	@Test
+	void smallValuesHaveABucketEach(){
+		for (int v=0; v<EmailHistogram.SUBBUCKETS; v++){
+			assertEquals(v, EmailHistogram.bucket(v));
+			assertEquals(v, EmailHistogram.highest(v));
+		}
+		assertEquals(EmailHistogram.SUBBUCKETS, EmailHistogram.bucket(EmailHistogram.SUBBUCKETS));
+	}
+
+	@Test
+	void bucketsAreContiguousAndWithinASubBucketOfTheirValues(){
+		for (int b=1; b<EmailHistogram.bucket(Long.MAX_VALUE); b++){
+final	long	lowest	=	EmailHistogram.highest(b-1)+1;
+final	long	highest	=	EmailHistogram.highest(b);
+			assertTrue(highest>=lowest, "bucket "+b);
+			assertEquals(b, EmailHistogram.bucket(lowest), "lowest of bucket "+b);
+			assertEquals(b, EmailHistogram.bucket(highest), "highest of bucket "+b);
+			assertTrue(highest-lowest<=Math.max(0, lowest/EmailHistogram.SUBBUCKETS), "bucket "+b+" is "+lowest+"-"+highest);
+		}
+	}
+
+	@Test
+	void theLargestValuesFitInTheLastBucket(){
+final	int		last	=	EmailHistogram.bucket(Long.MAX_VALUE);
+		assertEquals(Long.MAX_VALUE, EmailHistogram.highest(last));
+		assertEquals(last, EmailHistogram.bucket(Long.MAX_VALUE-(Long.MAX_VALUE>>>5)));
+		assertTrue(last<1000);
+	}
+
+	@Test
+	void randomValuesLandInTheBucketThatHoldsThem(){
+final	Random	random	=	new Random(42);
+		for (int i=0; i<100000; i++){
+final	long	v		=	random.nextLong()>>>(1+random.nextInt(63));
+final	int		b		=	EmailHistogram.bucket(v);
+			assertTrue(EmailHistogram.highest(b)>=v && (b==0 || EmailHistogram.highest(b-1)<v), "value "+v);
+		}
+	}
+
+	@Test
+	void percentilesAreTheTopOfTheirBucket(){
+final	EmailHistogram	histogram	=	new EmailHistogram("test", "test values", "ms");
+		assertEquals(0, histogram.get50thPercentile());
+		for (int v=1; v<=1000; v++) {
+			histogram.record(v);
+		}
+		assertEquals(1000, histogram.getCount());
+		assertEquals(500500, histogram.getSum());
+		assertEquals(1000, histogram.getMax());
+		assertEquals(500.5d, histogram.getMean(), 0);
+		assertEquals(EmailHistogram.highest(EmailHistogram.bucket(500)), histogram.get50thPercentile());
+		assertEquals(EmailHistogram.highest(EmailHistogram.bucket(900)), histogram.get90thPercentile());
+		assertEquals(EmailHistogram.highest(EmailHistogram.bucket(990)), histogram.get99thPercentile());
+		assertEquals(1000, histogram.get999thPercentile());//never above the max
+		assertEquals(1, histogram.getPercentile(0));
+		assertEquals(1000, histogram.getPercentile(100));
+	}
+
+	@Test
+	void negativeValuesAreCountedAsZero(){
+final	EmailHistogram	histogram	=	new EmailHistogram("test", "test values", "ns");
+		histogram.record(-5);
+		assertEquals(1, histogram.getCount());
+		assertEquals(0, histogram.getSum());
+		assertEquals(0, histogram.get999thPercentile());
+	}
+}
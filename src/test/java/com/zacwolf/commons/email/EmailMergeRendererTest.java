@@ -0,0 +1,141 @@
+/* com.zacwolf.commons.email.EmailMergeRendererTest.java
+ *
+ * Personalizing mail-merge messages concurrently, each with its own parts
+ *
+ * Copyright (C) 2021 Zac Morris
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.zacwolf.commons.email;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javax.mail.BodyPart;
+import javax.mail.Multipart;
+import javax.mail.Part;
+import javax.mail.Session;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeMessage;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * @author Zac Morris <zac@zacwolf.com>
+ * @version 1.3
+ * @since Java1.8
+ */
+public class EmailMergeRendererTest {
+	private		Session				session;
+	private		byte[]				logo;
+	private		EmailMergeRenderer	renderer;
+
+	@BeforeEach
+	void setUp() throws Exception {
+		session		=	Session.getInstance(new Properties());
+		logo		=	new byte[20*1024];
+		new Random(6).nextBytes(logo);
+final	Email		email	=	TestEmails.email("merge", TestEmails.recipients("user", 1));
+		email.setBody("<html><head><title>Merge</title></head><body><img src=\"cid:logo\"/><p>Dear {{name}}</p></body></html>");
+		email.addAttachment(new EmailAttachment("logo.png", "image/png", logo, "logo", "Logo"));
+		renderer	=	new EmailMergeRenderer(email);
+	}
+
+	@Test
+	void eachMessageHasItsOwnInlineParts() throws Exception {
+final	MimeMessage		one		=	render(0);
+final	MimeMessage		two		=	render(1);
+final	BodyPart		first	=	inline(one);
+final	BodyPart		second	=	inline(two);
+		assertNotSame(first, second);
+		assertSame(first.getParent(), related(one));
+		assertSame(second.getParent(), related(two));
+	}
+
+	@Test
+	void rendersConcurrently() throws Exception {
+final	ExecutorService		pool	=	Executors.newFixedThreadPool(8);
+		try {
+final	List<Future<?>>		results	=	new ArrayList<Future<?>>();
+			for (int t=0; t<8; t++){
+				results.add(pool.submit(() -> {
+					for (int i=0; i<100; i++){
+final	MimeMessage				msg		=	render(i);
+final	ByteArrayOutputStream	baos	=	new ByteArrayOutputStream();
+						msg.writeTo(baos);
+final	MimeMessage				parsed	=	new MimeMessage(session, new ByteArrayInputStream(baos.toByteArray()));
+final	String					html	=	new String(content(related(parsed).getBodyPart(0)), "UTF-8");
+						assertTrue(html.contains("Dear Name"+i), html);
+						assertArrayEquals(logo, content(inline(parsed)));
+					}
+					return null;
+				}));
+			}
+			for (final Future<?> result:results) {
+				result.get();
+			}
+		} finally {
+			pool.shutdownNow();
+		}
+	}
+
+	private MimeMessage render(final int i) throws Exception {
+final	MimeMessage		msg		=	renderer.toMimeMessage(session, new InternetAddress(TestEmails.FROM), new InternetAddress("user"+i+"@test.example"),
+															   Collections.singletonMap("name", "Name"+i));
+		msg.saveChanges();
+		return msg;
+	}
+
+	/**
+	 * @return the "related" multipart, within the "alternative" one
+	 */
+	private static Multipart related(final MimeMessage msg) throws Exception {
+final	Multipart		alternative	=	(Multipart)msg.getContent();
+		assertEquals(2, alternative.getCount());
+		return (Multipart)alternative.getBodyPart(1).getContent();
+	}
+
+	private static BodyPart inline(final MimeMessage msg) throws Exception {
+final	Multipart		related		=	related(msg);
+		assertEquals(2, related.getCount());
+		return related.getBodyPart(1);
+	}
+
+	private static byte[] content(final Part part) throws Exception {
+final	ByteArrayOutputStream	baos	=	new ByteArrayOutputStream();
+		try (final InputStream in=part.getInputStream()){
+final	byte[]			buf		=	new byte[8192];
+			for (int n; (n=in.read(buf))>0;) {
+				baos.write(buf, 0, n);
+			}
+		}
+		return baos.toByteArray();
+	}
+}
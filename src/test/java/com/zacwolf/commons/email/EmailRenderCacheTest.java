@@ -0,0 +1,164 @@
+/* com.zacwolf.commons.email.EmailRenderCacheTest.java
+ *
+ * Rendering Emails once, without holding their attachments' content
+ *
+ * Copyright (C) 2021 Zac Morris
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.zacwolf.commons.email;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Random;
+
+import javax.mail.BodyPart;
+import javax.mail.Multipart;
+import javax.mail.Part;
+import javax.mail.Session;
+import javax.mail.internet.MimeBodyPart;
+import javax.mail.internet.MimeMessage;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * @author Zac Morris <zac@zacwolf.com>
+ * @version 1.3
+ * @since Java1.8
+ */
+public class EmailRenderCacheTest {
+	private		File		dir;
+	private		Session		session;
+
+	@BeforeEach
+	void setUp() throws Exception {
+		dir		=	TestFiles.createTempDirectory("render");
+		session	=	Session.getInstance(new Properties());
+		EmailRenderCache.clear();
+	}
+
+	@AfterEach
+	void tearDown(){
+		EmailRenderCache.clear();
+		TestFiles.delete(dir);
+	}
+
+	@Test
+	void attachmentsAreStreamedRatherThanHeld() throws Exception {
+final	byte[]		inmemory	=	random(100*1024, 1);
+final	byte[]		onfile		=	random(2*1024*1024, 2);
+final	File		file		=	new File(dir, "brochure.pdf");
+		Files.write(file.toPath(), onfile);
+final	Email		email		=	TestEmails.email("render", TestEmails.recipients("user", 1));
+		email.addAttachment(new EmailAttachment("logo.png", "image/png", inmemory, "logo", "Logo", MimeBodyPart.ATTACHMENT));
+		email.addAttachment(new EmailAttachment("brochure.pdf", EmailAttachmentSource.file(file, "application/pdf"), "brochure", "Brochure", MimeBodyPart.ATTACHMENT));
+
+final	EmailRenderCache.RenderedContent	content	=	EmailRenderCache.get(email);
+		assertSame(content, EmailRenderCache.get(email));
+		assertEquals(2, content.attachments.length);
+		assertTrue(content.data.limit()<inmemory.length, "rendered content holds the attachments: "+content.data.limit()+" bytes");
+
+final	Map<String,byte[]>	parts	=	new HashMap<String,byte[]>();
+		collect(parse(content), parts);
+		assertArrayEquals(inmemory, parts.get("logo.png"));
+		assertArrayEquals(onfile, parts.get("brochure.pdf"));
+		//and again, from the encodings already cached
+		parts.clear();
+		collect(parse(content), parts);
+		assertArrayEquals(onfile, parts.get("brochure.pdf"));
+	}
+
+	@Test
+	void attachmentStreamsAreOpenedAsTheyAreReached() throws Exception {
+final	byte[]		onfile		=	random(512*1024, 3);
+final	File		file		=	new File(dir, "report.pdf");
+		Files.write(file.toPath(), onfile);
+final	Email		email		=	TestEmails.email("lazy", TestEmails.recipients("user", 1));
+		email.addAttachment(new EmailAttachment("report.pdf", EmailAttachmentSource.file(file, "application/pdf"), "report", "Report", MimeBodyPart.ATTACHMENT));
+final	EmailRenderCache.RenderedContent	content	=	EmailRenderCache.get(email);
+		EmailEncodingCache.clear();
+final	long		misses		=	EmailMetrics.ENCODING_MISSES.sum();
+final	ByteArrayOutputStream	read	=	new ByteArrayOutputStream();
+		try (final InputStream in=content.getInputStream()){
+			assertEquals(misses, EmailMetrics.ENCODING_MISSES.sum(), "attachment encoded before any of the content was read");
+final	byte[]		buf			=	new byte[1000];
+			for (int n; (n=in.read(buf))>0;) {
+				read.write(buf, 0, n);
+			}
+		}
+final	ByteArrayOutputStream	written	=	new ByteArrayOutputStream();
+		content.writeTo(written);
+		assertArrayEquals(written.toByteArray(), read.toByteArray());
+	}
+
+	@Test
+	void contentWithoutAttachmentsIsUnchanged() throws Exception {
+final	Email		email		=	TestEmails.email("plain", TestEmails.recipients("user", 1));
+final	EmailRenderCache.RenderedContent	content	=	EmailRenderCache.get(email);
+		assertEquals(0, content.attachments.length);
+final	ByteArrayOutputStream	baos	=	new ByteArrayOutputStream();
+		try (final InputStream in=content.getInputStream()){
+			for (int b; (b=in.read())>=0;) {
+				baos.write(b);
+			}
+		}
+		assertArrayEquals(content.data.array(), baos.toByteArray());
+	}
+
+	private MimeMessage parse(final EmailRenderCache.RenderedContent content) throws Exception {
+final	MimeMessage				msg		=	new EmailRenderCache.RenderedMimeMessage(session, content);
+		msg.saveChanges();
+final	ByteArrayOutputStream	baos	=	new ByteArrayOutputStream();
+		msg.writeTo(baos);
+		return new MimeMessage(session, new ByteArrayInputStream(baos.toByteArray()));
+	}
+
+	private static void collect(final Part part, final Map<String,byte[]> parts) throws Exception {
+		if (part.isMimeType("multipart/*")){
+final	Multipart	multipart	=	(Multipart)part.getContent();
+			for (int i=0; i<multipart.getCount(); i++){
+final	BodyPart	child		=	multipart.getBodyPart(i);
+				collect(child, parts);
+			}
+		} else if (part.getFileName()!=null){
+final	ByteArrayOutputStream	baos	=	new ByteArrayOutputStream();
+			try (final InputStream in=part.getInputStream()){
+final	byte[]		buf			=	new byte[8192];
+				for (int n; (n=in.read(buf))>0;) {
+					baos.write(buf, 0, n);
+				}
+			}
+			parts.put(part.getFileName(), baos.toByteArray());
+		}
+	}
+
+	private static byte[] random(final int size, final long seed){
+final	byte[]		data		=	new byte[size];
+		new Random(seed).nextBytes(data);
+		return data;
+	}
+}
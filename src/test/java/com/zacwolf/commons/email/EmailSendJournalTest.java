@@ -0,0 +1,148 @@
+/* com.zacwolf.commons.email.EmailSendJournalTest.java
+ *
+ * Replay, segment roll over, and crash recovery of the send journal
+ *
+ * Copyright (C) 2021 Zac Morris
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.zacwolf.commons.email;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * @author Zac Morris <zac@zacwolf.com>
+ * @version 1.3
+ * @since Java1.8
+ */
+public class EmailSendJournalTest {
+	private		File		basedir;
+
+	@BeforeEach
+	void setUp() throws IOException {
+		basedir	=	TestFiles.createTempDirectory("journal");
+	}
+
+	@AfterEach
+	void tearDown(){
+		TestFiles.delete(basedir);
+	}
+
+	@Test
+	void replaysRecordsInOrder() throws IOException {
+final	List<String>	written	=	new ArrayList<String>();
+		try (final EmailSendJournal journal=new EmailSendJournal(basedir, "refid", null)){
+			for (int i=0; i<100; i++){
+final	byte			state	=	i%10==0?EmailSendJournal.FAILED:EmailSendJournal.SENT;
+				journal.append("user"+i+"@example.com", state);
+				written.add(state+":user"+i+"@example.com");
+			}
+		}
+		assertEquals(written, replay(EmailSendJournal.DEFAULT_SEGMENTSIZE));
+	}
+
+	@Test
+	void rollsOverSegments() throws IOException {
+final	List<String>	written	=	new ArrayList<String>();
+		try (final EmailSendJournal journal=new EmailSendJournal(basedir, "refid", null, 64, 1000)){
+			for (int i=0; i<50; i++){
+				journal.append("user"+i+"@example.com", EmailSendJournal.SENT);
+				written.add(EmailSendJournal.SENT+":user"+i+"@example.com");
+			}
+		}
+		assertTrue(segments().length>1, "expected more than one segment");
+		assertEquals(written, replay(64));
+	}
+
+	/**
+	 * Cuts the last record off part way through its header, and part way through its address.
+	 */
+	@Test
+	void replayAfterTruncation() throws IOException {
+		for (final int cut:new int[]{1, 5}){
+			TestFiles.delete(basedir);
+final	List<String>	written	=	new ArrayList<String>();
+	long				complete=	0;
+			try (final EmailSendJournal journal=new EmailSendJournal(basedir, "refid", null, 4096, 1000)){
+				for (int i=0; i<10; i++){
+final	String			address	=	"user"+i+"@example.com";
+					journal.append(address, EmailSendJournal.SENT);
+					if (i<9){
+						written.add(EmailSendJournal.SENT+":"+address);
+						complete	+=	3+address.getBytes(StandardCharsets.UTF_8).length;
+					}
+				}
+			}
+			try (final RandomAccessFile segment=new RandomAccessFile(segments()[0], "rw")){
+				segment.setLength(complete+cut);
+			}
+			assertEquals(written, replay(4096), "cut "+cut+" bytes into the last record");
+			//the next record goes where the partial one was, and is replayed intact
+			try (final EmailSendJournal journal=new EmailSendJournal(basedir, "refid", null, 4096, 1000)){
+				journal.append("after@example.com", EmailSendJournal.FAILED);
+			}
+			written.add(EmailSendJournal.FAILED+":after@example.com");
+			assertEquals(written, replay(4096), "appended after a cut of "+cut+" bytes");
+		}
+	}
+
+	@Test
+	void sendLogResumesFromJournal() throws IOException {
+final	EmailSendLog	first	=	new EmailSendLog();
+		first.openJournal(basedir, "refid");
+		first.logSentTo("a@example.com");
+		first.logSentTo("b@example.com");
+		first.logFailedTo("c@example.com");
+		first.closeJournal(false);
+
+final	EmailSendLog	resumed	=	new EmailSendLog();
+		resumed.openJournal(basedir, "refid");
+		assertTrue(resumed.alreadySentTo("a@example.com"));
+		assertTrue(resumed.alreadySentTo("b@example.com"));
+		assertFalse(resumed.alreadySentTo("c@example.com"));
+		assertEquals(2, resumed.getSentCount());
+		assertEquals(1, resumed.getFailedCount());
+		resumed.closeJournal(true);
+		assertEquals(0, segments().length);
+	}
+
+	private List<String> replay(final int segmentsize) throws IOException {
+final	List<String>	replayed	=	new ArrayList<String>();
+		new EmailSendJournal(basedir, "refid", (address, state) -> replayed.add(state+":"+address), segmentsize, 1000).close();
+		return replayed;
+	}
+
+	private File[] segments(){
+final	File[]	dirs	=	basedir.listFiles(File::isDirectory);
+		if (dirs==null || dirs.length==0) {
+			return new File[0];
+		}
+final	File[]	files	=	dirs[0].listFiles((d, name) -> name.endsWith(".journal"));
+		java.util.Arrays.sort(files);
+		return files;
+	}
+}
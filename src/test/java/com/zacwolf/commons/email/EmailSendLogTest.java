@@ -0,0 +1,145 @@
+/* com.zacwolf.commons.email.EmailSendLogTest.java
+ *
+ * Lookups, compaction, the bloom filter and serialization of the send log
+ *
+ * Copyright (C) 2021 Zac Morris
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.zacwolf.commons.email;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Arrays;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * @author Zac Morris <zac@zacwolf.com>
+ * @version 1.3
+ * @since Java1.8
+ */
+public class EmailSendLogTest {
+
+	@Test
+	void readsLogsSerializedBeforeItWasLockFree() throws Exception {
+final	com.zacwolf.commons.email.legacy.EmailSendLog	old	=	new com.zacwolf.commons.email.legacy.EmailSendLog();
+		old.logSentTo("a@domain0.example");
+		old.logSentTo("b@domain0.example");
+		old.logError("boom");
+final	EmailSendLog	log		=	TestStreams.read(TestStreams.write(old), EmailSendLog.class);
+		assertTrue(log.alreadySentTo("a@domain0.example"));
+		assertFalse(log.alreadySentTo("c@domain0.example"));
+		assertEquals(2, log.getSentCount());
+		assertEquals(0, log.getFailedCount());
+		assertEquals("boom", log.getErrors());
+		log.logSentTo("c@domain0.example");
+		log.logFailedTo("d@domain0.example");
+		log.compact();
+		assertTrue(log.alreadySentTo("c@domain0.example"));
+		assertEquals(3, log.getSentCount());
+		assertEquals(1, log.getFailedCount());
+	}
+
+	@Test
+	void survivesSerializationCompactedAndFiltered() throws Exception {
+final	EmailSendLog	log		=	new EmailSendLog();
+		log.logSentTo("a@domain0.example");
+		log.compact();
+		log.logSentTo("b@domain0.example");
+		log.logFailedTo("c@domain0.example");
+		log.enableFilter(100, EmailSendLog.DEFAULT_FPP);
+final	EmailSendLog	copy	=	TestStreams.read(TestStreams.write(log), EmailSendLog.class);
+		assertTrue(copy.alreadySentTo("a@domain0.example"));
+		assertTrue(copy.alreadySentTo("b@domain0.example"));
+		assertFalse(copy.alreadySentTo("c@domain0.example"));
+		assertEquals(2, copy.getSentCount());
+		assertEquals(1, copy.getFailedCount());
+		copy.logSentTo("d@domain0.example");
+		assertTrue(copy.alreadySentTo("d@domain0.example"));
+	}
+
+	@Test
+	void compactedIsSortedWithoutDuplicates(){
+final	EmailSendLog.Compacted	first	=	EmailSendLog.Compacted.EMPTY.merge(Arrays.asList("b@x.example", "a@x.example", "b@x.example", "\u00e9@x.example"));
+		assertEquals(3, first.size());
+		assertTrue(first.contains("a@x.example"));
+		assertTrue(first.contains("b@x.example"));
+		assertTrue(first.contains("\u00e9@x.example"));
+		assertFalse(first.contains("c@x.example"));
+		assertFalse(first.contains("a@x.exampl"));
+		assertFalse(EmailSendLog.Compacted.EMPTY.contains("a@x.example"));
+final	EmailSendLog.Compacted	second	=	first.merge(Arrays.asList("c@x.example", "a@x.example", ""));
+		assertEquals(5, second.size());
+		assertTrue(second.contains(""));
+		assertTrue(second.contains("c@x.example"));
+		assertTrue(second.contains("\u00e9@x.example"));
+		assertEquals(3, first.size());//merging leaves the original as it was
+	}
+
+	@Test
+	void compactingKeepsEveryRecipientFindable(){
+final	EmailSendLog	log		=	new EmailSendLog();
+		for (int i=0; i<1000; i++) {
+			log.logSentTo("user"+i+"@domain"+(i%10)+".example");
+		}
+		log.compact();
+		for (int i=500; i<1500; i++) {
+			log.logSentTo("user"+i+"@domain"+(i%10)+".example");
+		}
+		assertEquals(2000, log.getSentCount());//the 500 logged again are counted twice until they are compacted
+		log.compact();
+		log.compact();
+		assertEquals(1500, log.getSentCount());
+		for (int i=0; i<1500; i++) {
+			assertTrue(log.alreadySentTo("user"+i+"@domain"+(i%10)+".example"));
+		}
+		assertFalse(log.alreadySentTo("user1500@domain0.example"));
+	}
+
+	@Test
+	void filterHasNoFalseNegatives(){
+final	EmailSendLog.Filter	filter	=	new EmailSendLog.Filter(10000, 0.01d);
+		for (int i=0; i<10000; i++) {
+			filter.add("user"+i+"@domain.example");
+		}
+	int						falsepositives	=	0;
+		for (int i=0; i<10000; i++){
+			assertTrue(filter.mightContain("user"+i+"@domain.example"));
+			if (filter.mightContain("other"+i+"@domain.example")) {
+				falsepositives++;
+			}
+		}
+		assertTrue(falsepositives<200, falsepositives+" false positives");
+	}
+
+	@Test
+	void filterCoversRecipientsLoggedBeforeItWasEnabled(){
+final	EmailSendLog	log		=	new EmailSendLog();
+		log.logSentTo("a@domain0.example");
+		log.compact();
+		log.logSentTo("b@domain0.example");
+		log.enableFilter(10, EmailSendLog.DEFAULT_FPP);
+		log.logSentTo("c@domain0.example");
+		assertTrue(log.alreadySentTo("a@domain0.example"));
+		assertTrue(log.alreadySentTo("b@domain0.example"));
+		assertTrue(log.alreadySentTo("c@domain0.example"));
+		assertFalse(log.alreadySentTo("d@domain0.example"));
+		assertThrows(IllegalArgumentException.class, () -> log.enableFilter(10, 0));
+		assertThrows(IllegalArgumentException.class, () -> log.enableFilter(10, 1));
+	}
+}
@@ -0,0 +1,190 @@
+/* com.zacwolf.commons.email.EmailSpoolTest.java
+ *
+ * Restart, acknowledgement, checkpointing and crash recovery of the outbound spool
+ *
+ * Copyright (C) 2021 Zac Morris
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.zacwolf.commons.email;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Random;
+
+import javax.mail.Address;
+import javax.mail.MessagingException;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeBodyPart;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * @author Zac Morris <zac@zacwolf.com>
+ * @version 1.3
+ * @since Java1.8
+ */
+public class EmailSpoolTest {
+	private		File		dir;
+	private		Email		email;
+
+	@BeforeEach
+	void setUp() throws Exception {
+		dir		=	TestFiles.createTempDirectory("spool");
+		email	=	TestEmails.email("spooltest", TestEmails.recipients("user", 1));
+	}
+
+	@AfterEach
+	void tearDown(){
+		TestFiles.delete(dir);
+	}
+
+	@Test
+	void restartRedeliversUnacknowledgedJobs() throws Exception {
+		try (final EmailSpool spool=new EmailSpool(dir, 4096, 1000)){
+			for (int i=0; i<3; i++) {
+				offer(spool, "user"+i);
+			}
+final	EmailSpool.SpooledJob	first	=	spool.take();
+final	EmailSpool.SpooledJob	second	=	spool.take();
+			assertEquals("user0", recipient(first));
+			assertEquals("user1", recipient(second));
+			spool.ack(first);
+		}
+		//the second job was taken but never acknowledged, so is delivered again
+		try (final EmailSpool spool=new EmailSpool(dir, 4096, 1000)){
+			assertEquals("user1", recipient(spool.poll()));
+			assertEquals("user2", recipient(spool.poll()));
+			assertNull(spool.poll());
+		}
+	}
+
+	@Test
+	void checkpointDeletesAcknowledgedSegmentsAndContent() throws Exception {
+		try (final EmailSpool spool=new EmailSpool(dir, 256, 1000)){
+			for (int i=0; i<20; i++) {
+				offer(spool, "user"+i);
+			}
+			assertTrue(segments().length>2, "expected the jobs to span several segments");
+			assertEquals(1, new File(dir, "content").list().length);
+			for (int i=0; i<20; i++){
+final	EmailSpool.SpooledJob	job	=	spool.poll();
+				assertEquals("user"+i, recipient(job));
+				spool.ack(job);
+			}
+			assertFalse(spool.hasPending());
+			assertEquals(1, segments().length, "only the segment still being written to is kept");
+			assertEquals(0, new File(dir, "content").list().length);
+		}
+		try (final EmailSpool spool=new EmailSpool(dir, 256, 1000)){
+			assertNull(spool.poll());
+			offer(spool, "after");
+			assertEquals("after", recipient(spool.poll()));
+		}
+	}
+
+	@Test
+	void recoversFromPartiallyWrittenRecord() throws Exception {
+		try (final EmailSpool spool=new EmailSpool(dir, 4096, 1000)){
+			for (int i=0; i<3; i++) {
+				offer(spool, "user"+i);
+			}
+		}
+		//a crash part way through appending a fourth record
+		try (final RandomAccessFile segment=new RandomAccessFile(segments()[0], "rw")){
+			segment.seek(segment.length());
+			segment.writeInt(200);
+			segment.write(new byte[]{1, 2, 3});
+		}
+		try (final EmailSpool spool=new EmailSpool(dir, 4096, 1000)){
+			for (int i=0; i<3; i++) {
+				assertEquals("user"+i, recipient(spool.poll()));
+			}
+			assertNull(spool.poll());
+			offer(spool, "after");
+			assertEquals("after", recipient(spool.poll()));
+		}
+	}
+
+	@Test
+	void takeWaitsForOffer() throws Exception {
+		try (final EmailSpool spool=new EmailSpool(dir, 4096, 1000)){
+final	EmailSpool.SpooledJob[]	taken	=	new EmailSpool.SpooledJob[1];
+final	Thread					taker	=	new Thread(() -> {
+											try {
+												taken[0]	=	spool.take();
+											} catch (final Exception e){
+												e.printStackTrace();
+											}
+										});
+			taker.start();
+			Thread.sleep(100);
+			assertNull(taken[0]);
+			offer(spool, "late");
+			taker.join(5000);
+			assertNotNull(taken[0]);
+			assertEquals("late", recipient(taken[0]));
+		}
+	}
+
+	@Test
+	void contentIsMappedRatherThanReadOntoTheHeap() throws Exception {
+final	byte[]		data		=	new byte[256*1024];
+		new Random(1).nextBytes(data);
+		email.addAttachment(new EmailAttachment("data.bin", "application/octet-stream", data, "data", "Data", MimeBodyPart.ATTACHMENT));
+final	ByteArrayOutputStream	rendered	=	new ByteArrayOutputStream();
+		EmailRenderCache.get(email).writeTo(rendered);
+		try (final EmailSpool spool=new EmailSpool(dir, 4096, 1000)){
+			offer(spool, "user0");
+		}
+		try (final EmailSpool spool=new EmailSpool(dir, 4096, 1000)){
+final	EmailSpool.SpooledJob				job		=	spool.poll();
+final	EmailRenderCache.RenderedContent	content	=	spool.content(job.contentname);
+			assertTrue(content.data.isDirect());
+			assertEquals(0, content.attachments.length);//encoded into the file
+			assertSame(content, spool.content(job.contentname));
+final	ByteArrayOutputStream	read	=	new ByteArrayOutputStream();
+			content.writeTo(read);
+			assertArrayEquals(rendered.toByteArray(), read.toByteArray());
+		}
+	}
+
+	private void offer(final EmailSpool spool, final String user) throws IOException, MessagingException {
+		spool.offer(new EmailChunk(email, new InternetAddress(TestEmails.FROM), new Address[]{new InternetAddress(user+"@test.example")}, null, null, null), null);
+	}
+
+	private static String recipient(final EmailSpool.SpooledJob job){
+		assertNotNull(job);
+final	Address[]	recipients	=	job.getRecipients();
+		assertEquals(1, recipients.length);
+final	String		address		=	((InternetAddress)recipients[0]).getAddress();
+		return address.substring(0, address.indexOf('@'));
+	}
+
+	private File[] segments(){
+		return dir.listFiles((d, name) -> name.endsWith(".spool"));
+	}
+}
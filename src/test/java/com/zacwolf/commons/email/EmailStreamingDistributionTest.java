@@ -0,0 +1,67 @@
+/* com.zacwolf.commons.email.EmailStreamingDistributionTest.java
+ *
+ * Serialization of streaming distributions with serializable and non-serializable sources
+ *
+ * Copyright (C) 2021 Zac Morris
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.zacwolf.commons.email;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.NotSerializableException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.Arrays;
+
+import javax.mail.internet.InternetAddress;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * @author Zac Morris <zac@zacwolf.com>
+ * @version 1.3
+ * @since Java1.8
+ */
+public class EmailStreamingDistributionTest {
+
+	@Test
+	void serializesWithAFileSource() throws Exception {
+final	EmailStreamingDistribution	dist	=	new EmailStreamingDistribution(new InternetAddress(TestEmails.FROM), EmailRecipientSource.fromFile(new File("recipients.txt")), EmailDistribution.LISTTYPE_TO);
+final	ByteArrayOutputStream		baos	=	new ByteArrayOutputStream();
+		try (final ObjectOutputStream out=new ObjectOutputStream(baos)){
+			out.writeObject(dist);
+		}
+		try (final ObjectInputStream in=new ObjectInputStream(new ByteArrayInputStream(baos.toByteArray()))){
+final	EmailStreamingDistribution	copy	=	(EmailStreamingDistribution)in.readObject();
+			assertEquals(EmailDistribution.LISTTYPE_TO, copy.getRecipientListType());
+			assertEquals(dist.getRecipientSource(), copy.getRecipientSource());
+			assertEquals(dist.hashCode(), copy.hashCode());
+			assertEquals(dist, copy);
+		}
+	}
+
+	@Test
+	void refusesToSerializeAnIteratorSource() throws Exception {
+final	EmailStreamingDistribution	dist	=	new EmailStreamingDistribution(new InternetAddress(TestEmails.FROM), EmailRecipientSource.fromIterator(() -> Arrays.asList("a@domain0.example").iterator()));
+		try (final ObjectOutputStream out=new ObjectOutputStream(new ByteArrayOutputStream())){
+			assertThrows(NotSerializableException.class, () -> out.writeObject(dist));
+		}
+	}
+}
@@ -0,0 +1,107 @@
+/* com.zacwolf.commons.email.EmailTimingWheelTest.java
+ *
+ * Scheduling, multi-round delays and pending counts of the retry timing wheel
+ *
+ * Copyright (C) 2021 Zac Morris
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.zacwolf.commons.email;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * @author Zac Morris <zac@zacwolf.com>
+ * @version 1.3
+ * @since Java1.8
+ */
+public class EmailTimingWheelTest {
+final	static	private		long				TICK		=	5;
+final	static	private		int					WHEELSIZE	=	8;//40ms a turn, so most delays take several rounds
+	private		EmailTimingWheel	wheel;
+
+	@BeforeEach
+	void setUp(){
+		wheel	=	new EmailTimingWheel("test-wheel", TICK, WHEELSIZE);
+	}
+
+	@AfterEach
+	void tearDown(){
+		wheel.close();
+	}
+
+	@Test
+	void runsTasksThatSpanSeveralRounds() throws Exception {
+final	long[]			delays	=	{0, 3, 17, 41, 95, 200};
+final	CountDownLatch	done	=	new CountDownLatch(delays.length);
+final	ConcurrentLinkedQueue<String>	early	=	new ConcurrentLinkedQueue<String>();
+final	ConcurrentLinkedQueue<String>	late	=	new ConcurrentLinkedQueue<String>();
+		for (final long delay:delays){
+final	long			scheduled	=	System.nanoTime();
+			wheel.schedule(() -> {
+final	long			elapsed		=	TimeUnit.NANOSECONDS.toMillis(System.nanoTime()-scheduled);
+				if (elapsed<delay) {
+					early.add(delay+"ms ran after "+elapsed+"ms");
+				}
+				if (elapsed>delay+500) {//a tick, plus generous slack for a busy machine
+					late.add(delay+"ms ran after "+elapsed+"ms");
+				}
+				done.countDown();
+			}, delay, TimeUnit.MILLISECONDS);
+		}
+		assertEquals(delays.length, wheel.getPending());
+		assertTrue(done.await(5, TimeUnit.SECONDS), "not every task ran");
+		assertTrue(early.isEmpty(), "ran early: "+early);
+		assertTrue(late.isEmpty(), "ran late: "+late);
+		assertEquals(0, wheel.getPending());
+	}
+
+	@Test
+	void runsTasksDueOnTheSameTickInOrderScheduled() throws Exception {
+final	ConcurrentLinkedQueue<Integer>	order	=	new ConcurrentLinkedQueue<Integer>();
+final	CountDownLatch					done	=	new CountDownLatch(100);
+		for (int i=0; i<100; i++){
+final	int		n	=	i;
+			wheel.schedule(() -> {
+				order.add(n);
+				done.countDown();
+			}, 60, TimeUnit.MILLISECONDS);
+		}
+		assertTrue(done.await(5, TimeUnit.SECONDS));
+	int			expected	=	0;
+		for (final Integer n:order) {
+			assertEquals(expected++, n.intValue());
+		}
+	}
+
+	@Test
+	void failingTaskDoesNotStopTheWheel() throws Exception {
+final	CountDownLatch	done	=	new CountDownLatch(1);
+		wheel.schedule(() -> {
+			throw new IllegalStateException("expected by the test");
+		}, 10, TimeUnit.MILLISECONDS);
+		wheel.schedule(done::countDown, 20, TimeUnit.MILLISECONDS);
+		assertTrue(done.await(5, TimeUnit.SECONDS));
+		assertEquals(0, wheel.getPending());
+	}
+}
@@ -0,0 +1,526 @@
+/* com.zacwolf.commons.email.FakeSMTPServer.java
+ *
+ * Embeddable, non-blocking SMTP sink for testing, benchmarking and load testing _EMAILfactory offline
+ *
+ * Copyright (C) 2021 Zac Morris
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.zacwolf.commons.email;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Pattern;
+
+/**
+ * Just enough of ESMTP (with PIPELINING) for the factory's pooled transports, served by a single
+ * selector thread so tens of thousands of messages a second can be absorbed without a thread per
+ * connection.  Message content is scanned for the terminating dot and thrown away.
+ *
+ * To make it behave more like a real relay:
+ * <ul>
+ * <li>{@link #setLatency(String, long)} delays the reply to a command (the connection's later commands wait behind it,
+ * but other connections don't)</li>
+ * <li>{@link #addRecipientReply(String, String)} gives recipients matching a pattern a 4xx/5xx reply</li>
+ * <li>{@link #setMaxConnections(int)} refuses connections beyond the limit with a 421</li>
+ * <li>{@link #setMaxRecipients(int)} rejects recipients beyond the limit per transaction with a 452</li>
+ * </ul>
+ * The time of every transaction, from MAIL FROM to the reply to its content, is recorded in {@link #getTransactions()}.
+ *
+ * @author Zac Morris <zac@zacwolf.com>
+ * @version 1.3
+ * @since Java1.8
+ */
+final class FakeSMTPServer implements AutoCloseable {
+/** Commands whose reply can be delayed; CONNECT is the greeting and DATAEND the reply to the message content */
+final	static	public		String							CONNECT			=	"CONNECT";
+final	static	public		String							EHLO			=	"EHLO";
+final	static	public		String							MAIL			=	"MAIL";
+final	static	public		String							RCPT			=	"RCPT";
+final	static	public		String							DATA			=	"DATA";
+final	static	public		String							DATAEND			=	"DATAEND";
+final	static	private		int								BUFFERSIZE		=	64*1024;
+final	static	private		int								ENDOFDATA		=	5;
+
+final			private		ServerSocketChannel				server;
+final			private		Selector						selector;
+final			private		Thread							loop;
+final			private		PriorityQueue<Connection>		delayed			=	new PriorityQueue<Connection>((a, b) -> Long.compare(a.replyat, b.replyat));
+final			private		Map<String,Long>				latencies		=	new ConcurrentHashMap<String,Long>();
+final			private		List<RecipientReply>			replies			=	new CopyOnWriteArrayList<RecipientReply>();
+	volatile	private		int								maxconnections	=	0;
+	volatile	private		int								maxrecipients	=	0;
+	volatile	private		boolean							closed			=	false;
+final			private		AtomicInteger					connections		=	new AtomicInteger();
+final			private		LongAdder						accepted		=	new LongAdder();
+final			private		LongAdder						refused			=	new LongAdder();
+final			private		LongAdder						messages		=	new LongAdder();
+final			private		LongAdder						recipients		=	new LongAdder();
+final			private		LongAdder						rejected		=	new LongAdder();
+final			private		LongAdder						bytes			=	new LongAdder();
+final			private		EmailHistogram					transactions	=	new EmailHistogram("fake.transaction", "MAIL FROM until the reply to the content", "ns");
+
+	/**
+	 * Listens on an ephemeral loopback port.
+	 *
+	 * @throws IOException
+	 */
+	FakeSMTPServer() throws IOException {
+		this(0);
+	}
+
+	/**
+	 * @param port to listen on (on the loopback interface), 0 for any free port
+	 * @throws IOException
+	 */
+	FakeSMTPServer(final int port) throws IOException {
+		selector	=	Selector.open();
+		server		=	ServerSocketChannel.open();
+		server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 1024);
+		server.configureBlocking(false);
+		server.register(selector, SelectionKey.OP_ACCEPT);
+		loop		=	new Thread(this::run, "FakeSMTPServer:"+getPort());
+		loop.setDaemon(true);
+		loop.start();
+	}
+
+	int getPort(){
+		return server.socket().getLocalPort();
+	}
+
+	/**
+	 * @param command one of {@link #CONNECT}, {@link #EHLO}, {@link #MAIL}, {@link #RCPT}, {@link #DATA} or {@link #DATAEND}
+	 * @param millis to wait before replying, 0 for none
+	 */
+	void setLatency(final String command, final long millis){
+		latencies.put(command.toUpperCase(), TimeUnit.MILLISECONDS.toNanos(millis));
+	}
+
+	/**
+	 * Recipients are matched against the patterns in the order they were added, the first match giving the reply.
+	 *
+	 * @param regex found anywhere in the recipient's address, e.g. "^bounce"
+	 * @param reply e.g. "550 5.1.1 No such user" or "451 4.3.0 Try again later"
+	 */
+	void addRecipientReply(final String regex, final String reply){
+		replies.add(new RecipientReply(Pattern.compile(regex), reply));
+	}
+
+	/**
+	 * @param maxconnections connections open at once, 0 for no limit
+	 */
+	void setMaxConnections(final int maxconnections){
+		this.maxconnections	=	maxconnections;
+	}
+
+	/**
+	 * @param maxrecipients recipients accepted per transaction, 0 for no limit
+	 */
+	void setMaxRecipients(final int maxrecipients){
+		this.maxrecipients	=	maxrecipients;
+	}
+
+	/**
+	 * @return connections currently open
+	 */
+	int getConnections(){
+		return connections.get();
+	}
+
+	/**
+	 * @return connections accepted since the server started
+	 */
+	long getAccepted(){
+		return accepted.sum();
+	}
+
+	/**
+	 * @return connections refused over the connection limit
+	 */
+	long getRefused(){
+		return refused.sum();
+	}
+
+	long getMessages(){
+		return messages.sum();
+	}
+
+	/**
+	 * @return recipients accepted
+	 */
+	long getRecipients(){
+		return recipients.sum();
+	}
+
+	/**
+	 * @return recipients given a 4xx/5xx reply
+	 */
+	long getRejected(){
+		return rejected.sum();
+	}
+
+	/**
+	 * @return bytes of message content received
+	 */
+	long getBytes(){
+		return bytes.sum();
+	}
+
+	EmailHistogram getTransactions(){
+		return transactions;
+	}
+
+	@Override
+	public void close() throws IOException {
+		closed	=	true;
+		selector.wakeup();
+		try {
+			loop.join(TimeUnit.SECONDS.toMillis(5));
+		} catch (final InterruptedException ie){
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private void run(){
+		try {
+			while (!closed){
+final	long					now		=	System.nanoTime();
+				while (!delayed.isEmpty() && delayed.peek().replyat<=now) {
+					delayed.poll().release();
+				}
+				selector.select(delayed.isEmpty()?0:Math.max(1, TimeUnit.NANOSECONDS.toMillis(delayed.peek().replyat-now)));
+				for (final Iterator<SelectionKey> it=selector.selectedKeys().iterator(); it.hasNext();){
+final	SelectionKey			key		=	it.next();
+					it.remove();
+					if (!key.isValid()) {
+						continue;
+					}
+					if (key.isAcceptable()) {
+						accept();
+						continue;
+					}
+final	Connection				c		=	(Connection)key.attachment();
+					try {
+						if (key.isWritable()) {
+							c.flush();
+						}
+						if (key.isValid() && key.isReadable()) {
+							c.read();
+						}
+					} catch (final IOException ioe){
+						c.close();
+					}
+				}
+			}
+		} catch (final IOException ioe){
+			ioe.printStackTrace();
+		} finally {
+			for (final SelectionKey key:selector.keys()) {
+				if (key.attachment() instanceof Connection) {
+					((Connection)key.attachment()).close();
+				}
+			}
+			try {
+				server.close();
+				selector.close();
+			} catch (final IOException ioe){
+				//closing anyway
+			}
+		}
+	}
+
+	private void accept() throws IOException {
+	SocketChannel		ch;
+		while ((ch=server.accept())!=null){
+			ch.configureBlocking(false);
+			ch.socket().setTcpNoDelay(true);
+final	Connection		c		=	new Connection(ch, ch.register(selector, SelectionKey.OP_READ));
+			c.key.attach(c);
+			accepted.increment();
+			if (maxconnections>0 && connections.get()>=maxconnections){
+				refused.increment();
+				c.closeafter	=	true;
+				c.write("421 4.7.0 Too many connections, try again later");
+				continue;
+			}
+			connections.incrementAndGet();
+			c.counted		=	true;
+			c.reply(CONNECT, "220 localhost FakeSMTPServer ESMTP");
+		}
+	}
+
+	/**
+	 * State of one SMTP session, only ever touched by the selector thread.
+	 */
+	final private class Connection {
+final	SocketChannel			ch;
+final	SelectionKey			key;
+final	ByteBuffer				in			=	ByteBuffer.allocate(BUFFERSIZE);
+final	ArrayDeque<ByteBuffer>	out			=	new ArrayDeque<ByteBuffer>();
+		boolean					counted		=	false;
+		boolean					closeafter	=	false;
+		boolean					indata		=	false;
+		int						eod			=	0;//how much of CRLF.CRLF has been matched
+		String					pending		=	null;//delayed reply
+		long					replyat;
+		long					txnstart;
+		int						accepted;
+
+		Connection(final SocketChannel ch, final SelectionKey key){
+			this.ch		=	ch;
+			this.key	=	key;
+		}
+
+		void read() throws IOException {
+			if (ch.read(in)<0){
+				close();
+				return;
+			}
+			process();
+		}
+
+		/**
+		 * Handles every complete command (or the content) buffered, stopping while a reply is delayed.
+		 */
+		void process(){
+			in.flip();
+			while (pending==null && !closeafter && in.hasRemaining()){
+				if (indata){
+					if (!scanData()) {
+						break;
+					}
+					continue;
+				}
+	int					end		=	-1;
+				for (int i=in.position(); i<in.limit(); i++){
+					if (in.get(i)=='\n'){
+								end		=	i;
+						break;
+					}
+				}
+				if (end<0){
+					if (in.position()==0 && in.limit()==in.capacity()){//no line end in a full buffer
+						in.clear();
+						reply(null, "500 5.5.6 Line too long");
+						return;
+					}
+					break;
+				}
+final	byte[]			line	=	new byte[end-in.position()];
+				in.get(line);
+				in.get();//the \n
+				command(new String(line, StandardCharsets.US_ASCII).trim());
+			}
+			in.compact();
+			if (!key.isValid()) {//QUIT
+				return;
+			}
+			//stop reading while a reply is delayed and the buffer is full, so the client is held up too
+			key.interestOps((in.hasRemaining()?SelectionKey.OP_READ:0)|(out.isEmpty()?0:SelectionKey.OP_WRITE));
+		}
+
+		/**
+		 * @return true once the content has ended
+		 */
+		boolean scanData(){
+final	int				start	=	in.position();
+			while (in.hasRemaining()){
+final	byte			b		=	in.get();
+				switch (b){
+					case '\r':
+						eod		=	eod==3?4:1;
+						break;
+					case '\n':
+						eod		=	eod==1?2:eod==4?ENDOFDATA:0;
+						break;
+					case '.':
+						eod		=	eod==2?3:0;
+						break;
+					default:
+						eod		=	0;
+				}
+				if (eod==ENDOFDATA){
+					bytes.add(in.position()-start);
+					indata	=	false;
+					messages.increment();
+					reply(DATAEND, "250 2.0.0 OK queued");
+					return true;
+				}
+			}
+			bytes.add(in.position()-start);
+			return false;
+		}
+
+		void command(final String line){
+final	String			verb	=	(line.length()<4?line:line.substring(0, 4)).toUpperCase();
+			switch (verb){
+				case "EHLO":
+					reply(EHLO, "250-localhost\r\n250-8BITMIME\r\n250-PIPELINING\r\n250 SIZE");
+					break;
+				case "HELO":
+					reply(EHLO, "250 localhost");
+					break;
+				case "MAIL":
+					txnstart	=	System.nanoTime();
+					accepted	=	0;
+					reply(MAIL, "250 2.1.0 OK");
+					break;
+				case "RCPT":
+					rcpt(line);
+					break;
+				case "DATA":
+					if (accepted==0) {
+						reply(DATA, "554 5.5.1 No valid recipients");
+					} else {
+						indata	=	true;
+						eod		=	2;//the DATA line's CRLF counts, so an empty message is just ".\r\n"
+						reply(DATA, "354 End data with <CR><LF>.<CR><LF>");
+					}
+					break;
+				case "RSET":
+					accepted	=	0;
+					reply(null, "250 2.0.0 OK");
+					break;
+				case "NOOP":
+					reply(null, "250 2.0.0 OK");
+					break;
+				case "QUIT":
+					closeafter	=	true;
+					reply(null, "221 2.0.0 Bye");
+					break;
+				default:
+					reply(null, "502 5.5.2 Command not recognized");
+			}
+		}
+
+		void rcpt(final String line){
+final	int				lt		=	line.indexOf('<');
+final	int				gt		=	line.lastIndexOf('>');
+final	String			address	=	lt>=0 && gt>lt?line.substring(lt+1, gt):line.substring(Math.min(line.length(), 8)).trim();
+final	int				max		=	maxrecipients;
+			if (max>0 && accepted>=max){
+				rejected.increment();
+				reply(RCPT, "452 4.5.3 Too many recipients");
+				return;
+			}
+			for (final RecipientReply r:replies){
+				if (r.pattern.matcher(address).find()){
+					rejected.increment();
+					reply(RCPT, r.reply);
+					return;
+				}
+			}
+			accepted++;
+			recipients.increment();
+			reply(RCPT, "250 2.1.5 OK");
+		}
+
+		/**
+		 * Replies now, or once the command's latency has passed.
+		 */
+		void reply(final String command, final String reply){
+final	Long			latency	=	command==null?null:latencies.get(command);
+final	long			now		=	System.nanoTime();
+			if (DATAEND.equals(command)) {
+				transactions.record(now+(latency==null?0:latency)-txnstart);
+			}
+			if (latency==null || latency<=0){
+				write(reply);
+				return;
+			}
+			pending		=	reply;
+			replyat		=	now+latency;
+			delayed.add(this);
+		}
+
+		/**
+		 * Sends the delayed reply, and carries on with any commands that were pipelined behind it.
+		 */
+		void release(){
+			if (!ch.isOpen()) {
+				return;
+			}
+final	String			reply	=	pending;
+			pending		=	null;
+			write(reply);
+			if (ch.isOpen()) {
+				process();
+			}
+		}
+
+		void write(final String reply){
+			out.add(ByteBuffer.wrap((reply+"\r\n").getBytes(StandardCharsets.US_ASCII)));
+			try {
+				flush();
+			} catch (final IOException ioe){
+				close();
+			}
+		}
+
+		void flush() throws IOException {
+			while (!out.isEmpty()){
+				ch.write(out.peek());
+				if (out.peek().hasRemaining()) {
+					break;
+				}
+				out.poll();
+			}
+			if (out.isEmpty() && closeafter){
+				close();
+				return;
+			}
+			key.interestOps(out.isEmpty()?key.interestOps()&~SelectionKey.OP_WRITE:key.interestOps()|SelectionKey.OP_WRITE);
+		}
+
+		void close(){
+			if (counted){
+				counted	=	false;
+				connections.decrementAndGet();
+			}
+			key.cancel();
+			try {
+				ch.close();
+			} catch (final IOException ioe){
+				//closing anyway
+			}
+		}
+	}
+
+	final private static class RecipientReply {
+final	Pattern		pattern;
+final	String		reply;
+
+		RecipientReply(final Pattern pattern, final String reply){
+			this.pattern	=	pattern;
+			this.reply		=	reply;
+		}
+	}
+}
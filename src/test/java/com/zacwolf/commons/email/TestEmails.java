@@ -0,0 +1,75 @@
+/* com.zacwolf.commons.email.TestEmails.java
+ *
+ * Minimal Emails and distributions for the tests
+ *
+ * Copyright (C) 2021 Zac Morris
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.zacwolf.commons.email;
+
+import java.io.IOException;
+
+import javax.mail.MessagingException;
+import javax.mail.internet.AddressException;
+import javax.mail.internet.InternetAddress;
+
+/**
+ * @author Zac Morris <zac@zacwolf.com>
+ * @version 1.3
+ * @since Java1.8
+ */
+final class TestEmails {
+final	static	public		String		FROM	=	"sender@test.example";
+
+	private TestEmails(){}
+
+	/**
+	 * @param refid
+	 * @param recipients TO recipients
+	 * @return a plain html Email with no attachments
+	 * @throws MessagingException
+	 * @throws IOException
+	 */
+	static Email email(final String refid, final InternetAddress[] recipients) throws MessagingException, IOException {
+final	Email	email	=	new TestEmail(refid);
+				email.setSubject("Test "+refid);
+				email.setBody("<html><head><title>Test</title></head><body><p>Test "+refid+"</p></body></html>");
+				email.setBodyPlainText("Test "+refid);
+				email.setDistribution(new EmailDistribution(new InternetAddress(FROM), recipients));
+		return email;
+	}
+
+	/**
+	 * @param prefix
+	 * @param count
+	 * @return <code>count</code> addresses, <code>{prefix}{n}@domain{n%10}.example</code>
+	 * @throws AddressException
+	 */
+	static InternetAddress[] recipients(final String prefix, final int count) throws AddressException {
+final	InternetAddress[]	recipients	=	new InternetAddress[count];
+		for (int i=0; i<count; i++) {
+							recipients[i]	=	new InternetAddress(prefix+i+"@domain"+(i%10)+".example");
+		}
+		return recipients;
+	}
+
+	final private static class TestEmail extends Email {
+final	static	private		long	serialVersionUID	=	1L;
+
+		TestEmail(final String refid){
+			super(refid, "test");
+		}
+	}
+}
@@ -0,0 +1,51 @@
+/* com.zacwolf.commons.email.TestFiles.java
+ *
+ * Temporary directories for the tests
+ *
+ * Copyright (C) 2021 Zac Morris
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.zacwolf.commons.email;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+/**
+ * @author Zac Morris <zac@zacwolf.com>
+ * @version 1.3
+ * @since Java1.8
+ */
+final class TestFiles {
+
+	private TestFiles(){}
+
+	static File createTempDirectory(final String prefix) throws IOException {
+		return Files.createTempDirectory("zacwolf-"+prefix).toFile();
+	}
+
+	/**
+	 * @param file deleted along with everything under it
+	 */
+	static void delete(final File file){
+final	File[]	children	=	file.listFiles();
+		if (children!=null) {
+			for (final File child:children) {
+				delete(child);
+			}
+		}
+		file.delete();
+	}
+}
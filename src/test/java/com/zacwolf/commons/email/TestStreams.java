@@ -0,0 +1,67 @@
+/* com.zacwolf.commons.email.TestStreams.java
+ *
+ * Serialization helpers for the unit tests, including reading streams written by older classes
+ *
+ * Copyright (C) 2021 Zac Morris
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.zacwolf.commons.email;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamClass;
+import java.io.Serializable;
+
+/**
+ * @author Zac Morris <zac@zacwolf.com>
+ * @version 1.3
+ * @since Java1.8
+ */
+final class TestStreams {
+
+	private TestStreams(){}
+
+	static byte[] write(final Serializable obj) throws IOException {
+final	ByteArrayOutputStream	baos	=	new ByteArrayOutputStream();
+		try (final ObjectOutputStream out=new ObjectOutputStream(baos)){
+			out.writeObject(obj);
+		}
+		return baos.toByteArray();
+	}
+
+	/**
+	 * Reads the stream, reading any class of the same simple name as <code>as</code> as that class,
+	 * so a stand-in for an older version of a class (in the legacy package) is read as the current one.
+	 *
+	 * @param data
+	 * @param as
+	 */
+	static <T> T read(final byte[] data, final Class<T> as) throws IOException, ClassNotFoundException {
+		try (final ObjectInputStream in=new ObjectInputStream(new ByteArrayInputStream(data)){
+				@Override
+				protected Class<?> resolveClass(final ObjectStreamClass desc) throws IOException, ClassNotFoundException {
+					if (desc.getName().endsWith("."+as.getSimpleName())) {
+						return as;
+					}
+					return super.resolveClass(desc);
+				}
+			}){
+			return as.cast(in.readObject());
+		}
+	}
+}
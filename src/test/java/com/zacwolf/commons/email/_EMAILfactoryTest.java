@@ -0,0 +1,195 @@
+/* com.zacwolf.commons.email._EMAILfactoryTest.java
+ *
+ * End to end sends through the factory, against the FakeSMTPServer
+ *
+ * Copyright (C) 2021 Zac Morris
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.zacwolf.commons.email;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import javax.mail.internet.InternetAddress;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * @author Zac Morris <zac@zacwolf.com>
+ * @version 1.3
+ * @since Java1.8
+ */
+public class _EMAILfactoryTest {
+	private		FakeSMTPServer	server;
+	private		EmailRelay		relay;
+	private		_EMAILfactory	factory;
+	private		File			dir;
+
+	@BeforeEach
+	void setUp() throws Exception {
+		server	=	new FakeSMTPServer();
+		relay	=	new EmailRelay("localhost", server.getPort(), null, null, 1);
+		factory	=	new _EMAILfactory(Collections.singletonList(relay));
+		dir		=	TestFiles.createTempDirectory("factory");
+	}
+
+	@AfterEach
+	void tearDown() throws Exception {
+		factory.close();
+		server.close();
+		TestFiles.delete(dir);
+	}
+
+	@Test
+	void spooledSendsOfTheSameREFIDKeepTheirOwnLogAndDelivery() throws Exception {
+		factory.setSpoolDirectory(new File(dir, "spool"));
+		server.setLatency(FakeSMTPServer.DATAEND, 5);//so the two sends' chunks interleave in the spool
+final	Email		first	=	TestEmails.email("campaign", TestEmails.recipients("first", 20000));
+final	Email		second	=	TestEmails.email("campaign", TestEmails.recipients("second", 15000));
+final	CompletableFuture<EmailDeliveryReport>	one	=	factory.sendEmailMessageAsync(first);
+final	CompletableFuture<EmailDeliveryReport>	two	=	factory.sendEmailMessageAsync(second);
+		assertEquals(20000, one.get(60, TimeUnit.SECONDS).getSentCount());
+		assertEquals(15000, two.get(60, TimeUnit.SECONDS).getSentCount());
+		awaitRecipients(35000);
+		assertEquals(20000, first.getSendLog().getSentCount());
+		assertEquals(15000, second.getSendLog().getSentCount());
+	}
+
+	@Test
+	void retryPolicyAppliesWhenEveryCircuitIsOpen() throws Exception {
+		factory.setRetryPolicy(EmailRetryPolicy.NONE);
+		for (int i=0; i<EmailRelay.DEFAULT_FAILURETHRESHOLD; i++) {
+			relay.failed();
+		}
+		assertEquals(EmailRelay.State.OPEN, relay.getState());
+final	EmailDeliveryReport	report	=	factory.sendEmailMessageAsync(TestEmails.email("open", TestEmails.recipients("user", 300))).get(30, TimeUnit.SECONDS);
+		assertEquals(0, report.getSentCount());
+		assertEquals(300, report.getFailedCount());
+		assertEquals(0, server.getRecipients());
+	}
+
+	@Test
+	void deferredJobsWaitForRoomInARejectingExecutor() throws Exception {
+final	_THREADfactory.ObservablePool	pool	=	_THREADfactory.getObservableThreadPool("EMAILfactory_test_reject", 1, 1, 1, _THREADfactory.Saturation.REJECT);
+		try {
+			factory.setExecutor(pool);
+			factory.setRetryPolicy(new EmailRetryPolicy(2, 300, 300));
+			server.addRecipientReply("^later", "451 4.3.0 Try again later");
+final	InternetAddress[]	now		=	TestEmails.recipients("now", 10);
+final	InternetAddress[]	later	=	TestEmails.recipients("later", 5);
+final	InternetAddress[]	all		=	new InternetAddress[now.length+later.length];
+			System.arraycopy(now, 0, all, 0, now.length);
+			System.arraycopy(later, 0, all, now.length, later.length);
+final	CompletableFuture<EmailDeliveryReport>	future	=	factory.sendEmailMessageAsync(TestEmails.email("saturated", all));
+final	long			deadline	=	System.currentTimeMillis()+30000;
+			while (server.getMessages()==0 && System.currentTimeMillis()<deadline) {//sent to those that can be, now
+				Thread.sleep(5);
+			}
+			//fill the pool's thread and queue while the retry is waiting on the wheel
+final	CountDownLatch		release	=	new CountDownLatch(1);
+	int						blocked	=	0;
+			while (blocked<2){
+				if (pool.tryExecute(() -> {
+						try {
+							release.await();
+						} catch (final InterruptedException ie){
+							Thread.currentThread().interrupt();
+						}
+					})) {
+					blocked++;
+				}
+			}
+			Thread.sleep(600);
+			assertTrue(pool.getStats().rejected>0, "the retry was never handed to the full pool");
+			release.countDown();
+final	EmailDeliveryReport	report	=	future.get(30, TimeUnit.SECONDS);
+			assertEquals(now.length, report.getSentCount());
+			assertEquals(later.length, report.getFailedCount());
+		} finally {
+			_THREADfactory.shutdownNowAndRemove(pool);
+		}
+	}
+
+	@Test
+	void interruptedSendsStillCompleteTheirDelivery() throws Exception {
+final	Thread[]			worker	=	new Thread[1];
+final	ExecutorService		single	=	Executors.newSingleThreadExecutor(r -> worker[0]=new Thread(r, "interrupted"));
+		try {
+			factory.setExecutor(single);
+			factory.setRetryPolicy(EmailRetryPolicy.NONE);
+			server.setLatency(FakeSMTPServer.DATAEND, 20);
+			//a merge send's slice is sent as one run of chunks on the one thread
+final	CompletableFuture<EmailDeliveryReport>	future	=	factory.sendEmailMessageAsync(TestEmails.email("interrupted", TestEmails.recipients("user", 100)),
+																						EmailMergeFields.fromMap(Collections.<String,Map<String,String>>emptyMap()));
+final	long			deadline	=	System.currentTimeMillis()+30000;
+			while (server.getMessages()<5 && System.currentTimeMillis()<deadline) {
+				Thread.sleep(5);
+			}
+			worker[0].interrupt();
+final	EmailDeliveryReport	report	=	future.get(30, TimeUnit.SECONDS);
+			assertTrue(report.getFailedCount()>0, "nothing was left to send once interrupted");
+			assertEquals(100, report.getSentCount()+report.getFailedCount());
+		} finally {
+			single.shutdownNow();
+		}
+	}
+
+	@Test
+	void eachFactoryHasItsOwnPoolWhichIsShutDownOnClose() throws Exception {
+final	_EMAILfactory					other		=	new _EMAILfactory(Collections.singletonList(new EmailRelay("localhost", server.getPort(), null, null, 1)));
+final	_THREADfactory.ObservablePool	mine		=	factory.useObservableThreadPool(1, 2, 10, _THREADfactory.Saturation.BLOCK);
+final	_THREADfactory.ObservablePool	theirs		=	other.useObservableThreadPool(2, 4, 20, _THREADfactory.Saturation.REJECT);
+		assertNotSame(mine, theirs);
+		assertEquals(4, theirs.getMaximumPoolSize());
+		other.close();
+		assertTrue(theirs.isShutdown());
+		assertFalse(mine.isShutdown());
+	}
+
+	@Test
+	void recipientsOfAMessageThatCantBeBuiltAreReportedAsFailed() throws Exception {
+final	EmailMergeFields	fields	=	recipient -> {
+										if (recipient.getAddress().startsWith("user1")) {
+											throw new IllegalStateException("No fields for "+recipient);
+										}
+										return Collections.<String,String>emptyMap();
+									};
+final	EmailDeliveryReport	report	=	factory.sendEmailMessageAsync(TestEmails.email("unbuildable", TestEmails.recipients("user", 30)), fields).get(30, TimeUnit.SECONDS);
+		assertEquals(11, report.getFailedCount());//user1 and user10-19
+		assertEquals(19, report.getSentCount());
+	}
+
+	private void awaitRecipients(final long expected) throws InterruptedException {
+final	long		deadline	=	System.currentTimeMillis()+60000;
+		while (server.getRecipients()<expected && System.currentTimeMillis()<deadline) {
+			Thread.sleep(20);
+		}
+		Thread.sleep(100);//for the last send logs to be recorded, and anything extra to arrive
+		assertEquals(expected, server.getRecipients());
+	}
+}
@@ -0,0 +1,57 @@
+/* com.zacwolf.commons.email.legacy.EmailDistribution.java
+ *
+ * The fields of EmailDistribution as serialized before its addresses were interned into a table
+ *
+ * Copyright (C) 2021 Zac Morris
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.zacwolf.commons.email.legacy;
+
+import java.io.Serializable;
+import java.util.Map;
+import java.util.Set;
+
+import javax.mail.internet.InternetAddress;
+
+/**
+ * Writes the same stream a distribution of the old layout did; the class name (less the package)
+ * and serialVersionUID match, so it can be read back as a {@link com.zacwolf.commons.email.EmailDistribution}.
+ *
+ * @author Zac Morris <zac@zacwolf.com>
+ * @version 1.3
+ * @since Java1.8
+ */
+public class EmailDistribution implements Serializable {
+
+final	static private	long 								serialVersionUID=	-7774607978066285874L;
+
+				private	InternetAddress						from;
+final			private	Map<String,Set<InternetAddress>>	toMap;
+final			private	Map<String,Set<InternetAddress>>	ccMap;
+final			private	Map<String,Set<InternetAddress>>	bccMap;
+						long								last_changed;
+
+	public EmailDistribution(final InternetAddress from,
+							  final Map<String,Set<InternetAddress>> to,
+							  final Map<String,Set<InternetAddress>> cc,
+							  final Map<String,Set<InternetAddress>> bcc)
+	{
+		this.from			=	from;
+		toMap			=	to;
+		ccMap			=	cc;
+		bccMap			=	bcc;
+		last_changed	=	1L;
+	}
+}
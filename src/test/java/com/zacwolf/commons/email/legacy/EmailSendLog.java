@@ -0,0 +1,46 @@
+/* com.zacwolf.commons.email.legacy.EmailSendLog.java
+ *
+ * The fields of EmailSendLog as serialized before it was made lock-free
+ *
+ * Copyright (C) 2021 Zac Morris
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package com.zacwolf.commons.email.legacy;
+
+import java.io.Serializable;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Writes the same stream a send log of the old layout did; the class name (less the package)
+ * and serialVersionUID match, so it can be read back as a {@link com.zacwolf.commons.email.EmailSendLog}.
+ *
+ * @author Zac Morris <zac@zacwolf.com>
+ * @version 1.3
+ * @since Java1.8
+ */
+public class EmailSendLog implements Serializable {
+final	static	private		long 			serialVersionUID	=	-4795866199500575188L;
+final			private		Set<String>		emailSentTo			=	new HashSet<String>();
+final			private		StringBuilder	errors				=	new StringBuilder();
+
+	public void logSentTo(final String emailaddress){
+		emailSentTo.add(emailaddress);
+	}
+
+	public void logError(final String error){
+		errors.append(error);
+	}
+}